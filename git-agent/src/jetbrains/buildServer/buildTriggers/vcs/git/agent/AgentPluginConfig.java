@@ -72,6 +72,17 @@ public interface AgentPluginConfig extends PluginConfig {
 
   boolean isProvideCredHelper();
 
+  /**
+   * @return true if revisions should be checked using a long-lived 'git cat-file --batch-check' process
+   */
+  boolean isUseCatFileBatch();
+
+  /**
+   * @return max number of submodules updated concurrently, git 2.9.0+ updates submodules of a repository concurrently itself;
+   * by default submodules are updated concurrently only by git which supports it
+   */
+  int getSubmoduleUpdateParallelism();
+
   /**
    * Returns charset name for git output or null if the default charset should be used
    */
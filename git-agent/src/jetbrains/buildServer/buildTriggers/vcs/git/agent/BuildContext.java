@@ -66,4 +66,12 @@ public class BuildContext implements Context {
   public AgentPluginConfig getConfig() {
     return myConfig;
   }
+
+  @Override
+  public void processStarted(@NotNull Process process) {
+  }
+
+  @Override
+  public void processFinished(@NotNull Process process) {
+  }
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.agent;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Context of git commands running outside of builds, e.g. in agent idle tasks.
+ * Cancel destroys running git processes with their child processes and processes
+ * started after it.
+ */
+public class CancelableContext extends NoBuildContext {
+
+  private final Set<Process> myProcesses = new HashSet<Process>();
+  private boolean myCanceled;
+
+  public void cancel() {
+    List<Process> processes;
+    synchronized (this) {
+      myCanceled = true;
+      processes = new ArrayList<Process>(myProcesses);
+      myProcesses.clear();
+    }
+    for (Process process : processes) {
+      ProcessTreeTerminator.destroyTree(process);
+    }
+  }
+
+  public synchronized boolean isCanceled() {
+    return myCanceled;
+  }
+
+  @Override
+  public void processStarted(@NotNull Process process) {
+    synchronized (this) {
+      if (!myCanceled) {
+        myProcesses.add(process);
+        return;
+      }
+    }
+    ProcessTreeTerminator.destroyTree(process);
+  }
+
+  @Override
+  public synchronized void processFinished(@NotNull Process process) {
+    myProcesses.remove(process);
+  }
+}
@@ -17,6 +17,7 @@
 package jetbrains.buildServer.buildTriggers.vcs.git.agent;
 
 import jetbrains.buildServer.agent.BuildInterruptReason;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 public interface Context {
@@ -35,4 +36,11 @@ public interface Context {
   @Nullable
   AgentPluginConfig getConfig();
 
+  /**
+   * Called when a git process is started, the process can be destroyed to cancel the command
+   */
+  void processStarted(@NotNull Process process);
+
+  void processFinished(@NotNull Process process);
+
 }
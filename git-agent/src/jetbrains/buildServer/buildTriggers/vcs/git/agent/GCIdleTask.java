@@ -17,27 +17,40 @@
 package jetbrains.buildServer.buildTriggers.vcs.git.agent;
 
 import jetbrains.buildServer.agent.*;
+import jetbrains.buildServer.buildTriggers.vcs.git.Constants;
 import jetbrains.buildServer.buildTriggers.vcs.git.MirrorManager;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.command.GcCommand;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.util.Disposable;
 import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
 import jetbrains.buildServer.util.NamedThreadFactory;
 import org.eclipse.jgit.lib.RepositoryBuilder;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Runs 'git gc' when agent is idle
+ * Runs 'git gc' when agent is idle.
+ *
+ * <p>Mirrors are ordered by {@link GcCandidate#getPriority() priority}, so mirrors
+ * which slow down fetches the most are processed first. Several gcs run in
+ * parallel, the number of gcs and the total number of threads they use are
+ * limited by agent parameters. Running gcs are killed when a build starts.
  */
 public class GCIdleTask implements AgentIdleTasks.Task {
 
@@ -47,8 +60,12 @@ public class GCIdleTask implements AgentIdleTasks.Task {
   private final AtomicLong myBuildFinishTime = new AtomicLong(-1);
   //name of the mirror dir -> nano timestamp of the previous git gc
   private final ConcurrentMap<String, Long> myGcTimestamp = new ConcurrentHashMap<String, Long>();
-  //ref containing the thread executing 'git gc' or null if 'git gc' is not running
+  //ref containing the thread executing the idle task or null if the task is not running
   private final AtomicReference<Thread> myGcThread = new AtomicReference<Thread>();
+  //ref containing the executor running 'git gc' or null if 'git gc' is not running
+  private final AtomicReference<ExecutorService> myGcExecutor = new AtomicReference<ExecutorService>();
+  //ref containing the context of running 'git gc' processes or null if 'git gc' is not running
+  private final AtomicReference<CancelableContext> myGcContext = new AtomicReference<CancelableContext>();
 
   public GCIdleTask(@NotNull EventDispatcher<AgentLifeCycleListener> events,
                     @NotNull AgentIdleTasks idleTasks,
@@ -68,6 +85,12 @@ public class GCIdleTask implements AgentIdleTasks.Task {
 
       @Override
       public void buildStarted(@NotNull AgentRunningBuild runningBuild) {
+        ExecutorService executor = myGcExecutor.get();
+        if (executor != null)
+          executor.shutdownNow();
+        CancelableContext context = myGcContext.get();
+        if (context != null)
+          context.cancel();
         Thread thread = myGcThread.get();
         if (thread != null)
           thread.interrupt();
@@ -95,6 +118,8 @@ public class GCIdleTask implements AgentIdleTasks.Task {
       myGcThread.set(Thread.currentThread());
       Loggers.VCS.debug("Start git gc");
       runGc(interruptState);
+    } catch (InterruptedException e) {
+      Loggers.VCS.debug("Git gc is interrupted after " + (System.currentTimeMillis() - t0) + "ms");
     } catch (Exception e) {
       Loggers.VCS.debug("Finished git gc in " + (System.currentTimeMillis() - t0) + "ms");
     } finally {
@@ -103,42 +128,113 @@ public class GCIdleTask implements AgentIdleTasks.Task {
   }
 
 
-  private void runGc(@NotNull InterruptState interruptState) {
+  private void runGc(@NotNull final InterruptState interruptState) throws InterruptedException {
     if (interruptState.isInterrupted())
       return;
-    List<File> mirrors = listMirrors();
-    Collections.shuffle(mirrors);
-    for (File mirror : mirrors) {
-      if (interruptState.isInterrupted())
-        return;
+    List<GcCandidate> candidates = getCandidates();
+    if (candidates.isEmpty())
+      return;
+    int gcCount = (int) Math.min(getMaxParallelGc(), candidates.size());
+    final int packThreads = (int) Math.max(1, getMaxCpus() / gcCount);
+    final String gitPath = getGitPath();
+    final Queue<GcCandidate> queue = new ConcurrentLinkedQueue<GcCandidate>(candidates);
+    final CancelableContext context = new CancelableContext();
+    myGcContext.set(context);
+    ExecutorService executor = Executors.newFixedThreadPool(gcCount, new NamedDaemonThreadFactory("Git idle gc"));
+    myGcExecutor.set(executor);
+    try {
+      for (int i = 0; i < gcCount; i++) {
+        executor.submit(new Runnable() {
+          public void run() {
+            GcCandidate candidate;
+            while (!interruptState.isInterrupted() && !context.isCanceled() && !Thread.currentThread().isInterrupted() && (candidate = queue.poll()) != null) {
+              runGc(candidate, packThreads, gitPath, context);
+            }
+          }
+        });
+      }
+      executor.shutdown();
+      while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+        if (interruptState.isInterrupted()) {
+          executor.shutdownNow();
+          context.cancel();
+        }
+      }
+    } finally {
+      myGcExecutor.set(null);
+      myGcContext.set(null);
+      executor.shutdownNow();
+      context.cancel();
+    }
+  }
+
+
+  private void runGc(@NotNull GcCandidate candidate, int packThreads, @NotNull String gitPath, @NotNull Context context) {
+    File mirror = candidate.getMirror();
+    long t0 = System.currentTimeMillis();
+    String path = mirror.getAbsolutePath();
+    Loggers.VCS.debug("Run git gc in " + path + ", " + candidate);
+    Disposable name = NamedThreadFactory.patchThreadName("Run git gc in " + path);
+    try {
+      GcCommand gc = new NativeGitFacade(gitPath, GitProgressLogger.NO_OP, mirror, context).gc();
+      gc.addConfig("pack.threads", String.valueOf(packThreads));
+      gc.call();
+      myGcTimestamp.put(mirror.getName(), System.nanoTime());
+    } catch (Exception e) {
+      Loggers.VCS.warnAndDebugDetails("Error while running git gc in " + path, e);
+    } finally {
+      name.dispose();
+      Loggers.VCS.debug("Finished git gc in " + path + " in " + (System.currentTimeMillis() - t0) + "ms");
+    }
+  }
+
+
+  /**
+   * @return mirrors which need gc ordered by priority
+   */
+  @NotNull
+  private List<GcCandidate> getCandidates() {
+    List<GcCandidate> result = new ArrayList<GcCandidate>();
+    long now = System.currentTimeMillis();
+    for (File mirror : listMirrors()) {
       Long previousGC = myGcTimestamp.get(mirror.getName());
-      if (previousGC != null && TimeUnit.NANOSECONDS.toHours(System.nanoTime() - previousGC) < getDelaySinceLastGCHours())
+      Long hoursSinceGC = previousGC != null ? TimeUnit.NANOSECONDS.toHours(System.nanoTime() - previousGC) : null;
+      if (hoursSinceGC != null && hoursSinceGC < getDelaySinceLastGCHours())
         continue;
-      long t0 = System.currentTimeMillis();
-      String path = mirror.getAbsolutePath();
-      Loggers.VCS.debug("Run git gc in " + path);
-      Disposable name = NamedThreadFactory.patchThreadName("Run git gc in " + path);
-      try {
-        new NativeGitFacade("git", GitProgressLogger.NO_OP, mirror).gc().call();
-        myGcTimestamp.put(mirror.getName(), System.nanoTime());
-      } catch (Exception e) {
-        Loggers.VCS.warnAndDebugDetails("Error while running git gc in " + path, e);
-      } finally {
-        name.dispose();
-        Loggers.VCS.debug("Finished git gc in " + path + " in " + (System.currentTimeMillis() - t0) + "ms");
-      }
+      long hoursSinceUse = TimeUnit.MILLISECONDS.toHours(Math.max(0, now - myMirrorManager.getLastUsedTime(mirror)));
+      GcCandidate candidate = new GcCandidate(mirror, countPacks(mirror), estimateLooseObjects(mirror), hoursSinceGC, hoursSinceUse);
+      if (candidate.getPriority() > 0)
+        result.add(candidate);
     }
+    Collections.sort(result, GcCandidate.PRIORITY_ORDER);
+    return result;
+  }
+
+
+  private static int countPacks(@NotNull File mirror) {
+    File[] packs = new File(mirror, "objects" + File.separator + "pack").listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.endsWith(".pack");
+      }
+    });
+    return packs != null ? packs.length : 0;
+  }
+
+
+  /**
+   * Estimates the number of loose objects the same way 'git gc --auto' does:
+   * by the number of objects in a single fan-out directory
+   */
+  private static int estimateLooseObjects(@NotNull File mirror) {
+    String[] objects = new File(mirror, "objects" + File.separator + "17").list();
+    return objects != null ? objects.length * 256 : 0;
   }
 
 
   @NotNull
   private List<File> listMirrors() {
-    File mirrorsDir = myMirrorManager.getBaseMirrorsDir();
-    File[] mirrors = mirrorsDir.listFiles();
-    if (mirrors == null)
-      return Collections.emptyList();
     List<File> result = new ArrayList<File>();
-    for (File f : mirrors) {
+    for (File f : myMirrorManager.getMirrorDirs()) {
       if (isGitRepo(f))
         result.add(f);
     }
@@ -156,6 +252,13 @@ public class GCIdleTask implements AgentIdleTasks.Task {
   }
 
 
+  @NotNull
+  private String getGitPath() {
+    String path = myAgentConfig.getBuildParameters().getEnvironmentVariables().get(Constants.TEAMCITY_AGENT_GIT_PATH);
+    return path != null ? path : "git";
+  }
+
+
   private boolean isEnabled() {
     return "true".equals(myAgentConfig.getConfigurationParameters().get("teamcity.git.idleGcEnabled"));
   }
@@ -179,6 +282,19 @@ public class GCIdleTask implements AgentIdleTasks.Task {
   }
 
 
+  private long getMaxParallelGc() {
+    return Math.max(1, getLongParameter("teamcity.git.idleGcMaxParallelGc", 2));
+  }
+
+
+  /**
+   * @return max number of threads used by all running gcs
+   */
+  private long getMaxCpus() {
+    return Math.max(1, getLongParameter("teamcity.git.idleGcMaxCpus", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+  }
+
+
   private long getLongParameter(@NotNull String name, long defaultValue) {
     String value = myAgentConfig.getConfigurationParameters().get(name);
     if (value == null) {
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git.agent;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.Comparator;
+
+/**
+ * Mirror considered for 'git gc' by {@link GCIdleTask}
+ */
+public final class GcCandidate {
+
+  //number of loose objects costing the same as an extra pack during fetch
+  private static final int LOOSE_OBJECTS_PER_PACK = 1000;
+  //time since the last gc after which the mirror gets the max age bonus
+  private static final long MAX_AGE_HOURS = 7 * 24;
+
+  /**
+   * Orders candidates by priority, candidates with higher priority come first
+   */
+  public static final Comparator<GcCandidate> PRIORITY_ORDER = new Comparator<GcCandidate>() {
+    public int compare(GcCandidate c1, GcCandidate c2) {
+      return Double.compare(c2.getPriority(), c1.getPriority());
+    }
+  };
+
+  private final File myMirror;
+  private final int myPacksCount;
+  private final int myLooseObjectsCount;
+  private final Long myHoursSinceGc;
+  private final long myHoursSinceUse;
+  private final double myPriority;
+
+  public GcCandidate(@NotNull File mirror,
+                     int packsCount,
+                     int looseObjectsCount,
+                     @Nullable Long hoursSinceGc,
+                     long hoursSinceUse) {
+    myMirror = mirror;
+    myPacksCount = packsCount;
+    myLooseObjectsCount = looseObjectsCount;
+    myHoursSinceGc = hoursSinceGc;
+    myHoursSinceUse = hoursSinceUse;
+    myPriority = computePriority();
+  }
+
+
+  @NotNull
+  public File getMirror() {
+    return myMirror;
+  }
+
+
+  /**
+   * Returns priority of the gc in the mirror, mirrors with higher priority are
+   * processed first. The priority grows with the number of extra packs and loose
+   * objects, because git has to examine all of them during fetch. It is higher
+   * for mirrors which were not gc-ed for a long time and for mirrors recently
+   * used by builds. A mirror with a single pack and no loose objects doesn't need
+   * gc and has zero priority.
+   */
+  public double getPriority() {
+    return myPriority;
+  }
+
+
+  private double computePriority() {
+    double need = Math.max(0, myPacksCount - 1) + (double) myLooseObjectsCount / LOOSE_OBJECTS_PER_PACK;
+    if (need <= 0)
+      return 0;
+    //we don't know when gc was run before the agent start, assume it was long ago
+    long hoursSinceGc = myHoursSinceGc != null ? Math.min(myHoursSinceGc, MAX_AGE_HOURS) : MAX_AGE_HOURS;
+    double ageFactor = 1 + (double) hoursSinceGc / MAX_AGE_HOURS;
+    double usageFactor = 1 / (1 + myHoursSinceUse / 24.0);
+    return need * ageFactor * usageFactor;
+  }
+
+
+  @Override
+  public String toString() {
+    return "packs: " + myPacksCount +
+           ", loose objects: " + myLooseObjectsCount +
+           ", hours since gc: " + (myHoursSinceGc != null ? myHoursSinceGc : "unknown") +
+           ", hours since use: " + myHoursSinceUse +
+           ", priority: " + myPriority;
+  }
+}
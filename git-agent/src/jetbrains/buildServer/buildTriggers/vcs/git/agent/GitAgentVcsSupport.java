@@ -46,6 +46,7 @@ public class GitAgentVcsSupport extends AgentVcsSupport implements UpdateByCheck
   private final GitAgentSSHService mySshService;
   private final PluginConfigFactory myConfigFactory;
   private final MirrorManager myMirrorManager;
+  private final MirrorLocks myMirrorLocks;
   private final GitMetaFactory myGitMetaFactory;
 
   //The canCheckout() method should check that roots are not checked out in the same dir (TW-49786).
@@ -62,12 +63,14 @@ public class GitAgentVcsSupport extends AgentVcsSupport implements UpdateByCheck
                             @NotNull GitAgentSSHService sshService,
                             @NotNull PluginConfigFactory configFactory,
                             @NotNull MirrorManager mirrorManager,
+                            @NotNull MirrorLocks mirrorLocks,
                             @NotNull GitMetaFactory gitMetaFactory) {
     myFS = fs;
     myDirectoryCleaner = directoryCleaner;
     mySshService = sshService;
     myConfigFactory = configFactory;
     myMirrorManager = mirrorManager;
+    myMirrorLocks = mirrorLocks;
     myGitMetaFactory = gitMetaFactory;
   }
 
@@ -101,9 +104,9 @@ public class GitAgentVcsSupport extends AgentVcsSupport implements UpdateByCheck
     Updater updater;
     AgentGitVcsRoot gitRoot = new AgentGitVcsRoot(myMirrorManager, targetDir, root);
     if (config.isUseAlternates(gitRoot)) {
-      updater = new UpdaterWithAlternates(myFS, config, myMirrorManager, myDirectoryCleaner, gitFactory, build, root, toVersion, targetDir, rules, mode);
+      updater = new UpdaterWithAlternates(myFS, config, myMirrorManager, myMirrorLocks, myDirectoryCleaner, gitFactory, build, root, toVersion, targetDir, rules, mode);
     } else if (config.isUseLocalMirrors(gitRoot)) {
-      updater = new UpdaterWithMirror(myFS, config, myMirrorManager, myDirectoryCleaner, gitFactory, build, root, toVersion, targetDir, rules, mode);
+      updater = new UpdaterWithMirror(myFS, config, myMirrorManager, myMirrorLocks, myDirectoryCleaner, gitFactory, build, root, toVersion, targetDir, rules, mode);
     } else {
       updater = new UpdaterImpl(myFS, config, myMirrorManager, myDirectoryCleaner, gitFactory, build, root, toVersion, targetDir, rules, mode);
     }
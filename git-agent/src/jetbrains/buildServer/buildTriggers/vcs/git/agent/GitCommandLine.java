@@ -211,6 +211,11 @@ public class GitCommandLine extends GeneralCommandLine {
     return myGitVersion;
   }
 
+  @NotNull
+  public Context getContext() {
+    return myCtx;
+  }
+
   public void addPostAction(@NotNull Runnable action) {
     myPostActions.add(action);
   }
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.agent;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Locks of agent mirrors. Builds and the idle prefetch take the lock of a mirror
+ * before updating it, so git commands don't modify the mirror concurrently.
+ */
+public class MirrorLocks {
+
+  //canonical path of the mirror dir -> lock
+  private final ConcurrentMap<String, Lock> myLocks = new ConcurrentHashMap<String, Lock>();
+
+  @NotNull
+  public Lock getLock(@NotNull File mirror) {
+    String key = getKey(mirror);
+    Lock lock = myLocks.get(key);
+    if (lock != null)
+      return lock;
+    lock = new ReentrantLock();
+    Lock existing = myLocks.putIfAbsent(key, lock);
+    return existing != null ? existing : lock;
+  }
+
+
+  @NotNull
+  private static String getKey(@NotNull File mirror) {
+    try {
+      return mirror.getCanonicalPath();
+    } catch (IOException e) {
+      return mirror.getAbsolutePath();
+    }
+  }
+}
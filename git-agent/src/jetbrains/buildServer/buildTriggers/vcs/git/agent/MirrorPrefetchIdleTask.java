@@ -0,0 +1,428 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git.agent;
+
+import jetbrains.buildServer.agent.*;
+import jetbrains.buildServer.buildTriggers.vcs.git.Constants;
+import jetbrains.buildServer.buildTriggers.vcs.git.GitUtils;
+import jetbrains.buildServer.buildTriggers.vcs.git.GitVcsRoot;
+import jetbrains.buildServer.buildTriggers.vcs.git.MirrorManager;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.util.Disposable;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRoot;
+import jetbrains.buildServer.vcs.VcsRootEntry;
+import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Fetches recently used mirrors when agent is idle, so fetch at the start of
+ * the next build has less to download.
+ *
+ * <p>Repositories and branches are remembered when builds finish, only mirrors
+ * of roots configured to use mirrors are fetched. Credentials of the roots are
+ * kept in memory only. When a build starts, the running fetch is killed and the
+ * build start waits until it exits. The prefetch also takes the {@link MirrorLocks lock}
+ * of the mirror, so a build doesn't update the mirror concurrently with the prefetch.
+ */
+public class MirrorPrefetchIdleTask implements AgentIdleTasks.Task {
+
+  //max number of non-heads branches remembered per repository
+  private static final int MAX_BRANCHES = 10;
+
+  private final BuildAgentConfiguration myAgentConfig;
+  private final MirrorManager myMirrorManager;
+  private final MirrorLocks myMirrorLocks;
+  private final PluginConfigFactory myConfigFactory;
+  private final GitAgentSSHService mySshService;
+  private final GitMetaFactory myGitMetaFactory;
+  //nano timestamp of the last build or of the agent start, used to delay prefetch
+  private final AtomicLong myBuildFinishTime = new AtomicLong(-1);
+  //repository url -> repository used in recent builds
+  private final ConcurrentMap<String, UsedRepository> myRepositories = new ConcurrentHashMap<String, UsedRepository>();
+  //repository url -> nano timestamp of the previous prefetch
+  private final ConcurrentMap<String, Long> myPrefetchTimestamp = new ConcurrentHashMap<String, Long>();
+  //ref containing the executor running fetch or null if prefetch is not running
+  private final AtomicReference<ExecutorService> myPrefetchExecutor = new AtomicReference<ExecutorService>();
+  //ref containing the context of running fetch processes or null if prefetch is not running
+  private final AtomicReference<CancelableContext> myPrefetchContext = new AtomicReference<CancelableContext>();
+
+  public MirrorPrefetchIdleTask(@NotNull EventDispatcher<AgentLifeCycleListener> events,
+                                @NotNull AgentIdleTasks idleTasks,
+                                @NotNull BuildAgentConfiguration agentConfig,
+                                @NotNull MirrorManager mirrorManager,
+                                @NotNull MirrorLocks mirrorLocks,
+                                @NotNull PluginConfigFactory configFactory,
+                                @NotNull GitAgentSSHService sshService,
+                                @NotNull GitMetaFactory gitMetaFactory) {
+    myAgentConfig = agentConfig;
+    myMirrorManager = mirrorManager;
+    myMirrorLocks = mirrorLocks;
+    myConfigFactory = configFactory;
+    mySshService = sshService;
+    myGitMetaFactory = gitMetaFactory;
+    events.addListener(new AgentLifeCycleAdapter() {
+      @Override
+      public void buildFinished(@NotNull AgentRunningBuild build, @NotNull BuildFinishedStatus buildStatus) {
+        myBuildFinishTime.set(System.nanoTime());
+        rememberRepositories(build);
+      }
+
+      @Override
+      public void agentStarted(@NotNull BuildAgent agent) {
+        myBuildFinishTime.set(System.nanoTime());
+      }
+
+      @Override
+      public void buildStarted(@NotNull AgentRunningBuild runningBuild) {
+        cancelPrefetch();
+      }
+    });
+    idleTasks.addRecurringTask(this);
+  }
+
+
+  @NotNull
+  @Override
+  public String getName() {
+    return "git mirrors prefetch";
+  }
+
+
+  @Override
+  public void execute(@NotNull final InterruptState interruptState) {
+    if (!isEnabled())
+      return;
+    if (!isDelayPassed())
+      return;
+    if (interruptState.isInterrupted())
+      return;
+    final List<UsedRepository> repositories = getRepositoriesToFetch();
+    if (repositories.isEmpty())
+      return;
+    long t0 = System.currentTimeMillis();
+    Loggers.VCS.debug("Start prefetch of " + repositories.size() + " git mirror(s)");
+    final CancelableContext context = new CancelableContext();
+    myPrefetchContext.set(context);
+    ExecutorService executor = Executors.newSingleThreadExecutor(new NamedDaemonThreadFactory("Git mirrors prefetch"));
+    myPrefetchExecutor.set(executor);
+    try {
+      executor.submit(new Runnable() {
+        public void run() {
+          for (UsedRepository repository : repositories) {
+            if (interruptState.isInterrupted() || context.isCanceled() || Thread.currentThread().isInterrupted())
+              return;
+            prefetch(repository, context);
+          }
+        }
+      });
+      executor.shutdown();
+      while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+        if (interruptState.isInterrupted()) {
+          executor.shutdownNow();
+          context.cancel();
+        }
+      }
+    } catch (InterruptedException e) {
+      Loggers.VCS.debug("Git mirrors prefetch is interrupted");
+    } finally {
+      myPrefetchExecutor.compareAndSet(executor, null);
+      myPrefetchContext.compareAndSet(context, null);
+      executor.shutdownNow();
+      context.cancel();
+      Loggers.VCS.debug("Finished prefetch of git mirrors in " + (System.currentTimeMillis() - t0) + "ms");
+    }
+  }
+
+
+  private void cancelPrefetch() {
+    CancelableContext context = myPrefetchContext.get();
+    if (context != null)
+      context.cancel();
+    ExecutorService executor = myPrefetchExecutor.get();
+    if (executor == null)
+      return;
+    executor.shutdownNow();
+    try {
+      //the build will update mirrors, wait until the killed fetch exits
+      if (!executor.awaitTermination(1, TimeUnit.MINUTES))
+        Loggers.VCS.warn("Git mirrors prefetch is not finished in 1 minute after cancellation");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+
+  private void rememberRepositories(@NotNull AgentRunningBuild build) {
+    if (!isEnabled())
+      return;
+    long now = System.currentTimeMillis();
+    for (VcsRootEntry entry : build.getVcsRootEntries()) {
+      VcsRoot root = entry.getVcsRoot();
+      if (!Constants.VCS_NAME.equals(root.getVcsName()))
+        continue;
+      try {
+        GitVcsRoot gitRoot = new GitVcsRoot(myMirrorManager, root);
+        AgentPluginConfig config = myConfigFactory.createDetachedConfig(build, root);
+        if (!config.isUseLocalMirrors(gitRoot) && !config.isUseAlternates(gitRoot))
+          continue;
+        String url = gitRoot.getRepositoryFetchURL().toString();
+        String customBranch = build.getSharedConfigParameters().get(GitUtils.getGitRootBranchParamName(root));
+        String branch = customBranch != null ? customBranch : GitUtils.expandRef(gitRoot.getRef());
+        UsedRepository repository = new UsedRepository(url, root, config, now);
+        UsedRepository previous = myRepositories.put(url, repository);
+        if (previous != null)
+          repository.addBranches(previous.getBranches());
+        repository.addBranch(branch);
+      } catch (VcsException e) {
+        Loggers.VCS.debug("Cannot remember git root " + root.getName() + " for mirrors prefetch: " + e.getMessage());
+      }
+    }
+    removeOldRepositories();
+  }
+
+
+  private void removeOldRepositories() {
+    int maxRepositories = (int) getLongParameter("teamcity.git.idlePrefetchMaxMirrors", 10);
+    List<UsedRepository> repositories = getRecentRepositories();
+    for (int i = maxRepositories; i < repositories.size(); i++) {
+      myRepositories.remove(repositories.get(i).getUrl());
+    }
+  }
+
+
+  /**
+   * @return recently used repositories not fetched recently, most recently used come first
+   */
+  @NotNull
+  private List<UsedRepository> getRepositoriesToFetch() {
+    List<UsedRepository> result = new ArrayList<UsedRepository>();
+    for (UsedRepository repository : getRecentRepositories()) {
+      Long previousFetch = myPrefetchTimestamp.get(repository.getUrl());
+      if (previousFetch != null && TimeUnit.NANOSECONDS.toMinutes(System.nanoTime() - previousFetch) < getPrefetchRateMinutes())
+        continue;
+      result.add(repository);
+    }
+    return result;
+  }
+
+
+  @NotNull
+  private List<UsedRepository> getRecentRepositories() {
+    List<UsedRepository> result = new ArrayList<UsedRepository>(myRepositories.values());
+    Collections.sort(result, new Comparator<UsedRepository>() {
+      public int compare(UsedRepository r1, UsedRepository r2) {
+        long t1 = r1.getLastUsedTime();
+        long t2 = r2.getLastUsedTime();
+        return t1 < t2 ? 1 : (t1 == t2 ? 0 : -1);
+      }
+    });
+    return result;
+  }
+
+
+  private void prefetch(@NotNull UsedRepository repository, @NotNull CancelableContext context) {
+    String url = repository.getUrl();
+    myPrefetchTimestamp.put(url, System.nanoTime());
+    Disposable name = NamedThreadFactory.patchThreadName("Prefetch git mirror of " + url);
+    long t0 = System.currentTimeMillis();
+    try {
+      AgentPluginConfig config = repository.getConfig();
+      GitVcsRoot root = new GitVcsRoot(myMirrorManager, repository.getRoot());
+      File mirror = myMirrorManager.getMirrorDir(url);
+      if (!isGitRepo(mirror))
+        return;
+      Lock lock = myMirrorLocks.getLock(mirror);
+      if (!lock.tryLock()) {
+        Loggers.VCS.debug("Skip prefetch of git mirror " + mirror.getAbsolutePath() + ", the mirror is being updated");
+        return;
+      }
+      try {
+        Loggers.VCS.debug("Prefetch git mirror " + mirror.getAbsolutePath() + " of " + url);
+        GitFactory gitFactory = myGitMetaFactory.createFactory(mySshService, config, GitProgressLogger.NO_OP, myAgentConfig.getTempDirectory(),
+                                                               new HashMap<String, String>(0), context);
+        fetch(gitFactory, config, root, mirror, "+refs/heads/*:refs/heads/*");
+        for (String branch : repository.getBranches()) {
+          if (context.isCanceled() || Thread.currentThread().isInterrupted())
+            return;
+          if (!branch.startsWith("refs/heads/"))
+            fetch(gitFactory, config, root, mirror, "+" + branch + ":" + branch);
+        }
+      } finally {
+        lock.unlock();
+      }
+    } catch (Exception e) {
+      Loggers.VCS.warnAndDebugDetails("Error while prefetching git mirror of " + url, e);
+    } finally {
+      name.dispose();
+      Loggers.VCS.debug("Finished prefetch of git mirror of " + url + " in " + (System.currentTimeMillis() - t0) + "ms");
+    }
+  }
+
+
+  private void fetch(@NotNull GitFactory gitFactory,
+                     @NotNull AgentPluginConfig config,
+                     @NotNull GitVcsRoot root,
+                     @NotNull File mirror,
+                     @NotNull String refspec) throws VcsException {
+    gitFactory.create(mirror).fetch()
+      .setAuthSettings(root.getAuthSettings())
+      .setUseNativeSsh(config.isUseNativeSSH())
+      .setTimeout(config.getIdleTimeoutSeconds())
+      .setRefspec(refspec)
+      .setFetchTags(config.isFetchTags())
+      .setQuite(true)
+      .call();
+  }
+
+
+  private boolean isGitRepo(@NotNull File gitDir) {
+    try {
+      new RepositoryBuilder().setGitDir(gitDir).setMustExist(true).build();
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+
+  private boolean isEnabled() {
+    return "true".equals(myAgentConfig.getConfigurationParameters().get("teamcity.git.idlePrefetchEnabled"));
+  }
+
+
+  private boolean isDelayPassed() {
+    long buildFinishTime = myBuildFinishTime.get();
+    if (buildFinishTime == -1)
+      return false;
+    return TimeUnit.NANOSECONDS.toMinutes(System.nanoTime() - buildFinishTime) >= getDelaySinceLastBuildMinutes();
+  }
+
+
+  private long getDelaySinceLastBuildMinutes() {
+    return getLongParameter("teamcity.git.idlePrefetchDelayMinutes", 5);
+  }
+
+
+  private long getPrefetchRateMinutes() {
+    return getLongParameter("teamcity.git.idlePrefetchRateMinutes", 30);
+  }
+
+
+  private long getLongParameter(@NotNull String name, long defaultValue) {
+    String value = myAgentConfig.getConfigurationParameters().get(name);
+    if (value == null) {
+      return defaultValue;
+    } else {
+      try {
+        return Long.parseLong(value);
+      } catch (NumberFormatException e) {
+        return defaultValue;
+      }
+    }
+  }
+
+
+  private static final class UsedRepository {
+    private final String myUrl;
+    private final VcsRoot myRoot;
+    private final AgentPluginConfig myConfig;
+    private final long myLastUsedTime;
+    private final Set<String> myBranches = Collections.synchronizedSet(new LinkedHashSet<String>());
+
+    private UsedRepository(@NotNull String url, @NotNull VcsRoot root, @NotNull AgentPluginConfig config, long lastUsedTime) {
+      myUrl = url;
+      myRoot = root;
+      myConfig = config;
+      myLastUsedTime = lastUsedTime;
+    }
+
+    @NotNull
+    String getUrl() {
+      return myUrl;
+    }
+
+    @NotNull
+    VcsRoot getRoot() {
+      return myRoot;
+    }
+
+    /**
+     * @return config detached from the last build which used the repository
+     */
+    @NotNull
+    AgentPluginConfig getConfig() {
+      return myConfig;
+    }
+
+    long getLastUsedTime() {
+      return myLastUsedTime;
+    }
+
+    @NotNull
+    List<String> getBranches() {
+      synchronized (myBranches) {
+        return new ArrayList<String>(myBranches);
+      }
+    }
+
+    void addBranches(@NotNull Collection<String> branches) {
+      for (String branch : branches) {
+        addBranch(branch);
+      }
+    }
+
+    /**
+     * Remembers the branch, the most recently used branch goes last
+     */
+    void addBranch(@NotNull String branch) {
+      synchronized (myBranches) {
+        myBranches.remove(branch);
+        myBranches.add(branch);
+        Iterator<String> iter = myBranches.iterator();
+        while (myBranches.size() > MAX_BRANCHES && iter.hasNext()) {
+          iter.next();
+          iter.remove();
+        }
+      }
+    }
+  }
+}
@@ -85,6 +85,14 @@ public class NativeGitFacade implements GitFacade {
   public NativeGitFacade(@NotNull String gitPath,
                          @NotNull GitProgressLogger logger,
                          @NotNull File repositoryDir) {
+    this(gitPath, logger, repositoryDir, new NoBuildContext());
+  }
+
+
+  public NativeGitFacade(@NotNull String gitPath,
+                         @NotNull GitProgressLogger logger,
+                         @NotNull File repositoryDir,
+                         @NotNull Context ctx) {
     mySsh = null;
     myTmpDir = new File(FileUtil.getTempDirectory());
     myScriptGen = makeScriptGen();
@@ -95,7 +103,7 @@ public class NativeGitFacade implements GitFacade {
     myLogger = logger;
     myGitExec = null;
     myEnv = new HashMap<String, String>(0);
-    myCtx = new NoBuildContext();
+    myCtx = ctx;
   }
 
 
@@ -215,6 +223,12 @@ public class NativeGitFacade implements GitFacade {
     return new UpdateIndexCommandImpl(createCommandLine());
   }
 
+  @NotNull
+  @Override
+  public CatFileBatch catFileBatch() {
+    return new CatFileBatchImpl(createCommandLine());
+  }
+
   @NotNull
   public Branches listBranches() throws VcsException {
     GitCommandLine cmd = createCommandLine();
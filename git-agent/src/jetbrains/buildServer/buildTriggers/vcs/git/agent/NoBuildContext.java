@@ -17,6 +17,7 @@
 package jetbrains.buildServer.buildTriggers.vcs.git.agent;
 
 import jetbrains.buildServer.agent.BuildInterruptReason;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 public class NoBuildContext implements Context {
@@ -49,4 +50,12 @@ public class NoBuildContext implements Context {
   public AgentPluginConfig getConfig() {
     return null;
   }
+
+  @Override
+  public void processStarted(@NotNull Process process) {
+  }
+
+  @Override
+  public void processFinished(@NotNull Process process) {
+  }
 }
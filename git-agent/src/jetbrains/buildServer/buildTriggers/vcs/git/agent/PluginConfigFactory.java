@@ -27,4 +27,10 @@ public interface PluginConfigFactory {
 
   AgentPluginConfig createConfig(AgentRunningBuild build, VcsRoot root) throws VcsException;
 
+  /**
+   * Creates config with a copy of the build parameters, the config doesn't reference
+   * the build and can be used after the build is finished
+   */
+  AgentPluginConfig createDetachedConfig(AgentRunningBuild build, VcsRoot root) throws VcsException;
+
 }
@@ -22,6 +22,8 @@ import jetbrains.buildServer.agent.BuildAgentConfiguration;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRoot;
 
+import java.util.HashMap;
+
 /**
  * @author dmitry.neverov
  */
@@ -41,4 +43,10 @@ public final class PluginConfigFactoryImpl implements PluginConfigFactory {
     return new PluginConfigImpl(myAgentConfig, build, gitExec);
   }
 
+
+  public AgentPluginConfig createDetachedConfig(AgentRunningBuild build, VcsRoot root) throws VcsException {
+    GitExec gitExec = myGitDetector.getGitPathAndVersion(root, myAgentConfig, build);
+    return new PluginConfigImpl(myAgentConfig, new HashMap<String, String>(build.getSharedConfigParameters()), gitExec);
+  }
+
 }
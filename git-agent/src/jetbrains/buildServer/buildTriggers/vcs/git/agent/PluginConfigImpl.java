@@ -54,6 +54,9 @@ public class PluginConfigImpl implements AgentPluginConfig {
   public static final String EXCLUDE_USERNAME_FROM_HTTP_URL = "teamcity.git.excludeUsernameFromHttpUrl";
   public static final String CLEAN_CRED_HELPER_SCRIPT = "teamcity.git.cleanCredHelperScript";
   public static final String PROVIDE_CRED_HELPER = "teamcity.git.provideCredentialHelper";
+  public static final String USE_CAT_FILE_BATCH = "teamcity.git.useCatFileBatch";
+  public static final String SUBMODULE_UPDATE_PARALLELISM = "teamcity.git.submoduleUpdateParallelism";
+  private static final int DEFAULT_SUBMODULE_UPDATE_PARALLELISM = 4;
   private static final String USE_DEFAULT_CHARSET = "teamcity.git.useDefaultCharset";
   private static final String GIT_OUTPUT_CHARSET = "teamcity.git.outputCharset";
 
@@ -63,14 +66,23 @@ public class PluginConfigImpl implements AgentPluginConfig {
   public static final String ENV_SUBJECT = "BUILD_VCS_SUBJECT";
 
   private final BuildAgentConfiguration myAgentConfig;
-  private final AgentRunningBuild myBuild;
+  private final Map<String, String> myBuildParameters;
   private final GitExec myGitExec;
 
   public PluginConfigImpl(@NotNull BuildAgentConfiguration agentConfig,
                           @NotNull AgentRunningBuild build,
                           @NotNull GitExec gitExec) {
+    this(agentConfig, build.getSharedConfigParameters(), gitExec);
+  }
+
+  /**
+   * @param buildParameters shared config parameters of the build
+   */
+  public PluginConfigImpl(@NotNull BuildAgentConfiguration agentConfig,
+                          @NotNull Map<String, String> buildParameters,
+                          @NotNull GitExec gitExec) {
     myAgentConfig = agentConfig;
-    myBuild = build;
+    myBuildParameters = buildParameters;
     myGitExec = gitExec;
   }
 
@@ -82,7 +94,7 @@ public class PluginConfigImpl implements AgentPluginConfig {
 
 
   public int getIdleTimeoutSeconds() {
-    String valueFromBuild = myBuild.getSharedConfigParameters().get(IDLE_TIMEOUT);
+    String valueFromBuild = myBuildParameters.get(IDLE_TIMEOUT);
     if (valueFromBuild != null)
       return parseTimeout(valueFromBuild);
     else
@@ -97,19 +109,19 @@ public class PluginConfigImpl implements AgentPluginConfig {
 
 
   public boolean isUseNativeSSH() {
-    String value = myBuild.getSharedConfigParameters().get(USE_NATIVE_SSH);
+    String value = myBuildParameters.get(USE_NATIVE_SSH);
     return "true".equals(value);
   }
 
 
   @Override
   public boolean isUseGitSshCommand() {
-    String value = myBuild.getSharedConfigParameters().get(USE_GIT_SSH_COMMAND);
+    String value = myBuildParameters.get(USE_GIT_SSH_COMMAND);
     return !"false".equals(value);
   }
 
   public boolean isUseLocalMirrors(@NotNull GitVcsRoot root) {
-    String buildSetting = myBuild.getSharedConfigParameters().get(USE_MIRRORS);
+    String buildSetting = myBuildParameters.get(USE_MIRRORS);
     if (!StringUtil.isEmpty(buildSetting)) {
       LOG.info("Use the '" + USE_MIRRORS + "' option specified in the build");
       return Boolean.parseBoolean(buildSetting);
@@ -127,7 +139,7 @@ public class PluginConfigImpl implements AgentPluginConfig {
 
 
   public boolean isUseAlternates(@NotNull GitVcsRoot root) {
-    String buildSetting = myBuild.getSharedConfigParameters().get(USE_ALTERNATES);
+    String buildSetting = myBuildParameters.get(USE_ALTERNATES);
     if (!StringUtil.isEmpty(buildSetting)) {
       LOG.info("Use the '" + USE_ALTERNATES + "' option specified in the build");
       return Boolean.parseBoolean(buildSetting);
@@ -145,7 +157,7 @@ public class PluginConfigImpl implements AgentPluginConfig {
 
 
   public boolean isUseSparseCheckout() {
-    String buildSetting = myBuild.getSharedConfigParameters().get(USE_SPARSE_CHECKOUT);
+    String buildSetting = myBuildParameters.get(USE_SPARSE_CHECKOUT);
     if (StringUtil.isEmpty(buildSetting))
       return true;
     return Boolean.parseBoolean(buildSetting);
@@ -153,7 +165,7 @@ public class PluginConfigImpl implements AgentPluginConfig {
 
 
   public boolean isRunGitWithBuildEnv() {
-    String buildSetting = myBuild.getSharedConfigParameters().get(USE_BUILD_ENV);
+    String buildSetting = myBuildParameters.get(USE_BUILD_ENV);
     if (StringUtil.isEmpty(buildSetting))
       return false;
     return Boolean.parseBoolean(buildSetting);
@@ -161,14 +173,14 @@ public class PluginConfigImpl implements AgentPluginConfig {
 
   @NotNull
   private String getMirrorStrategy() {
-    String strategy = myBuild.getSharedConfigParameters().get(VCS_ROOT_MIRRORS_STRATEGY);
+    String strategy = myBuildParameters.get(VCS_ROOT_MIRRORS_STRATEGY);
     if (!StringUtil.isEmpty(strategy))
       return strategy;
     return VCS_ROOT_MIRRORS_STRATEGY_ALTERNATES;
   }
 
   public boolean isUseShallowClone() {
-    String valueFromBuildConfiguration = myBuild.getSharedConfigParameters().get(USE_SHALLOW_CLONE);
+    String valueFromBuildConfiguration = myBuildParameters.get(USE_SHALLOW_CLONE);
     if (valueFromBuildConfiguration != null) {
       return "true".equals(valueFromBuildConfiguration);
     } else {
@@ -179,7 +191,7 @@ public class PluginConfigImpl implements AgentPluginConfig {
 
 
   public boolean isDeleteTempFiles() {
-    boolean doNotDelete = Boolean.parseBoolean(myBuild.getSharedConfigParameters().get(TEAMCITY_DONT_DELETE_TEMP_FILES));
+    boolean doNotDelete = Boolean.parseBoolean(myBuildParameters.get(TEAMCITY_DONT_DELETE_TEMP_FILES));
     return !doNotDelete;
   }
 
@@ -187,7 +199,7 @@ public class PluginConfigImpl implements AgentPluginConfig {
   @NotNull
   @Override
   public FetchHeadsMode getFetchHeadsMode() {
-    Map<String, String> params = myBuild.getSharedConfigParameters();
+    Map<String, String> params = myBuildParameters;
     String fetchAllHeads = params.get(FETCH_ALL_HEADS);
     if (StringUtil.isEmpty(fetchAllHeads) || "false".equals(fetchAllHeads) || "afterBuildBranch".equals(fetchAllHeads))
       return FetchHeadsMode.AFTER_BUILD_BRANCH;
@@ -203,7 +215,7 @@ public class PluginConfigImpl implements AgentPluginConfig {
   }
 
   public boolean isUseMainRepoUserForSubmodules() {
-    String fromBuildConfiguration = myBuild.getSharedConfigParameters().get(USE_MAIN_REPO_USER_FOR_SUBMODULES);
+    String fromBuildConfiguration = myBuildParameters.get(USE_MAIN_REPO_USER_FOR_SUBMODULES);
     if (fromBuildConfiguration != null)
       return Boolean.parseBoolean(fromBuildConfiguration);
 
@@ -225,7 +237,7 @@ public class PluginConfigImpl implements AgentPluginConfig {
   }
 
   public int getCheckoutIdleTimeoutSeconds() {
-    String valueFromBuild = myBuild.getSharedConfigParameters().get(IDLE_TIMEOUT);
+    String valueFromBuild = myBuildParameters.get(IDLE_TIMEOUT);
     if (valueFromBuild != null) {
       return parseTimeout(valueFromBuild, CommandUtil.DEFAULT_COMMAND_TIMEOUT_SEC);
     } else {
@@ -234,19 +246,19 @@ public class PluginConfigImpl implements AgentPluginConfig {
   }
 
   public boolean isUpdateSubmoduleOriginUrl() {
-    String value = myBuild.getSharedConfigParameters().get("teamcity.git.updateSubmoduleOriginUrl");
+    String value = myBuildParameters.get("teamcity.git.updateSubmoduleOriginUrl");
     return !"false".equals(value);
   }
 
   @Override
   public boolean isFailOnCleanCheckout() {
-    return "true".equals(myBuild.getSharedConfigParameters().get(AgentRuntimeProperties.FAIL_ON_CLEAN_CHECKOUT));
+    return "true".equals(myBuildParameters.get(AgentRuntimeProperties.FAIL_ON_CLEAN_CHECKOUT));
   }
 
 
   @Override
   public boolean isFetchTags() {
-    String value = myBuild.getSharedConfigParameters().get(FETCH_TAGS);
+    String value = myBuildParameters.get(FETCH_TAGS);
     //by default tags are fetched
     return !"false".equals(value);
   }
@@ -254,14 +266,14 @@ public class PluginConfigImpl implements AgentPluginConfig {
   public boolean isCredHelperMatchesAllUrls() {
     //it looks to be safe to enable all urls matching by default because we did
     //a similar thing with ask-pass script: it provides password for any server
-    String value = myBuild.getSharedConfigParameters().get("teamcity.git.credentialHelperMatchesAllUrls");
+    String value = myBuildParameters.get("teamcity.git.credentialHelperMatchesAllUrls");
     return !"false".equals(value);
   }
 
   @NotNull
   @Override
   public GitProgressMode getGitProgressMode() {
-    String value = myBuild.getSharedConfigParameters().get("teamcity.git.progressMode");
+    String value = myBuildParameters.get("teamcity.git.progressMode");
     if (value == null)
       return GitProgressMode.DEBUG;
     try {
@@ -273,29 +285,52 @@ public class PluginConfigImpl implements AgentPluginConfig {
 
   @Override
   public boolean isExcludeUsernameFromHttpUrl() {
-    String value = myBuild.getSharedConfigParameters().get(EXCLUDE_USERNAME_FROM_HTTP_URL);
+    String value = myBuildParameters.get(EXCLUDE_USERNAME_FROM_HTTP_URL);
     return !"false".equals(value);
   }
 
   @Override
   public boolean isCleanCredHelperScript() {
-    String value = myBuild.getSharedConfigParameters().get(CLEAN_CRED_HELPER_SCRIPT);
+    String value = myBuildParameters.get(CLEAN_CRED_HELPER_SCRIPT);
     return !"false".equals(value);
   }
 
   @Override
   public boolean isProvideCredHelper() {
-    String value = myBuild.getSharedConfigParameters().get(PROVIDE_CRED_HELPER);
+    String value = myBuildParameters.get(PROVIDE_CRED_HELPER);
     return !"false".equals(value);
   }
 
+  @Override
+  public boolean isUseCatFileBatch() {
+    String value = myBuildParameters.get(USE_CAT_FILE_BATCH);
+    return !"false".equals(value);
+  }
+
+  @Override
+  public int getSubmoduleUpdateParallelism() {
+    String value = myBuildParameters.get(SUBMODULE_UPDATE_PARALLELISM);
+    if (value == null)
+      return getDefaultSubmoduleUpdateParallelism();
+    try {
+      return Math.max(1, Integer.parseInt(value.trim()));
+    } catch (NumberFormatException e) {
+      return getDefaultSubmoduleUpdateParallelism();
+    }
+  }
+
+  private int getDefaultSubmoduleUpdateParallelism() {
+    //git 2.9.0+ updates submodules concurrently itself, older git needs a command per submodule, don't run them concurrently by default
+    return getGitVersion().isLessThan(UpdaterImpl.GIT_WITH_SUBMODULE_UPDATE_JOBS) ? 1 : DEFAULT_SUBMODULE_UPDATE_PARALLELISM;
+  }
+
   @Nullable
   @Override
   public String getGitOutputCharsetName() {
-    String useDefault = myBuild.getSharedConfigParameters().get(USE_DEFAULT_CHARSET);
+    String useDefault = myBuildParameters.get(USE_DEFAULT_CHARSET);
     if (Boolean.valueOf(useDefault))
       return null;
-    String charsetName = myBuild.getSharedConfigParameters().get(GIT_OUTPUT_CHARSET);
+    String charsetName = myBuildParameters.get(GIT_OUTPUT_CHARSET);
     return StringUtil.isNotEmpty(charsetName) ? charsetName : "UTF-8";
   }
 
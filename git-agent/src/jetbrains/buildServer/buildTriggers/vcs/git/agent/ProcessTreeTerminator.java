@@ -0,0 +1,154 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.agent;
+
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.openapi.util.SystemInfo;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.SimpleCommandLineProcessRunner;
+import jetbrains.buildServer.log.Loggers;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+/**
+ * Destroys a process together with its child processes. Git commands like
+ * gc or fetch do their work in child git processes (repack, pack-objects,
+ * index-pack) which keep running when only the parent is destroyed.
+ */
+final class ProcessTreeTerminator {
+
+  private ProcessTreeTerminator() {
+  }
+
+  static void destroyTree(@NotNull Process process) {
+    Integer pid = getPid(process);
+    if (pid != null) {
+      try {
+        if (SystemInfo.isWindows) {
+          run("taskkill", "/T", "/F", "/PID", String.valueOf(pid));
+        } else {
+          destroyUnixTree(pid);
+        }
+      } catch (Exception e) {
+        Loggers.VCS.warnAndDebugDetails("Error while destroying child processes of the process " + pid, e);
+      }
+    }
+    process.destroy();
+  }
+
+
+  /**
+   * Stops the process and its descendants level by level, so no process
+   * can start a child we don't know about, then terminates all of them
+   */
+  private static void destroyUnixTree(int pid) {
+    Set<Integer> stopped = new LinkedHashSet<Integer>();
+    try {
+      List<Integer> toStop = Collections.singletonList(pid);
+      while (!toStop.isEmpty()) {
+        kill("-STOP", toStop);
+        stopped.addAll(toStop);
+        Map<Integer, List<Integer>> children = getChildren();
+        toStop = new ArrayList<Integer>();
+        for (Integer p : stopped) {
+          List<Integer> pChildren = children.get(p);
+          if (pChildren == null)
+            continue;
+          for (Integer child : pChildren) {
+            if (!stopped.contains(child))
+              toStop.add(child);
+          }
+        }
+      }
+    } finally {
+      List<Integer> processes = new ArrayList<Integer>(stopped);
+      if (!processes.isEmpty()) {
+        kill("-TERM", processes);
+        //terminate signal is delivered to a stopped process only after it is continued
+        kill("-CONT", processes);
+      }
+    }
+  }
+
+
+  @NotNull
+  private static Map<Integer, List<Integer>> getChildren() {
+    Map<Integer, List<Integer>> result = new HashMap<Integer, List<Integer>>();
+    ExecResult ps = run("ps", "-A", "-o", "pid=", "-o", "ppid=");
+    for (String line : ps.getOutLines()) {
+      String[] pidAndParent = line.trim().split("\\s+");
+      if (pidAndParent.length != 2)
+        continue;
+      try {
+        Integer child = Integer.valueOf(pidAndParent[0]);
+        Integer parent = Integer.valueOf(pidAndParent[1]);
+        List<Integer> children = result.get(parent);
+        if (children == null) {
+          children = new ArrayList<Integer>();
+          result.put(parent, children);
+        }
+        children.add(child);
+      } catch (NumberFormatException e) {
+        //ignore
+      }
+    }
+    return result;
+  }
+
+
+  private static void kill(@NotNull String signal, @NotNull List<Integer> pids) {
+    List<String> args = new ArrayList<String>();
+    args.add(signal);
+    for (Integer pid : pids) {
+      args.add(String.valueOf(pid));
+    }
+    run("kill", args.toArray(new String[args.size()]));
+  }
+
+
+  @NotNull
+  private static ExecResult run(@NotNull String exe, @NotNull String... params) {
+    GeneralCommandLine cmd = new GeneralCommandLine();
+    cmd.setPassParentEnvs(true);
+    cmd.setExePath(exe);
+    cmd.addParameters(params);
+    return SimpleCommandLineProcessRunner.runCommand(cmd, new byte[0]);
+  }
+
+
+  @Nullable
+  private static Integer getPid(@NotNull Process process) {
+    try {
+      //Process.pid() is available since java 9
+      return ((Number) Process.class.getMethod("pid").invoke(process)).intValue();
+    } catch (NoSuchMethodException e) {
+      //older java keeps a pid of unix process in a private field
+    } catch (Exception e) {
+      return null;
+    }
+    try {
+      Field pid = process.getClass().getDeclaredField("pid");
+      pid.setAccessible(true);
+      return pid.getInt(process);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+}
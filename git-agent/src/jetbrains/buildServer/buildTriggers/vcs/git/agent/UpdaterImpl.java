@@ -23,6 +23,7 @@ import jetbrains.buildServer.agent.BuildProgressLogger;
 import jetbrains.buildServer.agent.SmartDirectoryCleaner;
 import jetbrains.buildServer.buildTriggers.vcs.git.*;
 import jetbrains.buildServer.buildTriggers.vcs.git.agent.command.*;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.command.impl.CheckoutCanceledException;
 import jetbrains.buildServer.buildTriggers.vcs.git.agent.command.impl.CommandUtil;
 import jetbrains.buildServer.buildTriggers.vcs.git.agent.command.impl.RefImpl;
 import jetbrains.buildServer.buildTriggers.vcs.git.agent.errors.GitExecTimeout;
@@ -30,6 +31,7 @@ import jetbrains.buildServer.buildTriggers.vcs.git.agent.errors.GitIndexCorrupte
 import jetbrains.buildServer.buildTriggers.vcs.git.agent.errors.GitOutdatedIndexException;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
 import jetbrains.buildServer.vcs.*;
 import org.apache.log4j.Logger;
 import org.eclipse.jgit.errors.ConfigInvalidException;
@@ -43,10 +45,21 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 
 import static com.intellij.openapi.util.text.StringUtil.isEmpty;
@@ -59,6 +72,7 @@ public class UpdaterImpl implements Updater {
   private final static GitVersion GIT_WITH_PROGRESS_VERSION = new GitVersion(1, 7, 1, 0);
   //--force option in git submodule update introduced in 1.7.6
   private final static GitVersion GIT_WITH_FORCE_SUBMODULE_UPDATE = new GitVersion(1, 7, 6);
+  public final static GitVersion GIT_WITH_SUBMODULE_UPDATE_JOBS = new GitVersion(2, 9, 0);
   public final static GitVersion GIT_WITH_SPARSE_CHECKOUT = new GitVersion(1, 7, 4);
   public final static GitVersion BROKEN_SPARSE_CHECKOUT = new GitVersion(2, 7, 0);
   public final static GitVersion MIN_GIT_SSH_COMMAND = new GitVersion(2, 3, 0);//GIT_SSH_COMMAND was introduced in git 2.3.0
@@ -70,6 +84,8 @@ public class UpdaterImpl implements Updater {
   public final static GitVersion CREDENTIALS_SECTION_VERSION = new GitVersion(1, 7, 10);
 
   private static final int SILENT_TIMEOUT = 24 * 60 * 60; //24 hours
+  /** Commit hash, author, email, timestamp and subject separated by NUL */
+  private static final String COMMIT_INFO_FORMAT = "%H%x00%an%x00%ae%x00%at%x00%s";
 
   protected final FS myFS;
   private final SmartDirectoryCleaner myDirectoryCleaner;
@@ -86,6 +102,8 @@ public class UpdaterImpl implements Updater {
   protected final MirrorManager myMirrorManager;
   //remote repository refs, stored in field in order to not run 'git ls-remote' command twice
   private Refs myRemoteRefs;
+  //long-lived git processes checking revisions, closed at the end of the update
+  private final Map<File, CatFileBatch> myCatFileBatches = new HashMap<File, CatFileBatch>();
 
   public UpdaterImpl(@NotNull FS fs,
                      @NotNull AgentPluginConfig pluginConfig,
@@ -126,7 +144,11 @@ public class UpdaterImpl implements Updater {
     logInfo("Git version: " + myPluginConfig.getGitVersion());
     logSshOptions(myPluginConfig.getGitVersion());
     checkAuthMethodIsSupported();
-    doUpdate();
+    try {
+      doUpdate();
+    } finally {
+      closeCatFileBatches();
+    }
   }
 
   private void logSshOptions(@NotNull GitVersion gitVersion) {
@@ -174,10 +196,18 @@ public class UpdaterImpl implements Updater {
   }
 
   private void getLastCommitInfo() {
-    myBuild.addSharedEnvironmentVariable(PluginConfigImpl.ENV_AUTHOR, getAuthor(myTargetDirectory, myRevision));
-    myBuild.addSharedEnvironmentVariable(PluginConfigImpl.ENV_EMAIL, getEmail(myTargetDirectory, myRevision));
-    myBuild.addSharedEnvironmentVariable(PluginConfigImpl.ENV_TIMESTAMP, getTimestamp(myTargetDirectory, myRevision));
-    myBuild.addSharedEnvironmentVariable(PluginConfigImpl.ENV_SUBJECT, getSubject(myTargetDirectory, myRevision));
+    String[] info = readCommitInfo(myTargetDirectory, myRevision);
+    if (info == null) {
+      LOG.debug("Cannot read info of the commit " + myRevision + " in " + myTargetDirectory + " in a single git log, read fields one by one");
+      info = new String[] {getAuthor(myTargetDirectory, myRevision),
+                           getEmail(myTargetDirectory, myRevision),
+                           getTimestamp(myTargetDirectory, myRevision),
+                           getSubject(myTargetDirectory, myRevision)};
+    }
+    myBuild.addSharedEnvironmentVariable(PluginConfigImpl.ENV_AUTHOR, info[0]);
+    myBuild.addSharedEnvironmentVariable(PluginConfigImpl.ENV_EMAIL, info[1]);
+    myBuild.addSharedEnvironmentVariable(PluginConfigImpl.ENV_TIMESTAMP, info[2]);
+    myBuild.addSharedEnvironmentVariable(PluginConfigImpl.ENV_SUBJECT, info[3]);
   }
 
   private void initGitRepository() throws VcsException {
@@ -327,44 +357,157 @@ public class UpdaterImpl implements Updater {
     return result;
   }
 
+  /**
+   * Checks out submodules level by level: all repositories of the same nesting
+   * level are initialized in order, then their submodules are updated. Git
+   * 2.9.0+ updates submodules of a repository concurrently itself, with older
+   * versions every submodule is updated by a separate command. Submodules are
+   * processed in the order of their paths, errors are reported in the same order.
+   */
   private void checkoutSubmodules(@NotNull final File repositoryDir) throws VcsException {
-    File dotGitModules = new File(repositoryDir, ".gitmodules");
-    try {
-      Config gitModules = readGitModules(dotGitModules);
-      if (gitModules == null)
-        return;
+    List<File> repositories = Collections.singletonList(repositoryDir);
+    while (!repositories.isEmpty()) {
+      List<Submodule> submodules = initSubmodules(repositories);
+      updateSubmodules(submodules);
+      if (!recursiveSubmoduleCheckout())
+        break;
+      repositories = new ArrayList<File>();
+      for (Submodule submodule : submodules) {
+        repositories.add(submodule.getDir());
+      }
+    }
+  }
+
 
-      myLogger.message("Checkout submodules in " + repositoryDir);
-      GitFacade git = myGitFactory.create(repositoryDir);
-      git.submoduleInit().call();
-      git.submoduleSync().call();
-
-      addSubmoduleUsernames(repositoryDir, gitModules);
-
-      long start = System.currentTimeMillis();
-      SubmoduleUpdateCommand submoduleUpdate = git.submoduleUpdate()
-        .setAuthSettings(myRoot.getAuthSettings())
-        .setUseNativeSsh(myPluginConfig.isUseNativeSSH())
-        .setTimeout(SILENT_TIMEOUT)
-        .setForce(isForceUpdateSupported());
-      configureLFS(submoduleUpdate);
-      submoduleUpdate.call();
-
-      if (recursiveSubmoduleCheckout()) {
-        for (String submodulePath : getSubmodulePaths(gitModules)) {
-          checkoutSubmodules(new File(repositoryDir, submodulePath));
+  /**
+   * Runs init and sync in the specified repositories
+   * @return submodules of the specified repositories
+   */
+  @NotNull
+  private List<Submodule> initSubmodules(@NotNull List<File> repositories) throws VcsException {
+    List<Submodule> result = new ArrayList<Submodule>();
+    for (File repositoryDir : repositories) {
+      File dotGitModules = new File(repositoryDir, ".gitmodules");
+      try {
+        Config gitModules = readGitModules(dotGitModules);
+        if (gitModules == null)
+          continue;
+
+        myLogger.message("Checkout submodules in " + repositoryDir);
+        GitFacade git = myGitFactory.create(repositoryDir);
+        git.submoduleInit().call();
+        git.submoduleSync().call();
+
+        addSubmoduleUsernames(repositoryDir, gitModules);
+
+        for (String submodulePath : new TreeSet<String>(getSubmoduleGitPaths(gitModules))) {
+          File submoduleDir = new File(repositoryDir, toFilePath(submodulePath));
+          //.gitmodules can mention submodules which are not in the tree, 'git submodule update' ignores them
+          if (submoduleDir.isDirectory())
+            result.add(new Submodule(repositoryDir, submodulePath, submoduleDir));
         }
+      } catch (IOException e) {
+        Loggers.VCS.error("Submodules checkout failed", e);
+        throw new VcsException("Submodules checkout failed", e);
+      } catch (ConfigInvalidException e) {
+        Loggers.VCS.error("Submodules checkout failed", e);
+        throw new VcsException("Submodules checkout failed", e);
       }
-      Loggers.VCS.info("Submodules update in " + repositoryDir.getAbsolutePath() + " is finished in " +
-                       (System.currentTimeMillis() - start) + " ms");
+    }
+    return result;
+  }
 
-    } catch (IOException e) {
-      Loggers.VCS.error("Submodules checkout failed", e);
-      throw new VcsException("Submodules checkout failed", e);
-    } catch (ConfigInvalidException e) {
-      Loggers.VCS.error("Submodules checkout failed", e);
-      throw new VcsException("Submodules checkout failed", e);
+
+  private void updateSubmodules(@NotNull List<Submodule> submodules) throws VcsException {
+    if (submodules.isEmpty())
+      return;
+    long start = System.currentTimeMillis();
+    int parallelism = myPluginConfig.getSubmoduleUpdateParallelism();
+    if (parallelism <= 1 || submodules.size() == 1 || isSubmoduleUpdateJobsSupported()) {
+      //update all submodules of a repository using a single command, git updates them in parallel if jobs are specified
+      Set<File> repositories = new LinkedHashSet<File>();
+      for (Submodule submodule : submodules) {
+        repositories.add(submodule.getRepositoryDir());
+      }
+      for (File repositoryDir : repositories) {
+        SubmoduleUpdateCommand update = submoduleUpdate(myGitFactory.create(repositoryDir));
+        if (parallelism > 1 && isSubmoduleUpdateJobsSupported())
+          update.setJobs(parallelism);
+        update.call();
+      }
+    } else {
+      parallelism = Math.min(parallelism, submodules.size());
+      updateSubmodulesInParallel(submodules, parallelism);
     }
+    Loggers.VCS.info("Update of " + submodules.size() + " submodule(s) in " + myTargetDirectory.getAbsolutePath() + " is finished in " +
+                     (System.currentTimeMillis() - start) + " ms");
+  }
+
+
+  private void updateSubmodulesInParallel(@NotNull List<Submodule> submodules, int parallelism) throws VcsException {
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism, new NamedDaemonThreadFactory("Git submodule update"));
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (final Submodule submodule : submodules) {
+        futures.add(executor.submit(new Callable<Void>() {
+          public Void call() throws Exception {
+            updateSubmodule(submodule);
+            return null;
+          }
+        }));
+      }
+      //wait for all submodules, so no git process is running when we report an error
+      VcsException firstError = null;
+      for (int i = 0; i < submodules.size(); i++) {
+        try {
+          futures.get(i).get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          VcsException error = cause instanceof VcsException ? (VcsException) cause : new VcsException(cause);
+          if (firstError == null) {
+            firstError = error;
+          } else {
+            logWarn(error.getMessage());
+          }
+        }
+      }
+      if (firstError != null)
+        throw firstError;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VcsException("Submodules update is interrupted", e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+
+  private void updateSubmodule(@NotNull Submodule submodule) throws VcsException {
+    try {
+      submoduleUpdate(myGitFactory.create(submodule.getRepositoryDir())).setPath(submodule.getPath()).call();
+    } catch (CheckoutCanceledException e) {
+      throw e;
+    } catch (VcsException e) {
+      throw new VcsException("Failed to update submodule '" + submodule.getPath() + "' in " + submodule.getRepositoryDir() + ": " + e.getMessage(), e);
+    }
+  }
+
+
+  @NotNull
+  private SubmoduleUpdateCommand submoduleUpdate(@NotNull GitFacade git) {
+    //every command gets its own copy of credentials: askpass scripts and ssh keys are created per command
+    SubmoduleUpdateCommand result = git.submoduleUpdate()
+      .setAuthSettings(myRoot.getAuthSettings())
+      .setUseNativeSsh(myPluginConfig.isUseNativeSSH())
+      .setTimeout(SILENT_TIMEOUT)
+      .setForce(isForceUpdateSupported());
+    configureLFS(result);
+    return result;
+  }
+
+
+  private boolean isSubmoduleUpdateJobsSupported() {
+    return !GIT_WITH_SUBMODULE_UPDATE_JOBS.isGreaterThan(myPluginConfig.getGitVersion());
   }
 
 
@@ -471,15 +614,30 @@ public class UpdaterImpl implements Updater {
 
 
   private Set<String> getSubmodulePaths(@NotNull Config config) {
+    Set<String> paths = new HashSet<String>();
+    for (String submodulePath : getSubmoduleGitPaths(config)) {
+      paths.add(toFilePath(submodulePath));
+    }
+    return paths;
+  }
+
+  @NotNull
+  private Set<String> getSubmoduleGitPaths(@NotNull Config config) {
     Set<String> paths = new HashSet<String>();
     Set<String> submodules = config.getSubsections("submodule");
     for (String submoduleName : submodules) {
       String submodulePath = config.getString("submodule", submoduleName, "path");
-      paths.add(submodulePath.replaceAll("/", Matcher.quoteReplacement(File.separator)));
+      if (submodulePath != null)
+        paths.add(submodulePath);
     }
     return paths;
   }
 
+  @NotNull
+  private static String toFilePath(@NotNull String submodulePath) {
+    return submodulePath.replaceAll("/", Matcher.quoteReplacement(File.separator));
+  }
+
   private boolean recursiveSubmoduleCheckout() {
     return SubmodulesCheckoutPolicy.CHECKOUT.equals(myRoot.getSubmodulesCheckoutPolicy()) ||
            SubmodulesCheckoutPolicy.CHECKOUT_IGNORING_ERRORS.equals(myRoot.getSubmodulesCheckoutPolicy());
@@ -565,6 +723,7 @@ public class UpdaterImpl implements Updater {
 
 
   protected void disableAlternates() {
+    closeCatFileBatches();
     FileUtil.delete(new File(myTargetDirectory, ".git" + File.separator + "objects" + File.separator + "info" + File.separator + "alternates"));
   }
 
@@ -680,9 +839,44 @@ public class UpdaterImpl implements Updater {
   }
 
   protected boolean hasRevision(@NotNull File repositoryDir, @NotNull String revision) {
+    if (myPluginConfig.isUseCatFileBatch()) {
+      try {
+        return getCatFileBatch(repositoryDir).resolveCommit(revision) != null;
+      } catch (VcsException e) {
+        LOG.warn("Cannot check revision " + revision + " in " + repositoryDir.getAbsolutePath() + " using git cat-file, fallback to git log: " + e.getMessage());
+        closeCatFileBatch(repositoryDir);
+      }
+    }
     return getRevision(repositoryDir, revision) != null;
   }
 
+  @NotNull
+  private CatFileBatch getCatFileBatch(@NotNull File repositoryDir) {
+    CatFileBatch batch = myCatFileBatches.get(repositoryDir);
+    if (batch == null) {
+      batch = myGitFactory.create(repositoryDir).catFileBatch().setTimeout(myPluginConfig.getIdleTimeoutSeconds());
+      myCatFileBatches.put(repositoryDir, batch);
+    }
+    return batch;
+  }
+
+  private void closeCatFileBatch(@NotNull File repositoryDir) {
+    CatFileBatch batch = myCatFileBatches.remove(repositoryDir);
+    if (batch != null)
+      batch.close();
+  }
+
+  /**
+   * Should be called before repositories are fetched, deleted or reinitialized: git processes keep
+   * pack files open, which prevents deleting them on Windows, and can miss replaced objects
+   */
+  protected void closeCatFileBatches() {
+    for (CatFileBatch batch : myCatFileBatches.values()) {
+      batch.close();
+    }
+    myCatFileBatches.clear();
+  }
+
   private String getRevision(@NotNull File repositoryDir, @NotNull String revision) {
     return myGitFactory.create(repositoryDir).log()
       .setCommitsNumber(1)
@@ -691,6 +885,30 @@ public class UpdaterImpl implements Updater {
       .call();
   }
 
+  /**
+   * Reads author, email, timestamp and subject of the commit using a single git log
+   * @return commit info or null if the commit is not found or git output cannot be parsed
+   */
+  @Nullable
+  private String[] readCommitInfo(@NotNull File repositoryDir, @NotNull String revision) {
+    String output = myGitFactory.create(repositoryDir).log()
+      .setCommitsNumber(1)
+      .setPrettyFormat(COMMIT_INFO_FORMAT)
+      .setStartPoint(revision)
+      .call();
+    if (output == null)
+      return null;
+    //the output is trimmed, so the trailing separator is missing when the subject is empty
+    String[] fields = output.split("\u0000", -1);
+    if (fields.length != 4 && fields.length != 5 || !revision.equals(fields[0]))
+      return null;
+    String[] result = new String[4];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = i + 1 < fields.length ? fields[i + 1].trim() : "";
+    }
+    return result;
+  }
+
   private String getAuthor(@NotNull File repositoryDir, @NotNull String revision) {
     return myGitFactory.create(repositoryDir).log()
       .setCommitsNumber(1)
@@ -724,6 +942,7 @@ public class UpdaterImpl implements Updater {
   }
 
   protected void fetch(@NotNull File repositoryDir, @NotNull String refspec, boolean shallowClone) throws VcsException {
+    closeCatFileBatches();
     boolean silent = isSilentFetch();
     int timeout = getTimeout(silent);
 
@@ -844,6 +1063,7 @@ public class UpdaterImpl implements Updater {
    * @throws VcsException if there are problems with initializing the directory
    */
   private void initDirectory(boolean removeTargetDir) throws VcsException {
+    closeCatFileBatches();
     if (removeTargetDir) {
       BuildDirectoryCleanerCallback c = new BuildDirectoryCleanerCallback(myLogger, LOG);
       myDirectoryCleaner.cleanFolder(myTargetDirectory, c);
@@ -1086,4 +1306,38 @@ public class UpdaterImpl implements Updater {
       }
     }
   }
+
+
+  private static final class Submodule {
+    private final File myRepositoryDir;
+    private final String myPath;
+    private final File myDir;
+
+    private Submodule(@NotNull File repositoryDir, @NotNull String path, @NotNull File dir) {
+      myRepositoryDir = repositoryDir;
+      myPath = path;
+      myDir = dir;
+    }
+
+    /**
+     * @return directory of the repository containing the submodule
+     */
+    @NotNull
+    File getRepositoryDir() {
+      return myRepositoryDir;
+    }
+
+    /**
+     * @return submodule path relative to the repository as specified in .gitmodules
+     */
+    @NotNull
+    String getPath() {
+      return myPath;
+    }
+
+    @NotNull
+    File getDir() {
+      return myDir;
+    }
+  }
 }
@@ -38,6 +38,7 @@ public class UpdaterWithAlternates extends UpdaterWithMirror {
   public UpdaterWithAlternates(@NotNull FS fs,
                                @NotNull AgentPluginConfig pluginConfig,
                                @NotNull MirrorManager mirrorManager,
+                               @NotNull MirrorLocks mirrorLocks,
                                @NotNull SmartDirectoryCleaner directoryCleaner,
                                @NotNull GitFactory gitFactory,
                                @NotNull AgentRunningBuild build,
@@ -46,7 +47,7 @@ public class UpdaterWithAlternates extends UpdaterWithMirror {
                                @NotNull File targetDir,
                                @NotNull CheckoutRules rules,
                                @NotNull CheckoutMode mode) throws VcsException {
-    super(fs, pluginConfig, mirrorManager, directoryCleaner, gitFactory, build, root, version, targetDir, rules, mode);
+    super(fs, pluginConfig, mirrorManager, mirrorLocks, directoryCleaner, gitFactory, build, root, version, targetDir, rules, mode);
   }
 
 
@@ -36,6 +36,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
 
 /**
  * @author dmitry.neverov
@@ -44,9 +45,12 @@ public class UpdaterWithMirror extends UpdaterImpl {
 
   private final static Logger LOG = Logger.getLogger(UpdaterWithMirror.class);
 
+  private final MirrorLocks myMirrorLocks;
+
   public UpdaterWithMirror(@NotNull FS fs,
                            @NotNull AgentPluginConfig pluginConfig,
                            @NotNull MirrorManager mirrorManager,
+                           @NotNull MirrorLocks mirrorLocks,
                            @NotNull SmartDirectoryCleaner directoryCleaner,
                            @NotNull GitFactory gitFactory,
                            @NotNull AgentRunningBuild build,
@@ -56,6 +60,7 @@ public class UpdaterWithMirror extends UpdaterImpl {
                            @NotNull CheckoutRules rules,
                            @NotNull CheckoutMode mode) throws VcsException {
     super(fs, pluginConfig, mirrorManager, directoryCleaner, gitFactory, build, root, version, targetDir, rules, mode);
+    myMirrorLocks = mirrorLocks;
   }
 
   @Override
@@ -70,13 +75,31 @@ public class UpdaterWithMirror extends UpdaterImpl {
     try {
       updateLocalMirror(true);
       //prepare refs for copying into working dir repository
-      myGitFactory.create(myRoot.getRepositoryDir()).packRefs().call();
+      File mirror = myRoot.getRepositoryDir();
+      Lock lock = myMirrorLocks.getLock(mirror);
+      lock.lock();
+      try {
+        myGitFactory.create(mirror).packRefs().call();
+      } finally {
+        lock.unlock();
+      }
     } finally {
       myLogger.activityFinished(message, GitBuildProgressLogger.GIT_PROGRESS_ACTIVITY);
     }
   }
 
   private void updateLocalMirror(boolean repeatFetchAttempt) throws VcsException {
+    //the mirror can be updated by the idle prefetch
+    Lock lock = myMirrorLocks.getLock(myRoot.getRepositoryDir());
+    lock.lock();
+    try {
+      doUpdateLocalMirror(repeatFetchAttempt);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void doUpdateLocalMirror(boolean repeatFetchAttempt) throws VcsException {
     File bareRepositoryDir = myRoot.getRepositoryDir();
     String mirrorDescription = "local mirror of root " + myRoot.getName() + " at " + bareRepositoryDir;
     LOG.info("Update " + mirrorDescription);
@@ -84,6 +107,7 @@ public class UpdaterWithMirror extends UpdaterImpl {
     if (isValidGitRepo(bareRepositoryDir)) {
       removeOrphanedIdxFiles(bareRepositoryDir);
     } else {
+      closeCatFileBatches();
       FileUtil.delete(bareRepositoryDir);
     }
     boolean newMirror = false;
@@ -113,6 +137,7 @@ public class UpdaterWithMirror extends UpdaterImpl {
     if (!fetchRequired && fetchHeadsMode != FetchHeadsMode.ALWAYS)
       return;
     if (!newMirror && optimizeMirrorBeforeFetch()) {
+      closeCatFileBatches();
       GitFacade git = myGitFactory.create(bareRepositoryDir);
       git.gc().call();
       git.repack().call();
@@ -184,6 +209,7 @@ public class UpdaterWithMirror extends UpdaterImpl {
 
 
   private boolean cleanDir(final @NotNull File repositoryDir) {
+    closeCatFileBatches();
     return myFS.delete(repositoryDir) && myFS.mkdirs(repositoryDir);
   }
 
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git.agent.command;
+
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Long-lived git process answering object queries for a single repository.
+ *
+ * <p>Queries are sent over a pipe, so checking many revisions doesn't start a
+ * git process per check. The process is started on the first query and is
+ * restarted if it dies; it must be closed once it is no longer needed.
+ */
+public interface CatFileBatch {
+
+  /**
+   * @param timeoutSeconds time to wait for an answer to a query, the process is killed once it expires
+   */
+  @NotNull
+  CatFileBatch setTimeout(int timeoutSeconds);
+
+  /**
+   * @return id of the commit the revision points to or null if repository doesn't contain such commit
+   * @throws VcsException if git process cannot answer the query
+   */
+  @Nullable
+  String resolveCommit(@NotNull String revision) throws VcsException;
+
+  /**
+   * Stops the git process
+   */
+  void close();
+}
@@ -34,5 +34,17 @@ public interface SubmoduleUpdateCommand extends BaseCommand {
   @NotNull
   SubmoduleUpdateCommand setForce(boolean force);
 
+  /**
+   * Limits the update to the submodule with the specified path, all submodules are updated by default
+   */
+  @NotNull
+  SubmoduleUpdateCommand setPath(@NotNull String path);
+
+  /**
+   * Sets the number of submodules updated concurrently, supported since git 2.9.0
+   */
+  @NotNull
+  SubmoduleUpdateCommand setJobs(int jobs);
+
   void call() throws VcsException;
 }
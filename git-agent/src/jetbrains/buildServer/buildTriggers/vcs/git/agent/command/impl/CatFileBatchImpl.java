@@ -0,0 +1,187 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git.agent.command.impl;
+
+import com.intellij.execution.ExecutionException;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.GitCommandLine;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.command.CatFileBatch;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs 'git cat-file --batch-check' and sends queries to its stdin.
+ *
+ * <p>Git rescans packs when an object is not found, so objects fetched after
+ * the process is started are visible to it. If the process dies, it is
+ * restarted once per query. The process is killed if it doesn't answer a
+ * query in time.
+ *
+ * <p>Not thread-safe.
+ */
+public class CatFileBatchImpl implements CatFileBatch {
+
+  private static final int DEFAULT_TIMEOUT_SECONDS = 60;
+  private static final Timer TIMER = new Timer("git cat-file timeout", true);
+
+  private final GitCommandLine myCmd;
+  private int myTimeoutSeconds = DEFAULT_TIMEOUT_SECONDS;
+  private Process myProcess;
+  private Writer myStdin;
+  private BufferedReader myStdout;
+
+  public CatFileBatchImpl(@NotNull GitCommandLine cmd) {
+    myCmd = cmd;
+    myCmd.addParameters("cat-file", "--batch-check");
+  }
+
+
+  @NotNull
+  public CatFileBatch setTimeout(int timeoutSeconds) {
+    myTimeoutSeconds = timeoutSeconds;
+    return this;
+  }
+
+
+  @Nullable
+  public String resolveCommit(@NotNull String revision) throws VcsException {
+    if (revision.indexOf('\n') != -1 || revision.indexOf('\r') != -1)
+      return null;
+    String query = revision + "^{commit}";
+    String line;
+    try {
+      line = query(query);
+    } catch (InterruptedIOException e) {
+      close();
+      throw new VcsException("Error while querying " + revision + " using git cat-file: " + e.getMessage(), e);
+    } catch (IOException e) {
+      Loggers.VCS.info("git cat-file process in " + myCmd.getWorkingDirectory() + " failed, restart it: " + e.toString());
+      close();
+      try {
+        line = query(query);
+      } catch (IOException e1) {
+        close();
+        throw new VcsException("Error while querying " + revision + " using git cat-file: " + e1.toString(), e1);
+      }
+    }
+    //the output is '<sha> commit <size>' or '<query> missing' if the commit is not found
+    String[] fields = line.split(" ");
+    if (fields.length == 3 && "commit".equals(fields[1]))
+      return fields[0];
+    return null;
+  }
+
+
+  public void close() {
+    if (myProcess == null)
+      return;
+    FileUtil.close(myStdin);
+    FileUtil.close(myStdout);
+    myProcess.destroy();
+    myProcess = null;
+    myStdin = null;
+    myStdout = null;
+  }
+
+
+  @NotNull
+  private String query(@NotNull String query) throws IOException, VcsException {
+    if (myProcess == null)
+      start();
+    myStdin.write(query);
+    myStdin.write('\n');
+    myStdin.flush();
+    String line;
+    TimeoutTask timeout = new TimeoutTask(myProcess);
+    TIMER.schedule(timeout, TimeUnit.SECONDS.toMillis(myTimeoutSeconds));
+    try {
+      line = myStdout.readLine();
+    } finally {
+      timeout.cancel();
+    }
+    if (timeout.isExpired()) {
+      if (line == null)
+        throw new InterruptedIOException("git cat-file didn't answer in " + myTimeoutSeconds + " seconds");
+      //answered right before the timeout, the process is killed and will be restarted by the next query
+      close();
+    }
+    if (line == null)
+      throw new EOFException("git cat-file process exited");
+    return line;
+  }
+
+
+  private void start() throws VcsException {
+    try {
+      myProcess = myCmd.createProcess();
+    } catch (ExecutionException e) {
+      throw new VcsException("Cannot start git cat-file: " + e.getMessage(), e);
+    }
+    myStdin = new BufferedWriter(new OutputStreamWriter(myProcess.getOutputStream(), myCmd.getCharset()));
+    myStdout = new BufferedReader(new InputStreamReader(myProcess.getInputStream(), myCmd.getCharset()));
+    drainStderr(myProcess.getErrorStream());
+  }
+
+
+  private void drainStderr(@NotNull final InputStream stderr) {
+    Thread t = new Thread(new Runnable() {
+      public void run() {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stderr, myCmd.getCharset()));
+        try {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            Loggers.VCS.debug("git cat-file: " + line);
+          }
+        } catch (IOException e) {
+          //process is destroyed
+        } finally {
+          FileUtil.close(reader);
+        }
+      }
+    }, "git cat-file stderr reader");
+    t.setDaemon(true);
+    t.start();
+  }
+
+
+  private static final class TimeoutTask extends TimerTask {
+    private final Process myProcess;
+    private volatile boolean myExpired;
+
+    private TimeoutTask(@NotNull Process process) {
+      myProcess = process;
+    }
+
+    @Override
+    public void run() {
+      myExpired = true;
+      myProcess.destroy();
+    }
+
+    boolean isExpired() {
+      return myExpired;
+    }
+  }
+}
@@ -30,6 +30,8 @@ public class SubmoduleUpdateCommandImpl extends BaseCommandImpl implements Submo
   private AuthSettings myAuthSettings;
   private int myTimeout;
   private boolean myForce;
+  private String myPath;
+  private int myJobs;
 
   public SubmoduleUpdateCommandImpl(@NotNull GitCommandLine cmd) {
     super(cmd);
@@ -59,12 +61,30 @@ public class SubmoduleUpdateCommandImpl extends BaseCommandImpl implements Submo
     return this;
   }
 
+  @NotNull
+  public SubmoduleUpdateCommand setPath(@NotNull String path) {
+    myPath = path;
+    return this;
+  }
+
+  @NotNull
+  public SubmoduleUpdateCommand setJobs(int jobs) {
+    myJobs = jobs;
+    return this;
+  }
+
   public void call() throws VcsException {
     GitCommandLine cmd = getCmd();
     cmd.addParameter("submodule");
     cmd.addParameter("update");
     if (myForce)
       cmd.addParameter("--force");
+    if (myJobs > 1)
+      cmd.addParameter("--jobs=" + myJobs);
+    if (myPath != null) {
+      cmd.addParameter("--");
+      cmd.addParameter(myPath);
+    }
     cmd.run(with().timeout(myTimeout)
               .authSettings(myAuthSettings)
               .useNativeSsh(myUseNativeSsh));
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs benchmarks and writes results in JSON, so they can be compared between
+ * runs. Accepts the usual JMH command line options, e.g. a benchmark name
+ * regexp or {@code -p commits=10000}. Results are written to
+ * {@code benchmark-results.json} in the working directory unless {@code -rf}
+ * or {@code -rff} are specified.
+ */
+public class BenchmarkRunner {
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    OptionsBuilder builder = new OptionsBuilder();
+    if (commandLine.getIncludes().isEmpty())
+      builder.include(BenchmarkRunner.class.getPackage().getName() + ".*");
+    if (!commandLine.getResultFormat().hasValue())
+      builder.resultFormat(ResultFormatType.JSON);
+    if (!commandLine.getResult().hasValue())
+      builder.result("benchmark-results.json");
+    Options options = builder.parent(commandLine).build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git.benchmarks;
+
+import jetbrains.buildServer.vcs.CheckoutRules;
+import jetbrains.buildServer.vcs.ModificationData;
+import jetbrains.buildServer.vcs.VcsException;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks GitCollectChangesPolicy on the whole history and on a few recent commits
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CollectChangesBenchmark {
+
+  @Benchmark
+  public List<ModificationData> collectAllChanges(RepositoryState repository) throws VcsException {
+    return repository.getVcs().getCollectChangesPolicy().collectChanges(repository.getRoot(), repository.getFirstCommit(), repository.getLastCommit(), CheckoutRules.DEFAULT);
+  }
+
+
+  @Benchmark
+  public List<ModificationData> collectRecentChanges(RepositoryState repository) throws VcsException {
+    return repository.getVcs().getCollectChangesPolicy().collectChanges(repository.getRoot(), repository.getCommitBeforeLast(10), repository.getLastCommit(), CheckoutRules.DEFAULT);
+  }
+}
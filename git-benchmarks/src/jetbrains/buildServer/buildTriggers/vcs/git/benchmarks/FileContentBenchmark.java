@@ -0,0 +1,61 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git.benchmarks;
+
+import jetbrains.buildServer.vcs.VcsException;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks GitVcsFileContentProvider, every invocation loads a next file
+ * of the last commit. Once all files are loaded they are served from the
+ * file content cache unless it is smaller than the repository.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileContentBenchmark {
+
+  @State(Scope.Thread)
+  public static class Files {
+    private int myNext;
+
+    private String next(RepositoryState repository) {
+      myNext = (myNext + 1) % repository.getFiles().size();
+      return repository.getFiles().get(myNext);
+    }
+  }
+
+
+  @Benchmark
+  public byte[] getContent(RepositoryState repository, Files files) throws VcsException {
+    return repository.getVcs().getContentProvider().getContent(files.next(repository), repository.getRoot(), repository.getLastCommit());
+  }
+
+
+  /**
+   * Repeated reads of the same file, like reads of settings files by the server
+   */
+  @Benchmark
+  public byte[] getSameContent(RepositoryState repository) throws VcsException {
+    return repository.getVcs().getContentProvider().getContent(repository.getFiles().get(0), repository.getRoot(), repository.getLastCommit());
+  }
+}
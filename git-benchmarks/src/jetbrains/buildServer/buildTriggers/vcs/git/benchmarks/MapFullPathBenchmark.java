@@ -0,0 +1,75 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git.benchmarks;
+
+import jetbrains.buildServer.vcs.CheckoutRules;
+import jetbrains.buildServer.vcs.VcsRootEntry;
+import org.eclipse.jgit.lib.ObjectId;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks GitMapFullPath for commits which exist in the repository and for
+ * unknown commits. Unknown commits are different in every invocation, so they
+ * are never found in the revisions cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MapFullPathBenchmark {
+
+  @State(Scope.Thread)
+  public static class Commits {
+    private final Random myRandom = new Random(42);
+    private VcsRootEntry myRootEntry;
+    private int myNext;
+
+    @Setup(Level.Trial)
+    public void setUp(RepositoryState repository) {
+      myRootEntry = new VcsRootEntry(repository.getRoot(), CheckoutRules.DEFAULT);
+    }
+
+    private String nextExisting(RepositoryState repository) {
+      myNext = (myNext + 1) % repository.getCommits().size();
+      return repository.getCommits().get(myNext);
+    }
+
+    private String nextUnknown() {
+      byte[] id = new byte[20];
+      myRandom.nextBytes(id);
+      return ObjectId.fromRaw(id).name();
+    }
+  }
+
+
+  @Benchmark
+  public Collection<String> existingCommit(RepositoryState repository, Commits commits) {
+    return repository.getVcs().mapFullPath(commits.myRootEntry, commits.nextExisting(repository) + "||.");
+  }
+
+
+  @Benchmark
+  public Collection<String> unknownCommit(RepositoryState repository, Commits commits) {
+    return repository.getVcs().mapFullPath(commits.myRootEntry, commits.nextUnknown() + "||.");
+  }
+}
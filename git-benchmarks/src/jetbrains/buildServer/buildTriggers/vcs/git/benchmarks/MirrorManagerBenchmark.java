@@ -0,0 +1,110 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git.benchmarks;
+
+import jetbrains.buildServer.buildTriggers.vcs.git.HashCalculatorImpl;
+import jetbrains.buildServer.buildTriggers.vcs.git.MirrorManagerImpl;
+import jetbrains.buildServer.buildTriggers.vcs.git.PluginConfigImpl;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.util.FileUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmarks MirrorManagerImpl.getMirrorDir for urls which already have a mirror
+ * and for new urls, and reverse lookups by MirrorManagerImpl.getUrl. Lookups
+ * are also measured under concurrent load. Doesn't need a git repository.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MirrorManagerBenchmark {
+
+  @Param({"1000"})
+  public int mirrors;
+
+  private File myTempDir;
+  private MirrorManagerImpl myMirrorManager;
+  private String[] myUrls;
+  private String[] myDirNames;
+  private final AtomicInteger myNextNew = new AtomicInteger();
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    myTempDir = FileUtil.createTempDirectory("git-benchmark", "");
+    myMirrorManager = new MirrorManagerImpl(new PluginConfigImpl(new ServerPaths(myTempDir.getAbsolutePath())), new HashCalculatorImpl());
+    myUrls = new String[mirrors];
+    myDirNames = new String[mirrors];
+    for (int i = 0; i < mirrors; i++) {
+      myUrls[i] = url(i);
+      myDirNames[i] = myMirrorManager.getMirrorDir(myUrls[i]).getName();
+    }
+    myNextNew.set(mirrors);
+  }
+
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    FileUtil.delete(myTempDir);
+  }
+
+
+  @Benchmark
+  public File existingMirror() {
+    return myMirrorManager.getMirrorDir(myUrls[ThreadLocalRandom.current().nextInt(myUrls.length)]);
+  }
+
+
+  @Benchmark
+  @Threads(8)
+  public File existingMirrorConcurrent() {
+    return existingMirror();
+  }
+
+
+  @Benchmark
+  public File newMirror() {
+    return myMirrorManager.getMirrorDir(url(myNextNew.getAndIncrement()));
+  }
+
+
+  @Benchmark
+  public String getUrl() {
+    return myMirrorManager.getUrl(myDirNames[ThreadLocalRandom.current().nextInt(myDirNames.length)]);
+  }
+
+
+  @Benchmark
+  @Threads(8)
+  public String getUrlConcurrent() {
+    return getUrl();
+  }
+
+
+  private static String url(int index) {
+    return "https://git.example.com/project" + (index % 100) + "/repository" + index + ".git";
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git.benchmarks;
+
+import jetbrains.buildServer.buildTriggers.vcs.git.patch.BulkPatchBuilderImpl;
+import jetbrains.buildServer.vcs.BulkPatchService.BulkPatchBuilder;
+import jetbrains.buildServer.vcs.BulkPatchService.BulkPatchBuilderRequest;
+import jetbrains.buildServer.vcs.CheckoutRules;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.patches.PatchBuilder;
+import jetbrains.buildServer.vcs.patches.PatchBuilderImpl;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks patches built by GitPatchBuilder and BulkPatchBuilderImpl.
+ * Patches are written to a stream which only counts bytes, so results don't
+ * depend on the disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PatchBenchmark {
+
+  private static final String PIPELINE_DEPTH = "teamcity.git.bulkPatch.pipelineDepth";
+  private static final String BLOB_CACHE_SIZE = "teamcity.git.bulkPatch.blobCacheSizeMb";
+
+  @State(Scope.Benchmark)
+  public static class BulkPatchState {
+    @Param({"10"})
+    public int patches;
+
+    private BulkPatchBuilderImpl myBulkPatchBuilder;
+    private List<BulkPatchBuilderRequest> myRequests;
+
+    @Setup(Level.Trial)
+    public void setUp(RepositoryState repository) {
+      myBulkPatchBuilder = new BulkPatchBuilderImpl(repository.getBuilder().getPluginConfig(), repository.getVcs());
+      myRequests = new ArrayList<BulkPatchBuilderRequest>();
+      for (int i = patches; i > 0; i--) {
+        myRequests.add(new Request(repository.getCommitBeforeLast(i), repository.getCommitBeforeLast(i - 1)));
+      }
+    }
+  }
+
+
+  /**
+   * Bulk patches requested by a burst of builds, all builds request patches of the same commits.
+   * Pipelining and the shared blob cache are configured via internal properties for the whole trial.
+   */
+  @State(Scope.Benchmark)
+  public static class BulkPatchBurstState {
+    @Param({"10"})
+    public int patches;
+
+    @Param({"0", "2"})
+    public int pipelineDepth;
+
+    @Param({"0", "32"})
+    public int blobCacheSizeMb;
+
+    private BulkPatchBuilderImpl myBulkPatchBuilder;
+    private List<BulkPatchBuilderRequest> myRequests;
+
+    @Setup(Level.Trial)
+    public void setUp(RepositoryState repository) {
+      System.setProperty(PIPELINE_DEPTH, String.valueOf(pipelineDepth));
+      System.setProperty(BLOB_CACHE_SIZE, String.valueOf(blobCacheSizeMb));
+      myBulkPatchBuilder = new BulkPatchBuilderImpl(repository.getBuilder().getPluginConfig(), repository.getVcs());
+      myRequests = new ArrayList<BulkPatchBuilderRequest>();
+      myRequests.add(new Request(null, repository.getCommitBeforeLast(patches)));
+      for (int i = patches; i > 0; i--) {
+        myRequests.add(new Request(repository.getCommitBeforeLast(i), repository.getCommitBeforeLast(i - 1)));
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      System.clearProperty(PIPELINE_DEPTH);
+      System.clearProperty(BLOB_CACHE_SIZE);
+    }
+  }
+
+  @Benchmark
+  public long cleanPatch(RepositoryState repository) throws Exception {
+    return buildPatch(repository, null, repository.getLastCommit());
+  }
+
+
+  @Benchmark
+  public long incrementalPatch(RepositoryState repository) throws Exception {
+    return buildPatch(repository, repository.getCommitBeforeLast(10), repository.getLastCommit());
+  }
+
+
+  @Benchmark
+  public long bulkPatch(RepositoryState repository, BulkPatchState state) throws Exception {
+    CountingPatches patches = new CountingPatches();
+    state.myBulkPatchBuilder.buildPatches(repository.getRoot(), CheckoutRules.DEFAULT, state.myRequests, patches);
+    return patches.myOutput.myCount;
+  }
+
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  @Threads(8)
+  public long bulkPatchBurst(RepositoryState repository, BulkPatchBurstState state) throws Exception {
+    CountingPatches patches = new CountingPatches();
+    state.myBulkPatchBuilder.buildPatches(repository.getRoot(), CheckoutRules.DEFAULT, state.myRequests, patches);
+    return patches.myOutput.myCount;
+  }
+
+
+  private static long buildPatch(@NotNull RepositoryState repository, @Nullable String fromVersion, @NotNull String toVersion) throws IOException, VcsException {
+    CountingOutputStream output = new CountingOutputStream();
+    PatchBuilderImpl builder = new PatchBuilderImpl(output);
+    repository.getVcs().buildPatch(repository.getRoot(), fromVersion, toVersion, builder, CheckoutRules.DEFAULT);
+    builder.close();
+    return output.myCount;
+  }
+
+
+  private static class Request implements BulkPatchBuilderRequest {
+    private final String myFromVersion;
+    private final String myToVersion;
+
+    private Request(@Nullable String fromVersion, @NotNull String toVersion) {
+      myFromVersion = fromVersion;
+      myToVersion = toVersion;
+    }
+
+    @Nullable
+    public String getFromVersion() {
+      return myFromVersion;
+    }
+
+    @NotNull
+    public String getToVersion() {
+      return myToVersion;
+    }
+  }
+
+
+  private static class CountingPatches implements BulkPatchBuilder {
+    private final CountingOutputStream myOutput = new CountingOutputStream();
+
+    @NotNull
+    public PatchBuilder startPatch(@NotNull BulkPatchBuilderRequest request) {
+      return new PatchBuilderImpl(myOutput);
+    }
+
+    public void endPatch(@NotNull BulkPatchBuilderRequest request, @NotNull PatchBuilder patch) {
+      try {
+        ((PatchBuilderImpl) patch).close();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+
+  private static class CountingOutputStream extends OutputStream {
+    private long myCount;
+
+    @Override
+    public void write(int b) {
+      myCount++;
+    }
+
+    @Override
+    public void write(@NotNull byte[] b, int off, int len) {
+      myCount += len;
+    }
+
+    @Override
+    public void close() {
+      //keep counting bytes of the next patch
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.benchmarks;
+
+import jetbrains.buildServer.buildTriggers.vcs.git.GitVcsSupport;
+import jetbrains.buildServer.buildTriggers.vcs.git.SubmodulesCheckoutPolicy;
+import jetbrains.buildServer.buildTriggers.vcs.git.tests.GitSupportBuilder;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.CheckoutRules;
+import jetbrains.buildServer.vcs.VcsRoot;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.List;
+
+import static jetbrains.buildServer.buildTriggers.vcs.git.benchmarks.SyntheticRepository.syntheticRepository;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitSupportBuilder.gitSupport;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.VcsRootBuilder.vcsRoot;
+
+/**
+ * Synthetic remote repository and the git support which already fetched it.
+ *
+ * <p>Parameters describe the shape of the repository, they can be overridden
+ * from the command line, e.g. {@code -p commits=10000}.
+ */
+@State(Scope.Benchmark)
+public class RepositoryState {
+
+  @Param({"1000"})
+  public int commits;
+
+  @Param({"20"})
+  public int dirs;
+
+  @Param({"50"})
+  public int filesPerDir;
+
+  @Param({"2048"})
+  public int fileSize;
+
+  @Param({"0"})
+  public int submodules;
+
+  private File myTempDir;
+  private SyntheticRepository myRepository;
+  private GitSupportBuilder myBuilder;
+  private GitVcsSupport myVcs;
+  private VcsRoot myRoot;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    myTempDir = FileUtil.createTempDirectory("git-benchmark", "");
+    File remote = new File(myTempDir, "remote");
+    myRepository = syntheticRepository()
+      .withCommits(commits)
+      .withDirs(dirs)
+      .withFilesPerDir(filesPerDir)
+      .withFileSize(fileSize)
+      .withSubmodules(submodules)
+      .create(remote);
+    File serverDir = new File(myTempDir, "server");
+    myBuilder = gitSupport().withServerPaths(new ServerPaths(serverDir.getAbsolutePath()));
+    myVcs = myBuilder.build();
+    myRoot = vcsRoot()
+      .withFetchUrl(remote)
+      .withBranch("master")
+      .withSubmodulePolicy(submodules > 0 ? SubmodulesCheckoutPolicy.CHECKOUT : SubmodulesCheckoutPolicy.IGNORE)
+      .build();
+    //fetch the repository, benchmarks measure operations on the local clone
+    myVcs.getCollectChangesPolicy().collectChanges(myRoot, getFirstCommit(), getLastCommit(), CheckoutRules.DEFAULT);
+  }
+
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    FileUtil.delete(myTempDir);
+  }
+
+
+  @NotNull
+  public GitVcsSupport getVcs() {
+    return myVcs;
+  }
+
+
+  @NotNull
+  public GitSupportBuilder getBuilder() {
+    return myBuilder;
+  }
+
+
+  @NotNull
+  public VcsRoot getRoot() {
+    return myRoot;
+  }
+
+
+  /**
+   * @return ids of the commits in the repository, from the oldest to the newest
+   */
+  @NotNull
+  public List<String> getCommits() {
+    return myRepository.getCommits();
+  }
+
+
+  @NotNull
+  public String getFirstCommit() {
+    return getCommits().get(0);
+  }
+
+
+  @NotNull
+  public String getLastCommit() {
+    List<String> commits = getCommits();
+    return commits.get(commits.size() - 1);
+  }
+
+
+  /**
+   * @return commit which is the specified number of commits before the last one,
+   * or the first commit if the repository has fewer commits
+   */
+  @NotNull
+  public String getCommitBeforeLast(int distance) {
+    List<String> commits = getCommits();
+    return commits.get(Math.max(0, commits.size() - 1 - distance));
+  }
+
+
+  /**
+   * @return paths of the files in the repository
+   */
+  @NotNull
+  public List<String> getFiles() {
+    return myRepository.getFiles();
+  }
+
+
+  @NotNull
+  public File getTempDir() {
+    return myTempDir;
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git.benchmarks;
+
+import jetbrains.buildServer.buildTriggers.vcs.git.PluginConfigImpl;
+import jetbrains.buildServer.buildTriggers.vcs.git.RepositoryRevisionCache;
+import jetbrains.buildServer.buildTriggers.vcs.git.RevisionCacheType;
+import jetbrains.buildServer.buildTriggers.vcs.git.ServerPluginConfig;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.util.FileUtil;
+import org.eclipse.jgit.lib.ObjectId;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks loading of a full revisions cache from disk and saving of new revisions to it.
+ * Doesn't need a git repository.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RevisionsCacheBenchmark {
+
+  @Param({"1000", "10000"})
+  public int cacheSize;
+
+  private final Random myRandom = new Random(42);
+  private File myTempDir;
+  private File myRepositoryDir;
+  private ServerPluginConfig myConfig;
+  private RepositoryRevisionCache myCache;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    myTempDir = FileUtil.createTempDirectory("git-benchmark", "");
+    myConfig = new PluginConfigImpl(new ServerPaths(myTempDir.getAbsolutePath()));
+    myRepositoryDir = new File(myTempDir, "repository");
+    myRepositoryDir.mkdirs();
+    RepositoryRevisionCache cache = RepositoryRevisionCache.read(myConfig, myRepositoryDir, RevisionCacheType.COMMIT_CACHE, cacheSize);
+    for (int i = 0; i < cacheSize; i++) {
+      cache.saveRevision(randomRevision(), myRandom.nextBoolean(), cache.getResetCounter());
+    }
+    myCache = RepositoryRevisionCache.read(myConfig, myRepositoryDir, RevisionCacheType.COMMIT_CACHE, cacheSize);
+  }
+
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    FileUtil.delete(myTempDir);
+  }
+
+
+  @Benchmark
+  public RepositoryRevisionCache read() throws IOException {
+    return RepositoryRevisionCache.read(myConfig, myRepositoryDir, RevisionCacheType.COMMIT_CACHE, cacheSize);
+  }
+
+
+  @Benchmark
+  public void saveRevision() throws IOException {
+    myCache.saveRevision(randomRevision(), true, myCache.getResetCounter());
+  }
+
+
+  private String randomRevision() {
+    byte[] id = new byte[20];
+    myRandom.nextBytes(id);
+    return ObjectId.fromRaw(id).name();
+  }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.benchmarks;
+
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Creates a bare repository with generated history, so benchmarks don't
+ * depend on the network or on repositories existing on a particular machine.
+ *
+ * <p>The repository has {@code dirs} directories with {@code filesPerDir} files
+ * each. Every commit modifies {@code changedFilesPerCommit} random files, the
+ * history is linear and is available in the master branch. If {@code submodules}
+ * is positive, the root of the repository contains the specified number of
+ * submodules, each in a separate synthetic repository with a single commit.
+ * Content is generated by a seeded random, so repositories created with the
+ * same settings are identical.
+ */
+public class SyntheticRepository {
+
+  private static final PersonIdent AUTHOR = new PersonIdent("Benchmark", "benchmark@example.com", new Date(1500000000000L), TimeZone.getTimeZone("UTC"));
+  private static final char[] ALPHABET = "abcdefghijklmnopqrstuvwxyz    ".toCharArray();
+
+  private int myCommits = 100;
+  private int myDirs = 10;
+  private int myFilesPerDir = 10;
+  private int myFileSize = 1024;
+  private int myChangedFilesPerCommit = 3;
+  private int mySubmodules = 0;
+  private long mySeed = 42;
+
+  private final List<String> myCommitIds = new ArrayList<String>();
+  private final List<String> myFiles = new ArrayList<String>();
+
+  @NotNull
+  public static SyntheticRepository syntheticRepository() {
+    return new SyntheticRepository();
+  }
+
+  @NotNull
+  public SyntheticRepository withCommits(int commits) {
+    myCommits = commits;
+    return this;
+  }
+
+  @NotNull
+  public SyntheticRepository withDirs(int dirs) {
+    myDirs = dirs;
+    return this;
+  }
+
+  @NotNull
+  public SyntheticRepository withFilesPerDir(int filesPerDir) {
+    myFilesPerDir = filesPerDir;
+    return this;
+  }
+
+  @NotNull
+  public SyntheticRepository withFileSize(int fileSize) {
+    myFileSize = fileSize;
+    return this;
+  }
+
+  @NotNull
+  public SyntheticRepository withChangedFilesPerCommit(int changedFilesPerCommit) {
+    myChangedFilesPerCommit = changedFilesPerCommit;
+    return this;
+  }
+
+  @NotNull
+  public SyntheticRepository withSubmodules(int submodules) {
+    mySubmodules = submodules;
+    return this;
+  }
+
+  @NotNull
+  public SyntheticRepository withSeed(long seed) {
+    mySeed = seed;
+    return this;
+  }
+
+
+  /**
+   * Creates the repository in the specified dir
+   * @return this instance, commit ids and file paths of the created repository are available via getters
+   */
+  @NotNull
+  public SyntheticRepository create(@NotNull File repositoryDir) throws IOException {
+    myCommitIds.clear();
+    myFiles.clear();
+    Random random = new Random(mySeed);
+    Repository db = createBare(repositoryDir);
+    ObjectInserter inserter = db.newObjectInserter();
+    try {
+      Map<String, ObjectId> rootEntries = new TreeMap<String, ObjectId>();
+      Set<String> rootTrees = new HashSet<String>();
+      createSubmodules(inserter, repositoryDir, rootEntries);
+
+      List<Map<String, ObjectId>> dirs = new ArrayList<Map<String, ObjectId>>();
+      for (int d = 0; d < myDirs; d++) {
+        Map<String, ObjectId> files = new TreeMap<String, ObjectId>();
+        for (int f = 0; f < myFilesPerDir; f++) {
+          String name = String.format("file%04d.txt", f);
+          files.put(name, insertBlob(inserter, random));
+          myFiles.add(getDirName(d) + "/" + name);
+        }
+        dirs.add(files);
+        rootEntries.put(getDirName(d), insertTree(inserter, files, Collections.<String>emptySet()));
+        rootTrees.add(getDirName(d));
+      }
+
+      ObjectId parent = null;
+      for (int c = 0; c < myCommits; c++) {
+        if (c > 0) {
+          Set<Integer> changedDirs = new HashSet<Integer>();
+          for (int i = 0; i < myChangedFilesPerCommit; i++) {
+            int d = random.nextInt(myDirs);
+            String name = String.format("file%04d.txt", random.nextInt(myFilesPerDir));
+            dirs.get(d).put(name, insertBlob(inserter, random));
+            changedDirs.add(d);
+          }
+          for (int d : changedDirs) {
+            rootEntries.put(getDirName(d), insertTree(inserter, dirs.get(d), Collections.<String>emptySet()));
+          }
+        }
+        ObjectId tree = insertTree(inserter, rootEntries, rootTrees);
+        parent = insertCommit(inserter, tree, parent, c);
+        myCommitIds.add(parent.name());
+      }
+      inserter.flush();
+      if (parent != null)
+        updateMaster(db, parent);
+    } finally {
+      inserter.release();
+      db.close();
+    }
+    return this;
+  }
+
+
+  /**
+   * @return ids of the created commits, from the oldest to the newest
+   */
+  @NotNull
+  public List<String> getCommits() {
+    return myCommitIds;
+  }
+
+
+  /**
+   * @return paths of the files in the repository
+   */
+  @NotNull
+  public List<String> getFiles() {
+    return myFiles;
+  }
+
+
+  private void createSubmodules(@NotNull ObjectInserter inserter,
+                                @NotNull File repositoryDir,
+                                @NotNull Map<String, ObjectId> rootEntries) throws IOException {
+    if (mySubmodules <= 0)
+      return;
+    StringBuilder gitmodules = new StringBuilder();
+    for (int s = 0; s < mySubmodules; s++) {
+      String name = String.format("sub%02d", s);
+      File submoduleDir = new File(repositoryDir.getParentFile(), repositoryDir.getName() + "-" + name);
+      SyntheticRepository submodule = syntheticRepository()
+        .withCommits(1)
+        .withDirs(1)
+        .withFilesPerDir(myFilesPerDir)
+        .withFileSize(myFileSize)
+        .withSeed(mySeed + s + 1)
+        .create(submoduleDir);
+      rootEntries.put(name, ObjectId.fromString(submodule.getCommits().get(0)));
+      gitmodules.append("[submodule \"").append(name).append("\"]\n")
+        .append("\tpath = ").append(name).append("\n")
+        .append("\turl = ").append(submoduleDir.getAbsolutePath().replace('\\', '/')).append("\n");
+    }
+    rootEntries.put(Constants.DOT_GIT_MODULES, inserter.insert(Constants.OBJ_BLOB, Constants.encode(gitmodules.toString())));
+  }
+
+
+  @NotNull
+  private ObjectId insertBlob(@NotNull ObjectInserter inserter, @NotNull Random random) throws IOException {
+    byte[] content = new byte[myFileSize];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) (i % 80 == 79 ? '\n' : ALPHABET[random.nextInt(ALPHABET.length)]);
+    }
+    return inserter.insert(Constants.OBJ_BLOB, content);
+  }
+
+
+  /**
+   * Entries are sorted by name; generated names are never a prefix of each other,
+   * so this order matches the order git expects in trees
+   */
+  @NotNull
+  private static ObjectId insertTree(@NotNull ObjectInserter inserter,
+                                     @NotNull Map<String, ObjectId> entries,
+                                     @NotNull Set<String> trees) throws IOException {
+    TreeFormatter formatter = new TreeFormatter();
+    for (Map.Entry<String, ObjectId> e : entries.entrySet()) {
+      String name = e.getKey();
+      FileMode mode;
+      if (trees.contains(name)) {
+        mode = FileMode.TREE;
+      } else if (name.startsWith("sub")) {
+        mode = FileMode.GITLINK;
+      } else {
+        mode = FileMode.REGULAR_FILE;
+      }
+      formatter.append(name, mode, e.getValue());
+    }
+    return inserter.insert(formatter);
+  }
+
+
+  @NotNull
+  private static ObjectId insertCommit(@NotNull ObjectInserter inserter,
+                                       @NotNull ObjectId tree,
+                                       ObjectId parent,
+                                       int index) throws IOException {
+    CommitBuilder commit = new CommitBuilder();
+    commit.setTreeId(tree);
+    if (parent != null)
+      commit.setParentId(parent);
+    PersonIdent ident = new PersonIdent(AUTHOR, new Date(AUTHOR.getWhen().getTime() + index * 60000L));
+    commit.setAuthor(ident);
+    commit.setCommitter(ident);
+    commit.setMessage("commit " + index + "\n");
+    return inserter.insert(commit);
+  }
+
+
+  private static void updateMaster(@NotNull Repository db, @NotNull ObjectId commit) throws IOException {
+    RefUpdate update = db.updateRef("refs/heads/master");
+    update.setNewObjectId(commit);
+    update.setForceUpdate(true);
+    RefUpdate.Result result = update.update();
+    if (result != RefUpdate.Result.NEW && result != RefUpdate.Result.FORCED)
+      throw new IOException("Cannot update master in " + db.getDirectory() + ": " + result);
+  }
+
+
+  @NotNull
+  private static Repository createBare(@NotNull File repositoryDir) throws IOException {
+    Repository db = new FileRepositoryBuilder().setGitDir(repositoryDir).setBare().build();
+    db.create(true);
+    return db;
+  }
+
+
+  @NotNull
+  private static String getDirName(int index) {
+    return String.format("dir%04d", index);
+  }
+}
@@ -44,11 +44,19 @@ public final class CommandLineUtil {
   @Nullable
   public static VcsException getCommandLineError(@NotNull String cmdName, @NotNull String details, @NotNull ExecResult res, boolean includeStdOut, boolean includeStdErr) {
     //noinspection ThrowableResultOfMethodCallIgnored
-    Throwable exception = res.getException();
-    int exitCode = res.getExitCode();
+    return getCommandLineError(cmdName, details, res.getExitCode(), res.getException(), res.getStdout(), res.getStderr(), includeStdOut, includeStdErr);
+  }
+
+  @Nullable
+  public static VcsException getCommandLineError(@NotNull String cmdName,
+                                                 @NotNull String details,
+                                                 int exitCode,
+                                                 @Nullable Throwable exception,
+                                                 @Nullable String stdout,
+                                                 @Nullable String stderr,
+                                                 boolean includeStdOut,
+                                                 boolean includeStdErr) {
     if (exitCode != 0 || exception != null) {
-      String stderr = res.getStderr();
-      String stdout = res.getStdout();
       final String message = "'" + cmdName + "' command failed" + details + "." +
                              (exception != null ? "\nexception: " + exception.getMessage() : "") +
                              (includeStdErr && !StringUtil.isEmpty(stderr) ? "\nstderr: " + stderr.trim() : "") +
@@ -18,13 +18,32 @@ package jetbrains.buildServer.buildTriggers.vcs.git;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 /**
+ * Calculates hash as the first 8 bytes of SHA-1, it rarely collides even on
+ * large sets of values unlike {@link String#hashCode()}.
+ *
  * @author dmitry.neverov
  */
 public class HashCalculatorImpl implements HashCalculator {
 
   public long getHash(@NotNull String value) {
-    return value.hashCode();
+    byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+    long result = 0;
+    for (int i = 0; i < 8; i++) {
+      result = (result << 8) | (digest[i] & 0xFF);
+    }
+    return result;
   }
 
 }
@@ -20,6 +20,8 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -58,9 +60,27 @@ public interface MirrorManager {
   /**
    * Returns url for the given clone directory name inside the baseMirrorsDir
    * or null if mapping from the url is not found
-   * @param cloneDirName clone directory name of interest
+   * @param cloneDirName clone directory name of interest or its path relative to the baseMirrorsDir
    * @return see above
    */
   @Nullable
   String getUrl(@NotNull String cloneDirName);
+
+  /**
+   * Returns dirs inside the baseMirrorsDir which can contain local repositories,
+   * both the dirs placed in shards and the dirs in the baseMirrorsDir itself
+   * @return see above
+   */
+  @NotNull
+  List<File> getMirrorDirs();
+
+  /**
+   * Moves the repository created in the baseMirrorsDir itself to its shard,
+   * the repository shouldn't be used during the move
+   * @param dir repository dir
+   * @return new repository dir or null if repository is not moved
+   * @throws IOException if move fails
+   */
+  @Nullable
+  File moveToShard(@NotNull File dir) throws IOException;
 }
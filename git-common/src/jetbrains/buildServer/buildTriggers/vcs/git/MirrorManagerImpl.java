@@ -24,32 +24,68 @@ import org.eclipse.jgit.lib.StoredConfig;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.File;
-import java.io.FileFilter;
-import java.io.IOException;
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 
 /**
+ * Lookups don't take locks, mappings are kept in concurrent maps with
+ * a reverse index from dir name to url.
+ *
+ * <p>Mappings are persisted in the 'map' file and in the 'map.journal' file
+ * next to it. New mappings are appended to the journal, the journal is
+ * compacted into the map file in background once it becomes big. Both files
+ * use the 'url = dir' format of the map file, so the map file written by
+ * previous versions is read as is. The journal is not synced to disk: a
+ * mapping lost after a crash is usually calculated again the same way.
+ * The map file replaces the previous one only after it is synced.
+ * Previous versions don't read the journal: after a downgrade mappings
+ * which were not compacted into the map file yet are lost and their mirrors
+ * are cloned again, possibly into other dirs.
+ *
+ * <p>Mirror dirs are placed in shards: subdirs of the base mirrors dir named
+ * by the first byte of the url hash, so no directory contains too many
+ * entries. Mirrors created before that stay in the base mirrors dir until
+ * they are moved by {@link #moveToShard(File)}. Dir names are unique across
+ * shards, {@link #getUrl(String)} accepts either a dir name or a dir path
+ * relative to the base mirrors dir.
+ *
  * @author dmitry.neverov
  */
 public class MirrorManagerImpl implements MirrorManager {
 
   private static Logger LOG = Logger.getInstance(MirrorManagerImpl.class.getName());
+  private static final String SEPARATOR = " = ";
+  private static final int MIN_JOURNAL_RECORDS_TO_COMPACT = 1000;
+  private static final Pattern SHARD_NAME = Pattern.compile("[0-9A-F]{2}");
+  //previous versions named mirror dirs by the 32-bit url hash and resolved clashes by hashing another string,
+  //so all their mirrors match; other dirs in the base mirrors dir are left in place since their shard is unknown
+  private static final Pattern UNSHARDED_MIRROR_NAME = Pattern.compile("git-[0-9A-F]{8}\\.git");
 
   private final File myBaseMirrorsDir;
   private final File myMapFile;
+  private final File myJournalFile;
   private final File myInvalidDirsFile;
-  /*url -> dir name*/
-  private final Map<String, String> myMirrorMap = new HashMap<String, String>();
-  private final Set<String> myInvalidDirNames = new HashSet<String>();
+  /*url -> dir path relative to the base mirrors dir*/
+  private final ConcurrentMap<String, String> myMirrorMap = new ConcurrentHashMap<String, String>();
+  /*dir name -> url*/
+  private final ConcurrentMap<String, String> myDirToUrl = new ConcurrentHashMap<String, String>();
+  private final Set<String> myInvalidDirNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  //guards modifications of mappings and files
   private final Object myLock = new Object();
+  private final AtomicBoolean myCompactionScheduled = new AtomicBoolean();
   private final HashCalculator myHashCalculator;
+  private int myJournalRecords;
 
 
   public MirrorManagerImpl(@NotNull MirrorConfig config, @NotNull HashCalculator hash) {
     myHashCalculator = hash;
     myBaseMirrorsDir = config.getCachesDir();
     myMapFile = new File(myBaseMirrorsDir, "map");
+    myJournalFile = new File(myBaseMirrorsDir, "map.journal");
     myInvalidDirsFile = new File(myBaseMirrorsDir, "invalid");
     loadInvalidDirs();
     loadMappings();
@@ -72,10 +108,15 @@ public class MirrorManagerImpl implements MirrorManager {
     synchronized (myLock) {
       List<String> urlsMappedToDir = getUrlsMappedToDir(dir);
       for (String url : urlsMappedToDir) {
-        String dirName = myMirrorMap.remove(url);
-        myInvalidDirNames.add(dirName);
+        String dirPath = myMirrorMap.remove(url);
+        if (dirPath != null) {
+          String dirName = getDirName(dirPath);
+          myDirToUrl.remove(dirName);
+          myInvalidDirNames.add(dirName);
+        }
       }
-      saveMappingToFile();
+      //the journal can contain removed mappings, replace it by the map file
+      compact();
       saveInvalidDirsToFile();
     }
   }
@@ -83,12 +124,8 @@ public class MirrorManagerImpl implements MirrorManager {
 
   @NotNull
   public Map<String, File> getMappings() {
-    Map<String, String> mirrorMapSnapshot;
-    synchronized (myLock) {
-      mirrorMapSnapshot = new HashMap<String, String>(myMirrorMap);
-    }
     Map<String, File> result = new HashMap<String, File>();
-    for (Map.Entry<String, String> entry : mirrorMapSnapshot.entrySet()) {
+    for (Map.Entry<String, String> entry : myMirrorMap.entrySet()) {
       String url = entry.getKey();
       String dir = entry.getValue();
       result.put(url, new File(myBaseMirrorsDir, dir));
@@ -99,17 +136,65 @@ public class MirrorManagerImpl implements MirrorManager {
   @Nullable
   @Override
   public String getUrl(@NotNull String cloneDirName) {
-    Map<String, String> mirrorMapSnapshot;
-    synchronized (myLock) {
-      mirrorMapSnapshot = new HashMap<String, String>(myMirrorMap);
+    return myDirToUrl.get(getDirName(cloneDirName.replace(File.separatorChar, '/')));
+  }
+
+  @NotNull
+  public List<File> getMirrorDirs() {
+    List<File> result = new ArrayList<File>();
+    for (File dir : listDirs(myBaseMirrorsDir)) {
+      if (isShardDir(dir)) {
+        result.addAll(listDirs(dir));
+      } else {
+        result.add(dir);
+      }
     }
-    for (Map.Entry<String, String> e : mirrorMapSnapshot.entrySet()) {
-      if (cloneDirName.equals(e.getValue()))
-        return e.getKey();
+    return result;
+  }
+
+
+  @Nullable
+  public File moveToShard(@NotNull File dir) throws IOException {
+    synchronized (myLock) {
+      String dirName = dir.getName();
+      if (!myBaseMirrorsDir.equals(dir.getParentFile()) || !UNSHARDED_MIRROR_NAME.matcher(dirName).matches())
+        return null;
+      String url = myDirToUrl.get(dirName);
+      if (url == null || !dirName.equals(myMirrorMap.get(url)))
+        return null;
+      String dirPath = getDirPath(dirName);
+      File result = new File(myBaseMirrorsDir, dirPath);
+      if (result.exists())
+        return null;
+      File shard = result.getParentFile();
+      if (!shard.isDirectory() && !shard.mkdirs())
+        throw new IOException("Cannot create dir " + shard.getAbsolutePath());
+      if (!dir.renameTo(result))
+        throw new IOException("Cannot move " + dir.getAbsolutePath() + " to " + result.getAbsolutePath());
+      addMapping(url, dirPath);
+      appendToJournal(url, dirPath);
+      LOG.info("Mirror of " + url + " is moved to " + result.getAbsolutePath());
+      return result;
     }
-    return null;
   }
 
+
+  /**
+   * @return true if the specified dir is a shard containing mirror dirs
+   */
+  public static boolean isShardDir(@NotNull File dir) {
+    return isShardName(dir.getName()) && dir.isDirectory();
+  }
+
+
+  /**
+   * @return true if the specified name is a name of a shard containing mirror dirs
+   */
+  public static boolean isShardName(@NotNull String name) {
+    return SHARD_NAME.matcher(name).matches();
+  }
+
+
   public long getLastUsedTime(@NotNull final File dir) {
     File timestamp = new File(dir, "timestamp");
     if (timestamp.exists()) {
@@ -130,34 +215,35 @@ public class MirrorManagerImpl implements MirrorManager {
 
   @NotNull
   private List<String> getUrlsMappedToDir(@NotNull final File dir) {
-    synchronized (myLock) {
-      List<String> urlsMappedToDir = new ArrayList<String>();
-      for (Map.Entry<String, String> entry : myMirrorMap.entrySet()) {
-        String url = entry.getKey();
-        String dirName = entry.getValue();
-        if (dir.equals(new File(myBaseMirrorsDir, dirName)))
-          urlsMappedToDir.add(url);
-      }
+    List<String> urlsMappedToDir = new ArrayList<String>();
+    String url = myDirToUrl.get(dir.getName());
+    if (url == null)
       return urlsMappedToDir;
-    }
+    String dirPath = myMirrorMap.get(url);
+    if (dirPath != null && dir.equals(new File(myBaseMirrorsDir, dirPath)))
+      urlsMappedToDir.add(url);
+    return urlsMappedToDir;
   }
 
 
   /**
-   * Returns repository dir name for specified url. Every url gets unique dir name.
+   * Returns repository dir path relative to the base mirrors dir for specified url. Every url gets unique dir name.
    * @param url url of interest
    * @return see above
    */
   @NotNull
   private String getDirNameForUrl(@NotNull final String url) {
+    String dirPath = myMirrorMap.get(url);
+    if (dirPath != null)
+      return dirPath;
     synchronized (myLock) {
-      String dirName = myMirrorMap.get(url);
-      if (dirName != null)
-        return dirName;
-      dirName = getUniqueDirNameForUrl(url);
-      myMirrorMap.put(url, dirName);
-      saveMappingToFile();
-      return dirName;
+      dirPath = myMirrorMap.get(url);
+      if (dirPath != null)
+        return dirPath;
+      dirPath = getDirPath(getUniqueDirNameForUrl(url));
+      addMapping(url, dirPath);
+      appendToJournal(url, dirPath);
+      return dirPath;
     }
   }
 
@@ -166,11 +252,9 @@ public class MirrorManagerImpl implements MirrorManager {
   private String getUniqueDirNameForUrl(@NotNull final String url) {
     String dirName = calculateDirNameForUrl(url);
     int i = 0;
-    synchronized (myLock) {
-      while (isOccupiedDirName(dirName) || isInvalidDirName(dirName)) {
-        dirName = calculateDirNameForUrl(url + i);
-        i++;
-      }
+    while (isOccupiedDirName(dirName) || isInvalidDirName(dirName)) {
+      dirName = calculateDirNameForUrl(url + i);
+      i++;
     }
     return dirName;
   }
@@ -178,34 +262,122 @@ public class MirrorManagerImpl implements MirrorManager {
 
   @NotNull
   private String calculateDirNameForUrl(@NotNull String url) {
-    return String.format("git-%08X.git", myHashCalculator.getHash(url) & 0xFFFFFFFFL);
+    return String.format("git-%016X.git", myHashCalculator.getHash(url));
+  }
+
+
+  /**
+   * @return path of the dir in its shard, shard is named by the first byte of the hash in the dir name
+   */
+  @NotNull
+  private static String getDirPath(@NotNull String dirName) {
+    return dirName.substring("git-".length(), "git-".length() + 2) + "/" + dirName;
+  }
+
+
+  @NotNull
+  private static String getDirName(@NotNull String dirPath) {
+    return dirPath.substring(dirPath.lastIndexOf('/') + 1);
   }
 
 
   private boolean isOccupiedDirName(@NotNull final String dirName) {
-    synchronized (myLock) {
-      return myMirrorMap.values().contains(dirName)/* || new File(myBaseMirrorsDir, dirName).exists()*/;
-    }
+    return myDirToUrl.containsKey(dirName)/* || new File(myBaseMirrorsDir, dirName).exists()*/;
   }
 
 
   private boolean isInvalidDirName(@NotNull final String dirName) {
+    return myInvalidDirNames.contains(dirName);
+  }
+
+
+  /**
+   * Reverse mapping is added first, so a dir name is never seen as unoccupied
+   * while the url is already mapped to it
+   */
+  private void addMapping(@NotNull String url, @NotNull String dirPath) {
+    myDirToUrl.put(getDirName(dirPath), url);
+    myMirrorMap.put(url, dirPath);
+  }
+
+
+  private void appendToJournal(@NotNull String url, @NotNull String dirPath) {
     synchronized (myLock) {
-      return myInvalidDirNames.contains(dirName);
+      Writer writer = null;
+      try {
+        writer = new OutputStreamWriter(new FileOutputStream(myJournalFile, true), "UTF-8");
+        writer.write(url + SEPARATOR + dirPath + "\n");
+      } catch (IOException e) {
+        LOG.warn("Error while appending mapping to " + myJournalFile.getAbsolutePath() + ", save the whole mapping", e);
+        compact();
+        return;
+      } finally {
+        FileUtil.close(writer);
+      }
+      myJournalRecords++;
+      if (myJournalRecords >= Math.max(MIN_JOURNAL_RECORDS_TO_COMPACT, myMirrorMap.size() / 2))
+        scheduleCompaction();
     }
   }
 
 
-  private void saveMappingToFile() {
+  private void scheduleCompaction() {
+    if (!myCompactionScheduled.compareAndSet(false, true))
+      return;
+    Thread compaction = new Thread(new Runnable() {
+      public void run() {
+        try {
+          synchronized (myLock) {
+            compact();
+          }
+        } finally {
+          myCompactionScheduled.set(false);
+        }
+      }
+    }, "Git mirrors map compaction");
+    compaction.setDaemon(true);
+    compaction.start();
+  }
+
+
+  /**
+   * Writes all mappings to the map file and removes the journal
+   */
+  private void compact() {
     synchronized (myLock) {
       LOG.debug("Save mapping to " + myMapFile.getAbsolutePath());
       StringBuilder sb = new StringBuilder();
       for (Map.Entry<String, String> mirror : myMirrorMap.entrySet()) {
         String url = mirror.getKey();
         String dir = mirror.getValue();
-        sb.append(url).append(" = ").append(dir).append("\n");
+        sb.append(url).append(SEPARATOR).append(dir).append("\n");
       }
-      FileUtil.writeFile(myMapFile, sb.toString());
+      File tmp = new File(myBaseMirrorsDir, myMapFile.getName() + ".tmp");
+      try {
+        writeAndSync(tmp, sb.toString());
+        if (!tmp.renameTo(myMapFile)) {
+          FileUtil.delete(myMapFile);
+          if (!tmp.renameTo(myMapFile))
+            throw new IOException("Cannot rename " + tmp.getAbsolutePath() + " to " + myMapFile.getAbsolutePath());
+        }
+      } catch (IOException e) {
+        FileUtil.delete(tmp);
+        LOG.warn("Error while saving mapping to " + myMapFile.getAbsolutePath(), e);
+        return;
+      }
+      FileUtil.delete(myJournalFile);
+      myJournalRecords = 0;
+    }
+  }
+
+
+  private static void writeAndSync(@NotNull File file, @NotNull String content) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content.getBytes("UTF-8"));
+      out.getFD().sync();
+    } finally {
+      FileUtil.close(out);
     }
   }
 
@@ -250,21 +422,43 @@ public class MirrorManagerImpl implements MirrorManager {
 
   private void readMappings() {
     synchronized (myLock) {
-      for (String line : readLines(myMapFile)) {
-        int separatorIndex = line.lastIndexOf(" = ");
+      readMappings(myMapFile);
+      if (myJournalFile.exists()) {
+        LOG.debug("Parse mapping journal " + myJournalFile.getAbsolutePath());
+        myJournalRecords = readMappings(myJournalFile);
+      }
+    }
+  }
+
+
+  /**
+   * @return number of records read from the file
+   */
+  private int readMappings(@NotNull File file) {
+    synchronized (myLock) {
+      int records = 0;
+      for (String line : readLines(file)) {
+        int separatorIndex = line.lastIndexOf(SEPARATOR);
         if (separatorIndex == -1) {
           if (!line.equals(""))
             LOG.warn("Cannot parse mapping '" + line + "', skip it.");
         } else {
+          records++;
           String url = line.substring(0, separatorIndex);
-          String dirName = line.substring(separatorIndex + 3);
-          if (myMirrorMap.values().contains(dirName)) {
+          String dirPath = line.substring(separatorIndex + SEPARATOR.length());
+          String dirName = getDirName(dirPath);
+          String dirUrl = myDirToUrl.get(dirName);
+          if (dirUrl != null && !dirUrl.equals(url)) {
             LOG.error("Skip mapping " + line + ": " + dirName + " is used for url other than " + url);
           } else {
-            myMirrorMap.put(url, dirName);
+            String oldDirPath = myMirrorMap.get(url);
+            if (oldDirPath != null)
+              myDirToUrl.remove(getDirName(oldDirPath));
+            addMapping(url, dirPath);
           }
         }
       }
+      return records;
     }
   }
 
@@ -306,8 +500,10 @@ public class MirrorManagerImpl implements MirrorManager {
     synchronized (myLock) {
       LOG.info("Restore mapping from existing repositories");
       Map<String, String> restoredMappings = restoreMappings();
-      myMirrorMap.putAll(restoredMappings);
-      saveMappingToFile();
+      for (Map.Entry<String, String> e : restoredMappings.entrySet()) {
+        addMapping(e.getKey(), e.getValue());
+      }
+      compact();
     }
   }
 
@@ -315,13 +511,14 @@ public class MirrorManagerImpl implements MirrorManager {
   @NotNull
   private Map<String, String> restoreMappings() {
     Map<String, String> result = new HashMap<String, String>();
-    File[] subDirs = findRepositoryDirs();
-    if (subDirs.length > 0) {
-      LOG.info(subDirs.length + " existing repositories found");
+    List<File> subDirs = findRepositoryDirs();
+    if (subDirs.size() > 0) {
+      LOG.info(subDirs.size() + " existing repositories found");
       for (File dir : subDirs) {
         String url = getRemoteRepositoryUrl(dir);
         if (url != null) {
-          result.put(url, dir.getName());
+          File parent = dir.getParentFile();
+          result.put(url, myBaseMirrorsDir.equals(parent) ? dir.getName() : parent.getName() + "/" + dir.getName());
         } else {
           LOG.warn("Cannot retrieve remote repository url for " + dir.getName() + ", skip it");
         }
@@ -334,12 +531,24 @@ public class MirrorManagerImpl implements MirrorManager {
 
 
   @NotNull
-  private File[] findRepositoryDirs() {
-    return myBaseMirrorsDir.listFiles(new FileFilter() {
+  private List<File> findRepositoryDirs() {
+    List<File> result = new ArrayList<File>();
+    for (File dir : getMirrorDirs()) {
+      if (new File(dir, "config").exists())
+        result.add(dir);
+    }
+    return result;
+  }
+
+
+  @NotNull
+  private static List<File> listDirs(@NotNull File dir) {
+    File[] dirs = dir.listFiles(new FileFilter() {
       public boolean accept(File f) {
-        return f.isDirectory() && new File(f, "config").exists();
+        return f.isDirectory();
       }
     });
+    return dirs != null ? Arrays.asList(dirs) : Collections.<File>emptyList();
   }
 
 
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of inflated blobs.
+ *
+ * <p>The total size of cached blobs is bounded, blobs larger than the
+ * specified size are not cached. Keys must be immutable, e.g. {@link org.eclipse.jgit.lib.ObjectId}
+ * rather than {@link org.eclipse.jgit.lib.AnyObjectId}.
+ *
+ * <p>Cached arrays are stored as is, callers which modify contents should copy them.
+ *
+ * <p>ThreadSafe.
+ */
+public final class BlobCache<K> {
+
+  private final long myMaxSize;
+  private final long myMaxBlobSize;
+  private final LinkedHashMap<K, byte[]> myBlobs = new LinkedHashMap<>(16, 0.75f, true);
+  private long mySize;
+
+  public BlobCache(long maxSize, long maxBlobSize) {
+    myMaxSize = maxSize;
+    myMaxBlobSize = Math.min(maxBlobSize, maxSize);
+  }
+
+
+  @Nullable
+  public synchronized byte[] get(@NotNull K key) {
+    return myBlobs.get(key);
+  }
+
+
+  public void put(@NotNull K key, @NotNull byte[] content) {
+    if (content.length > myMaxBlobSize)
+      return;
+    synchronized (this) {
+      byte[] old = myBlobs.put(key, content);
+      if (old != null)
+        mySize -= old.length;
+      mySize += content.length;
+      Iterator<Map.Entry<K, byte[]>> iter = myBlobs.entrySet().iterator();
+      while (mySize > myMaxSize && iter.hasNext()) {
+        mySize -= iter.next().getValue().length;
+        iter.remove();
+      }
+    }
+  }
+}
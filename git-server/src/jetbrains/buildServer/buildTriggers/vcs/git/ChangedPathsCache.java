@@ -0,0 +1,382 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.RecentEntriesCache;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Paths changed by commits of a single repository.
+ * ThreadSafe.
+ *
+ * <p>For every commit the cache keeps all paths which differ between the commit
+ * and any of its parents, together with the change type and the parents the path
+ * differs from. Commits are immutable, so entries never become stale and are
+ * shared by all roots and branches using the repository. Submodules are not
+ * resolved in cached entries: the cache is used only by roots which don't
+ * checkout submodules.
+ *
+ * <p>Entries are kept in memory in the encoded form: paths are sorted in the
+ * tree walk order and every path is stored as the length of the prefix shared
+ * with the previous path plus the remaining suffix. The cache is persisted as an
+ * append-only binary journal of encoded entries which is compacted into a
+ * snapshot of the current entries once it becomes much longer than the cache.
+ */
+public final class ChangedPathsCache {
+
+  private static final Logger LOG = Logger.getInstance(ChangedPathsCache.class.getName());
+
+  private static final byte[] MAGIC = {'T', 'C', 'C', 'P'};
+  private static final byte FORMAT_VERSION = 1;
+  private static final String FILE_NAME = "changed-paths";
+
+  /**
+   * Max number of parents of a cached commit, parents a path differs from are stored as bits of a long
+   */
+  public static final int MAX_PARENTS = 64;
+
+  private static final int MIN_JOURNAL_RECORDS = 64;
+
+  private final ServerPluginConfig myConfig;
+  private final File myRepositoryDir;
+  private final RecentEntriesCache<ObjectId, byte[]> myCache;//commit -> encoded changed paths
+  private final int myMaxJournalRecords;
+  //number of records in the journal on disk, -1 if the journal doesn't reflect the cache state and should be rewritten
+  private int myJournalRecords = -1;
+
+  private ChangedPathsCache(@NotNull ServerPluginConfig config, @NotNull File repositoryDir, int cacheSize) {
+    myConfig = config;
+    myRepositoryDir = repositoryDir;
+    myCache = new RecentEntriesCache<>(cacheSize);
+    myMaxJournalRecords = Math.max(MIN_JOURNAL_RECORDS, 2 * cacheSize);
+  }
+
+
+  /**
+   * @return paths changed by the commit in the tree walk order or null if the commit is not cached
+   */
+  @Nullable
+  public List<ChangedPath> get(@NotNull ObjectId commit) {
+    byte[] encoded = myCache.get(commit);
+    if (encoded == null)
+      return null;
+    try {
+      return decode(encoded);
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Error while decoding changed paths of the commit " + commit.name() + " in repository " + myRepositoryDir.getAbsolutePath(), e);
+      return null;
+    }
+  }
+
+
+  /**
+   * Caches changed paths of commits
+   * @param changedPaths commit -> paths changed by the commit in the tree walk order
+   */
+  public void putAll(@NotNull Map<ObjectId, List<ChangedPath>> changedPaths) {
+    if (changedPaths.isEmpty())
+      return;
+    //copy ids, so cached entries don't retain parsed commits
+    Map<ObjectId, byte[]> encoded = new LinkedHashMap<>();
+    try {
+      for (Map.Entry<ObjectId, List<ChangedPath>> e : changedPaths.entrySet()) {
+        encoded.put(e.getKey().copy(), encode(e.getValue()));
+      }
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Error while encoding changed paths in repository " + myRepositoryDir.getAbsolutePath(), e);
+      return;
+    }
+    synchronized (myCache) {
+      for (Map.Entry<ObjectId, byte[]> e : encoded.entrySet()) {
+        myCache.put(e.getKey(), e.getValue());
+      }
+      try {
+        append(encoded);
+      } catch (IOException e) {
+        LOG.warnAndDebugDetails("Error while writing changed paths cache for repository " + myRepositoryDir.getAbsolutePath(), e);
+      }
+    }
+  }
+
+
+  public void reset() {
+    synchronized (myCache) {
+      myCache.clear();
+      myJournalRecords = -1;
+      FileUtil.delete(getCacheFile(myRepositoryDir));
+    }
+  }
+
+
+  /**
+   * Appends records to the journal, rewrites the whole journal if it doesn't
+   * match the cache state or became too long. Should be called under the myCache lock.
+   */
+  private void append(@NotNull Map<ObjectId, byte[]> records) throws IOException {
+    File cache = getCacheFile(myRepositoryDir);
+    if (!myConfig.persistentCacheEnabled()) {
+      myJournalRecords = -1;
+      FileUtil.delete(cache);
+      return;
+    }
+
+    //don't recreate the dir of the removed repository
+    if (!myRepositoryDir.isDirectory())
+      return;
+
+    if (myJournalRecords < 0 || myJournalRecords + records.size() > myMaxJournalRecords || !cache.isFile()) {
+      compact();
+      return;
+    }
+
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cache, true)))) {
+      for (Map.Entry<ObjectId, byte[]> e : records.entrySet()) {
+        writeRecord(out, e.getKey(), e.getValue());
+      }
+    } catch (IOException e) {
+      myJournalRecords = -1;
+      throw e;
+    }
+    myJournalRecords += records.size();
+  }
+
+
+  /**
+   * Writes the current cache entries into a new journal and atomically replaces the existing one.
+   * Should be called under the myCache lock.
+   */
+  private void compact() throws IOException {
+    myJournalRecords = -1;
+    File cache = getCacheFile(myRepositoryDir);
+    File cachesDir = cache.getParentFile();
+    cachesDir.mkdirs();
+    File tmp = new File(cachesDir, cache.getName() + ".tmp");
+    int[] records = {0};
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+      out.write(MAGIC);
+      out.writeByte(FORMAT_VERSION);
+      IOException[] error = {null};
+      myCache.forEachEntry((commit, encoded) -> {
+        if (encoded != null) {
+          try {
+            writeRecord(out, commit, encoded);
+          } catch (IOException e) {
+            error[0] = e;
+            return false;
+          }
+          records[0]++;
+        }
+        return true;
+      });
+      if (error[0] != null)
+        throw error[0];
+    }
+    FileUtil.delete(cache);
+    if (!tmp.renameTo(cache)) {
+      FileUtil.delete(tmp);
+      throw new IOException("Cannot rename " + tmp.getAbsolutePath() + " to " + cache.getAbsolutePath());
+    }
+    myJournalRecords = records[0];
+  }
+
+
+  /**
+   * Reads the persisted cache of the repository, returns an empty cache if it cannot be read
+   */
+  @NotNull
+  public static ChangedPathsCache read(@NotNull ServerPluginConfig config, @NotNull File repositoryDir, int cacheSize) {
+    ChangedPathsCache result = new ChangedPathsCache(config, repositoryDir, cacheSize);
+    File cache = getCacheFile(repositoryDir);
+    if (!config.persistentCacheEnabled() || !cache.isFile())
+      return result;
+    try {
+      result.readJournal(cache);
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Error while reading changed paths cache for repository " + repositoryDir.getAbsolutePath() + ", the cache will be rebuilt", e);
+      result.myCache.clear();
+      FileUtil.delete(cache);
+    }
+    return result;
+  }
+
+
+  private void readJournal(@NotNull File cache) throws IOException {
+    int records = 0;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cache)))) {
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC) || in.readByte() != FORMAT_VERSION)
+        throw new IOException("Unsupported changed paths cache format");
+      byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+      while (true) {
+        int first = in.read();
+        if (first == -1)
+          break;
+        try {
+          id[0] = (byte) first;
+          in.readFully(id, 1, id.length - 1);
+          byte[] encoded = new byte[in.readInt()];
+          in.readFully(encoded);
+          myCache.put(ObjectId.fromRaw(id), encoded);
+        } catch (EOFException e) {
+          //incomplete last record, e.g. the server was stopped in the middle of a write;
+          //rewrite the journal on next update
+          LOG.debug("Incomplete last record in changed paths cache " + cache.getAbsolutePath());
+          return;
+        }
+        records++;
+      }
+    }
+    myJournalRecords = records;
+  }
+
+
+  private static void writeRecord(@NotNull DataOutputStream out, @NotNull ObjectId commit, @NotNull byte[] encoded) throws IOException {
+    commit.copyRawTo(out);
+    out.writeInt(encoded.length);
+    out.write(encoded);
+  }
+
+
+  @NotNull
+  static byte[] encode(@NotNull List<ChangedPath> changedPaths) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    writeVarLong(out, changedPaths.size());
+    byte[] prev = new byte[0];
+    for (ChangedPath p : changedPaths) {
+      byte[] path = p.getPath().getBytes(StandardCharsets.UTF_8);
+      int prefix = 0;
+      int maxPrefix = Math.min(prev.length, path.length);
+      while (prefix < maxPrefix && prev[prefix] == path[prefix]) {
+        prefix++;
+      }
+      writeVarLong(out, prefix);
+      writeVarLong(out, path.length - prefix);
+      out.write(path, prefix, path.length - prefix);
+      out.writeByte(p.getType().ordinal());
+      writeVarLong(out, p.getChangedParents());
+      prev = path;
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+
+  @NotNull
+  static List<ChangedPath> decode(@NotNull byte[] encoded) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+    int count = (int) readVarLong(in);
+    List<ChangedPath> result = new ArrayList<>(count);
+    ChangeType[] types = ChangeType.values();
+    byte[] prev = new byte[0];
+    for (int i = 0; i < count; i++) {
+      int prefix = (int) readVarLong(in);
+      int suffix = (int) readVarLong(in);
+      if (prefix > prev.length)
+        throw new IOException("Bad path prefix length " + prefix);
+      byte[] path = new byte[prefix + suffix];
+      System.arraycopy(prev, 0, path, 0, prefix);
+      in.readFully(path, prefix, suffix);
+      int type = in.readUnsignedByte();
+      if (type >= types.length)
+        throw new IOException("Bad change type " + type);
+      result.add(new ChangedPath(new String(path, StandardCharsets.UTF_8), types[type], readVarLong(in)));
+      prev = path;
+    }
+    return result;
+  }
+
+
+  private static void writeVarLong(@NotNull DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+
+  private static long readVarLong(@NotNull DataInputStream in) throws IOException {
+    long result = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      result |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+        return result;
+    }
+    throw new IOException("Malformed variable-length number");
+  }
+
+
+  @NotNull
+  static File getCacheFile(@NotNull File repositoryDir) {
+    return new File(new File(repositoryDir, "caches"), FILE_NAME);
+  }
+
+
+  /**
+   * Path changed by a commit
+   */
+  public static final class ChangedPath {
+    private final String myPath;
+    private final ChangeType myType;
+    private final long myChangedParents;
+
+    /**
+     * @param path changed path
+     * @param type change type
+     * @param changedParents bit i is set if the path differs from the parent number i
+     */
+    public ChangedPath(@NotNull String path, @NotNull ChangeType type, long changedParents) {
+      myPath = path;
+      myType = type;
+      myChangedParents = changedParents;
+    }
+
+    @NotNull
+    public String getPath() {
+      return myPath;
+    }
+
+    @NotNull
+    public ChangeType getType() {
+      return myType;
+    }
+
+    public long getChangedParents() {
+      return myChangedParents;
+    }
+
+    public boolean isChangedInParent(int parentIndex) {
+      return (myChangedParents & (1L << parentIndex)) != 0;
+    }
+  }
+}
@@ -26,8 +26,6 @@ import jetbrains.buildServer.util.Dates;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.vcs.VcsException;
-import org.eclipse.jgit.internal.storage.file.FileRepository;
-import org.eclipse.jgit.internal.storage.file.PackFile;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.RepositoryBuilder;
 import org.jetbrains.annotations.NotNull;
@@ -42,12 +40,10 @@ import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
-import java.util.regex.Pattern;
 
 public class Cleanup {
 
   private static final Logger LOG = Loggers.CLEANUP;
-  private static final Pattern PATTERN_LOOSE_OBJECT = Pattern.compile("[0-9a-fA-F]{38}");
   private static final Semaphore ourSemaphore = new Semaphore(1);
 
   private final RepositoryManager myRepositoryManager;
@@ -72,6 +68,7 @@ public class Cleanup {
     try {
       LOG.info("Git cleanup started");
       removeUnusedRepositories();
+      moveRepositoriesToShards();
       cleanupMonitoringData();
       if (myConfig.isRunNativeGC()) {
         runNativeGC();
@@ -94,6 +91,7 @@ public class Cleanup {
       boolean deleted = false;
       try {
         deleted = FileUtil.delete(dir);
+        myRepositoryManager.repositoryRemoved(dir);
       } finally {
         rmLock.unlock();
       }
@@ -108,13 +106,45 @@ public class Cleanup {
     LOG.debug("Remove unused git repository clones finished");
   }
 
+  /**
+   * Moves repositories created before repositories were placed in shards.
+   * Repositories used at the moment are skipped, they are moved during one
+   * of the next cleanups. A thread which got the old repository dir before
+   * the move can create it again; such a dir is not mapped to any url and
+   * is removed once it expires.
+   */
+  private void moveRepositoriesToShards() {
+    File baseDir = myRepositoryManager.getBaseMirrorsDir();
+    for (File dir : myRepositoryManager.getMirrorDirs()) {
+      if (!baseDir.equals(dir.getParentFile()))
+        continue;
+      Lock rmLock = myRepositoryManager.getRmLock(dir).writeLock();
+      if (!rmLock.tryLock())
+        continue;
+      File newDir = null;
+      try {
+        newDir = myRepositoryManager.moveToShard(dir);
+        if (newDir != null)
+          myRepositoryManager.repositoryRemoved(dir);
+      } catch (IOException e) {
+        LOG.warnAndDebugDetails("Cannot move git repository dir " + dir.getAbsolutePath() + " to shard", e);
+      } finally {
+        rmLock.unlock();
+      }
+      if (newDir != null) {
+        myGcErrors.clearError(dir);
+        myRepositoryManager.cleanLocksFor(dir);
+      }
+    }
+  }
+
   @NotNull
   private List<File> getUnusedDirs() {
     return myRepositoryManager.getExpiredDirs();
   }
 
   private List<File> getAllRepositoryDirs() {
-    return new ArrayList<File>(FileUtil.getSubDirectories(myRepositoryManager.getBaseMirrorsDir()));
+    return myRepositoryManager.getMirrorDirs();
   }
 
   private void cleanupMonitoringData() {
@@ -157,43 +187,54 @@ public class Cleanup {
     }
     Long freeDiskSpace = FileUtil.getFreeSpace(myRepositoryManager.getBaseMirrorsDir());
     LOG.info("Use git at path '" + myConfig.getPathToGit() + "'");
-    Collections.shuffle(allDirs);
-    int runGCCounter = 0;
     LOG.info("Git garbage collection started");
     boolean runInPlace = myConfig.runInPlaceGc();
-    for (File gitDir : allDirs) {
-      String url = myRepositoryManager.getUrl(gitDir.getName());
-      if (url != null) {
-        LOG.info("[" + gitDir.getName() + "] repository url: '" + url + "'");
-      }
-      if (enoughDiskSpaceForGC(gitDir, freeDiskSpace)) {
-        if (runInPlace) {
-          synchronized (myRepositoryManager.getWriteLock(gitDir)) {
-            runNativeGC(gitDir);
-          }
-        } else {
-          runGcInCopy(gitDir);
-        }
+    GcScheduler scheduler = new GcScheduler(myConfig, myRepositoryManager.getBaseMirrorsDir());
+    List<GcScheduler.Candidate> candidates = new ArrayList<>();
+    for (GcScheduler.Candidate candidate : scheduler.rank(allDirs)) {
+      File gitDir = candidate.getGitDir();
+      if (LOG.isDebugEnabled())
+        LOG.debug(candidate.toString());
+      if (!runInPlace && !candidate.getStats().isGcNeeded()) {
+        LOG.info("[" + gitDir.getName() + "] no git gc is needed");
+        myGcErrors.clearError(gitDir);
+      } else if (enoughDiskSpaceForGC(gitDir, freeDiskSpace)) {
+        candidates.add(candidate);
       } else {
         myGcErrors.registerError(gitDir, "Not enough disk space to run git gc");
         LOG.warn("[" + gitDir.getName() + "] not enough disk space to run git gc (" + String.valueOf(freeDiskSpace) + " " + pluralize("byte", freeDiskSpace) + ")");
       }
-      runGCCounter++;
-      final long repositoryFinishNanos = System.nanoTime();
-      if ((repositoryFinishNanos - startNanos) > gcTimeQuotaNanos) {
-        final int restRepositories = allDirs.size() - runGCCounter;
-        if (restRepositories > 0) {
-          LOG.info("Git garbage collection quota exceeded, skip " + restRepositories + " repositories");
-          break;
+    }
+    int started = scheduler.run(candidates, startNanos + gcTimeQuotaNanos, freeDiskSpace, gitDir -> {
+      String url = myRepositoryManager.getUrl(gitDir.getName());
+      if (url != null) {
+        LOG.info("[" + gitDir.getName() + "] repository url: '" + url + "'");
+      }
+      if (runInPlace) {
+        Lock writeLock = myRepositoryManager.getWriteLock(gitDir);
+        writeLock.lock();
+        try {
+          runNativeGC(gitDir);
+        } finally {
+          writeLock.unlock();
         }
+        return true;
       }
+      return runGcInCopy(gitDir);
+    });
+    final int restRepositories = candidates.size() - started;
+    if (restRepositories > 0) {
+      LOG.info("Git garbage collection quota exceeded, skip " + restRepositories + " repositories");
     }
     final long finishNanos = System.nanoTime();
     LOG.info("Git garbage collection finished, it took " + TimeUnit.NANOSECONDS.toMillis(finishNanos - startNanos) + "ms");
   }
 
 
-  private void runGcInCopy(@NotNull File originalRepo) {
+  /**
+   * @return true if gc was performed
+   */
+  private boolean runGcInCopy(@NotNull File originalRepo) {
     Lock rmLock = myRepositoryManager.getRmLock(originalRepo).readLock();
     rmLock.lock();
     File gcRepo;
@@ -201,7 +242,7 @@ public class Cleanup {
       if (!isGcNeeded(originalRepo)) {
         LOG.info("[" + originalRepo.getName() + "] no git gc is needed");
         myGcErrors.clearError(originalRepo);
-        return;
+        return false;
       }
 
       try {
@@ -209,7 +250,7 @@ public class Cleanup {
       } catch (Exception e) {
         myGcErrors.registerError(originalRepo, "Failed to create temporary repository for garbage collection", e);
         LOG.warnAndDebugDetails("Failed to create temporary repository for garbage collection, original repository: " + originalRepo.getAbsolutePath(), e);
-        return;
+        return false;
       }
 
       LOG.info("[" + originalRepo.getName() + "] run git gc in dedicated dir [" + gcRepo.getName() + "]");
@@ -221,7 +262,7 @@ public class Cleanup {
         myGcErrors.registerError(originalRepo, "Error while running garbage collection", e);
         LOG.warnAndDebugDetails("Error while running garbage collection in " + originalRepo.getAbsolutePath(), e);
         FileUtil.delete(gcRepo);
-        return;
+        return false;
       }
     } finally {
       rmLock.unlock();
@@ -239,7 +280,7 @@ public class Cleanup {
       myGcErrors.registerError(originalRepo, "Error while creating temporary directory", e);
       LOG.warnAndDebugDetails("Error while creating temporary directory for " + originalRepo.getAbsolutePath(), e);
       FileUtil.delete(gcRepo);
-      return;
+      return false;
     }
 
     //swap repositories with write rm lock which guarantees no one uses the original repository
@@ -251,7 +292,7 @@ public class Cleanup {
       if (!originalRepo.renameTo(oldDir)) {
         myGcErrors.registerError(originalRepo, "Failed to rename " + originalRepo.getName() + " to " + oldDir.getName());
         LOG.warn("Failed to rename " + originalRepo.getName() + " to " + oldDir.getName());
-        return;
+        return false;
       }
       if (!gcRepo.renameTo(originalRepo)) {
         myGcErrors.registerError(originalRepo, "Failed to rename " + gcRepo.getName() + " to " + originalRepo.getName());
@@ -259,8 +300,12 @@ public class Cleanup {
         if (!oldDir.renameTo(originalRepo)) {
           LOG.warn("Failed to rename " + oldDir.getName() + " to " + originalRepo.getName());
         }
-        return;
+        return false;
       }
+      //keep persisted caches, the compacted repository has the same commits
+      File caches = new File(oldDir, "caches");
+      if (caches.isDirectory() && !caches.renameTo(new File(originalRepo, "caches")))
+        LOG.warn("Failed to move caches of " + originalRepo.getName() + " to the compacted repository");
     } finally {
       rmWriteLock.unlock();
       FileUtil.delete(oldDir);
@@ -275,6 +320,7 @@ public class Cleanup {
       LOG.info(msg);
     }
     myGcErrors.clearError(originalRepo);
+    return true;
   }
 
   private void repack(final File gcRepo) throws VcsException {
@@ -326,18 +372,11 @@ public class Cleanup {
   }
 
   private boolean isGcNeeded(@NotNull File gitDir) {
-    FileRepository db = null;
     try {
-      //implement logic from git gc --auto, jgit version we use doesn't have it yet
-      //and native git doesn't provide a dedicated command for that
-      db = (FileRepository) new RepositoryBuilder().setBare().setGitDir(gitDir).build();
-      return tooManyPacks(db) || tooManyLooseObjects(db);
+      return GcStats.read(gitDir).isGcNeeded();
     } catch (IOException e) {
       LOG.warnAndDebugDetails("Error while checking if garbage collection is needed in " + gitDir.getAbsolutePath(), e);
       return false;
-    } finally {
-      if (db != null)
-        db.close();
     }
   }
 
@@ -349,44 +388,6 @@ public class Cleanup {
     return FileUtil.getTotalDirectorySize(pack) < freeDiskSpace;
   }
 
-  private boolean tooManyPacks(@NotNull FileRepository repo) {
-    int limit = repo.getConfig().getInt("gc", "autopacklimit", 50);
-    if (limit <= 0)
-      return false;
-    int packCount = 0;
-    for (PackFile packFile : repo.getObjectDatabase().getPacks()) {
-      if (!packFile.shouldBeKept())
-        packCount++;
-      if (packCount > limit)
-        return true;
-    }
-    return false;
-  }
-
-
-  private boolean tooManyLooseObjects(@NotNull FileRepository repo) {
-    int limit = repo.getConfig().getInt("gc", "auto", 6700);
-    if (limit <= 0)
-      return false;
-    //SHA is evenly distributed, we can estimate number of loose object by counting them in a single bucket (from jgit internals)
-    int bucketLimit = (limit + 255) / 256;
-    File bucket = new File(repo.getObjectsDirectory(), "17");
-    if (!bucket.isDirectory())
-      return false;
-    String[] files = bucket.list();
-    if (files == null)
-      return false;
-    int count = 0;
-    for (String fileName : files) {
-      if (PATTERN_LOOSE_OBJECT.matcher(fileName).matches())
-        count++;
-      if (count > bucketLimit)
-        return true;
-    }
-    return false;
-  }
-
-
   @NotNull
   private File setupGcRepo(@NotNull File gitDir) throws IOException {
     File result = createTempDir(gitDir.getParentFile(), gitDir.getName() + ".gc");
@@ -447,7 +448,9 @@ public class Cleanup {
     Boolean nativeGitInstalled = null;
     boolean enableNativeGitLogged = false;
     for (File gitDir : allDirs) {
-      synchronized (myRepositoryManager.getWriteLock(gitDir)) {
+      Lock writeLock = myRepositoryManager.getWriteLock(gitDir);
+      writeLock.lock();
+      try {
         try {
           LOG.info("Start garbage collection in " + gitDir.getAbsolutePath());
           long repositoryStartNanos = System.nanoTime();
@@ -471,6 +474,8 @@ public class Cleanup {
             }
           }
         }
+      } finally {
+        writeLock.unlock();
       }
       runGCCounter++;
       final long repositoryFinishNanos = System.nanoTime();
@@ -33,6 +33,7 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
 
 import static java.util.Arrays.asList;
 
@@ -92,13 +93,17 @@ public class CommitLoaderImpl implements CommitLoader {
     File repositoryDir = db.getDirectory();
     assert repositoryDir != null : "Non-local repository";
     final long start = System.currentTimeMillis();
-    synchronized (myRepositoryManager.getWriteLock(repositoryDir)) {
+    Lock writeLock = myRepositoryManager.getWriteLock(repositoryDir);
+    writeLock.lock();
+    try {
       final long finish = System.currentTimeMillis();
       Map<String, Ref> oldRefs = new HashMap<String, Ref>(db.getAllRefs());
       PERFORMANCE_LOG.debug("[waitForWriteLock] repository: " + repositoryDir.getAbsolutePath() + ", took " + (finish - start) + "ms");
       myFetchCommand.fetch(db, fetchURI, refspecs, settings);
       Map<String, Ref> newRefs = new HashMap<String, Ref>(db.getAllRefs());
       myMapFullPath.invalidateRevisionsCache(db, oldRefs, newRefs);
+    } finally {
+      writeLock.unlock();
     }
   }
 
@@ -42,6 +42,7 @@ import org.jetbrains.annotations.NotNull;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
@@ -57,6 +58,7 @@ public class FetchCommandImpl implements FetchCommand {
   private final TransportFactory myTransportFactory;
   private final FetcherProperties myFetcherProperties;
   private final VcsRootSshKeyManager mySshKeyManager;
+  private final FetchWorkerPool myFetchWorkers;
 
   public FetchCommandImpl(@NotNull ServerPluginConfig config,
                           @NotNull TransportFactory transportFactory,
@@ -66,6 +68,7 @@ public class FetchCommandImpl implements FetchCommand {
     myTransportFactory = transportFactory;
     myFetcherProperties = fetcherProperties;
     mySshKeyManager = sshKeyManager;
+    myFetchWorkers = new FetchWorkerPool(config);
   }
 
 
@@ -162,17 +165,24 @@ public class FetchCommandImpl implements FetchCommand {
       }
       byte[] fetchProcessInput = getFetchProcessInputBytes(preparedSettings, repository.getDirectory(), uri, specs, threadDump, gitPropertiesFile);
       ByteArrayOutputStream stdoutBuffer = settings.createStdoutBuffer();
-      ByteArrayOutputStream stderrBuffer = new ByteArrayOutputStream();
       settings.getProgress().reportProgress("git fetch " + uri);
-      ExecResult result = SimpleCommandLineProcessRunner.runCommandSecure(cl, cl.getCommandLineString(), fetchProcessInput,
-                                                                          processEventHandler, stdoutBuffer, stderrBuffer);
+      FetchWorkerPool.Result result;
+      if (isFetchProcessReused()) {
+        result = myFetchWorkers.fetch(createFetchWorkerCommandLine(), getFetchWorkerKey(cl), fetchProcessInput, stdoutBuffer, myConfig.getFetchTimeout());
+      } else {
+        ByteArrayOutputStream stderrBuffer = new ByteArrayOutputStream();
+        ExecResult execResult = SimpleCommandLineProcessRunner.runCommandSecure(cl, cl.getCommandLineString(), fetchProcessInput,
+                                                                                processEventHandler, stdoutBuffer, stderrBuffer);
+        result = new FetchWorkerPool.Result(execResult.getExitCode(), execResult.getStderr(), execResult.getException());
+      }
+      String stdout = new String(stdoutBuffer.toByteArray(), StandardCharsets.UTF_8);
 
       if (PERFORMANCE_LOG.isDebugEnabled())
         PERFORMANCE_LOG.debug("[fetch in separate process] root=" + debugInfo + ", took " + (System.currentTimeMillis() - fetchStart) + "ms");
 
       VcsException commandError = CommandLineUtil.getCommandLineError("git fetch",
                                                                       " (repository dir: <TeamCity data dir>/system/caches/git/" + repository.getDirectory().getName() + ")",
-                                                                      result, true, true);
+                                                                      result.getExitCode(), result.getException(), stdout, result.getStderr(), true, true);
       if (commandError != null) {
         commandError.setRecoverable(isRecoverable(commandError));
         if (isOutOfMemoryError(result))
@@ -186,7 +196,7 @@ public class FetchCommandImpl implements FetchCommand {
         LOG.warn("Error output produced by git fetch:\n" + result.getStderr());
       }
 
-      LOG.debug("Fetch process output:\n" + result.getStdout());
+      LOG.debug("Fetch process output:\n" + stdout);
     } finally {
       settings.getProgress().reportProgress("git fetch " + uri + " finished");
       if (teamcityPrivateKey != null)
@@ -252,6 +262,45 @@ public class FetchCommandImpl implements FetchCommand {
     return new File(repository.getDirectory(), myConfig.getMonitoringDirName());
   }
 
+  /**
+   * @return number of reusable fetch processes started so far
+   */
+  public int getStartedFetchProcessCount() {
+    return myFetchWorkers.getStartedProcessCount();
+  }
+
+  /**
+   * Custom fetchers don't support the protocol of reusable fetch processes
+   */
+  private boolean isFetchProcessReused() {
+    return myConfig.getFetchProcessMaxFetches() > 1 && Fetcher.class.getName().equals(myConfig.getFetcherClassName());
+  }
+
+  @NotNull
+  private GeneralCommandLine createFetchWorkerCommandLine() {
+    GeneralCommandLine cl = new GeneralCommandLine();
+    //the process serves many repositories, don't lock any of them by its working dir
+    cl.setWorkingDirectory(myConfig.getCachesDir());
+    cl.setExePath(myConfig.getFetchProcessJavaPath());
+    cl.addParameters(myConfig.getOptionsForSeparateProcess());
+    cl.setPassParentEnvs(myConfig.passEnvToChildProcess());
+    cl.addParameters("-Xmx" + myConfig.getFetchProcessMaxMemory(),
+                     "-cp", myConfig.getFetchClasspath(),
+                     FetchWorker.class.getName(),
+                     String.valueOf(myConfig.getFetchProcessIdleTimeoutSeconds()));
+    return cl;
+  }
+
+  /**
+   * Fetch processes started with different options or internal properties cannot be reused
+   */
+  @NotNull
+  private String getFetchWorkerKey(@NotNull GeneralCommandLine fetcherCommandLine) {
+    List<String> parameters = fetcherCommandLine.getParametersList().getList();
+    //the last parameter is a fetch url, it doesn't affect the process
+    return fetcherCommandLine.getExePath() + " " + parameters.subList(0, parameters.size() - 1) + " " + new TreeMap<>(myConfig.getFetcherProperties());
+  }
+
   private GeneralCommandLine createFetcherCommandLine(@NotNull final Repository repository, @NotNull final URIish uri) {
     GeneralCommandLine cl = new GeneralCommandLine();
     cl.setWorkingDirectory(repository.getDirectory());
@@ -310,11 +359,11 @@ public class FetchCommandImpl implements FetchCommand {
   }
 
 
-  private boolean isOutOfMemoryError(@NotNull ExecResult result) {
+  private boolean isOutOfMemoryError(@NotNull FetchWorkerPool.Result result) {
     return result.getStderr().contains("java.lang.OutOfMemoryError");
   }
 
-  private boolean isTimeout(@NotNull ExecResult result) {
+  private boolean isTimeout(@NotNull FetchWorkerPool.Result result) {
     //noinspection ThrowableResultOfMethodCallIgnored
     final Throwable exception = result.getException();
     return exception instanceof InterruptedException &&
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Main class of a reusable fetch process.
+ *
+ * <p>Reads fetch requests from stdin and runs them one by one using {@link Fetcher},
+ * so JVM startup and JGit warm-up are paid once for many fetches. A request is the
+ * input of the Fetcher process prefixed by its length. Output of the fetch is sent
+ * to stdout in frames as soon as it is produced, the last frame of the fetch contains
+ * its exit code.
+ *
+ * <p>The process exits when its stdin is closed, when it doesn't get a request
+ * during the idle timeout specified in the first argument, or when its heap is
+ * almost full after a fetch.
+ */
+public class FetchWorker {
+
+  static final byte FRAME_STDOUT = 1;
+  static final byte FRAME_STDERR = 2;
+  static final byte FRAME_RESULT = 3;
+
+  private static final double MAX_HEAP_USAGE = 0.75;
+
+  public static void main(String[] args) throws IOException {
+    long idleTimeoutMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(args[0]));
+    DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+    System.setOut(new PrintStream(new FrameOutputStream(out, FRAME_STDOUT), true, "UTF-8"));
+    System.setErr(new PrintStream(new FrameOutputStream(out, FRAME_STDERR), true, "UTF-8"));
+    GitServerUtil.configureExternalProcessLogger(false);
+
+    IdleWatchdog watchdog = new IdleWatchdog(idleTimeoutMillis);
+    watchdog.start();
+    File internalProperties = null;
+    while (true) {
+      byte[] request = readRequest(in);
+      if (request == null)
+        break;
+      watchdog.setBusy(true);
+      boolean success;
+      try {
+        Map<String, String> properties = VcsUtil.stringToProperties(new String(request, "UTF-8"));
+        GitServerUtil.setExternalProcessLogLevel(Fetcher.isDebugEnabled(properties));
+        if (internalProperties == null) {
+          //the file from the request is removed after fetch, the server starts a new process when properties change
+          internalProperties = FileUtil.createTempFile("fetchWorker", "props");
+          internalProperties.deleteOnExit();
+          FileUtil.copy(new File(properties.get(Constants.FETCHER_INTERNAL_PROPERTIES_FILE)), internalProperties);
+          GitServerUtil.configureInternalProperties(internalProperties);
+        }
+        success = Fetcher.fetch(properties);
+      } catch (Throwable t) {
+        t.printStackTrace(System.err);
+        success = false;
+      }
+      System.out.flush();
+      System.err.flush();
+      boolean exit = isLowOnMemory();
+      synchronized (out) {
+        out.writeByte(FRAME_RESULT);
+        out.writeInt(success ? 0 : 1);
+        out.writeBoolean(exit);
+        out.flush();
+      }
+      if (exit)
+        break;
+      watchdog.setBusy(false);
+    }
+    System.exit(0);
+  }
+
+
+  @Nullable
+  private static byte[] readRequest(@NotNull DataInputStream in) throws IOException {
+    int length;
+    try {
+      length = in.readInt();
+    } catch (EOFException e) {
+      return null;
+    }
+    byte[] request = new byte[length];
+    in.readFully(request);
+    return request;
+  }
+
+
+  private static boolean isLowOnMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    long used = runtime.totalMemory() - runtime.freeMemory();
+    if (used < MAX_HEAP_USAGE * runtime.maxMemory())
+      return false;
+    System.gc();
+    used = runtime.totalMemory() - runtime.freeMemory();
+    return used >= MAX_HEAP_USAGE * runtime.maxMemory();
+  }
+
+
+  /**
+   * Sends everything written to it in frames of the specified type
+   */
+  private static class FrameOutputStream extends OutputStream {
+    private final DataOutputStream myOut;
+    private final byte myFrameType;
+    private final ByteArrayOutputStream myBuffer = new ByteArrayOutputStream();
+
+    FrameOutputStream(@NotNull DataOutputStream out, byte frameType) {
+      myOut = out;
+      myFrameType = frameType;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+      myBuffer.write(b);
+      if (myBuffer.size() >= 8192)
+        flush();
+    }
+
+    @Override
+    public synchronized void write(@NotNull byte[] b, int off, int len) throws IOException {
+      myBuffer.write(b, off, len);
+      if (myBuffer.size() >= 8192)
+        flush();
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+      if (myBuffer.size() == 0)
+        return;
+      synchronized (myOut) {
+        myOut.writeByte(myFrameType);
+        myOut.writeInt(myBuffer.size());
+        myBuffer.writeTo(myOut);
+        myOut.flush();
+      }
+      myBuffer.reset();
+    }
+  }
+
+
+  private static class IdleWatchdog extends Thread {
+    private final long myIdleTimeoutMillis;
+    private volatile boolean myBusy;
+    private volatile long myIdleSince = System.currentTimeMillis();
+
+    IdleWatchdog(long idleTimeoutMillis) {
+      super("Fetch process idle watchdog");
+      setDaemon(true);
+      myIdleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    void setBusy(boolean busy) {
+      myBusy = busy;
+      if (!busy)
+        myIdleSince = System.currentTimeMillis();
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          Thread.sleep(1000);
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (!myBusy && System.currentTimeMillis() - myIdleSince > myIdleTimeoutMillis)
+          System.exit(0);
+      }
+    }
+  }
+}
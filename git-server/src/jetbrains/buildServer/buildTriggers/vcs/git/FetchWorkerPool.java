@@ -0,0 +1,328 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of reusable fetch processes running {@link FetchWorker}.
+ *
+ * <p>A process runs one fetch at a time. After the fetch it is returned to
+ * the pool unless it has served the configured number of fetches, is low on
+ * memory, timed out or crashed. Processes are keyed by their command line and
+ * fetcher properties, a process is not reused once they change.
+ *
+ * <p>ThreadSafe.
+ */
+final class FetchWorkerPool {
+
+  private static final Logger LOG = Logger.getInstance(FetchWorkerPool.class.getName());
+  private static final int MAX_STDERR_LENGTH = 16 * 1024;
+
+  private final ServerPluginConfig myConfig;
+  private final LinkedList<Worker> myIdleWorkers = new LinkedList<>();
+  private final ScheduledExecutorService myTimer = Executors.newSingleThreadScheduledExecutor(new NamedDaemonThreadFactory("Git fetch process timeout"));
+  private final AtomicInteger myStartedCount = new AtomicInteger();
+
+  FetchWorkerPool(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+
+  /**
+   * Runs a fetch in a pooled process
+   * @param commandLine command line starting {@link FetchWorker}
+   * @param key identifies processes which can run the fetch
+   * @param input fetch process input
+   * @param stdout receives fetch output as soon as it is produced
+   * @param timeoutSeconds fetch is terminated if it produces no output during this time
+   * @return fetch result
+   * @throws VcsException if fetch process cannot be started
+   */
+  @NotNull
+  Result fetch(@NotNull GeneralCommandLine commandLine,
+               @NotNull String key,
+               @NotNull byte[] input,
+               @NotNull OutputStream stdout,
+               int timeoutSeconds) throws VcsException {
+    Result result = fetch(acquire(commandLine, key), input, stdout, timeoutSeconds);
+    if (result == null) {
+      LOG.debug("Idle fetch process has terminated, retry fetch in a new process");
+      result = fetch(start(commandLine, key), input, stdout, timeoutSeconds);
+    }
+    //a new process never asks for a retry
+    assert result != null;
+    return result;
+  }
+
+
+  /**
+   * @return fetch result or null if a reused process terminated before it
+   * started the fetch and the fetch should be retried in a new process
+   */
+  @Nullable
+  private Result fetch(@NotNull Worker worker,
+                       @NotNull byte[] input,
+                       @NotNull OutputStream stdout,
+                       int timeoutSeconds) {
+    AtomicBoolean timedOut = new AtomicBoolean();
+    Runnable onTimeout = () -> {
+      timedOut.set(true);
+      worker.destroy();
+    };
+    ScheduledFuture<?> timeout = myTimer.schedule(onTimeout, timeoutSeconds, TimeUnit.SECONDS);
+    boolean reuse = false;
+    boolean started = false;
+    ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+    try {
+      worker.myIn.writeInt(input.length);
+      worker.myIn.write(input);
+      worker.myIn.flush();
+      while (true) {
+        byte frame = worker.myOut.readByte();
+        started = true;
+        timeout.cancel(false);
+        if (frame == FetchWorker.FRAME_RESULT) {
+          int exitCode = worker.myOut.readInt();
+          boolean exiting = worker.myOut.readBoolean();
+          worker.myFetchCount++;
+          String errors = toString(stderr);
+          reuse = !exiting && worker.myFetchCount < myConfig.getFetchProcessMaxFetches() && !errors.contains("java.lang.OutOfMemoryError");
+          return new Result(exitCode, errors, null);
+        }
+        byte[] data = new byte[worker.myOut.readInt()];
+        worker.myOut.readFully(data);
+        if (frame == FetchWorker.FRAME_STDOUT) {
+          stdout.write(data);
+        } else {
+          stderr.write(data);
+        }
+        timeout = myTimer.schedule(onTimeout, timeoutSeconds, TimeUnit.SECONDS);
+      }
+    } catch (IOException e) {
+      if (timedOut.get())
+        return new Result(-1, toString(stderr), new InterruptedException("Timeout exception"));
+      if (!started && worker.myFetchCount > 0)
+        return null;
+      String processErrors = worker.getErrorOutput();
+      return new Result(worker.waitForExitCode(), toString(stderr) + processErrors, new IOException("Fetch process terminated unexpectedly", e));
+    } finally {
+      timeout.cancel(false);
+      release(worker, reuse && !timedOut.get());
+    }
+  }
+
+
+  /**
+   * @return number of fetch processes started by the pool
+   */
+  int getStartedProcessCount() {
+    return myStartedCount.get();
+  }
+
+
+  @NotNull
+  private static String toString(@NotNull ByteArrayOutputStream out) {
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+
+  @NotNull
+  private Worker acquire(@NotNull GeneralCommandLine commandLine, @NotNull String key) throws VcsException {
+    long maxIdleNanos = getMaxIdleNanos();
+    Worker result = null;
+    List<Worker> stale = new ArrayList<>();
+    synchronized (myIdleWorkers) {
+      Iterator<Worker> iter = myIdleWorkers.iterator();
+      while (iter.hasNext()) {
+        Worker worker = iter.next();
+        if (!worker.isAlive() || System.nanoTime() - worker.myIdleSinceNanos > maxIdleNanos || !worker.myKey.equals(key)) {
+          iter.remove();
+          stale.add(worker);
+        } else if (result == null) {
+          iter.remove();
+          result = worker;
+        }
+      }
+    }
+    for (Worker worker : stale) {
+      worker.close();
+    }
+    return result != null ? result : start(commandLine, key);
+  }
+
+
+  private void release(@NotNull Worker worker, boolean reuse) {
+    if (!reuse || !worker.isAlive()) {
+      worker.close();
+      return;
+    }
+    Worker excess = null;
+    worker.myIdleSinceNanos = System.nanoTime();
+    synchronized (myIdleWorkers) {
+      myIdleWorkers.addFirst(worker);
+      if (myIdleWorkers.size() > myConfig.getFetchProcessMaxIdle())
+        excess = myIdleWorkers.removeLast();
+    }
+    if (excess != null)
+      excess.close();
+  }
+
+
+  /**
+   * Workers exit by themselves after the idle timeout, don't reuse them close to that moment
+   */
+  private long getMaxIdleNanos() {
+    return TimeUnit.SECONDS.toNanos(myConfig.getFetchProcessIdleTimeoutSeconds()) / 2;
+  }
+
+
+  @NotNull
+  private Worker start(@NotNull GeneralCommandLine commandLine, @NotNull String key) throws VcsException {
+    try {
+      if (LOG.isDebugEnabled())
+        LOG.debug("Start fetch process " + commandLine.getCommandLineString());
+      Worker worker = new Worker(commandLine.createProcess(), key);
+      myStartedCount.incrementAndGet();
+      return worker;
+    } catch (ExecutionException e) {
+      throw new VcsException("Cannot start fetch process: " + e.getMessage(), e);
+    }
+  }
+
+
+  static final class Result {
+    private final int myExitCode;
+    private final String myStderr;
+    private final Throwable myException;
+
+    Result(int exitCode, @NotNull String stderr, @Nullable Throwable exception) {
+      myExitCode = exitCode;
+      myStderr = stderr;
+      myException = exception;
+    }
+
+    int getExitCode() {
+      return myExitCode;
+    }
+
+    @NotNull
+    String getStderr() {
+      return myStderr;
+    }
+
+    @Nullable
+    Throwable getException() {
+      return myException;
+    }
+  }
+
+
+  private static final class Worker {
+    private final Process myProcess;
+    private final String myKey;
+    private final DataOutputStream myIn;
+    private final DataInputStream myOut;
+    private final StringBuffer myErrorOutput = new StringBuffer();
+    private int myFetchCount;
+    private volatile long myIdleSinceNanos;
+
+    private Worker(@NotNull Process process, @NotNull String key) {
+      myProcess = process;
+      myKey = key;
+      myIn = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+      myOut = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+      //output of the JVM itself, e.g. when it cannot start or crashes
+      Thread errorReader = new Thread(this::readErrorOutput, "Git fetch process stderr reader");
+      errorReader.setDaemon(true);
+      errorReader.start();
+    }
+
+    private void readErrorOutput() {
+      try (Reader reader = new InputStreamReader(myProcess.getErrorStream(), "UTF-8")) {
+        char[] buffer = new char[1024];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+          myErrorOutput.append(buffer, 0, read);
+          if (myErrorOutput.length() > MAX_STDERR_LENGTH)
+            myErrorOutput.delete(0, myErrorOutput.length() - MAX_STDERR_LENGTH);
+        }
+      } catch (IOException e) {
+        //process is terminated
+      }
+    }
+
+    @NotNull
+    private String getErrorOutput() {
+      return myErrorOutput.toString();
+    }
+
+    private boolean isAlive() {
+      try {
+        myProcess.exitValue();
+        return false;
+      } catch (IllegalThreadStateException e) {
+        return true;
+      }
+    }
+
+    private int waitForExitCode() {
+      try {
+        if (myProcess.waitFor(5, TimeUnit.SECONDS))
+          return myProcess.exitValue();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return -1;
+    }
+
+    private void destroy() {
+      myProcess.destroy();
+    }
+
+    /**
+     * Closes the process stdin, so it exits once it completes the current request
+     */
+    private void close() {
+      try {
+        myIn.close();
+        myOut.close();
+      } catch (IOException e) {
+        myProcess.destroy();
+      }
+    }
+  }
+}
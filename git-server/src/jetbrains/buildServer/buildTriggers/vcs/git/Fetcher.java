@@ -44,19 +44,36 @@ import java.util.concurrent.TimeUnit;
 public class Fetcher {
 
   public static void main(String[] args) throws IOException, VcsException, URISyntaxException {
-    boolean debug = false;
+    boolean success;
+    try {
+      Map<String, String> properties = VcsUtil.stringToProperties(GitServerUtil.readInput());
+      GitServerUtil.configureExternalProcessLogger(isDebugEnabled(properties));
+      GitServerUtil.configureInternalProperties(new File(properties.get(Constants.FETCHER_INTERNAL_PROPERTIES_FILE)));
+      success = fetch(properties);
+    } catch (Throwable t) {
+      t.printStackTrace(System.err);
+      success = false;
+    }
+    if (!success)
+      System.exit(1);
+  }
+
+  /**
+   * Runs a fetch described by the fetch process input, logger and internal properties
+   * should be already configured. Errors are reported to System.err.
+   *
+   * @param properties parsed fetch process input
+   * @return true if fetch was successful
+   */
+  static boolean fetch(@NotNull Map<String, String> properties) {
+    boolean debug = isDebugEnabled(properties);
     ScheduledExecutorService exec = Executors.newScheduledThreadPool(1);
     final long start = System.currentTimeMillis();
     try {
-      Map<String, String> properties = VcsUtil.stringToProperties(GitServerUtil.readInput());
       String threadDumpFilePath = properties.remove(Constants.THREAD_DUMP_FILE);
       String repositoryPath = properties.remove(Constants.REPOSITORY_DIR_PROPERTY_NAME);
-      debug = "true".equals(properties.remove(Constants.VCS_DEBUG_ENABLED));
-
-      GitServerUtil.configureExternalProcessLogger(debug);
-
-      String internalPropsFile = properties.remove(Constants.FETCHER_INTERNAL_PROPERTIES_FILE);
-      GitServerUtil.configureInternalProperties(new File(internalPropsFile));
+      properties.remove(Constants.VCS_DEBUG_ENABLED);
+      properties.remove(Constants.FETCHER_INTERNAL_PROPERTIES_FILE);
 
       ByteArrayOutputStream output = new ByteArrayOutputStream();
       FetchProgressMonitor progress = new FetchProgressMonitor(new PrintStream(output));
@@ -66,18 +83,23 @@ public class Fetcher {
       if (System.currentTimeMillis() - start <= new PluginConfigImpl().getMonitoringFileThresholdMillis()) {
         FileUtil.delete(new File(threadDumpFilePath));
       }
+      return true;
     } catch (Throwable t) {
       if (debug || isImportant(t)) {
         t.printStackTrace(System.err);
       } else {
         System.err.println(t.getMessage());
       }
-      System.exit(1);
+      return false;
     } finally {
       exec.shutdown();
     }
   }
 
+  static boolean isDebugEnabled(@NotNull Map<String, String> properties) {
+    return "true".equals(properties.get(Constants.VCS_DEBUG_ENABLED));
+  }
+
   /**
    * Do fetch in directory <code>repositoryDir</code> with vcsRootProperties from <code>vcsRootProperties</code>
    *
@@ -99,9 +121,9 @@ public class Fetcher {
 
     TransportFactory transportFactory = new TransportFactoryImpl(config, new EmptyVcsRootSshKeyManager());
     Transport tn = null;
+    Repository repository = new RepositoryBuilder().setBare().setGitDir(repositoryDir).build();
     try {
-      Repository repository = new RepositoryBuilder().setBare().setGitDir(repositoryDir).build();
-      workaroundRacyGit();
+      workaroundRacyGit(repositoryDir);
       tn = transportFactory.createTransport(repository, new URIish(fetchUrl), auth);
       try {
         pruneRemovedBranches(config, repository, transportFactory, tn, new URIish(fetchUrl), auth);
@@ -116,6 +138,7 @@ public class Fetcher {
     } finally {
       if (tn != null)
         tn.close();
+      repository.close();
     }
   }
 
@@ -156,12 +179,17 @@ public class Fetcher {
    * a timestamp of objects/packs dir is not changed (at least on linux).
    * If timestamp of that dir is not changed from the last read, jgit assumes
    * there is nothing new there and could not find object even if it already
-   * exists in repository. This method sleeps for 1 second, so subsequent
-   * write to objects/pack dir will change its timestamp.
+   * exists in repository. This method sleeps until 1 second passes since the
+   * last modification of that dir, so subsequent write to it will change its
+   * timestamp. Usually the dir was modified long ago and no sleep is needed.
    */
-  private static void workaroundRacyGit() {
+  private static void workaroundRacyGit(@NotNull File repositoryDir) {
+    File packDir = new File(new File(repositoryDir, "objects"), "pack");
+    long sleepMillis = packDir.lastModified() + 1000 - System.currentTimeMillis();
+    if (sleepMillis <= 0)
+      return;
     try {
-      Thread.sleep(1000);
+      Thread.sleep(Math.min(sleepMillis, 1000));
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
     }
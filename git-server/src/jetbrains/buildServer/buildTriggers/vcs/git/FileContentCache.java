@@ -0,0 +1,148 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import jetbrains.buildServer.util.RecentEntriesCache;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Server-wide cache of file contents returned by {@link GitVcsFileContentProvider}.
+ *
+ * <p>Contents are cached by blob id and line separators mode, so all roots and
+ * revisions containing the same file share a single copy. Blob ids of files
+ * are cached by repository url, revision and path, so repeated requests for
+ * the same file don't access the repository at all. The total size of cached
+ * contents is bounded, files larger than the configured threshold are not
+ * cached.
+ *
+ * <p>Cached arrays are copied on the way in and out, callers can modify them.
+ *
+ * <p>ThreadSafe.
+ */
+final class FileContentCache {
+
+  private static final int MAX_FILES = 10000;
+
+  private final long myMaxSize;
+  private final long myMaxBlobSize;
+  private final RecentEntriesCache<FileKey, ObjectId> myBlobIds = new RecentEntriesCache<>(MAX_FILES);
+  private final BlobCache<ContentKey> myContents;
+
+  FileContentCache(@NotNull ServerPluginConfig config) {
+    myMaxSize = config.getFileContentCacheSize();
+    myMaxBlobSize = Math.min(config.getFileContentCacheMaxBlobSize(), myMaxSize);
+    myContents = new BlobCache<>(myMaxSize, myMaxBlobSize);
+  }
+
+
+  /**
+   * @return cached content of the file in the specified revision or null if it is not cached
+   */
+  @Nullable
+  byte[] getContent(@NotNull GitVcsRoot root, @NotNull String revision, @NotNull String path) {
+    if (myMaxSize <= 0)
+      return null;
+    ObjectId blobId = myBlobIds.get(new FileKey(root, revision, path));
+    if (blobId == null)
+      return null;
+    byte[] content = myContents.get(new ContentKey(blobId, root.isAutoCrlf()));
+    return content != null ? content.clone() : null;
+  }
+
+
+  /**
+   * Caches content of the file loaded from the specified blob, the content is
+   * not cached if it is too large
+   */
+  void putContent(@NotNull GitVcsRoot root,
+                  @NotNull String revision,
+                  @NotNull String path,
+                  @NotNull AnyObjectId blobId,
+                  @NotNull byte[] content) {
+    if (content.length > myMaxBlobSize)
+      return;
+    ObjectId id = blobId.copy();
+    myBlobIds.put(new FileKey(root, revision, path), id);
+    myContents.put(new ContentKey(id, root.isAutoCrlf()), content.clone());
+  }
+
+
+  private static final class FileKey {
+    private final String myUrl;
+    private final String myRevision;
+    private final String myPath;
+    private final boolean myCheckoutSubmodules;
+
+    private FileKey(@NotNull GitVcsRoot root, @NotNull String revision, @NotNull String path) {
+      myUrl = root.getRepositoryFetchURL().toString();
+      myRevision = revision;
+      myPath = path;
+      myCheckoutSubmodules = root.isCheckoutSubmodules();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o)
+        return true;
+      if (o == null || getClass() != o.getClass())
+        return false;
+      FileKey key = (FileKey) o;
+      return myCheckoutSubmodules == key.myCheckoutSubmodules &&
+             myUrl.equals(key.myUrl) &&
+             myRevision.equals(key.myRevision) &&
+             myPath.equals(key.myPath);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = myUrl.hashCode();
+      result = 31 * result + myRevision.hashCode();
+      result = 31 * result + myPath.hashCode();
+      result = 31 * result + (myCheckoutSubmodules ? 1 : 0);
+      return result;
+    }
+  }
+
+
+  private static final class ContentKey {
+    private final ObjectId myBlobId;
+    private final boolean myAutoCrlf;
+
+    private ContentKey(@NotNull ObjectId blobId, boolean autoCrlf) {
+      myBlobId = blobId;
+      myAutoCrlf = autoCrlf;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o)
+        return true;
+      if (o == null || getClass() != o.getClass())
+        return false;
+      ContentKey key = (ContentKey) o;
+      return myAutoCrlf == key.myAutoCrlf && myBlobId.equals(key.myBlobId);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * myBlobId.hashCode() + (myAutoCrlf ? 1 : 0);
+    }
+  }
+}
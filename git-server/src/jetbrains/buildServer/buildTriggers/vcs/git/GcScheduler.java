@@ -0,0 +1,312 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Decides in which order repositories are garbage collected and runs gc
+ * in several repositories concurrently.
+ *
+ * <p>Repositories are ranked by the estimated benefit of gc: the more packs
+ * and loose objects relative to the git gc --auto limits, the higher the
+ * rank. The rank is increased for repositories which are fetched often,
+ * which are big, and which were not collected for a long time. Fetch frequency
+ * is estimated by the number of packs created since the previous cleanup.
+ *
+ * <p>Gc runs in at most {@link ServerPluginConfig#getGcThreadCount()} repositories
+ * at once, a repository is not started while the packs of repositories being
+ * collected exceed {@link ServerPluginConfig#getGcConcurrentPackBytesLimit()}
+ * or the free disk space. Repositories are started in the order of their rank.
+ *
+ * <p>The time of the last gc and the data used to estimate fetch frequency are
+ * persisted in the mirrors dir, so the ranking survives server restarts.
+ */
+final class GcScheduler {
+
+  private static final Logger LOG = Loggers.CLEANUP;
+
+  private static final byte[] MAGIC = {'T', 'C', 'G', 'C'};
+  private static final byte FORMAT_VERSION = 1;
+  private static final String FILE_NAME = "gc-state";
+  private static final long BYTES_PER_GB = 1024L * 1024 * 1024;
+  private static final double MAX_DAYS_SINCE_GC = 365;
+
+  private final ServerPluginConfig myConfig;
+  private final File myStateFile;
+  private final Map<String, State> myStates = new HashMap<>();
+
+  private final Object myLock = new Object();
+  private int myRunning;
+  private long myRunningPackBytes;
+
+  GcScheduler(@NotNull ServerPluginConfig config, @NotNull File baseMirrorsDir) {
+    myConfig = config;
+    myStateFile = new File(baseMirrorsDir, FILE_NAME);
+    readState();
+  }
+
+
+  /**
+   * Reads stats of the specified repositories
+   * @param gitDirs repositories to rank, state of other repositories is forgotten
+   * @return repositories from the one which benefits from gc most to the one which benefits least
+   */
+  @NotNull
+  List<Candidate> rank(@NotNull List<File> gitDirs) {
+    long now = System.currentTimeMillis();
+    Set<String> names = new HashSet<>();
+    List<Candidate> result = new ArrayList<>();
+    for (File gitDir : gitDirs) {
+      names.add(gitDir.getName());
+      GcStats stats;
+      try {
+        stats = GcStats.read(gitDir);
+      } catch (IOException e) {
+        LOG.warnAndDebugDetails("Error while reading garbage collection stats in " + gitDir.getAbsolutePath(), e);
+        continue;
+      }
+      synchronized (myStates) {
+        State state = myStates.computeIfAbsent(gitDir.getName(), name -> new State());
+        state.update(stats.getPackCount(), now);
+        result.add(new Candidate(gitDir, stats, score(stats, state, now)));
+      }
+    }
+    synchronized (myStates) {
+      myStates.keySet().retainAll(names);
+    }
+    result.sort((c1, c2) -> Double.compare(c2.myScore, c1.myScore));
+    return result;
+  }
+
+
+  /**
+   * Runs gc in the specified repositories. Returns once all started gcs are finished.
+   * @param candidates repositories in the order they should be collected
+   * @param deadlineNanos no gc is started after this time
+   * @param freeDiskSpace free disk space, null if unknown
+   * @param gc runs gc in the repository, returns true if gc was performed
+   * @return number of repositories gc was started in
+   */
+  int run(@NotNull List<Candidate> candidates,
+          long deadlineNanos,
+          @Nullable Long freeDiskSpace,
+          @NotNull Predicate<File> gc) {
+    int threads = Math.max(1, myConfig.getGcThreadCount());
+    long packBytesLimit = myConfig.getGcConcurrentPackBytesLimit();
+    if (freeDiskSpace != null)
+      packBytesLimit = Math.min(packBytesLimit, freeDiskSpace);
+    ExecutorService executor = Executors.newFixedThreadPool(threads, new NamedDaemonThreadFactory("Git gc"));
+    int started = 0;
+    try {
+      for (Candidate candidate : candidates) {
+        if (System.nanoTime() > deadlineNanos)
+          break;
+        reserve(candidate, threads, packBytesLimit);
+        started++;
+        executor.submit(() -> {
+          try {
+            if (gc.test(candidate.myGitDir))
+              gcFinished(candidate);
+          } catch (Throwable e) {
+            LOG.warnAndDebugDetails("Error while running garbage collection in " + candidate.myGitDir.getAbsolutePath(), e);
+          } finally {
+            release(candidate);
+          }
+        });
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdown();
+      try {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      writeState();
+    }
+    return started;
+  }
+
+
+  private void reserve(@NotNull Candidate candidate, int threads, long packBytesLimit) throws InterruptedException {
+    long packBytes = candidate.myStats.getPackBytes();
+    synchronized (myLock) {
+      while (myRunning >= threads || myRunning > 0 && myRunningPackBytes + packBytes > packBytesLimit) {
+        myLock.wait();
+      }
+      myRunning++;
+      myRunningPackBytes += packBytes;
+    }
+  }
+
+
+  private void release(@NotNull Candidate candidate) {
+    synchronized (myLock) {
+      myRunning--;
+      myRunningPackBytes -= candidate.myStats.getPackBytes();
+      myLock.notifyAll();
+    }
+  }
+
+
+  private void gcFinished(@NotNull Candidate candidate) {
+    synchronized (myStates) {
+      State state = myStates.get(candidate.myGitDir.getName());
+      if (state != null)
+        state.gcFinished(System.currentTimeMillis());
+    }
+  }
+
+
+  /**
+   * Score is proportional to fragmentation, other characteristics only increase
+   * it logarithmically, so a repository gc is not needed in is never preferred
+   * over one which needs it.
+   */
+  private static double score(@NotNull GcStats stats, @NotNull State state, long now) {
+    double daysSinceGc = state.myLastGcMillis > 0 ? (double) (now - state.myLastGcMillis) / TimeUnit.DAYS.toMillis(1) : MAX_DAYS_SINCE_GC;
+    daysSinceGc = Math.max(0, Math.min(MAX_DAYS_SINCE_GC, daysSinceGc));
+    return stats.getFragmentation()
+           * (1 + Math.log1p(state.myFetchesPerDay))
+           * (1 + Math.log1p((double) stats.getPackBytes() / BYTES_PER_GB))
+           * (1 + Math.log1p(daysSinceGc) / 10);
+  }
+
+
+  private void readState() {
+    if (!myStateFile.isFile())
+      return;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(myStateFile)))) {
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC) || in.readByte() != FORMAT_VERSION)
+        throw new IOException("Unsupported gc state format");
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String name = in.readUTF();
+        State state = new State();
+        state.myLastGcMillis = in.readLong();
+        state.myLastCheckMillis = in.readLong();
+        state.myLastPackCount = in.readInt();
+        state.myFetchesPerDay = in.readDouble();
+        myStates.put(name, state);
+      }
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Error while reading git gc state from " + myStateFile.getAbsolutePath() + ", repositories will be ranked without it", e);
+      myStates.clear();
+      FileUtil.delete(myStateFile);
+    }
+  }
+
+
+  private void writeState() {
+    File tmp = new File(myStateFile.getParentFile(), myStateFile.getName() + ".tmp");
+    try {
+      synchronized (myStates) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+          out.write(MAGIC);
+          out.writeByte(FORMAT_VERSION);
+          out.writeInt(myStates.size());
+          for (Map.Entry<String, State> e : myStates.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeLong(e.getValue().myLastGcMillis);
+            out.writeLong(e.getValue().myLastCheckMillis);
+            out.writeInt(e.getValue().myLastPackCount);
+            out.writeDouble(e.getValue().myFetchesPerDay);
+          }
+        }
+      }
+      FileUtil.delete(myStateFile);
+      if (!tmp.renameTo(myStateFile))
+        throw new IOException("Cannot rename " + tmp.getAbsolutePath() + " to " + myStateFile.getAbsolutePath());
+    } catch (IOException e) {
+      FileUtil.delete(tmp);
+      LOG.warnAndDebugDetails("Error while writing git gc state to " + myStateFile.getAbsolutePath(), e);
+    }
+  }
+
+
+  static final class Candidate {
+    private final File myGitDir;
+    private final GcStats myStats;
+    private final double myScore;
+
+    private Candidate(@NotNull File gitDir, @NotNull GcStats stats, double score) {
+      myGitDir = gitDir;
+      myStats = stats;
+      myScore = score;
+    }
+
+    @NotNull
+    File getGitDir() {
+      return myGitDir;
+    }
+
+    @NotNull
+    GcStats getStats() {
+      return myStats;
+    }
+
+    @Override
+    public String toString() {
+      return "[" + myGitDir.getName() + "] " + myStats + ", score: " + String.format("%.2f", myScore);
+    }
+  }
+
+
+  private static final class State {
+    private long myLastGcMillis;
+    private long myLastCheckMillis;
+    //number of packs seen during the last check, -1 if unknown
+    private int myLastPackCount = -1;
+    private double myFetchesPerDay;
+
+    /**
+     * Every fetch creates a new pack, so the number of packs created since the last check
+     * estimates the number of fetches
+     */
+    private void update(int packCount, long now) {
+      if (myLastPackCount >= 0 && packCount >= myLastPackCount && now > myLastCheckMillis) {
+        double days = (double) (now - myLastCheckMillis) / TimeUnit.DAYS.toMillis(1);
+        myFetchesPerDay = (packCount - myLastPackCount) / days;
+      }
+      myLastPackCount = packCount;
+      myLastCheckMillis = now;
+    }
+
+    private void gcFinished(long now) {
+      myLastGcMillis = now;
+      //repack changes the number of packs, next check cannot compute the number of fetches
+      myLastPackCount = -1;
+    }
+  }
+}
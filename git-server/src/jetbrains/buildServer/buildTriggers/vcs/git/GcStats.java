@@ -0,0 +1,152 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.PackFile;
+import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+/**
+ * Repository characteristics which determine whether garbage collection is needed
+ * and how much it would help.
+ */
+final class GcStats {
+
+  private static final Pattern PATTERN_LOOSE_OBJECT = Pattern.compile("[0-9a-fA-F]{38}");
+  private static final int LOOSE_OBJECT_BUCKETS = 256;
+
+  private final int myPackCount;
+  private final int myPackLimit;
+  private final int myLooseObjectsInBucket;
+  private final int myLooseObjectsLimit;
+  private final long myPackBytes;
+
+  private GcStats(int packCount, int packLimit, int looseObjectsInBucket, int looseObjectsLimit, long packBytes) {
+    myPackCount = packCount;
+    myPackLimit = packLimit;
+    myLooseObjectsInBucket = looseObjectsInBucket;
+    myLooseObjectsLimit = looseObjectsLimit;
+    myPackBytes = packBytes;
+  }
+
+
+  @NotNull
+  static GcStats read(@NotNull File gitDir) throws IOException {
+    FileRepository db = (FileRepository) new RepositoryBuilder().setBare().setGitDir(gitDir).build();
+    try {
+      int packCount = 0;
+      long packBytes = 0;
+      for (PackFile packFile : db.getObjectDatabase().getPacks()) {
+        if (!packFile.shouldBeKept())
+          packCount++;
+        packBytes += packFile.getPackFile().length();
+      }
+      return new GcStats(packCount,
+                         db.getConfig().getInt("gc", "autopacklimit", 50),
+                         countLooseObjectsInBucket(db),
+                         db.getConfig().getInt("gc", "auto", 6700),
+                         packBytes);
+    } finally {
+      db.close();
+    }
+  }
+
+
+  /**
+   * Implements logic from git gc --auto, jgit version we use doesn't have it yet
+   * and native git doesn't provide a dedicated command for that
+   */
+  boolean isGcNeeded() {
+    return tooManyPacks() || tooManyLooseObjects();
+  }
+
+
+  /**
+   * @return how far the repository is from the state when git gc --auto runs
+   * a gc: 1 or more means gc is needed
+   */
+  double getFragmentation() {
+    double result = 0;
+    if (myPackLimit > 0)
+      result += (double) myPackCount / myPackLimit;
+    if (myLooseObjectsLimit > 0)
+      result += (double) getLooseObjectCount() / myLooseObjectsLimit;
+    return result;
+  }
+
+
+  int getPackCount() {
+    return myPackCount;
+  }
+
+
+  long getPackBytes() {
+    return myPackBytes;
+  }
+
+
+  /**
+   * @return estimated number of loose objects
+   */
+  long getLooseObjectCount() {
+    return (long) myLooseObjectsInBucket * LOOSE_OBJECT_BUCKETS;
+  }
+
+
+  private boolean tooManyPacks() {
+    return myPackLimit > 0 && myPackCount > myPackLimit;
+  }
+
+
+  private boolean tooManyLooseObjects() {
+    if (myLooseObjectsLimit <= 0)
+      return false;
+    int bucketLimit = (myLooseObjectsLimit + LOOSE_OBJECT_BUCKETS - 1) / LOOSE_OBJECT_BUCKETS;
+    return myLooseObjectsInBucket > bucketLimit;
+  }
+
+
+  /**
+   * SHA is evenly distributed, we can estimate number of loose objects by counting them in a single bucket (from jgit internals)
+   */
+  private static int countLooseObjectsInBucket(@NotNull FileRepository db) {
+    File bucket = new File(db.getObjectsDirectory(), "17");
+    if (!bucket.isDirectory())
+      return 0;
+    String[] files = bucket.list();
+    if (files == null)
+      return 0;
+    int count = 0;
+    for (String fileName : files) {
+      if (PATTERN_LOOSE_OBJECT.matcher(fileName).matches())
+        count++;
+    }
+    return count;
+  }
+
+
+  @Override
+  public String toString() {
+    return "packs: " + myPackCount + ", pack size: " + myPackBytes + " bytes, estimated loose objects: " + getLooseObjectCount();
+  }
+}
@@ -30,6 +30,7 @@ import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.RefSpec;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.util.*;
@@ -45,17 +46,20 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRepositorie
   private final CommitLoader myCommitLoader;
   private final ServerPluginConfig myConfig;
   private final RepositoryManager myRepositoryManager;
+  private final RepositoryCaches<ChangedPathsCache> myChangedPaths;
 
   public GitCollectChangesPolicy(@NotNull GitVcsSupport vcs,
                                  @NotNull VcsOperationProgressProvider progressProvider,
                                  @NotNull CommitLoader commitLoader,
                                  @NotNull ServerPluginConfig config,
-                                 @NotNull RepositoryManager repositoryManager) {
+                                 @NotNull RepositoryManager repositoryManager,
+                                 @NotNull RepositoryCaches<ChangedPathsCache> changedPaths) {
     myVcs = vcs;
     myProgressProvider = progressProvider;
     myCommitLoader = commitLoader;
     myConfig = config;
     myRepositoryManager = repositoryManager;
+    myChangedPaths = changedPaths;
   }
 
 
@@ -79,14 +83,12 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRepositorie
       List<ModificationData> changes = new ArrayList<ModificationData>();
       try {
         Repository r = context.getRepository();
-        ModificationDataRevWalk revWalk = new ModificationDataRevWalk(myConfig, context);
+        ModificationDataRevWalk revWalk = new ModificationDataRevWalk(myConfig, context, getChangedPathsCache(gitRoot));
         revWalk.sort(RevSort.TOPO);
         ensureRepositoryStateLoadedFor(context, r, true, toState, fromState);
         markStart(r, revWalk, toState);
         markUninteresting(r, revWalk, fromState, toState);
-        while (revWalk.next() != null) {
-          changes.add(revWalk.createModificationData());
-        }
+        changes.addAll(revWalk.createModificationDataForAllCommits());
       } catch (Exception e) {
         if (e instanceof SubmoduleException) {
           SubmoduleException se = (SubmoduleException) e;
@@ -102,6 +104,15 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRepositorie
   }
 
 
+  @Nullable
+  private ChangedPathsCache getChangedPathsCache(@NotNull GitVcsRoot gitRoot) {
+    int cacheSize = myConfig.getChangedPathsCacheSize();
+    if (cacheSize <= 0 || gitRoot.isCheckoutSubmodules())
+      return null;
+    return myChangedPaths.get(gitRoot.getRepositoryDir(), dir -> ChangedPathsCache.read(myConfig, dir, cacheSize));
+  }
+
+
   @NotNull
   private Set<String> getBranchesWithCommit(@NotNull Repository r, @NotNull RepositoryStateData state, @NotNull String commit) {
     return Collections.emptySet();
@@ -163,7 +163,9 @@ public class GitCommitSupport implements CommitSupport, GitServerExtension {
 
         ObjectId commitId = createCommit(gitRoot, lastCommit, treeId, commitSettings.getUserName(), nonEmptyMessage(commitSettings));
 
-        synchronized (myRepositoryManager.getWriteLock(gitRoot.getRepositoryDir())) {
+        Lock writeLock = myRepositoryManager.getWriteLock(gitRoot.getRepositoryDir());
+        writeLock.lock();
+        try {
           final Transport tn = myTransportFactory.createTransport(myDb, gitRoot.getRepositoryPushURL(), gitRoot.getAuthSettings(),
                                                                   myPluginConfig.getPushTimeoutSeconds());
           try {
@@ -187,7 +189,10 @@ public class GitCommitSupport implements CommitSupport, GitServerExtension {
             throw e;
           } finally {
             tn.close();
+            myVcs.invalidateRemoteRefs(gitRoot);
           }
+        } finally {
+          writeLock.unlock();
         }
       } catch (Exception e) {
         throw myContext.wrapException(e);
@@ -282,7 +287,7 @@ public class GitCommitSupport implements CommitSupport, GitServerExtension {
 
     @NotNull
     private RevCommit getLastCommit(@NotNull GitVcsRoot gitRoot) throws VcsException, IOException {
-      Map<String, Ref> refs = myVcs.getRemoteRefs(gitRoot.getOriginalRoot());
+      Map<String, Ref> refs = myVcs.getFreshRemoteRefs(gitRoot.getOriginalRoot());
       Ref ref = refs.get(GitUtils.expandRef(gitRoot.getRef()));
       if (!refs.isEmpty() && ref == null)
         throw new VcsException("The '" + gitRoot.getRef() + "' destination branch doesn't exist");
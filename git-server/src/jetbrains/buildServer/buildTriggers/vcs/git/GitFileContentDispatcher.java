@@ -25,15 +25,18 @@ public class GitFileContentDispatcher implements VcsFileContentProvider {
   private final GitVcsSupport myVcs;
   private final CommitLoader myCommitLoader;
   private final ServerPluginConfig myConfig;
+  private final FileContentCache myCache;
 
   private VcsFileContentProvider myImplementation;
 
   public GitFileContentDispatcher(@NotNull GitVcsSupport vcs,
                                   @NotNull CommitLoader commitLoader,
-                                  @NotNull ServerPluginConfig config) {
+                                  @NotNull ServerPluginConfig config,
+                                  @NotNull FileContentCache cache) {
     myVcs = vcs;
     myCommitLoader = commitLoader;
     myConfig = config;
+    myCache = cache;
   }
 
   @NotNull
@@ -57,7 +60,7 @@ public class GitFileContentDispatcher implements VcsFileContentProvider {
 
   private VcsFileContentProvider getContentProvider(@NotNull VcsRoot root) {
     OperationContext ctx = myVcs.createContext(root, "file content dispatch");
-    GitVcsFileContentProvider genericProvider = new GitVcsFileContentProvider(myVcs, myCommitLoader, myConfig);
+    GitVcsFileContentProvider genericProvider = new GitVcsFileContentProvider(myVcs, myCommitLoader, myConfig, myCache);
     try {
       if (GitServerUtil.isCloned(ctx.getRepository()))
         return genericProvider;
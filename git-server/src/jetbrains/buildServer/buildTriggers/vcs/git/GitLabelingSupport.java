@@ -148,6 +148,7 @@ public class GitLabelingSupport implements LabelingSupport {
       if (c != null)
         c.close();
       tn.close();
+      myVcs.invalidateRemoteRefs(gitRoot);
     }
   }
 
@@ -20,9 +20,9 @@ import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.vcs.*;
 import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.treewalk.TreeWalk;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -39,66 +39,74 @@ public class GitListFilesSupport implements ListDirectChildrenPolicy {
   private final GitVcsSupport myVcs;
   private final CommitLoader myCommitLoader;
   private final ServerPluginConfig myConfig;
+  private final TreeIndex myTreeIndex;
   private String myCurrentRevision;
   private long myLastSyncTime = -1;
 
   public GitListFilesSupport(@NotNull GitVcsSupport vcs,
                              @NotNull CommitLoader commitLoader,
-                             @NotNull ServerPluginConfig config) {
+                             @NotNull ServerPluginConfig config,
+                             @NotNull TreeIndex treeIndex) {
     myVcs = vcs;
     myCommitLoader = commitLoader;
     myConfig = config;
+    myTreeIndex = treeIndex;
   }
 
   @NotNull
   public Collection<VcsFileData> listFiles(@NotNull VcsRoot root, @NotNull String path) throws VcsException {
     String currentVersion = getRevision(root);
     OperationContext context = myVcs.createContext(root, "list files");
-    ListFilesTreeWalk walk = null;
+    ObjectReader reader = null;
     try {
-      walk = getTreeWalk(context, path, currentVersion);
+      Repository r = context.getRepository();
+      RevCommit commit = myCommitLoader.loadCommit(context, context.getGitRoot(), currentVersion);
+      reader = r.newObjectReader();
+      TreeIndex.Tree tree = findTree(reader, commit.getTree(), path);
       List<VcsFileData> files = new ArrayList<VcsFileData>();
-      while (walk.next()) {
-        files.add(walk.getVcsFile());
+      if (tree != null) {
+        for (TreeIndex.Entry entry : tree.getEntries()) {
+          files.add(getVcsFile(entry));
+        }
       }
       return files;
-    } catch (VcsFileNotFoundException e) {
+    } catch (VcsException e) {
       throw e;
     } catch (Exception e) {
       throw new VcsException(e);
     } finally {
-      if (walk != null)
-        walk.release();
+      if (reader != null)
+        reader.release();
       context.close();
     }
   }
 
-  @NotNull
-  private ListFilesTreeWalk getTreeWalk(@NotNull OperationContext context, @NotNull String path, @NotNull String revision) throws Exception {
-    Repository r = context.getRepository();
-    RevCommit commit = myCommitLoader.loadCommit(context, context.getGitRoot(), revision);
-    ListFilesTreeWalk walk;
-    if (isRootPath(path)) {
-      walk = new ListFilesTreeWalk(r);
-      walk.addTree(commit.getTree());
-    } else {
-      TreeWalk walk1 = null;
-      try {
-        walk1 = TreeWalk.forPath(r, path, commit.getTree());
-        if (walk1 == null)
-          throw new VcsFileNotFoundException("Cannot find path " + path);
-        if (walk1.getFileMode(0) == FileMode.GITLINK) //show submodules as empty dirs
-          return new EmptyTreeWalk(r);
-        ObjectId tree = walk1.getObjectId(0);
-        walk = new ListFilesTreeWalk(r);
-        walk.addTree(tree);
-      } finally {
-        if (walk1 != null)
-          walk1.release();
-      }
+  /**
+   * Finds the tree of the directory by looking up path components in the cached parent trees
+   * @return tree of the directory or null if the path points to a submodule
+   */
+  @Nullable
+  private TreeIndex.Tree findTree(@NotNull ObjectReader reader, @NotNull ObjectId rootTree, @NotNull String path) throws IOException, VcsException {
+    TreeIndex.Tree tree = myTreeIndex.getTree(reader, rootTree);
+    if (isRootPath(path))
+      return tree;
+    List<String> names = new ArrayList<String>();
+    for (String name : path.split("/")) {
+      if (!name.isEmpty())
+        names.add(name);
     }
-    walk.setRecursive(false);
-    return walk;
+    for (int i = 0; i < names.size(); i++) {
+      TreeIndex.Entry entry = tree.getEntry(names.get(i));
+      boolean last = i == names.size() - 1;
+      if (entry == null || !last && entry.getMode() != FileMode.TREE)
+        throw new VcsFileNotFoundException("Cannot find path " + path);
+      if (entry.getMode() == FileMode.GITLINK) //show submodules as empty dirs
+        return null;
+      if (entry.getMode() != FileMode.TREE)
+        throw new VcsException("Path " + path + " is not a directory");
+      tree = myTreeIndex.getTree(reader, entry.getObjectId());
+    }
+    return tree;
   }
 
   @NotNull
@@ -121,37 +129,18 @@ public class GitListFilesSupport implements ListDirectChildrenPolicy {
     return StringUtil.isEmpty(path);
   }
 
-  private static class ListFilesTreeWalk extends TreeWalk {
-
-    ListFilesTreeWalk(Repository r) {
-      super(r);
-    }
-
-    @NotNull
-    VcsFileData getVcsFile() {
-      String name = getNameString();
-      FileMode mode = getFileMode(0);
-      if (mode == FileMode.MISSING)
-        throw new IllegalStateException("Missing file " + name);
-      if (mode == FileMode.TREE)
-        return new VcsFileData(name, true);
-      if (mode == FileMode.GITLINK)
-        return new VcsFileData(name, true);
-      if (mode == FileMode.REGULAR_FILE || mode == FileMode.EXECUTABLE_FILE || mode == FileMode.SYMLINK)
-        return new VcsFileData(name, false);
-      throw new IllegalStateException("Unknown file mode: " + mode + ", path " + name);
-    }
-  }
-
-  private static class EmptyTreeWalk extends ListFilesTreeWalk {
-
-    private EmptyTreeWalk(Repository repo) {
-      super(repo);
-    }
-
-    @Override
-    public boolean next() throws IOException {
-      return false;
-    }
+  @NotNull
+  private static VcsFileData getVcsFile(@NotNull TreeIndex.Entry entry) {
+    String name = entry.getName();
+    FileMode mode = entry.getMode();
+    if (mode == FileMode.MISSING)
+      throw new IllegalStateException("Missing file " + name);
+    if (mode == FileMode.TREE)
+      return new VcsFileData(name, true);
+    if (mode == FileMode.GITLINK)
+      return new VcsFileData(name, true);
+    if (mode == FileMode.REGULAR_FILE || mode == FileMode.EXECUTABLE_FILE || mode == FileMode.SYMLINK)
+      return new VcsFileData(name, false);
+    throw new IllegalStateException("Unknown file mode: " + mode + ", path " + name);
   }
 }
@@ -34,6 +34,7 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
 
 import static java.util.Arrays.asList;
 
@@ -159,7 +160,9 @@ public class GitMergeSupport implements MergeSupport, GitServerExtension {
       return MergeResult.createMergeError(e.getConflicts());
     }
 
-    synchronized (myRepositoryManager.getWriteLock(gitRoot.getRepositoryDir())) {
+    Lock writeLock = myRepositoryManager.getWriteLock(gitRoot.getRepositoryDir());
+    writeLock.lock();
+    try {
       final Transport tn = myTransportFactory.createTransport(db, gitRoot.getRepositoryPushURL(), gitRoot.getAuthSettings(),
                                                               myPluginConfig.getPushTimeoutSeconds());
       try {
@@ -177,7 +180,10 @@ public class GitMergeSupport implements MergeSupport, GitServerExtension {
         throw e;
       } finally {
         tn.close();
+        myVcs.invalidateRemoteRefs(gitRoot);
       }
+    } finally {
+      writeLock.unlock();
     }
   }
 
@@ -93,6 +93,7 @@ public class GitResetCacheHandler implements ResetCacheHandler {
   private void resetMirror(@NotNull File mirror, @NotNull String url) {
     LOG.debug("Delete of the repository " + url + " (" + mirror.getAbsolutePath() + ")");
     delete(mirror);
+    myRepositoryManager.repositoryRemoved(mirror);
     myGcErrors.clearError(mirror);
   }
 }
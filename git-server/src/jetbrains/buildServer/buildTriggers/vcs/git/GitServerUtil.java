@@ -423,6 +423,11 @@ public class GitServerUtil {
   public static void configureExternalProcessLogger(boolean debugEnabled) {
     org.apache.log4j.Logger.getRootLogger().addAppender(new ConsoleAppender(new PatternLayout("[%d] %6p - %30.30c - %m %n")));
     org.apache.log4j.Logger.getRootLogger().setLevel(Level.INFO);
+    setExternalProcessLogLevel(debugEnabled);
+  }
+
+
+  public static void setExternalProcessLogLevel(boolean debugEnabled) {
     org.apache.log4j.Logger.getLogger("org.eclipse.jgit").setLevel(debugEnabled ? Level.DEBUG : Level.OFF);
     org.apache.log4j.Logger.getLogger("jetbrains.buildServer.buildTriggers.vcs.git").setLevel(debugEnabled ? Level.DEBUG : Level.INFO);
   }
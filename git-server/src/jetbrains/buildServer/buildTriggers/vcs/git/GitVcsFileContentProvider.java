@@ -44,13 +44,16 @@ public class GitVcsFileContentProvider extends GitAbstractVcsFileContentProvider
 
   private final CommitLoader myCommitLoader;
   private final ServerPluginConfig myConfig;
+  private final FileContentCache myCache;
 
   public GitVcsFileContentProvider(@NotNull GitVcsSupport vcs,
                                    @NotNull CommitLoader commitLoader,
-                                   @NotNull ServerPluginConfig config) {
+                                   @NotNull ServerPluginConfig config,
+                                   @NotNull FileContentCache cache) {
     super(vcs);
     myCommitLoader = commitLoader;
     myConfig = config;
+    myCache = cache;
   }
 
   @NotNull
@@ -58,12 +61,18 @@ public class GitVcsFileContentProvider extends GitAbstractVcsFileContentProvider
     OperationContext context = myVcs.createContext(root, "retrieving content, file: '" + filePath + "', version: '" + version +"'");
     try {
       final long start = System.currentTimeMillis();
+      final GitVcsRoot gitRoot = context.getGitRoot();
+      final String rev = GitUtils.versionRevision(version);
+      final byte[] cached = myCache.getContent(gitRoot, rev, filePath);
+      if (cached != null) {
+        logCachedFileContent(gitRoot, version, filePath);
+        logPerformance(gitRoot, filePath, start);
+        return cached;
+      }
       Repository r = context.getRepository();
       final TreeWalk tw = new TreeWalk(r);
-      final GitVcsRoot gitRoot = context.getGitRoot();
       try {
         logStartProcessingFile(gitRoot, version, filePath);
-        final String rev = GitUtils.versionRevision(version);
         RevCommit c = myCommitLoader.loadCommit(context, gitRoot, rev);
         tw.setFilter(PathFilterGroup.createFromStrings(Collections.singleton(filePath)));
         tw.setRecursive(tw.getFilter().shouldBeRecursive());
@@ -73,6 +82,7 @@ public class GitVcsFileContentProvider extends GitAbstractVcsFileContentProvider
         }
         final byte[] data = loadObject(gitRoot, r, tw, 0);
         logFileContentLoaded(gitRoot, version, filePath, tw);
+        myCache.putContent(gitRoot, rev, filePath, tw.getObjectId(0), data);
         return data;
       } finally {
         logPerformance(gitRoot, filePath, start);
@@ -97,6 +107,12 @@ public class GitVcsFileContentProvider extends GitAbstractVcsFileContentProvider
     }
   }
 
+  private void logCachedFileContent(@NotNull GitVcsRoot root, @NotNull String version, @NotNull String filePath) {
+    if (LOG.isDebugEnabled() && myConfig.verboseGetContentLog()) {
+      LOG.debug("File content found in cache " + version + ":" + filePath + " for " + root.debugInfo());
+    }
+  }
+
   private void logPerformance(@NotNull GitVcsRoot gitRoot, @NotNull String filePath, long start) {
     final long finish = System.currentTimeMillis();
     if (PERFORMANCE_LOG.isDebugEnabled()) {
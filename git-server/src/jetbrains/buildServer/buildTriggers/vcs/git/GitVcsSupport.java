@@ -22,6 +22,7 @@ import jetbrains.buildServer.ExtensionHolder;
 import jetbrains.buildServer.buildTriggers.vcs.git.patch.GitPatchBuilderDispatcher;
 import jetbrains.buildServer.serverSide.PropertiesProcessor;
 import jetbrains.buildServer.ssh.VcsRootSshKeyManager;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
 import jetbrains.buildServer.util.cache.ResetCacheRegister;
 import jetbrains.buildServer.vcs.*;
 import jetbrains.buildServer.vcs.patches.PatchBuilder;
@@ -39,6 +40,7 @@ import org.jetbrains.annotations.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.stream.Collectors;
 
 import static jetbrains.buildServer.buildTriggers.vcs.git.GitServerUtil.friendlyNotSupportedException;
@@ -68,6 +70,12 @@ public class GitVcsSupport extends ServerVcsSupport
   private final CommitLoader myCommitLoader;
   private final VcsRootSshKeyManager mySshKeyManager;
   private final VcsOperationProgressProvider myProgressProvider;
+  private final ExecutorService myCheckSuitableExecutor;
+  private final RemoteRefsCache myRemoteRefsCache;
+  private final FileContentCache myFileContentCache;
+  private final TreeIndex myTreeIndex;
+  //repository dir -> paths changed by commits of the repository
+  private final RepositoryCaches<ChangedPathsCache> myChangedPaths;
   private Collection<GitServerExtension> myExtensions = new ArrayList<GitServerExtension>();
 
   public GitVcsSupport(@NotNull ServerPluginConfig config,
@@ -87,6 +95,11 @@ public class GitVcsSupport extends ServerVcsSupport
     myCommitLoader = commitLoader;
     mySshKeyManager = sshKeyManager;
     myProgressProvider = progressProvider;
+    myCheckSuitableExecutor = createCheckSuitableExecutor(config);
+    myRemoteRefsCache = new RemoteRefsCache(config);
+    myFileContentCache = new FileContentCache(config);
+    myTreeIndex = new TreeIndex(config.getListFilesTreeCacheSize());
+    myChangedPaths = new RepositoryCaches<>(repositoryManager, ChangedPathsCache::reset);
     setStreamFileThreshold();
     resetCacheManager.registerHandler(resetCacheHandler);
     resetCacheManager.registerHandler(resetRevisionsCacheHandler);
@@ -104,6 +117,22 @@ public class GitVcsSupport extends ServerVcsSupport
     myExtensions.add(extension);
   }
 
+  /**
+   * Stops threads started by the vcs support, called on server shutdown
+   */
+  public void dispose() {
+    myCheckSuitableExecutor.shutdownNow();
+  }
+
+  @NotNull
+  private static ExecutorService createCheckSuitableExecutor(@NotNull ServerPluginConfig config) {
+    int threads = Math.max(1, config.getCheckSuitableThreadCount());
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                                         new LinkedBlockingQueue<>(), new NamedDaemonThreadFactory("Git checkSuitable"));
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
   private void setStreamFileThreshold() {
     int thresholdBytes = myConfig.getStreamFileThresholdMb() * WindowCacheConfig.MB;
     if (thresholdBytes <= 0) {
@@ -324,12 +353,12 @@ public class GitVcsSupport extends ServerVcsSupport
 
   @NotNull
   public VcsFileContentProvider getContentProvider() {
-    return new GitFileContentDispatcher(this, myCommitLoader, myConfig);
+    return new GitFileContentDispatcher(this, myCommitLoader, myConfig, myFileContentCache);
   }
 
   @NotNull
   public GitCollectChangesPolicy getCollectChangesPolicy() {
-    return new GitCollectChangesPolicy(this, myProgressProvider, myCommitLoader, myConfig, myRepositoryManager);
+    return new GitCollectChangesPolicy(this, myProgressProvider, myCommitLoader, myConfig, myRepositoryManager, myChangedPaths);
   }
 
   @NotNull
@@ -379,34 +408,44 @@ public class GitVcsSupport extends ServerVcsSupport
 
     //several roots with different settings can be cloned into the same dir,
     //do not compute suitability for given clone dir more than once
-    Map<File, Boolean> cloneDirResults = new HashMap<>();//clone dir -> result for this dir
-    Map<VcsRoot, Boolean> rootResult = new HashMap<>();
+    Map<File, List<VcsRoot>> cloneDirRoots = new LinkedHashMap<>();//clone dir -> roots cloned into this dir
     for (VcsRoot root : uniqueRoots) {
-      OperationContext context = createContext(root, "checkSuitable");
       try {
-        GitVcsRoot gitRoot = context.getGitRoot();
-        File cloneDir = gitRoot.getRepositoryDir();
-        Boolean cloneDirResult = cloneDirResults.get(cloneDir);
-        if (cloneDirResult != null) {
-          rootResult.put(root, cloneDirResult);
-          continue;
-        }
-
-        boolean suitable = myRepositoryManager.runWithDisabledRemove(cloneDir, () -> {
-          for (GitMapFullPath.FullPath path : fullPaths) {
-            if (myMapFullPath.repositoryContainsPath(context, gitRoot, path))
-              return true;
-          }
-          return false;
-        });
-
-        rootResult.put(root, suitable);
-        cloneDirResults.put(gitRoot.getRepositoryDir(), suitable);
+        GitVcsRoot gitRoot = new GitVcsRoot(myRepositoryManager, root);
+        cloneDirRoots.computeIfAbsent(gitRoot.getRepositoryDir(), dir -> new ArrayList<>()).add(root);
       } catch (VcsException e) {
         //will return false for broken VCS root
         LOG.warnAndDebugDetails("Error while checking suitability for root " + LogUtil.describe(root) + ", assume root is not suitable", e);
-      } finally {
-        context.close();
+      }
+    }
+
+    //clone dirs are checked independently, check them concurrently
+    Map<File, Future<Boolean>> cloneDirResults = new HashMap<>();//clone dir -> result for this dir
+    for (Map.Entry<File, List<VcsRoot>> e : cloneDirRoots.entrySet()) {
+      Callable<Boolean> check = () -> checkSuitable(e.getKey(), e.getValue().get(0), fullPaths);
+      if (cloneDirRoots.size() == 1) {
+        cloneDirResults.put(e.getKey(), runInCurrentThread(check));
+      } else {
+        cloneDirResults.put(e.getKey(), myCheckSuitableExecutor.submit(check));
+      }
+    }
+
+    Map<VcsRoot, Boolean> rootResult = new HashMap<>();
+    for (Map.Entry<File, List<VcsRoot>> e : cloneDirRoots.entrySet()) {
+      List<VcsRoot> roots = e.getValue();
+      Boolean suitable = getCheckSuitableResult(cloneDirResults.get(e.getKey()), roots.get(0));
+      if (suitable != null) {
+        for (VcsRoot root : roots) {
+          rootResult.put(root, suitable);
+        }
+      } else {
+        //the first root failed, but other roots with the same clone dir can have
+        //different settings (e.g. credentials), check them one by one
+        for (VcsRoot root : roots.subList(1, roots.size())) {
+          Boolean rootSuitable = getCheckSuitableResult(runInCurrentThread(() -> checkSuitable(e.getKey(), root, fullPaths)), root);
+          if (rootSuitable != null)
+            rootResult.put(root, rootSuitable);
+        }
       }
     }
 
@@ -424,6 +463,53 @@ public class GitVcsSupport extends ServerVcsSupport
   }
 
 
+  @Nullable
+  private Boolean checkSuitable(@NotNull File cloneDir,
+                                @NotNull VcsRoot root,
+                                @NotNull Set<GitMapFullPath.FullPath> fullPaths) {
+    OperationContext context = createContext(root, "checkSuitable");
+    try {
+      GitVcsRoot gitRoot = context.getGitRoot();
+      return myRepositoryManager.runWithDisabledRemove(cloneDir, () -> {
+        for (GitMapFullPath.FullPath path : fullPaths) {
+          if (myMapFullPath.repositoryContainsPath(context, gitRoot, path))
+            return true;
+        }
+        return false;
+      });
+    } catch (VcsException e) {
+      //will return false for broken VCS root
+      LOG.warnAndDebugDetails("Error while checking suitability for root " + LogUtil.describe(root) + ", assume root is not suitable", e);
+      return null;
+    } finally {
+      context.close();
+    }
+  }
+
+
+  @NotNull
+  private static Future<Boolean> runInCurrentThread(@NotNull Callable<Boolean> check) {
+    FutureTask<Boolean> task = new FutureTask<>(check);
+    task.run();
+    return task;
+  }
+
+
+  @Nullable
+  private Boolean getCheckSuitableResult(@NotNull Future<Boolean> result, @NotNull VcsRoot root) {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      result.cancel(false);
+      return null;
+    } catch (ExecutionException e) {
+      LOG.warnAndDebugDetails("Error while checking suitability for root " + LogUtil.describe(root) + ", assume root is not suitable", e.getCause());
+      return null;
+    }
+  }
+
+
   @Override
   public boolean isAgentSideCheckoutAvailable() {
     return true;
@@ -436,8 +522,24 @@ public class GitVcsSupport extends ServerVcsSupport
   }
 
 
+  /**
+   * Returns refs of the remote repository. Refs can be shared with concurrent
+   * requests for the same repository and can be up to
+   * {@link ServerPluginConfig#getRemoteRefsCacheTtlSeconds()} seconds old.
+   */
   @NotNull
   public Map<String, Ref> getRemoteRefs(@NotNull final VcsRoot root) throws VcsException {
+    GitVcsRoot gitRoot = new GitVcsRoot(myRepositoryManager, root);
+    return myRemoteRefsCache.getRemoteRefs(gitRoot, () -> getFreshRemoteRefs(root));
+  }
+
+
+  /**
+   * Returns refs of the remote repository bypassing the cache, should be used when
+   * outdated refs can cause an error, e.g. before a push
+   */
+  @NotNull
+  public Map<String, Ref> getFreshRemoteRefs(@NotNull final VcsRoot root) throws VcsException {
     OperationContext context = createContext(root, "list remote refs");
     GitVcsRoot gitRoot = context.getGitRoot();
     try {
@@ -454,6 +556,14 @@ public class GitVcsSupport extends ServerVcsSupport
   }
 
 
+  /**
+   * Should be called after the remote repository is modified to not report its outdated state
+   */
+  public void invalidateRemoteRefs(@NotNull GitVcsRoot root) {
+    myRemoteRefsCache.invalidate(root);
+  }
+
+
   @NotNull
   private Map<String, Ref> getRemoteRefs(@NotNull Repository db, @NotNull GitVcsRoot gitRoot) throws Exception {
     long retryInterval = myConfig.getConnectionRetryIntervalMillis();
@@ -531,7 +641,7 @@ public class GitVcsSupport extends ServerVcsSupport
 
   @Override
   public ListFilesPolicy getListFilesPolicy() {
-    return new ListFilesDispatcher(this, myCommitLoader, myConfig);
+    return new ListFilesDispatcher(this, myCommitLoader, myConfig, myTreeIndex);
   }
 
   @NotNull
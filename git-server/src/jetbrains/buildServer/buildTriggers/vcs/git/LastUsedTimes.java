@@ -0,0 +1,274 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Last used times of mirrors.
+ *
+ * <p>Times are kept in memory by the mirror dir name and are persisted in the
+ * single 'last-used' file in the base mirrors dir. The file is read once on
+ * creation and is updated in a batch at most once per flush interval. The
+ * server and patch building processes update the same file: a flush re-reads
+ * the file under the 'last-used.lock' file lock and merges times changed
+ * since the previous flush into it. The new file is written to a unique
+ * temporary file and is synced before it replaces the previous one, so after
+ * a crash the file contains times written by one of the previous flushes.
+ *
+ * <p>Times of mirrors not found in the file are read from the per-mirror
+ * 'timestamp' files written by previous versions, see
+ * {@link MirrorManager#getLastUsedTime(File)}. If the file cannot be read,
+ * times of recently used mirrors are lost, such mirrors are considered used
+ * at the moment of reading, see {@link #getMinUnknownTime()}.
+ *
+ * <p>ThreadSafe.
+ */
+final class LastUsedTimes {
+
+  private static final Logger LOG = Logger.getInstance(LastUsedTimes.class.getName());
+
+  private static final byte[] MAGIC = {'T', 'C', 'L', 'U'};
+  private static final byte FORMAT_VERSION = 1;
+  private static final String FILE_NAME = "last-used";
+
+  private final File myFile;
+  private final File myLockFile;
+  private final long myFlushIntervalNanos;
+  private final ConcurrentMap<String, Long> myTimes = new ConcurrentHashMap<>();
+  //names of mirrors whose times were changed or removed since the previous flush
+  private final Set<String> myUpdated = ConcurrentHashMap.newKeySet();
+  private final Set<String> myRemoved = ConcurrentHashMap.newKeySet();
+  private final ReentrantLock myFlushLock = new ReentrantLock();
+  private volatile long myLastFlushNanos;
+  private volatile long myMinUnknownTime;
+
+  LastUsedTimes(@NotNull File baseMirrorsDir, long flushIntervalMinutes) {
+    myFile = new File(baseMirrorsDir, FILE_NAME);
+    myLockFile = new File(baseMirrorsDir, FILE_NAME + ".lock");
+    myFlushIntervalNanos = TimeUnit.MINUTES.toNanos(flushIntervalMinutes);
+    //the first change is persisted right away, short-living processes don't reach the flush interval
+    myLastFlushNanos = System.nanoTime() - myFlushIntervalNanos;
+    Map<String, Long> times = read();
+    if (times != null)
+      myTimes.putAll(times);
+  }
+
+
+  /**
+   * @param dirName mirror dir name
+   * @return last used time of the mirror or null if it is unknown
+   */
+  @Nullable
+  Long get(@NotNull String dirName) {
+    return myTimes.get(dirName);
+  }
+
+
+  /**
+   * @return lower bound for times of mirrors not found in the file, 0 unless the file couldn't be read
+   */
+  long getMinUnknownTime() {
+    return myMinUnknownTime;
+  }
+
+
+  /**
+   * Remembers the last used time of the mirror, doesn't decrease already known time
+   * @param dirName mirror dir name
+   * @param time last used time
+   */
+  void set(@NotNull String dirName, long time) {
+    if (update(dirName, time)) {
+      myRemoved.remove(dirName);
+      myUpdated.add(dirName);
+    }
+  }
+
+
+  /**
+   * Forgets times of mirrors which don't exist anymore
+   * @param dirNames names of existing mirror dirs
+   */
+  void retain(@NotNull Set<String> dirNames) {
+    for (String name : myTimes.keySet()) {
+      if (!dirNames.contains(name)) {
+        myTimes.remove(name);
+        myUpdated.remove(name);
+        myRemoved.add(name);
+      }
+    }
+  }
+
+
+  /**
+   * Persists times if they were changed and the flush interval passed since the previous flush,
+   * does nothing if another thread flushes times at the moment
+   */
+  void flushIfNeeded() {
+    if (isDirty() && System.nanoTime() - myLastFlushNanos >= myFlushIntervalNanos)
+      flush();
+  }
+
+
+  /**
+   * Persists times if they were changed, does nothing if another thread flushes times at the moment
+   */
+  void flush() {
+    if (!myFlushLock.tryLock())
+      return;
+    try {
+      if (!isDirty())
+        return;
+      myLastFlushNanos = System.nanoTime();
+      Set<String> updated = drain(myUpdated);
+      Set<String> removed = drain(myRemoved);
+      Map<String, Long> persisted = null;
+      boolean written = false;
+      try (RandomAccessFile lockFile = new RandomAccessFile(myLockFile, "rw");
+           FileLock ignored = lockFile.getChannel().lock()) {
+        //another process (e.g. patch building) could update the file, keep its times
+        persisted = read();
+        Map<String, Long> merged = persisted != null ? new HashMap<>(persisted) : new HashMap<>(myTimes);
+        merged.keySet().removeAll(removed);
+        for (String name : updated) {
+          Long time = myTimes.get(name);
+          if (time != null)
+            merged.merge(name, time, Math::max);
+        }
+        written = write(merged);
+      } catch (IOException | OverlappingFileLockException e) {
+        LOG.warnAndDebugDetails("Error while locking " + myLockFile.getAbsolutePath(), e);
+      }
+      if (!written) {
+        myUpdated.addAll(updated);
+        removed.removeAll(myUpdated);
+        myRemoved.addAll(removed);
+      }
+      if (persisted != null) {
+        for (Map.Entry<String, Long> e : persisted.entrySet()) {
+          if (!myRemoved.contains(e.getKey()) && !removed.contains(e.getKey()))
+            update(e.getKey(), e.getValue());
+        }
+      }
+    } finally {
+      myFlushLock.unlock();
+    }
+  }
+
+
+  private boolean isDirty() {
+    return !myUpdated.isEmpty() || !myRemoved.isEmpty();
+  }
+
+
+  private boolean update(@NotNull String dirName, long time) {
+    while (true) {
+      Long old = myTimes.get(dirName);
+      if (old != null && old >= time)
+        return false;
+      if (old == null ? myTimes.putIfAbsent(dirName, time) == null : myTimes.replace(dirName, old, time))
+        return true;
+    }
+  }
+
+
+  @NotNull
+  private static Set<String> drain(@NotNull Set<String> names) {
+    Set<String> result = new HashSet<>();
+    for (String name : names) {
+      if (names.remove(name))
+        result.add(name);
+    }
+    return result;
+  }
+
+
+  /**
+   * @return persisted times, empty map if there is no file or null if the file cannot be read
+   */
+  @Nullable
+  private Map<String, Long> read() {
+    if (!myFile.isFile())
+      return new HashMap<>();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(myFile)))) {
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC) || in.readByte() != FORMAT_VERSION)
+        throw new IOException("Unsupported last used times format");
+      int count = in.readInt();
+      Map<String, Long> result = new HashMap<>(count * 2);
+      for (int i = 0; i < count; i++) {
+        String name = in.readUTF();
+        result.put(name, in.readLong());
+      }
+      return result;
+    } catch (FileNotFoundException e) {
+      return new HashMap<>();
+    } catch (IOException e) {
+      //don't fall back to times from mirror dirs: they are not updated anymore and in-use mirrors would expire
+      myMinUnknownTime = System.currentTimeMillis();
+      LOG.warnAndDebugDetails("Error while reading last used times of git mirrors from " + myFile.getAbsolutePath() +
+                              ", mirrors with unknown times are considered used now", e);
+      return null;
+    }
+  }
+
+
+  private boolean write(@NotNull Map<String, Long> times) {
+    File dir = myFile.getParentFile();
+    File tmp = null;
+    try {
+      if (!dir.isDirectory() && !dir.mkdirs())
+        throw new IOException("Cannot create dir " + dir.getAbsolutePath());
+      tmp = File.createTempFile(myFile.getName(), ".tmp", dir);
+      try (FileOutputStream fos = new FileOutputStream(tmp)) {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        out.write(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        out.writeInt(times.size());
+        for (Map.Entry<String, Long> e : times.entrySet()) {
+          out.writeUTF(e.getKey());
+          out.writeLong(e.getValue());
+        }
+        out.flush();
+        fos.getFD().sync();
+      }
+      Files.move(tmp.toPath(), myFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      return true;
+    } catch (IOException e) {
+      if (tmp != null)
+        FileUtil.delete(tmp);
+      LOG.warnAndDebugDetails("Error while writing last used times of git mirrors to " + myFile.getAbsolutePath(), e);
+      return false;
+    }
+  }
+}
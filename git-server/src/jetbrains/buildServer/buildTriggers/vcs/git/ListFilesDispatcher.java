@@ -30,14 +30,17 @@ public class ListFilesDispatcher implements ListDirectChildrenPolicy {
   private final GitVcsSupport myVcs;
   private final CommitLoader myCommitLoader;
   private final ServerPluginConfig myConfig;
+  private final TreeIndex myTreeIndex;
   private ListDirectChildrenPolicy myImplementation;
 
   public ListFilesDispatcher(@NotNull GitVcsSupport vcs,
                              @NotNull CommitLoader commitLoader,
-                             @NotNull ServerPluginConfig config) {
+                             @NotNull ServerPluginConfig config,
+                             @NotNull TreeIndex treeIndex) {
     myVcs = vcs;
     myCommitLoader = commitLoader;
     myConfig = config;
+    myTreeIndex = treeIndex;
   }
 
   @NotNull
@@ -51,7 +54,7 @@ public class ListFilesDispatcher implements ListDirectChildrenPolicy {
 
   private ListDirectChildrenPolicy getPolicy(@NotNull VcsRoot root) throws VcsException {
     OperationContext ctx = myVcs.createContext(root, "list files dispatch");
-    GitListFilesSupport genericListFiles = new GitListFilesSupport(myVcs, myCommitLoader, myConfig);
+    GitListFilesSupport genericListFiles = new GitListFilesSupport(myVcs, myCommitLoader, myConfig, myTreeIndex);
     try {
       if (GitServerUtil.isCloned(ctx.getRepository()))
         return genericListFiles;
@@ -19,6 +19,7 @@ package jetbrains.buildServer.buildTriggers.vcs.git;
 import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.buildTriggers.vcs.git.submodules.IgnoreSubmoduleErrorsTreeFilter;
 import jetbrains.buildServer.buildTriggers.vcs.git.submodules.SubmoduleAwareTreeIterator;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
 import jetbrains.buildServer.vcs.ModificationData;
 import jetbrains.buildServer.vcs.VcsChange;
 import jetbrains.buildServer.vcs.VcsException;
@@ -36,8 +37,11 @@ import org.jetbrains.annotations.Nullable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * @author dmitry.neverov
@@ -45,24 +49,33 @@ import java.util.Map;
 class ModificationDataRevWalk extends RevWalk {
 
   private static final Logger LOG = Logger.getInstance(ModificationDataRevWalk.class.getName());
+  private static final int MIN_COMMITS_FOR_PARALLEL_DIFF = 16;
+  private static ThreadPoolExecutor ourExecutor;
 
   private final ServerPluginConfig myConfig;
   private final OperationContext myContext;
   private final GitVcsRoot myGitRoot;
   private final Repository myRepository;
   private final int mySearchDepth;
+  private final ChangedPathsCache myChangedPaths;
   private int myNextCallCount = 0;
   private RevCommit myCurrentCommit;
   private int myNumberOfCommitsToVisit = -1;
 
 
-  ModificationDataRevWalk(@NotNull ServerPluginConfig config, @NotNull OperationContext context) throws VcsException {
+  /**
+   * @param changedPaths cache of paths changed by commits, is not used if submodules are checked out
+   */
+  ModificationDataRevWalk(@NotNull ServerPluginConfig config,
+                          @NotNull OperationContext context,
+                          @Nullable ChangedPathsCache changedPaths) throws VcsException {
     super(context.getRepository());
     myConfig = config;
     myContext = context;
     myGitRoot = context.getGitRoot();
     myRepository = context.getRepository();
     mySearchDepth = myConfig.getFixedSubmoduleCommitSearchDepth();
+    myChangedPaths = myGitRoot.isCheckoutSubmodules() ? null : changedPaths;
   }
 
 
@@ -82,45 +95,127 @@ class ModificationDataRevWalk extends RevWalk {
   }
 
 
+  /**
+   * Creates modification data for all remaining commits of the walk in the walk order.
+   *
+   * <p>Commits are parsed in the calling thread, changes of commits are collected
+   * in parallel by {@link ServerPluginConfig#getCollectChangesThreadCount()} threads.
+   * Every tree walk uses its own object reader. Changes are collected in the calling
+   * thread if submodules are checked out: submodule resolution uses the operation
+   * context which is not thread-safe.
+   *
+   * <p>Changed paths of commits found in the changed paths cache are not recomputed,
+   * paths of other commits are added to the cache.
+   */
   @NotNull
-  public ModificationData createModificationData() throws IOException, VcsException {
-    if (myCurrentCommit == null)
-      throw new IllegalStateException("Current commit is null");
+  public List<ModificationData> createModificationDataForAllCommits() throws Exception {
+    List<CommitChangesBuilder> builders = new ArrayList<>();
+    while (next() != null) {
+      builders.add(createBuilder(myCurrentCommit));
+    }
+    int threadCount = myConfig.getCollectChangesThreadCount();
+    if (threadCount > 1 && builders.size() >= MIN_COMMITS_FOR_PARALLEL_DIFF && !myGitRoot.isCheckoutSubmodules()) {
+      collectChangesInParallel(builders, threadCount);
+    } else {
+      for (CommitChangesBuilder builder : builders) {
+        builder.collectCommitChanges();
+      }
+    }
+    List<ModificationData> result = new ArrayList<>(builders.size());
+    Map<ObjectId, List<ChangedPathsCache.ChangedPath>> newChangedPaths = new LinkedHashMap<>();
+    for (CommitChangesBuilder builder : builders) {
+      result.add(builder.createModificationData());
+      if (builder.myNewChangedPaths != null)
+        newChangedPaths.put(builder.commit, builder.myNewChangedPaths);
+    }
+    if (myChangedPaths != null)
+      myChangedPaths.putAll(newChangedPaths);
+    return result;
+  }
 
-    final String commitId = myCurrentCommit.getId().name();
-    String message = GitServerUtil.getFullMessage(myCurrentCommit);
-    final PersonIdent authorIdent = GitServerUtil.getAuthorIdent(myCurrentCommit);
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("Collecting changes in commit " + commitId + ":" + message + " (" + authorIdent.getWhen() + ") for " + myGitRoot.debugInfo());
+
+  private void collectChangesInParallel(@NotNull List<CommitChangesBuilder> builders, int threadCount) throws Exception {
+    ExecutorService executor = getExecutor(threadCount);
+    AtomicBoolean canceled = new AtomicBoolean();
+    List<Future<?>> futures = new ArrayList<>(builders.size());
+    try {
+      for (CommitChangesBuilder builder : builders) {
+        futures.add(executor.submit(() -> {
+          if (!canceled.get())
+            builder.collectCommitChanges();
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof Exception)
+            throw (Exception) cause;
+          if (cause instanceof Error)
+            throw (Error) cause;
+          throw e;
+        }
+      }
+    } finally {
+      //on error skip tasks which are not started yet and wait for running ones, they use the
+      //repository of the operation; tasks are not interrupted: interrupted reads close pack files
+      canceled.set(true);
+      awaitQuietly(futures);
     }
+  }
+
 
-    final String parentVersion = getFirstParentVersion(myCurrentCommit);
-    final CommitChangesBuilder builder = new CommitChangesBuilder(myCurrentCommit, commitId, parentVersion);
-    builder.collectCommitChanges();
-    final List<VcsChange> changes = builder.getChanges();
-
-    final ModificationData result = new ModificationData(
-      authorIdent.getWhen(),
-      changes,
-      message,
-      GitServerUtil.getUser(myGitRoot, authorIdent),
-      myGitRoot.getOriginalRoot(),
-      commitId,
-      commitId);
-
-    Map<String, String> attributes = builder.getAttributes();
-    if (!attributes.isEmpty())
-      result.setAttributes(attributes);
-
-    if (myCurrentCommit.getParentCount() > 0) {
-      for (RevCommit parent : myCurrentCommit.getParents()) {
-        parseBody(parent);
-        result.addParentRevision(parent.getId().name());
+  private static void awaitQuietly(@NotNull List<Future<?>> futures) {
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e) {
+        //reported by the first failed task
       }
-    } else {
-      result.addParentRevision(ObjectId.zeroId().name());
     }
-    return result;
+  }
+
+
+  /**
+   * @return executor shared by all collect changes operations, its size follows the configured thread count
+   */
+  @NotNull
+  private static synchronized ExecutorService getExecutor(int threadCount) {
+    if (ourExecutor == null) {
+      ourExecutor = new ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS,
+                                           new LinkedBlockingQueue<>(), new NamedDaemonThreadFactory("Git collect changes"));
+      ourExecutor.allowCoreThreadTimeOut(true);
+    } else if (threadCount > ourExecutor.getMaximumPoolSize()) {
+      ourExecutor.setMaximumPoolSize(threadCount);
+      ourExecutor.setCorePoolSize(threadCount);
+    } else if (threadCount < ourExecutor.getMaximumPoolSize()) {
+      ourExecutor.setCorePoolSize(threadCount);
+      ourExecutor.setMaximumPoolSize(threadCount);
+    }
+    return ourExecutor;
+  }
+
+
+  /**
+   * Parses the commit and its parents, must be called in the thread iterating the walk
+   */
+  @NotNull
+  private CommitChangesBuilder createBuilder(@NotNull RevCommit commit) throws IOException {
+    final String commitId = commit.getId().name();
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Collecting changes in commit " + commitId + ":" + GitServerUtil.getFullMessage(commit) +
+                " (" + GitServerUtil.getAuthorIdent(commit).getWhen() + ") for " + myGitRoot.debugInfo());
+    }
+    final String parentVersion = getFirstParentVersion(commit);
+    for (RevCommit parent : commit.getParents()) {
+      parseBody(parent);
+    }
+    return new CommitChangesBuilder(commit, commitId, parentVersion, shouldIgnoreSubmodulesErrors());
   }
 
 
@@ -155,18 +250,51 @@ class ModificationDataRevWalk extends RevWalk {
     private final String repositoryDebugInfo = myGitRoot.debugInfo();
     private final IgnoreSubmoduleErrorsTreeFilter filter = new IgnoreSubmoduleErrorsTreeFilter(myGitRoot);
     private final Map<String, RevCommit> commitsWithFix = new HashMap<String, RevCommit>();
+    private final boolean ignoreSubmodulesErrors;
+    private List<ChangedPathsCache.ChangedPath> myNewChangedPaths;
 
     /**
      * @param commit current commit
      * @param currentVersion teamcity version of current commit (sha@time)
      * @param parentVersion parent version to use in VcsChange objects
+     * @param ignoreSubmodulesErrors whether to ignore submodule errors in the current commit
      */
     public CommitChangesBuilder(@NotNull final RevCommit commit,
                                 @NotNull final String currentVersion,
-                                @NotNull final String parentVersion) {
+                                @NotNull final String parentVersion,
+                                boolean ignoreSubmodulesErrors) {
       this.commit = commit;
       this.currentVersion = currentVersion;
       this.parentVersion = parentVersion;
+      this.ignoreSubmodulesErrors = ignoreSubmodulesErrors;
+    }
+
+    /**
+     * Creates modification data of the commit, changes should be already collected
+     */
+    @NotNull
+    public ModificationData createModificationData() {
+      final PersonIdent authorIdent = GitServerUtil.getAuthorIdent(commit);
+      final ModificationData result = new ModificationData(
+        authorIdent.getWhen(),
+        changes,
+        GitServerUtil.getFullMessage(commit),
+        GitServerUtil.getUser(myGitRoot, authorIdent),
+        myGitRoot.getOriginalRoot(),
+        currentVersion,
+        currentVersion);
+
+      if (!myAttributes.isEmpty())
+        result.setAttributes(myAttributes);
+
+      if (commit.getParentCount() > 0) {
+        for (RevCommit parent : commit.getParents()) {
+          result.addParentRevision(parent.getId().name());
+        }
+      } else {
+        result.addParentRevision(ObjectId.zeroId().name());
+      }
+      return result;
     }
 
     @NotNull
@@ -183,13 +311,22 @@ class ModificationDataRevWalk extends RevWalk {
      * collect changes for the commit
      */
     public void collectCommitChanges() throws IOException, VcsException {
+      RevCommit[] parents = commit.getParents();
+      boolean reportPerParentChangedFiles = myConfig.reportPerParentChangedFiles() && parents.length > 1; // report only for merge commits
+      if (myChangedPaths != null) {
+        List<ChangedPathsCache.ChangedPath> cached = myChangedPaths.get(commit);
+        if (cached != null) {
+          addCachedChanges(cached, reportPerParentChangedFiles);
+          return;
+        }
+      }
       final VcsChangeTreeWalk tw = new VcsChangeTreeWalk(myRepository, repositoryDebugInfo, myConfig.verboseTreeWalkLog());
       try {
         tw.setFilter(filter);
         tw.setRecursive(true);
-        myContext.addTree(myGitRoot, tw, myRepository, commit, shouldIgnoreSubmodulesErrors());
-        RevCommit[] parents = commit.getParents();
-        boolean reportPerParentChangedFiles = myConfig.reportPerParentChangedFiles() && parents.length > 1; // report only for merge commits
+        if (myChangedPaths != null && parents.length <= ChangedPathsCache.MAX_PARENTS)
+          tw.recordChangedPaths();
+        myContext.addTree(myGitRoot, tw, myRepository, commit, ignoreSubmodulesErrors);
         for (RevCommit parentCommit : parents) {
           myContext.addTree(myGitRoot, tw, myRepository, parentCommit, true);
           if (reportPerParentChangedFiles) {
@@ -198,6 +335,7 @@ class ModificationDataRevWalk extends RevWalk {
         }
 
         new VcsChangesTreeWalker(tw).walk();
+        myNewChangedPaths = tw.getChangedPaths();
 
         if (reportPerParentChangedFiles) {
           Map<String, String> changedFilesAttributes = tw.buildChangedFilesAttributes();
@@ -210,6 +348,33 @@ class ModificationDataRevWalk extends RevWalk {
       }
     }
 
+    /**
+     * Creates changes from the cached changed paths the same way the tree walk does for roots without submodules
+     */
+    private void addCachedChanges(@NotNull List<ChangedPathsCache.ChangedPath> changedPaths, boolean reportPerParentChangedFiles) {
+      RevCommit[] parents = commit.getParents();
+      Map<String, List<String>> perParentChangedFiles = new HashMap<>();
+      if (reportPerParentChangedFiles) {
+        for (RevCommit parent : parents) {
+          perParentChangedFiles.put(parent.name(), new ArrayList<>());
+        }
+      }
+      for (ChangedPathsCache.ChangedPath changedPath : changedPaths) {
+        String path = changedPath.getPath();
+        if (reportPerParentChangedFiles) {
+          for (int i = 0; i < parents.length; i++) {
+            if (changedPath.isChangedInParent(i))
+              perParentChangedFiles.get(parents[i].name()).add(path);
+          }
+        }
+        ChangeType gitChangeType = changedPath.getType();
+        VcsChange change = VcsChangeTreeWalk.createVcsChange(VcsChangeTreeWalk.getChangeType(gitChangeType), gitChangeType, path, currentVersion, parentVersion);
+        if (change != null)
+          changes.add(change);
+      }
+      myAttributes.putAll(VcsChangeTreeWalk.buildChangedFilesAttributes(perParentChangedFiles));
+    }
+
     private class VcsChangesTreeWalker {
       private final VcsChangeTreeWalk tw;
 
@@ -76,6 +76,8 @@ public class PluginConfigImpl implements ServerPluginConfig {
   private static final String HTTP_CONNECTION_SSL_PROTOCOL = "teamcity.git.httpConnectionSslProtocol";
   private static final String MONITORING_FILE_THRESHOLD_SECONDS = "teamcity.git.monitoringFileThresholdSeconds";
   public static final String CREATE_NEW_CONNECTION_FOR_PRUNE = "teamcity.git.newConnectionForPrune";
+  public static final String PATCH_CONTENT_LOADER_THREADS = "teamcity.git.patch.contentLoaderThreads";
+  public static final String PATCH_CONTENT_LOADER_MAX_PENDING_MB = "teamcity.git.patch.contentLoaderMaxPendingMb";
   public static final String IGNORE_MISSING_REMOTE_REF = "teamcity.git.ignoreMissingRemoteRef";
   private static final String ACCESS_TIME_UPDATE_RATE_MINUTES = "teamcity.git.accessTimeUpdateRateMinutes";
   private static final String MERGE_RETRY_ATTEMPTS = "teamcity.git.mergeRetryAttemps";
@@ -570,6 +572,113 @@ public class PluginConfigImpl implements ServerPluginConfig {
     return TeamCityProperties.getBooleanOrTrue("teamcity.git.setSubmoduleUserInAbsoluteUrls");
   }
 
+  @Override
+  public int getCheckSuitableThreadCount() {
+    return TeamCityProperties.getInteger("teamcity.git.checkSuitableThreads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+  }
+
+  @Override
+  public int getRepositoryPoolSize() {
+    //disabled by default: pooled repositories keep pack files open, on Windows
+    //this blocks deleting mirrors outside the rm lock (e.g. by admins or backup tools)
+    return TeamCityProperties.getInteger("teamcity.git.repositoryPool.maxSize", 0);
+  }
+
+  @Override
+  public int getRepositoryPoolIdleTimeoutSeconds() {
+    return TeamCityProperties.getInteger("teamcity.git.repositoryPool.idleTimeoutSeconds", (int) TimeUnit.MINUTES.toSeconds(10));
+  }
+
+  @Override
+  public int getRemoteRefsCacheTtlSeconds() {
+    return TeamCityProperties.getInteger("teamcity.git.remoteRefsCacheTtlSeconds", 0);
+  }
+
+  @Override
+  public int getFetchProcessMaxFetches() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.process.maxFetches", 100);
+  }
+
+  @Override
+  public int getFetchProcessMaxIdle() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.process.maxIdle", 2);
+  }
+
+  @Override
+  public int getFetchProcessIdleTimeoutSeconds() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.process.idleTimeoutSeconds", (int) TimeUnit.MINUTES.toSeconds(5));
+  }
+
+  @Override
+  public int getPatchContentLoaderThreadCount() {
+    return TeamCityProperties.getInteger(PATCH_CONTENT_LOADER_THREADS, Math.min(8, Runtime.getRuntime().availableProcessors()));
+  }
+
+  @Override
+  public long getPatchContentLoaderMaxPendingBytes() {
+    return TeamCityProperties.getLong(PATCH_CONTENT_LOADER_MAX_PENDING_MB, 32) * 1024 * 1024;
+  }
+
+  @Override
+  public boolean isIncrementalCommitsInfo() {
+    return TeamCityProperties.getBooleanOrTrue("teamcity.git.commitsInfo.incremental");
+  }
+
+  @Override
+  public int getGcThreadCount() {
+    return TeamCityProperties.getInteger("teamcity.server.git.gc.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 4));
+  }
+
+  @Override
+  public long getGcConcurrentPackBytesLimit() {
+    return TeamCityProperties.getLong("teamcity.server.git.gc.concurrentPackSizeLimitMb", 4096) * 1024 * 1024;
+  }
+
+  @Override
+  public long getSlowRepositoryLockThresholdMillis() {
+    return TeamCityProperties.getLong("teamcity.server.git.slowRepositoryLockThresholdMillis", -1);
+  }
+
+  @Override
+  public int getCollectChangesThreadCount() {
+    return TeamCityProperties.getInteger("teamcity.git.collectChanges.threads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+  }
+
+  @Override
+  public int getChangedPathsCacheSize() {
+    return TeamCityProperties.getInteger("teamcity.git.collectChanges.changedPathsCacheSize", 20000);
+  }
+
+  @Override
+  public boolean isStreamPatchFromSeparateProcess() {
+    return TeamCityProperties.getBooleanOrTrue("teamcity.git.patch.streamFromSeparateProcess");
+  }
+
+  @Override
+  public int getBulkPatchPipelineDepth() {
+    return TeamCityProperties.getInteger("teamcity.git.bulkPatch.pipelineDepth", 2);
+  }
+
+  @Override
+  public long getBulkPatchBlobCacheSize() {
+    return TeamCityProperties.getLong("teamcity.git.bulkPatch.blobCacheSizeMb", 32) * 1024 * 1024;
+  }
+
+  @Override
+  public long getFileContentCacheSize() {
+    return TeamCityProperties.getLong("teamcity.git.fileContentCache.sizeMb", 32) * 1024 * 1024;
+  }
+
+  @Override
+  public long getFileContentCacheMaxBlobSize() {
+    return TeamCityProperties.getLong("teamcity.git.fileContentCache.maxBlobSizeKb", 512) * 1024;
+  }
+
+  @Override
+  public int getListFilesTreeCacheSize() {
+    return TeamCityProperties.getInteger("teamcity.git.listFiles.treeCacheSize", 100000);
+  }
+
   @NotNull
   @Override
   public List<String> getRecoverableFetchErrorMessages() {
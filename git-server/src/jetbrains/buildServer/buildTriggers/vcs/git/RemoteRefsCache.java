@@ -0,0 +1,216 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRoot;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short-lived cache of remote repository refs.
+ *
+ * Refs are cached by fetch url and a hash of authentication settings, so
+ * roots pointing to the same repository share the result of a single
+ * ls-remote. A request reuses an ls-remote, running or finished, which
+ * started no earlier than the configured ttl before the request arrived.
+ * With zero ttl a request only joins an ls-remote started after its
+ * arrival, so it never gets refs older than itself, e.g. ones listed
+ * before a push it must see.
+ *
+ * ThreadSafe.
+ */
+final class RemoteRefsCache {
+
+  private final ServerPluginConfig myConfig;
+  private final ConcurrentMap<Key, Entry> myEntries = new ConcurrentHashMap<>();
+
+  RemoteRefsCache(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+  @NotNull
+  Map<String, Ref> getRemoteRefs(@NotNull GitVcsRoot root, @NotNull RemoteRefsLoader loader) throws VcsException {
+    long arrivalNanos = System.nanoTime();
+    Key key = new Key(root);
+    while (true) {
+      long ttlNanos = TimeUnit.SECONDS.toNanos(myConfig.getRemoteRefsCacheTtlSeconds());
+      Entry entry = myEntries.get(key);
+      if (entry != null && entry.canBeUsedBy(arrivalNanos, ttlNanos))
+        return entry.getRefs();
+      Entry created = new Entry(loader);
+      boolean added = entry == null ? myEntries.putIfAbsent(key, created) == null : myEntries.replace(key, entry, created);
+      if (!added)
+        continue;
+      removeExpired(ttlNanos);
+      created.run();
+      if (created.isFailed())
+        myEntries.remove(key, created);
+      return created.getRefs();
+    }
+  }
+
+
+  /**
+   * Removes cached refs of all repositories with the fetch url of the specified root,
+   * should be called after the remote repository was modified
+   */
+  void invalidate(@NotNull GitVcsRoot root) {
+    String url = root.getRepositoryFetchURL().toString();
+    myEntries.keySet().removeIf(key -> key.myUrl.equals(url));
+  }
+
+
+  private void removeExpired(long ttlNanos) {
+    myEntries.values().removeIf(entry -> entry.isExpired(ttlNanos));
+  }
+
+
+  interface RemoteRefsLoader {
+    @NotNull
+    Map<String, Ref> load() throws VcsException;
+  }
+
+
+  private static final class Entry {
+    private final FutureTask<Map<String, Ref>> myTask;
+    private final long myStartNanos = System.nanoTime();
+    private volatile boolean myFailed;
+
+    private Entry(@NotNull RemoteRefsLoader loader) {
+      myTask = new FutureTask<>(() -> {
+        try {
+          return Collections.unmodifiableMap(loader.load());
+        } catch (VcsException | RuntimeException | Error e) {
+          myFailed = true;
+          throw e;
+        }
+      });
+    }
+
+    private void run() {
+      myTask.run();
+    }
+
+    private boolean isFailed() {
+      return myFailed;
+    }
+
+    /**
+     * @return true if ls-remote didn't fail and started no earlier than ttl before the request arrival
+     */
+    private boolean canBeUsedBy(long arrivalNanos, long ttlNanos) {
+      return !(myTask.isDone() && myFailed) && arrivalNanos - myStartNanos <= ttlNanos;
+    }
+
+    private boolean isExpired(long ttlNanos) {
+      return myTask.isDone() && (myFailed || System.nanoTime() - myStartNanos > ttlNanos);
+    }
+
+    @NotNull
+    private Map<String, Ref> getRefs() throws VcsException {
+      try {
+        return myTask.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new VcsException("Interrupted while waiting for the list of remote refs", e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof VcsException)
+          throw (VcsException) cause;
+        if (cause instanceof RuntimeException)
+          throw (RuntimeException) cause;
+        if (cause instanceof Error)
+          throw (Error) cause;
+        throw new VcsException(cause);
+      }
+    }
+  }
+
+
+  private static final class Key {
+    private final String myUrl;
+    //hash of the settings, secrets are not kept in memory longer than the root
+    private final String myAuthHash;
+
+    private Key(@NotNull GitVcsRoot root) {
+      myUrl = root.getRepositoryFetchURL().toString();
+      AuthSettings auth = root.getAuthSettings();
+      List<Object> settings = Arrays.asList(auth.getAuthMethod(), auth.isIgnoreKnownHosts(), auth.getUserName(), auth.getPassword(),
+                                            auth.getPassphrase(), auth.getPrivateKeyFilePath(), auth.getTeamCitySshKeyId(),
+                                            getSshKeyScope(auth));
+      myAuthHash = hash(settings);
+    }
+
+    @NotNull
+    private static String hash(@NotNull List<Object> settings) {
+      try {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        for (Object setting : settings) {
+          //length prefix keeps adjacent values and nulls from colliding
+          String value = setting != null ? setting.toString().length() + ":" + setting : "-1:";
+          digest.update(value.getBytes(StandardCharsets.UTF_8));
+        }
+        return ObjectId.fromRaw(digest.digest()).name();
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    /**
+     * TeamCity ssh keys with the same name can be different in different
+     * projects, don't share refs between roots using such keys
+     */
+    @Nullable
+    private static Object getSshKeyScope(@NotNull AuthSettings auth) {
+      if (auth.getAuthMethod() != AuthenticationMethod.TEAMCITY_SSH_KEY)
+        return null;
+      VcsRoot root = auth.getRoot();
+      return root != null ? root.getId() : null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o)
+        return true;
+      if (o == null || getClass() != o.getClass())
+        return false;
+      Key key = (Key) o;
+      return myUrl.equals(key.myUrl) && myAuthHash.equals(key.myAuthHash);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * myUrl.hashCode() + myAuthHash.hashCode();
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Data cached for local repositories.
+ *
+ * <p>Cached data of a repository is forgotten once the repository is deleted
+ * or reset, e.g. when cleanup removes an unused repository or git caches are
+ * reset, so a repository created in the same dir starts with empty caches.
+ * Data is kept when gc replaces the repository by its compacted copy since
+ * the copy has the same commits.
+ *
+ * <p>ThreadSafe.
+ */
+public final class RepositoryCaches<T> {
+
+  private final RepositoryManager myRepositoryManager;
+  //repository key -> cached data
+  private final ConcurrentMap<File, T> myCaches = new ConcurrentHashMap<>();
+  private final Consumer<T> myOnRemove;
+
+  public RepositoryCaches(@NotNull RepositoryManager repositoryManager) {
+    this(repositoryManager, cache -> {});
+  }
+
+  /**
+   * @param onRemove is called with data of the repository which was removed
+   */
+  public RepositoryCaches(@NotNull RepositoryManager repositoryManager, @NotNull Consumer<T> onRemove) {
+    myRepositoryManager = repositoryManager;
+    myOnRemove = onRemove;
+    repositoryManager.addRemoveListener(this::remove);
+  }
+
+
+  /**
+   * @return data cached for the repository, the factory is called if nothing is cached yet
+   */
+  @NotNull
+  public T get(@NotNull File repositoryDir, @NotNull Function<File, T> factory) {
+    return myCaches.computeIfAbsent(myRepositoryManager.getRepositoryKey(repositoryDir), key -> factory.apply(repositoryDir));
+  }
+
+
+  public void clear() {
+    myCaches.clear();
+  }
+
+
+  public int size() {
+    return myCaches.size();
+  }
+
+
+  /**
+   * @param key key of the removed repository
+   */
+  private void remove(@NotNull File key) {
+    T cache = myCaches.remove(key);
+    if (cache != null)
+      myOnRemove.accept(cache);
+  }
+}
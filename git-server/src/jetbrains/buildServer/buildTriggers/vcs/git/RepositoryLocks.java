@@ -0,0 +1,295 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import jetbrains.buildServer.log.Loggers;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Locks of local repositories.
+ *
+ * <p>Locks of a repository are created on demand and are weakly referenced,
+ * so locks of repositories which are not used at the moment are garbage
+ * collected. Every lock handed out references the {@link RepositoryLock}
+ * it belongs to, so locks are not collected while somebody holds them.
+ *
+ * <p>If the slow lock threshold is not negative, waits for a lock and lock
+ * holds longer than the threshold are logged with the repository dir.
+ */
+final class RepositoryLocks {
+
+  private final ConcurrentMap<File, LockRef> myLocks = new ConcurrentHashMap<>();
+  private final ReferenceQueue<RepositoryLock> myCollected = new ReferenceQueue<>();
+  private final Consumer<File> myOnExclusiveRmLock;
+  private final long mySlowLockThresholdNanos;
+
+  /**
+   * @param onExclusiveRmLock is called with the repository dir once the write rm lock is acquired
+   * @param slowLockThresholdMillis threshold for logging slow locks, negative value disables logging
+   */
+  RepositoryLocks(@NotNull Consumer<File> onExclusiveRmLock, long slowLockThresholdMillis) {
+    myOnExclusiveRmLock = onExclusiveRmLock;
+    mySlowLockThresholdNanos = slowLockThresholdMillis >= 0 ? TimeUnit.MILLISECONDS.toNanos(slowLockThresholdMillis) : -1;
+  }
+
+
+  /**
+   * @param dir canonical repository dir
+   * @return locks of the repository
+   */
+  @NotNull
+  RepositoryLock get(@NotNull File dir) {
+    removeCollected();
+    while (true) {
+      LockRef ref = myLocks.get(dir);
+      RepositoryLock existing = ref != null ? ref.get() : null;
+      if (existing != null)
+        return existing;
+      RepositoryLock lock = new RepositoryLock(dir);
+      LockRef newRef = new LockRef(dir, lock, myCollected);
+      if (ref == null ? myLocks.putIfAbsent(dir, newRef) == null : myLocks.replace(dir, ref, newRef))
+        return lock;
+    }
+  }
+
+
+  /**
+   * Forgets locks of the repository, subsequent calls to {@link #get(File)} return new locks
+   * @param dir canonical repository dir
+   */
+  void remove(@NotNull File dir) {
+    myLocks.remove(dir);
+  }
+
+
+  int size() {
+    removeCollected();
+    return myLocks.size();
+  }
+
+
+  private void removeCollected() {
+    LockRef ref;
+    while ((ref = (LockRef) myCollected.poll()) != null) {
+      myLocks.remove(ref.myDir, ref);
+    }
+  }
+
+
+  private static final class LockRef extends WeakReference<RepositoryLock> {
+    private final File myDir;
+
+    private LockRef(@NotNull File dir, @NotNull RepositoryLock lock, @NotNull ReferenceQueue<RepositoryLock> queue) {
+      super(lock, queue);
+      myDir = dir;
+    }
+  }
+
+
+  /**
+   * Locks of a single repository
+   */
+  final class RepositoryLock implements ReadWriteLock {
+    private final File myDir;
+    /**
+     * Monitor used during repository creation, jgit checks existence of some files and directories
+     * and several threads creating the repository concurrently could see it in inconsistent state.
+     */
+    private final Monitor myCreateLock = new Monitor(this);
+    private final ReentrantLock myWriteDelegate = new ReentrantLock();
+    private final ReentrantReadWriteLock myRmDelegate = new ReentrantReadWriteLock();
+    private final Lock myWriteLock = new TimedLock("write") {
+      @Override
+      protected Lock getDelegate() {
+        return myWriteDelegate;
+      }
+
+      @Override
+      protected int getHoldCount() {
+        return myWriteDelegate.getHoldCount();
+      }
+    };
+    private final Lock myRmReadLock = new TimedLock("rm read") {
+      @Override
+      protected Lock getDelegate() {
+        return myRmDelegate.readLock();
+      }
+
+      @Override
+      protected int getHoldCount() {
+        //read lock is shared, hold time is not tracked
+        return -1;
+      }
+    };
+    private final Lock myRmWriteLock = new TimedLock("rm write") {
+      @Override
+      protected Lock getDelegate() {
+        return myRmDelegate.writeLock();
+      }
+
+      @Override
+      protected int getHoldCount() {
+        return myRmDelegate.getWriteHoldCount();
+      }
+
+      @Override
+      protected void onAcquire() {
+        myOnExclusiveRmLock.accept(myDir);
+      }
+    };
+
+    private RepositoryLock(@NotNull File dir) {
+      myDir = dir;
+    }
+
+    @NotNull
+    Object getCreateLock() {
+      return myCreateLock;
+    }
+
+    /**
+     * @return lock used for fetch and push operations
+     */
+    @NotNull
+    Lock getWriteLock() {
+      return myWriteLock;
+    }
+
+    /**
+     * Rm lock closes pooled repositories of the dir once its write lock is acquired:
+     * the write lock is taken before the dir is deleted or replaced and opened repositories
+     * should not outlive it.
+     */
+    @NotNull
+    @Override
+    public Lock readLock() {
+      return myRmReadLock;
+    }
+
+    @NotNull
+    @Override
+    public Lock writeLock() {
+      return myRmWriteLock;
+    }
+
+
+    /**
+     * Lock which measures waits and holds if logging of slow locks is enabled,
+     * hold time is tracked only for exclusive locks by the outermost lock/unlock pair.
+     */
+    private abstract class TimedLock implements Lock {
+      private final String myName;
+      private long myAcquiredNanos;
+
+      TimedLock(@NotNull String name) {
+        myName = name;
+      }
+
+      @NotNull
+      protected abstract Lock getDelegate();
+
+      protected abstract int getHoldCount();
+
+      protected void onAcquire() {
+      }
+
+      @Override
+      public void lock() {
+        long start = System.nanoTime();
+        getDelegate().lock();
+        acquired(start, true);
+      }
+
+      @Override
+      public void lockInterruptibly() throws InterruptedException {
+        long start = System.nanoTime();
+        getDelegate().lockInterruptibly();
+        acquired(start, true);
+      }
+
+      @Override
+      public boolean tryLock() {
+        if (!getDelegate().tryLock())
+          return false;
+        acquired(0, false);
+        return true;
+      }
+
+      @Override
+      public boolean tryLock(long time, @NotNull TimeUnit unit) throws InterruptedException {
+        long start = System.nanoTime();
+        if (!getDelegate().tryLock(time, unit))
+          return false;
+        acquired(start, true);
+        return true;
+      }
+
+      @Override
+      public void unlock() {
+        if (mySlowLockThresholdNanos >= 0 && getHoldCount() == 1) {
+          long holdNanos = System.nanoTime() - myAcquiredNanos;
+          if (holdNanos > mySlowLockThresholdNanos)
+            Loggers.VCS.info("Git repository " + myName + " lock was held for " + TimeUnit.NANOSECONDS.toMillis(holdNanos) + "ms, repository: " + myDir.getAbsolutePath());
+        }
+        getDelegate().unlock();
+      }
+
+      @NotNull
+      @Override
+      public Condition newCondition() {
+        return getDelegate().newCondition();
+      }
+
+      private void acquired(long waitStartNanos, boolean waited) {
+        if (mySlowLockThresholdNanos >= 0) {
+          long now = System.nanoTime();
+          if (waited && now - waitStartNanos > mySlowLockThresholdNanos)
+            Loggers.VCS.info("Waited for git repository " + myName + " lock for " + TimeUnit.NANOSECONDS.toMillis(now - waitStartNanos) + "ms, repository: " + myDir.getAbsolutePath());
+          if (getHoldCount() == 1)
+            myAcquiredNanos = now;
+        }
+        onAcquire();
+      }
+    }
+  }
+
+
+  /**
+   * Monitor which keeps the locks of the repository reachable while it is held
+   */
+  private static final class Monitor {
+    @SuppressWarnings({"FieldCanBeLocal", "unused"})
+    private final RepositoryLock myOwner;
+
+    private Monitor(@NotNull RepositoryLock owner) {
+      myOwner = owner;
+    }
+  }
+}
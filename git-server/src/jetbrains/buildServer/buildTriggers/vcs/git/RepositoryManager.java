@@ -23,7 +23,9 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.function.Consumer;
 
 /**
  * @author dmitry.neverov
@@ -41,8 +43,11 @@ public interface RepositoryManager extends MirrorManager {
 
   void closeRepository(@NotNull Repository repository);
 
+  /**
+   * @return lock used for fetch and push operations in the repository
+   */
   @NotNull
-  public Object getWriteLock(@NotNull File dir);
+  public Lock getWriteLock(@NotNull File dir);
 
   @NotNull
   public ReadWriteLock getRmLock(@NotNull File dir);
@@ -52,4 +57,28 @@ public interface RepositoryManager extends MirrorManager {
   void runWithDisabledRemove(@NotNull File dir, @NotNull VcsAction action) throws VcsException;
 
   void cleanLocksFor(@NotNull File dir);
+
+  /**
+   * Persists last used times of repositories, should be called before the process exits
+   */
+  void flushLastUsedTimes();
+
+  /**
+   * @return key of the repository dir, different paths of the same dir have equal keys
+   */
+  @NotNull
+  File getRepositoryKey(@NotNull File dir);
+
+  /**
+   * Registers a listener which is called with the {@link #getRepositoryKey key} of the repository dir
+   * once the repository is deleted or reset. Listeners should forget data cached for the repository.
+   * Listeners are not called when the repository is replaced by its compacted copy during gc.
+   */
+  void addRemoveListener(@NotNull Consumer<File> listener);
+
+  /**
+   * Notifies remove listeners that the repository in the dir was deleted or reset,
+   * should be called with the write rm lock of the dir held
+   */
+  void repositoryRemoved(@NotNull File dir);
 }
@@ -17,7 +17,6 @@
 package jetbrains.buildServer.buildTriggers.vcs.git;
 
 import com.intellij.openapi.diagnostic.Logger;
-import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.vcs.VcsException;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.RepositoryCache;
@@ -29,14 +28,14 @@ import org.jetbrains.annotations.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
 import static jetbrains.buildServer.buildTriggers.vcs.git.GitServerUtil.getWrongUrlError;
 
@@ -50,37 +49,35 @@ public final class RepositoryManagerImpl implements RepositoryManager {
   private final MirrorManager myMirrorManager;
   private final long myExpirationTimeout;
   /**
-   * During repository creation jgit checks existence of some files and directories. When several threads
-   * try to create repository concurrently some of them could see it in inconsistent state. This map contains
-   * locks for repository creation, so only one thread at a time will create repository at give dir.
+   * Locks of repositories keyed by canonical repository dir:
+   * <ul>
+   * <li>create lock: only one thread at a time creates a repository in a given dir, otherwise
+   * jgit can see a partially created repository</li>
+   * <li>write lock: fetch and push are done one at a time, jgit had concurrency problems in the past and
+   * only one of several concurrent fetches into the same repository succeeds anyway</li>
+   * <li>rm lock: fetch/push/create operations are done with read lock hold, cleanup removes
+   * unused repositories with write lock hold, see {@link Cleanup}</li>
+   * </ul>
    */
-  private final ConcurrentMap<File, Object> myCreateLocks = new ConcurrentHashMap<File, Object>();
-  /**
-   * In the past jgit has some concurrency problems, in order to fix them we do only one fetch at a time.
-   * Also several concurrent fetches in single repository does not make sense since only one of them succeed.
-   * This map contains locks used for fetch and push operations.
-   */
-  private final ConcurrentMap<File, Object> myWriteLocks = new ConcurrentHashMap<File, Object>();
-  /**
-   * During cleanup unused bare repositories are removed. This map contains rw locks for repository removal.
-   * Fetch/push/create operations should be done with read lock hold, remove operation is done with write lock hold.
-   * @see Cleanup
-   */
-  private final ConcurrentMap<File, ReadWriteLock> myRmLocks = new ConcurrentHashMap<File, ReadWriteLock>();
+  private final RepositoryLocks myLocks;
 
-  private final ConcurrentMap<File, Object> myUpdateLastUsedTimeLocks = new ConcurrentHashMap<File, Object>();
+  private final LastUsedTimes myLastUsedTimes;
 
-  //repo dir -> last access time (nano seconds)
-  private final ConcurrentMap<File, Long> myLastAccessTime = new ConcurrentHashMap<>();
+  private final RepositoryPool myRepositoryCache;
 
-  private final AutoCloseRepositoryCache myRepositoryCache = new AutoCloseRepositoryCache();
+  private final List<Consumer<File>> myRemoveListeners = new CopyOnWriteArrayList<>();
 
-  private final ServerPluginConfig myConfig;
+  private final File myBaseMirrorsDir;
+  private final File myCanonicalBaseMirrorsDir;
 
   public RepositoryManagerImpl(@NotNull final ServerPluginConfig config, @NotNull final MirrorManager mirrorManager) {
-    myConfig = config;
     myExpirationTimeout = config.getMirrorExpirationTimeoutMillis();
     myMirrorManager = mirrorManager;
+    myRepositoryCache = new RepositoryPool(config);
+    myLocks = new RepositoryLocks(this::onExclusiveRmLock, config.getSlowRepositoryLockThresholdMillis());
+    myBaseMirrorsDir = mirrorManager.getBaseMirrorsDir();
+    myCanonicalBaseMirrorsDir = getCanonicalFile(myBaseMirrorsDir);
+    myLastUsedTimes = new LastUsedTimes(myBaseMirrorsDir, config.getAccessTimeUpdateRateMinutes());
   }
 
 
@@ -112,17 +109,28 @@ public final class RepositoryManagerImpl implements RepositoryManager {
     return myMirrorManager.getUrl(cloneDirName);
   }
 
+  @NotNull
+  public List<File> getMirrorDirs() {
+    return myMirrorManager.getMirrorDirs();
+  }
+
+  @Nullable
+  public File moveToShard(@NotNull File dir) throws IOException {
+    return myMirrorManager.moveToShard(dir);
+  }
+
   @NotNull
   public List<File> getExpiredDirs() {
     long now = System.currentTimeMillis();
     List<File> result = new ArrayList<File>();
-    final File[] files = myMirrorManager.getBaseMirrorsDir().listFiles();
-    if (files == null)
-      return result;
-    for (File f : files) {
-      if (f.isDirectory() && isExpired(f, now))
+    Set<String> names = new HashSet<>();
+    for (File f : myMirrorManager.getMirrorDirs()) {
+      names.add(f.getName());
+      if (isExpired(f, now))
         result.add(f);
     }
+    myLastUsedTimes.retain(names);
+    myLastUsedTimes.flush();
     return result;
   }
 
@@ -134,7 +142,18 @@ public final class RepositoryManagerImpl implements RepositoryManager {
 
 
   public long getLastUsedTime(@NotNull File dir) {
-    return myMirrorManager.getLastUsedTime(dir);
+    Long time = myLastUsedTimes.get(dir.getName());
+    if (time != null)
+      return time;
+    //not used since the start or used only by previous versions which kept time in the mirror dir
+    long result = Math.max(myMirrorManager.getLastUsedTime(dir), myLastUsedTimes.getMinUnknownTime());
+    if (isDefaultMirrorDir(dir))
+      myLastUsedTimes.set(dir.getName(), result);
+    return result;
+  }
+
+  public void flushLastUsedTimes() {
+    myLastUsedTimes.flush();
   }
 
   @NotNull
@@ -181,68 +200,59 @@ public final class RepositoryManagerImpl implements RepositoryManager {
   }
 
 
+  /**
+   * Last used time is updated in memory, times are persisted in a batch
+   */
   private void updateLastUsedTime(@NotNull final File dir) {
-    Long timeNano = myLastAccessTime.get(dir);
-    //don't update last used time too often to decrease file-system activity
-    if (timeNano != null && TimeUnit.NANOSECONDS.toMinutes(System.nanoTime() - timeNano) < myConfig.getAccessTimeUpdateRateMinutes()) {
-      return;
-    }
-    Lock rmLock = getRmLock(dir).readLock();
-    rmLock.lock();
-    try {
-      synchronized (getUpdateLastUsedTimeLock(dir)) {
-        File timestamp = new File(dir, "timestamp");
-        if (!dir.exists() && !dir.mkdirs())
-          throw new IOException("Cannot create directory " + dir.getAbsolutePath());
-        if (!timestamp.exists())
-          timestamp.createNewFile();
-        FileUtil.writeFileAndReportErrors(timestamp, String.valueOf(System.currentTimeMillis()));
-        myLastAccessTime.put(dir, System.nanoTime());
-      }
-    } catch (IOException e) {
-      LOG.error("Error while updating timestamp in " + dir.getAbsolutePath(), e);
-    } finally {
-      rmLock.unlock();
-    }
+    myLastUsedTimes.set(dir.getName(), System.currentTimeMillis());
+    myLastUsedTimes.flushIfNeeded();
   }
 
 
   private boolean isDefaultMirrorDir(@NotNull final File dir) {
-    File baseDir = myMirrorManager.getBaseMirrorsDir();
-    return baseDir.equals(dir.getParentFile());
+    File parent = dir.getParentFile();
+    return myBaseMirrorsDir.equals(parent) || parent != null && myBaseMirrorsDir.equals(parent.getParentFile()) && MirrorManagerImpl.isShardName(parent.getName());
   }
 
 
+  /**
+   * Dirs of mirrors are built by the mirror manager from the base mirrors dir, their lock
+   * key is built from the canonical base mirrors dir without file-system calls. Other dirs
+   * are canonicalized.
+   */
   @NotNull
-  private Object getUpdateLastUsedTimeLock(@NotNull File dir) {
-    try {
-      File canonical = dir.getCanonicalFile();
-      return getOrCreate(myUpdateLastUsedTimeLocks, canonical, new Object());
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+  private File getLockKey(@NotNull File dir) {
+    String name = dir.getName();
+    File parent = dir.getParentFile();
+    if (parent != null && !".".equals(name) && !"..".equals(name)) {
+      if (myBaseMirrorsDir.equals(parent))
+        return new File(myCanonicalBaseMirrorsDir, name);
+      if (myBaseMirrorsDir.equals(parent.getParentFile()) && MirrorManagerImpl.isShardName(parent.getName()))
+        return new File(new File(myCanonicalBaseMirrorsDir, parent.getName()), name);
     }
+    return getCanonicalFile(dir);
   }
 
 
   @NotNull
-  public Object getWriteLock(@NotNull final File dir) {
+  private static File getCanonicalFile(@NotNull File dir) {
     try {
-      File canonical = dir.getCanonicalFile();
-      return getOrCreate(myWriteLocks, canonical, new Object());
+      return dir.getCanonicalFile();
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
 
+  @NotNull
+  public Lock getWriteLock(@NotNull final File dir) {
+    return myLocks.get(getLockKey(dir)).getWriteLock();
+  }
+
+
   @NotNull
   public ReadWriteLock getRmLock(@NotNull final File dir) {
-    try {
-      File canonical = dir.getCanonicalFile();
-      return getOrCreate(myRmLocks, canonical, new ReentrantReadWriteLock());
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+    return myLocks.get(getLockKey(dir));
   }
 
 
@@ -271,32 +281,36 @@ public final class RepositoryManagerImpl implements RepositoryManager {
 
   @NotNull
   public Object getCreateLock(File dir) {
-    try {
-      File canonical = dir.getCanonicalFile();
-      return getOrCreate(myCreateLocks, canonical, new Object());
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+    return myLocks.get(getLockKey(dir)).getCreateLock();
   }
 
 
   public void cleanLocksFor(@NotNull final File dir) {
-    try {
-      File canonical = dir.getCanonicalFile();
-      myWriteLocks.remove(canonical);
-      myCreateLocks.remove(canonical);
-      myRmLocks.remove(canonical);
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+    myLocks.remove(getLockKey(dir));
+  }
+
+
+  public void addRemoveListener(@NotNull Consumer<File> listener) {
+    myRemoveListeners.add(listener);
+  }
+
+
+  public void repositoryRemoved(@NotNull File dir) {
+    File key = getLockKey(dir);
+    for (Consumer<File> listener : myRemoveListeners) {
+      listener.accept(key);
     }
   }
 
-  private <K, V> V getOrCreate(ConcurrentMap<K, V> map, K key, V value) {
-    V existing = map.putIfAbsent(key, value);
-    if (existing != null)
-      return existing;
-    else
-      return value;
+
+  @NotNull
+  public File getRepositoryKey(@NotNull File dir) {
+    return getLockKey(dir);
+  }
+
+
+  private void onExclusiveRmLock(@NotNull File dir) {
+    myRepositoryCache.evict(dir);
   }
 
 
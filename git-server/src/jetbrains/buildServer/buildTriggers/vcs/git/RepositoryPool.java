@@ -0,0 +1,284 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of opened repositories.
+ *
+ * Tracks number of usages of the repository. Once it becomes zero
+ * the repository is kept opened, so the next operation reuses its
+ * pack indexes and refs. The number of idle repositories and the time they
+ * stay idle are bounded, least recently used repositories are closed first.
+ * With zero pool size repositories are closed as soon as they are released.
+ *
+ * ThreadSafe, lookups don't take locks.
+ */
+public final class RepositoryPool {
+
+  private static final Logger LOG = Logger.getInstance(RepositoryPool.class.getName());
+  private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+  private final ServerPluginConfig myConfig;
+  private final ConcurrentMap<RepositoryCache.FileKey, PooledRepository> myRepositories = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Repository, PooledRepository> myPooled = new ConcurrentHashMap<>();
+  private final AtomicLong myLastSweepNanos = new AtomicLong(System.nanoTime());
+  private final AtomicLong myHits = new AtomicLong();
+  private final AtomicLong myMisses = new AtomicLong();
+  private final AtomicLong myEvictions = new AtomicLong();
+
+  public RepositoryPool(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+  /**
+   * Returns a repository for the given key or null if repository is not found
+   * in the pool. If repository is found its openCounter is incremented. When the
+   * caller is done with repository it must call {@link #release} method.
+   * @param key repository key
+   * @return see above
+   */
+  @Nullable
+  public Repository get(@NotNull RepositoryCache.FileKey key) {
+    PooledRepository pooled = myRepositories.get(key);
+    if (pooled != null && pooled.acquire()) {
+      myHits.incrementAndGet();
+      return pooled.getRepository();
+    }
+    myMisses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Adds a new repository with the specified key in the pool. Returns the added
+   * repository if there was no repository in the pool associated with the given
+   * key, otherwise existing repository associated with the key is returned
+   * and its openCounter is incremented. When the caller is done with repository
+   * it must call the {@link #release} method.
+   * @param key repository key
+   * @param db repository
+   * @return see above
+   */
+  @NotNull
+  public Repository add(@NotNull RepositoryCache.FileKey key, @NotNull Repository db) {
+    PooledRepository pooled = new PooledRepository(key, db);
+    while (true) {
+      PooledRepository existing = myRepositories.putIfAbsent(key, pooled);
+      if (existing == null) {
+        myPooled.put(db, pooled);
+        return db;
+      }
+      if (existing.acquire()) {
+        if (existing.getRepository() != db)
+          db.close();
+        return existing.getRepository();
+      }
+      //existing repository is being closed, replace it
+      myRepositories.remove(key, existing);
+    }
+  }
+
+  /**
+   * Releases the repository acquired via {@link #add} or {@link #get} method.
+   * Decrements an openCounter for the repository, once it reaches 0 the repository
+   * becomes idle and is closed when it is evicted from the pool. Does nothing if
+   * repository is not found in the pool.
+   * @param db repository to release
+   */
+  public void release(@NotNull Repository db) {
+    PooledRepository pooled = myPooled.get(db);
+    if (pooled == null)
+      return;
+    if (pooled.release()) {
+      if (pooled.isEvicted() || myConfig.getRepositoryPoolSize() <= 0)
+        close(pooled);
+    }
+    evictIdle();
+  }
+
+  /**
+   * Removes all repositories located in the specified dir from the pool. Idle repositories
+   * are closed immediately, repositories in use are closed once they are released.
+   * Should be called before the repository dir is modified in a way opened repositories
+   * cannot handle, e.g. before it is deleted or replaced.
+   * @param dir repository dir
+   */
+  public void evict(@NotNull File dir) {
+    File canonicalDir = getCanonicalFile(dir);
+    for (PooledRepository pooled : myRepositories.values()) {
+      if (!canonicalDir.equals(getCanonicalFile(pooled.getKey().getFile())))
+        continue;
+      pooled.markEvicted();
+      myRepositories.remove(pooled.getKey(), pooled);
+      if (close(pooled))
+        LOG.debug("Closed repository " + dir.getAbsolutePath() + " evicted from the pool");
+    }
+  }
+
+  public long getHits() {
+    return myHits.get();
+  }
+
+  public long getMisses() {
+    return myMisses.get();
+  }
+
+  public long getEvictions() {
+    return myEvictions.get();
+  }
+
+  public int getSize() {
+    return myRepositories.size();
+  }
+
+  @Override
+  public String toString() {
+    return "repositories: " + getSize() + ", hits: " + getHits() + ", misses: " + getMisses() + ", evictions: " + getEvictions();
+  }
+
+  private void evictIdle() {
+    int maxSize = myConfig.getRepositoryPoolSize();
+    long now = System.nanoTime();
+    long lastSweep = myLastSweepNanos.get();
+    boolean sweepExpired = now - lastSweep > SWEEP_INTERVAL_NANOS && myLastSweepNanos.compareAndSet(lastSweep, now);
+    if (!sweepExpired && myRepositories.size() <= maxSize)
+      return;
+
+    long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(myConfig.getRepositoryPoolIdleTimeoutSeconds());
+    List<PooledRepository> idle = new ArrayList<>();
+    for (PooledRepository pooled : myRepositories.values()) {
+      if (pooled.isIdle())
+        idle.add(pooled);
+    }
+    idle.sort(Comparator.comparingLong(PooledRepository::getLastReleaseNanos));
+    int excess = myRepositories.size() - maxSize;
+    for (PooledRepository pooled : idle) {
+      boolean expired = now - pooled.getLastReleaseNanos() > idleTimeoutNanos;
+      if (excess <= 0 && !expired)
+        break;
+      if (close(pooled)) {
+        myEvictions.incrementAndGet();
+        excess--;
+      }
+    }
+    if (sweepExpired && LOG.isDebugEnabled())
+      LOG.debug("Repository pool " + this);
+  }
+
+  @NotNull
+  private static File getCanonicalFile(@NotNull File f) {
+    try {
+      return f.getCanonicalFile();
+    } catch (IOException e) {
+      return f.getAbsoluteFile();
+    }
+  }
+
+  /**
+   * Closes the repository if it is not used
+   * @return true if repository was closed
+   */
+  private boolean close(@NotNull PooledRepository pooled) {
+    if (!pooled.tryClose())
+      return false;
+    myRepositories.remove(pooled.getKey(), pooled);
+    myPooled.remove(pooled.getRepository(), pooled);
+    pooled.getRepository().close();
+    return true;
+  }
+
+  private final static class PooledRepository {
+    private static final int CLOSED = -1;
+    private final RepositoryCache.FileKey myKey;
+    private final Repository myRepository;
+    private final AtomicInteger myOpenCounter = new AtomicInteger(1);
+    private volatile long myLastReleaseNanos = System.nanoTime();
+    private volatile boolean myEvicted;
+
+    PooledRepository(@NotNull RepositoryCache.FileKey key, @NotNull Repository repository) {
+      myKey = key;
+      myRepository = repository;
+    }
+
+    @NotNull
+    RepositoryCache.FileKey getKey() {
+      return myKey;
+    }
+
+    @NotNull
+    Repository getRepository() {
+      return myRepository;
+    }
+
+    long getLastReleaseNanos() {
+      return myLastReleaseNanos;
+    }
+
+    boolean isIdle() {
+      return myOpenCounter.get() == 0;
+    }
+
+    boolean isEvicted() {
+      return myEvicted;
+    }
+
+    void markEvicted() {
+      myEvicted = true;
+    }
+
+    /**
+     * @return false if repository is closed or evicted and cannot be used
+     */
+    boolean acquire() {
+      while (true) {
+        int count = myOpenCounter.get();
+        if (count == CLOSED || myEvicted)
+          return false;
+        if (myOpenCounter.compareAndSet(count, count + 1))
+          return true;
+      }
+    }
+
+    /**
+     * @return true if repository became idle
+     */
+    boolean release() {
+      myLastReleaseNanos = System.nanoTime();
+      return myOpenCounter.decrementAndGet() == 0;
+    }
+
+    boolean tryClose() {
+      return myOpenCounter.compareAndSet(0, CLOSED);
+    }
+  }
+}
@@ -16,12 +16,17 @@
 
 package jetbrains.buildServer.buildTriggers.vcs.git;
 
+import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.RecentEntriesCache;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Objects;
 import java.util.Set;
@@ -31,13 +36,38 @@ import java.util.concurrent.atomic.AtomicLong;
 /**
  * Revisions cache for single repository.
  * ThreadSafe.
+ *
+ * <p>The cache is persisted as an append-only binary journal: every change
+ * appends a fixed-width record (a tag byte followed by a raw 20-byte commit id)
+ * instead of rewriting the whole file. Revisions which are not full commit ids
+ * are stored in a length-prefixed form. Once the journal becomes much longer
+ * than the cache itself, it is compacted into a snapshot of the current cache
+ * entries. Caches written in the old text format ({@code +sha}/{@code -sha}
+ * lines) are migrated on read.
  */
 public final class RepositoryRevisionCache {
+
+  private static final Logger LOG = Logger.getInstance(RepositoryRevisionCache.class.getName());
+
+  private static final byte[] MAGIC = {'T', 'C', 'R', 'C'};
+  private static final byte FORMAT_VERSION = 1;
+
+  private static final byte RECORD_HAS_ID = 1;
+  private static final byte RECORD_MISSING_ID = 2;
+  private static final byte RECORD_HAS_STRING = 3;
+  private static final byte RECORD_MISSING_STRING = 4;
+  private static final byte RECORD_RESET_NEGATIVE = 5;
+
+  private static final int MIN_JOURNAL_RECORDS = 64;
+
   private final ServerPluginConfig myConfig;
   private final File myRepositoryDir;
   private final RevisionCacheType myType;
   private final RecentEntriesCache<String, Boolean> myCache;//revision (SHA) -> does this repository have such revision
   private final AtomicLong myResetCounter = new AtomicLong(0);
+  private final int myMaxJournalRecords;
+  //number of records in the journal on disk, -1 if the journal doesn't reflect the cache state and should be rewritten
+  private int myJournalRecords = -1;
 
   public RepositoryRevisionCache(@NotNull ServerPluginConfig config,
                                  @NotNull File repositoryDir,
@@ -47,6 +77,7 @@ public final class RepositoryRevisionCache {
     myRepositoryDir = repositoryDir;
     myType = type;
     myCache = new RecentEntriesCache<>(cacheSize);
+    myMaxJournalRecords = Math.max(MIN_JOURNAL_RECORDS, 2 * cacheSize);
   }
 
   /**
@@ -65,13 +96,13 @@ public final class RepositoryRevisionCache {
       Boolean existing = hasRevision(revision);
       if (existing == null || has != existing) {
         saveRevision(revision, has);
-        write();
+        append(out -> writeRevision(out, revision, has), 1);
       }
     }
   }
 
 
-  private void saveRevision(@NotNull String revision, boolean has) throws IOException {
+  private void saveRevision(@NotNull String revision, boolean has) {
     myCache.put(revision, has);
   }
 
@@ -89,7 +120,7 @@ public final class RepositoryRevisionCache {
         }
       });
       if (updated.get())
-        write();
+        append(out -> out.writeByte(RECORD_RESET_NEGATIVE), 1);
     }
   }
 
@@ -110,8 +141,13 @@ public final class RepositoryRevisionCache {
       for (String commit : forUpdate) {
         myCache.put(commit, true);
       }
-      if (!forUpdate.isEmpty())
-        write();
+      if (!forUpdate.isEmpty()) {
+        append(out -> {
+          for (String commit : forUpdate) {
+            writeRevision(out, commit, true);
+          }
+        }, forUpdate.size());
+      }
     }
   }
 
@@ -120,6 +156,7 @@ public final class RepositoryRevisionCache {
     synchronized (myCache) {
       myResetCounter.incrementAndGet();
       myCache.clear();
+      myJournalRecords = -1;
       FileUtil.delete(getCacheFile(myRepositoryDir, myType));
     }
   }
@@ -130,24 +167,68 @@ public final class RepositoryRevisionCache {
   }
 
 
-  private void write() throws IOException {
+  /**
+   * Appends records to the journal, rewrites the whole journal if it doesn't
+   * match the cache state or became too long. Should be called under the myCache lock.
+   */
+  private void append(@NotNull RecordsWriter records, int recordsCount) throws IOException {
+    File cache = getCacheFile(myRepositoryDir, myType);
     if (!myConfig.persistentCacheEnabled()) {
-      FileUtil.delete(getCacheFile(myRepositoryDir, myType));
+      myJournalRecords = -1;
+      FileUtil.delete(cache);
       return;
     }
 
+    if (myJournalRecords < 0 || myJournalRecords + recordsCount > myMaxJournalRecords || !cache.isFile()) {
+      compact();
+      return;
+    }
+
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cache, true)))) {
+      records.write(out);
+    } catch (IOException e) {
+      myJournalRecords = -1;
+      throw e;
+    }
+    myJournalRecords += recordsCount;
+  }
+
+
+  /**
+   * Writes the current cache entries into a new journal and atomically replaces the existing one.
+   * Should be called under the myCache lock.
+   */
+  private void compact() throws IOException {
+    myJournalRecords = -1;
     File cache = getCacheFile(myRepositoryDir, myType);
-    cache.getParentFile().mkdirs();
-    try (PrintStream printer = new PrintStream(new BufferedOutputStream(new FileOutputStream(cache)))) {
+    File cachesDir = cache.getParentFile();
+    cachesDir.mkdirs();
+    File tmp = new File(cachesDir, cache.getName() + ".tmp");
+    int[] records = {0};
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+      writeHeader(out);
+      IOException[] error = {null};
       myCache.forEachEntry((revision, contains) -> {
         if (contains != null) {
-          printer.print(contains ? '+' : '-');
-          printer.print(revision);
-          printer.println();
+          try {
+            writeRevision(out, revision, contains);
+          } catch (IOException e) {
+            error[0] = e;
+            return false;
+          }
+          records[0]++;
         }
         return true;
       });
+      if (error[0] != null)
+        throw error[0];
     }
+    FileUtil.delete(cache);
+    if (!tmp.renameTo(cache)) {
+      FileUtil.delete(tmp);
+      throw new IOException("Cannot rename " + tmp.getAbsolutePath() + " to " + cache.getAbsolutePath());
+    }
+    myJournalRecords = records[0];
   }
 
 
@@ -190,27 +271,125 @@ public final class RepositoryRevisionCache {
                                              @NotNull RevisionCacheType type,
                                              int size) throws IOException {
     File cache = getCacheFile(repositoryDir, type);
-    if (cache.isFile()) {
-      RepositoryRevisionCache result = new RepositoryRevisionCache(config, repositoryDir, type, size);
-      for (String line : FileUtil.readFile(cache)) {
-        if (!line.isEmpty()) {
-          char c = line.charAt(0);
-          switch (c) {
-            case '+':
-              result.saveRevision(line.substring(1), true);
+    RepositoryRevisionCache result = new RepositoryRevisionCache(config, repositoryDir, type, size);
+    if (!cache.isFile())
+      return result;
+
+    if (hasBinaryHeader(cache)) {
+      result.readJournal(cache);
+    } else {
+      result.readText(cache);
+      if (config.persistentCacheEnabled()) {
+        LOG.debug("Migrate revisions cache " + cache.getAbsolutePath() + " to binary format");
+        synchronized (result.myCache) {
+          result.compact();
+        }
+      }
+    }
+    return result;
+  }
+
+
+  private void readJournal(@NotNull File cache) throws IOException {
+    int records = 0;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cache)))) {
+      in.skipBytes(MAGIC.length + 1);
+      byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+      while (true) {
+        int tag = in.read();
+        if (tag == -1)
+          break;
+        try {
+          switch (tag) {
+            case RECORD_HAS_ID:
+            case RECORD_MISSING_ID:
+              in.readFully(id);
+              saveRevision(ObjectId.fromRaw(id).name(), tag == RECORD_HAS_ID);
+              break;
+            case RECORD_HAS_STRING:
+            case RECORD_MISSING_STRING:
+              byte[] revision = new byte[in.readUnsignedShort()];
+              in.readFully(revision);
+              saveRevision(new String(revision, StandardCharsets.UTF_8), tag == RECORD_HAS_STRING);
               break;
-            case '-':
-              result.saveRevision(line.substring(1), false);
+            case RECORD_RESET_NEGATIVE:
+              myCache.removeValues(hasValue -> !hasValue);
               break;
             default:
-              throw new IOException("Bad cache line '" + line + "'");
+              throw new IOException("Bad cache record type " + tag + " in " + cache.getAbsolutePath());
           }
+        } catch (EOFException e) {
+          //incomplete last record, e.g. the server was stopped in the middle of a write;
+          //rewrite the journal on next update
+          LOG.debug("Incomplete last record in revisions cache " + cache.getAbsolutePath());
+          return;
         }
+        records++;
+      }
+    }
+    myJournalRecords = records;
+  }
+
+
+  private void readText(@NotNull File cache) throws IOException {
+    for (String line : FileUtil.readFile(cache)) {
+      if (!line.isEmpty()) {
+        char c = line.charAt(0);
+        switch (c) {
+          case '+':
+            saveRevision(line.substring(1), true);
+            break;
+          case '-':
+            saveRevision(line.substring(1), false);
+            break;
+          default:
+            throw new IOException("Bad cache line '" + line + "'");
+        }
+      }
+    }
+  }
+
+
+  private static boolean hasBinaryHeader(@NotNull File cache) throws IOException {
+    byte[] header = new byte[MAGIC.length + 1];
+    try (InputStream in = new FileInputStream(cache)) {
+      int read = 0;
+      while (read < header.length) {
+        int n = in.read(header, read, header.length - read);
+        if (n == -1)
+          return false;
+        read += n;
       }
-      return result;
-    } else {
-      return new RepositoryRevisionCache(config, repositoryDir, type, size);
     }
+    if (!Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC))
+      return false;
+    if (header[MAGIC.length] != FORMAT_VERSION)
+      throw new IOException("Unsupported revisions cache format version " + header[MAGIC.length]);
+    return true;
+  }
+
+
+  private static void writeHeader(@NotNull DataOutputStream out) throws IOException {
+    out.write(MAGIC);
+    out.writeByte(FORMAT_VERSION);
+  }
+
+
+  private static void writeRevision(@NotNull DataOutputStream out, @NotNull String revision, boolean has) throws IOException {
+    if (ObjectId.isId(revision)) {
+      ObjectId id = ObjectId.fromString(revision);
+      if (id.name().equals(revision)) {
+        out.writeByte(has ? RECORD_HAS_ID : RECORD_MISSING_ID);
+        id.copyRawTo(out);
+        return;
+      }
+    }
+    byte[] bytes = revision.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > 0xFFFF)
+      throw new IOException("Revision is too long: " + revision.substring(0, 100) + "...");
+    out.writeByte(has ? RECORD_HAS_STRING : RECORD_MISSING_STRING);
+    out.writeShort(bytes.length);
+    out.write(bytes);
   }
 
 
@@ -219,4 +398,9 @@ public final class RepositoryRevisionCache {
     File cachesDir = new File(repositoryDir, "caches");
     return new File(cachesDir, type.getFileName());
   }
+
+
+  private interface RecordsWriter {
+    void write(@NotNull DataOutputStream out) throws IOException;
+  }
 }
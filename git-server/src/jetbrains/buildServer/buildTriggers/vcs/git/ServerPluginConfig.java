@@ -165,6 +165,83 @@ public interface ServerPluginConfig extends PluginConfig {
 
   boolean shouldSetSubmoduleUserInAbsoluteUrls();
 
+  int getCheckSuitableThreadCount();
+
+  int getRepositoryPoolSize();
+
+  int getRepositoryPoolIdleTimeoutSeconds();
+
+  int getRemoteRefsCacheTtlSeconds();
+
+  int getFetchProcessMaxFetches();
+
+  int getFetchProcessMaxIdle();
+
+  int getFetchProcessIdleTimeoutSeconds();
+
+  int getPatchContentLoaderThreadCount();
+
+  /**
+   * @return max total size in bytes of file contents loaded ahead of the one written to the patch
+   */
+  long getPatchContentLoaderMaxPendingBytes();
+
+  boolean isIncrementalCommitsInfo();
+
+  int getGcThreadCount();
+
+  long getGcConcurrentPackBytesLimit();
+
+  /**
+   * @return waits for repository locks and lock holds longer than this are logged,
+   * negative value disables logging
+   */
+  long getSlowRepositoryLockThresholdMillis();
+
+  /**
+   * @return number of threads collecting changes of commits during a single collect changes
+   */
+  int getCollectChangesThreadCount();
+
+  /**
+   * @return max number of commits per repository in the cache of paths changed by commits,
+   * 0 disables the cache
+   */
+  int getChangedPathsCacheSize();
+
+  /**
+   * @return true if the patch process should write the patch to its stdout so it is
+   * applied while being built, false if the patch should be written to a temporary file
+   */
+  boolean isStreamPatchFromSeparateProcess();
+
+  /**
+   * @return number of bulk patch requests whose changes are computed ahead of the
+   * request being written, 0 builds patches one by one
+   */
+  int getBulkPatchPipelineDepth();
+
+  /**
+   * @return max total size in bytes of blobs shared between bulk patches, 0 disables the cache
+   */
+  long getBulkPatchBlobCacheSize();
+
+  /**
+   * @return max total size in bytes of file contents cached by the content provider, 0 disables the cache
+   */
+  long getFileContentCacheSize();
+
+  /**
+   * @return max size in bytes of a single file content cached by the content provider,
+   * larger files are loaded from the repository on every request
+   */
+  long getFileContentCacheMaxBlobSize();
+
+  /**
+   * @return max total number of entries in trees cached for listing directories, 0 disables the cache
+   */
+  int getListFilesTreeCacheSize();
+
   @NotNull
   List<String> getRecoverableFetchErrorMessages();
 }
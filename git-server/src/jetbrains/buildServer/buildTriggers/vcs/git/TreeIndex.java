@@ -0,0 +1,144 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Server-wide cache of parsed trees used for listing directories.
+ *
+ * <p>Trees are cached by tree id, so roots of the same repository and
+ * different revisions with the same directory share a single parsed tree.
+ * Trees are immutable, so cached trees never become stale and are only
+ * evicted when the total number of cached entries exceeds the limit.
+ *
+ * <p>ThreadSafe.
+ */
+final class TreeIndex {
+
+  private final long myMaxEntries;
+  private final LinkedHashMap<ObjectId, Tree> myTrees = new LinkedHashMap<>(16, 0.75f, true);
+  private long myEntriesCount;
+
+  TreeIndex(long maxEntries) {
+    myMaxEntries = maxEntries;
+  }
+
+
+  /**
+   * @return parsed tree with the specified id, the tree is read using the
+   * specified reader if it is not cached
+   */
+  @NotNull
+  Tree getTree(@NotNull ObjectReader reader, @NotNull AnyObjectId treeId) throws IOException {
+    synchronized (myTrees) {
+      Tree tree = myTrees.get(treeId);
+      if (tree != null)
+        return tree;
+    }
+    Tree tree = Tree.parse(reader, treeId);
+    if (tree.getEntries().size() > myMaxEntries)
+      return tree;
+    synchronized (myTrees) {
+      Tree old = myTrees.put(treeId.copy(), tree);
+      if (old != null)
+        myEntriesCount -= old.getEntries().size();
+      myEntriesCount += tree.getEntries().size();
+      Iterator<Tree> iter = myTrees.values().iterator();
+      while (myEntriesCount > myMaxEntries && iter.hasNext()) {
+        myEntriesCount -= iter.next().getEntries().size();
+        iter.remove();
+      }
+    }
+    return tree;
+  }
+
+
+  static final class Tree {
+    private final List<Entry> myEntries;
+    private final Map<String, Entry> myEntriesByName;
+
+    private Tree(@NotNull List<Entry> entries) {
+      myEntries = Collections.unmodifiableList(entries);
+      myEntriesByName = new HashMap<>(entries.size() * 2);
+      for (Entry e : entries) {
+        myEntriesByName.put(e.getName(), e);
+      }
+    }
+
+    @NotNull
+    private static Tree parse(@NotNull ObjectReader reader, @NotNull AnyObjectId treeId) throws IOException {
+      List<Entry> entries = new ArrayList<>();
+      CanonicalTreeParser parser = new CanonicalTreeParser(null, reader, treeId);
+      while (!parser.eof()) {
+        entries.add(new Entry(parser.getEntryPathString(), parser.getEntryFileMode(), parser.getEntryObjectId()));
+        parser.next();
+      }
+      return new Tree(entries);
+    }
+
+    /**
+     * @return entries in the tree order
+     */
+    @NotNull
+    List<Entry> getEntries() {
+      return myEntries;
+    }
+
+    @Nullable
+    Entry getEntry(@NotNull String name) {
+      return myEntriesByName.get(name);
+    }
+  }
+
+
+  static final class Entry {
+    private final String myName;
+    private final FileMode myMode;
+    private final ObjectId myObjectId;
+
+    private Entry(@NotNull String name, @NotNull FileMode mode, @NotNull ObjectId objectId) {
+      myName = name;
+      myMode = mode;
+      myObjectId = objectId;
+    }
+
+    @NotNull
+    String getName() {
+      return myName;
+    }
+
+    @NotNull
+    FileMode getMode() {
+      return myMode;
+    }
+
+    @NotNull
+    ObjectId getObjectId() {
+      return myObjectId;
+    }
+  }
+}
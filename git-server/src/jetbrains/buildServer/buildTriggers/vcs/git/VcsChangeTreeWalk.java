@@ -43,6 +43,7 @@ public class VcsChangeTreeWalk extends TreeWalk {
 
   private final List<String> myParentCommits = new ArrayList<>(0);
   private final Map<String, List<String>> myPerParentChangedFiles = new HashMap<>();
+  private List<ChangedPathsCache.ChangedPath> myChangedPaths;
 
   public VcsChangeTreeWalk(@NotNull ObjectReader repo,
                            @NotNull String repositoryDebugInfo,
@@ -67,12 +68,38 @@ public class VcsChangeTreeWalk extends TreeWalk {
   }
 
 
+  /**
+   * Makes the walk remember all paths it produces changes for, see {@link #getChangedPaths()}
+   */
+  public void recordChangedPaths() {
+    myChangedPaths = new ArrayList<>();
+  }
+
+
+  /**
+   * @return paths the walk produced changes for in the walk order or null if paths were not recorded
+   */
+  @Nullable
+  public List<ChangedPathsCache.ChangedPath> getChangedPaths() {
+    return myChangedPaths;
+  }
+
+
   @NotNull
   public Map<String, String> buildChangedFilesAttributes() {
-    if (myPerParentChangedFiles.isEmpty())
+    return buildChangedFilesAttributes(myPerParentChangedFiles);
+  }
+
+
+  /**
+   * @param perParentChangedFiles parent commit -> files changed relative to this parent
+   */
+  @NotNull
+  static Map<String, String> buildChangedFilesAttributes(@NotNull Map<String, List<String>> perParentChangedFiles) {
+    if (perParentChangedFiles.isEmpty())
       return Collections.emptyMap();
     Map<String, String> result = new HashMap<>();
-    for (Map.Entry<String, List<String>> entry : myPerParentChangedFiles.entrySet()) {
+    for (Map.Entry<String, List<String>> entry : perParentChangedFiles.entrySet()) {
       String parentCommit = entry.getKey();
       List<String> files = entry.getValue();
       result.put("teamcity.transient.changedFiles." + parentCommit, StringUtil.join("\n", files));
@@ -86,11 +113,22 @@ public class VcsChangeTreeWalk extends TreeWalk {
     final String path = getPathString();
     final ChangeType gitChangeType = classifyChange();
     fillPerParentChangedFiles(path);
+    if (myChangedPaths != null)
+      myChangedPaths.add(new ChangedPathsCache.ChangedPath(path, gitChangeType, getChangedParents()));
 
     if (isExtraDebug())
       LOG.debug("Processing change " + treeWalkInfo(path) + " as " + gitChangeType + " " + myRepositoryDebugInfo);
 
-    VcsChange.Type type = getChangeType(gitChangeType, path);
+    return createVcsChange(getChangeType(gitChangeType, path), gitChangeType, path, currentVersion, parentVersion);
+  }
+
+
+  @Nullable
+  static VcsChange createVcsChange(@NotNull VcsChange.Type type,
+                                   @NotNull ChangeType gitChangeType,
+                                   @NotNull String path,
+                                   @NotNull String currentVersion,
+                                   @NotNull String parentVersion) {
     if (type == VcsChange.Type.NOT_CHANGED) {
       return null;
     } else {
@@ -100,6 +138,19 @@ public class VcsChangeTreeWalk extends TreeWalk {
   }
 
 
+  /**
+   * @return bit mask of parent trees the current entry differs from, bit 0 corresponds to the tree 1
+   */
+  private long getChangedParents() {
+    long result = 0;
+    for (int i = 1; i < getTreeCount() && i <= ChangedPathsCache.MAX_PARENTS; i++) {
+      if (!idEqual(0, i))
+        result |= 1L << (i - 1);
+    }
+    return result;
+  }
+
+
   private void fillPerParentChangedFiles(@NotNull String path) {
     int treeCount = getTreeCount();
     if (!myParentCommits.isEmpty() && myParentCommits.size() == treeCount - 1) {
@@ -177,18 +228,24 @@ public class VcsChangeTreeWalk extends TreeWalk {
 
 
   private VcsChange.Type getChangeType(ChangeType gitChangeType, String path) {
+    if (gitChangeType == ChangeType.DELETED) {
+      TreeFilter filter = getFilter();
+      if (filter instanceof IgnoreSubmoduleErrorsTreeFilter && ((IgnoreSubmoduleErrorsTreeFilter) filter).getBrokenSubmodulePathsInRestTrees().contains(path))
+        return VcsChange.Type.NOT_CHANGED;
+    }
+    return getChangeType(gitChangeType);
+  }
+
+
+  @NotNull
+  static VcsChange.Type getChangeType(@NotNull ChangeType gitChangeType) {
     switch (gitChangeType) {
       case UNCHANGED:
         return VcsChange.Type.NOT_CHANGED;
       case ADDED:
         return VcsChange.Type.ADDED;
       case DELETED:
-        TreeFilter filter = getFilter();
-        if (filter instanceof IgnoreSubmoduleErrorsTreeFilter && ((IgnoreSubmoduleErrorsTreeFilter) filter).getBrokenSubmodulePathsInRestTrees().contains(path)) {
-          return VcsChange.Type.NOT_CHANGED;
-        } else {
-          return VcsChange.Type.REMOVED;
-        }
+        return VcsChange.Type.REMOVED;
       case MODIFIED:
         return VcsChange.Type.CHANGED;
       case FILE_MODE_CHANGED:
@@ -20,6 +20,7 @@ import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.buildTriggers.vcs.git.submodules.SubmodulesConfig;
 import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
@@ -30,6 +31,7 @@ import org.jetbrains.annotations.Nullable;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import static org.eclipse.jgit.lib.Constants.DOT_GIT_MODULES;
@@ -42,8 +44,16 @@ import static org.eclipse.jgit.lib.Constants.DOT_GIT_MODULES;
 public class CommitTreeProcessor {
   private static final Logger LOG = Logger.getInstance(CommitTreeProcessor.class.getName());
 
+  private static final int MAX_CACHED_TREES = 10000;
+
   private final DotGitModulesResolver myModules;
   private final ObjectReader myReader;
+  private final Map<TreeKey, TreeResult> myTreeCache = new LinkedHashMap<TreeKey, TreeResult>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<TreeKey, TreeResult> eldest) {
+      return size() > MAX_CACHED_TREES;
+    }
+  };
 
   public CommitTreeProcessor(@NotNull final DotGitModulesResolver modules,
                              @NotNull final Repository db) {
@@ -78,10 +88,27 @@ public class CommitTreeProcessor {
     };
   }
 
+  /**
+   * Result of the tree depends only on its id, its path and the submodules config
+   * it is processed with, so a subtree which didn't change between commits is read once
+   */
   @NotNull
   private TreeResult processTree(@NotNull final AnyObjectId tree,
                                  @NotNull final String basePathPrefix,
                                  @Nullable final SubmodulesConfig baseConfig) throws IOException {
+    final TreeKey key = new TreeKey(tree, basePathPrefix, baseConfig);
+    TreeResult result = myTreeCache.get(key);
+    if (result == null) {
+      result = readTree(tree, basePathPrefix, baseConfig);
+      myTreeCache.put(key, result);
+    }
+    return result;
+  }
+
+  @NotNull
+  private TreeResult readTree(@NotNull final AnyObjectId tree,
+                              @NotNull final String basePathPrefix,
+                              @Nullable final SubmodulesConfig baseConfig) throws IOException {
     final Map<String, AnyObjectId> pathToSubmoduleHash = new HashMap<String, AnyObjectId>();
     final Map<String, AnyObjectId> childTrees = new HashMap<String, AnyObjectId>();
     SubmodulesConfig submodules = baseConfig;
@@ -109,8 +136,6 @@ public class CommitTreeProcessor {
     for (Map.Entry<String, AnyObjectId> e : childTrees.entrySet()) {
       final String path = e.getKey();
       if (!submodules.containsSubmodule(path)) continue;
-
-      //TODO: may also cache parsed sub-strees as well
       final TreeResult sub = processTree(e.getValue(), path + "/", submodules);
       pathToSubmoduleHash.putAll(sub.getSubmoduleToPath());
     }
@@ -118,6 +143,34 @@ public class CommitTreeProcessor {
     return new TreeResult(pathToSubmoduleHash, submodules);
   }
 
+  private static class TreeKey {
+    private final ObjectId myTree;
+    private final String myPathPrefix;
+    private final SubmodulesConfig myConfig;
+
+    private TreeKey(@NotNull final AnyObjectId tree,
+                    @NotNull final String pathPrefix,
+                    @Nullable final SubmodulesConfig config) {
+      myTree = tree.copy();
+      myPathPrefix = pathPrefix;
+      myConfig = config;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) return true;
+      if (!(o instanceof TreeKey)) return false;
+      final TreeKey other = (TreeKey) o;
+      //configs are cached by DotGitModulesResolver, compare them by identity
+      return myTree.equals(other.myTree) && myPathPrefix.equals(other.myPathPrefix) && myConfig == other.myConfig;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * myTree.hashCode() + myPathPrefix.hashCode();
+    }
+  }
+
   public static final TreeResult EMPTY = new TreeResult(Collections.<String, AnyObjectId>emptyMap(), null);
 
   public static class TreeResult {
@@ -26,11 +26,14 @@ import org.apache.log4j.Logger;
 import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.lib.*;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
 import org.eclipse.jgit.revwalk.RevObject;
 import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.*;
@@ -44,10 +47,12 @@ public class GitCommitsInfoBuilder implements CommitsInfoBuilder, GitServerExten
 
   private final GitVcsSupport myVcs;
   private final GitFetchService myFetchService;
+  private final RepositoryCaches<ReportedCommits> myReportedCommits;
 
   public GitCommitsInfoBuilder(@NotNull GitVcsSupport vcs, @NotNull GitFetchService fetchService) {
     myVcs = vcs;
     myFetchService = fetchService;
+    myReportedCommits = new RepositoryCaches<>(vcs.getRepositoryManager());
     myVcs.addExtension(this);
   }
 
@@ -61,7 +66,15 @@ public class GitCommitsInfoBuilder implements CommitsInfoBuilder, GitServerExten
         //fetch service is called before, so we may re-use results of it to avoid extra CPU waste
         final RepositoryStateData currentStateWithTags = myFetchService.getOrCreateRepositoryState(ctx);
 
-        collect(ctx, ctx.getRepository(), consumer, currentStateWithTags.getBranchRevisions(), gitRoot.isIncludeCommitInfoSubmodules());
+        final boolean includeSubmodules = gitRoot.isIncludeCommitInfoSubmodules();
+        if (!ctx.getPluginConfig().isIncrementalCommitsInfo()) {
+          collect(ctx, ctx.getRepository(), consumer, currentStateWithTags.getBranchRevisions(), null, includeSubmodules);
+          return;
+        }
+        final ReportedCommits reported = getReportedCommits(ctx, gitRoot.getRepositoryDir());
+        final String rootKey = root.getId() + (includeSubmodules ? ":submodules" : "");
+        collect(ctx, ctx.getRepository(), consumer, currentStateWithTags.getBranchRevisions(), reported.getState(rootKey), includeSubmodules);
+        reported.setState(rootKey, currentStateWithTags.getBranchRevisions());
       } catch (Exception e) {
         throw new VcsException(e);
       } finally {
@@ -70,14 +83,27 @@ public class GitCommitsInfoBuilder implements CommitsInfoBuilder, GitServerExten
     });
   }
 
+  @NotNull
+  private ReportedCommits getReportedCommits(@NotNull OperationContext context, @NotNull File repositoryDir) {
+    boolean persistent = context.getPluginConfig().persistentCacheEnabled();
+    return myReportedCommits.get(repositoryDir, dir -> ReportedCommits.read(dir, persistent));
+  }
+
+  /**
+   * Reports commits reachable from the current state. If the previously reported state
+   * is specified, only commits not reachable from it are reported, plus the already
+   * reported commits whose refs have changed, so the consumer gets up-to-date refs.
+   */
   private void collect(@NotNull OperationContext context,
                        @NotNull final Repository db,
                        @NotNull final CommitsConsumer consumer,
                        @NotNull final Map<String, String> currentStateWithTags,
+                       @Nullable final Map<String, String> reportedState,
                        final boolean includeSubmodules) throws IOException {
 
     final ObjectDatabase cached = db.getObjectDatabase().newCachedDatabase();
     final Map<String, Set<String>> index = getCommitToRefIndex(currentStateWithTags);
+    final Map<String, Set<String>> reportedIndex = reportedState != null ? getCommitToRefIndex(reportedState) : null;
 
     final DotGitModulesResolver resolver = new CachedDotGitModulesResolver(new DotGitModulesResolverImpl(db));
     final CommitTreeProcessor proc = new CommitTreeProcessor(resolver, db);
@@ -85,24 +111,47 @@ public class GitCommitsInfoBuilder implements CommitsInfoBuilder, GitServerExten
     final RevWalk walk = new RevWalk(cached.newReader());
 
     try {
-      initWalk(walk, currentStateWithTags);
+      initWalk(walk, currentStateWithTags, reportedIndex != null ? reportedIndex.keySet() : Collections.<String>emptySet());
+      final RevFlag walked = walk.newFlag("walked");
       RevCommit c;
       while ((c = walk.next()) != null) {
-        final CommitDataBean commit = createCommit(c);
-
-        includeRefs(index, commit);
-
-        if (includeSubmodules) {
-          includeSubModules(context, db, proc, c, commit);
-        }
+        c.add(walked);
+        reportCommit(context, db, consumer, index, proc, c, includeSubmodules);
+      }
 
-        consumer.consumeCommit(commit);
+      if (reportedIndex == null) return;
+      final Set<String> tips = new HashSet<String>(index.keySet());
+      tips.addAll(reportedIndex.keySet());
+      for (String tip : tips) {
+        final Set<String> refs = index.get(tip);
+        if (refs != null && refs.equals(reportedIndex.get(tip))) continue;
+        final RevCommit commit = parseCommit(walk, tip);
+        if (commit != null && !commit.has(walked))
+          reportCommit(context, db, consumer, index, proc, commit, includeSubmodules);
       }
     } finally {
       walk.dispose();
     }
   }
 
+  private void reportCommit(@NotNull final OperationContext context,
+                            @NotNull final Repository db,
+                            @NotNull final CommitsConsumer consumer,
+                            @NotNull final Map<String, Set<String>> refIndex,
+                            @NotNull final CommitTreeProcessor proc,
+                            @NotNull final RevCommit c,
+                            final boolean includeSubmodules) {
+    final CommitDataBean commit = createCommit(c);
+
+    includeRefs(refIndex, commit);
+
+    if (includeSubmodules) {
+      includeSubModules(context, db, proc, c, commit);
+    }
+
+    consumer.consumeCommit(commit);
+  }
+
   private void includeSubModules(@NotNull final OperationContext context,
                                  @NotNull final Repository db,
                                  @NotNull final CommitTreeProcessor proc,
@@ -171,21 +220,40 @@ public class GitCommitsInfoBuilder implements CommitsInfoBuilder, GitServerExten
   }
 
   private void initWalk(@NotNull final RevWalk walk,
-                        @NotNull final Map<String, String> currentState) {
+                        @NotNull final Map<String, String> currentState,
+                        @NotNull final Set<String> reportedTips) throws IOException {
     walk.sort(RevSort.TOPO);
 
     for (String tip : new HashSet<String>(currentState.values())) {
-      try {
-        final RevObject obj = walk.parseAny(ObjectId.fromString(tip));
-        if (obj instanceof RevCommit) {
-          walk.markStart((RevCommit) obj);
-        }
-      } catch (MissingObjectException e) {
-        //log
-      } catch (IOException e) {
-        //log
+      final RevCommit commit = parseCommit(walk, tip);
+      if (commit != null) {
+        walk.markStart(commit);
       }
     }
+
+    //commits reachable from the reported tips were already consumed, a tip missing
+    //in the repository (e.g. after the mirror was recreated) makes us report its commits again
+    for (String tip : reportedTips) {
+      final RevCommit commit = parseCommit(walk, tip);
+      if (commit != null) {
+        walk.markUninteresting(commit);
+      }
+    }
+  }
+
+  @Nullable
+  private RevCommit parseCommit(@NotNull final RevWalk walk, @NotNull final String commit) {
+    try {
+      final RevObject obj = walk.parseAny(ObjectId.fromString(commit));
+      return obj instanceof RevCommit ? (RevCommit) obj : null;
+    } catch (MissingObjectException e) {
+      //log
+    } catch (IOException e) {
+      //log
+    } catch (IllegalArgumentException e) {
+      //not a commit id
+    }
+    return null;
   }
 
   @NotNull
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.commitInfo;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.FileUtil;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Repository states already reported by {@link GitCommitsInfoBuilder} for
+ * the roots of a single repository.
+ *
+ * <p>Commits reachable from the reported state were already consumed, so the
+ * next collect walks only commits which are not reachable from it. States
+ * are persisted in the repository caches dir when persistent caches are enabled.
+ *
+ * <p>ThreadSafe.
+ */
+final class ReportedCommits {
+
+  private static final Logger LOG = Logger.getInstance(ReportedCommits.class.getName());
+
+  private static final byte[] MAGIC = {'T', 'C', 'C', 'I'};
+  private static final byte FORMAT_VERSION = 1;
+  private static final String FILE_NAME = "commits-info";
+
+  private final File myRepositoryDir;
+  private final boolean myPersistent;
+  private final Map<String, Map<String, String>> myStates = new HashMap<String, Map<String, String>>();
+
+  private ReportedCommits(@NotNull File repositoryDir, boolean persistent) {
+    myRepositoryDir = repositoryDir;
+    myPersistent = persistent;
+  }
+
+
+  /**
+   * @param rootKey identifies the root
+   * @return map ref name -> commit reported for the root during the last collect,
+   * or null if nothing was reported
+   */
+  @Nullable
+  synchronized Map<String, String> getState(@NotNull String rootKey) {
+    return myStates.get(rootKey);
+  }
+
+
+  /**
+   * Remembers the state whose commits were reported for the root
+   * @param rootKey identifies the root
+   * @param state map ref name -> commit
+   */
+  synchronized void setState(@NotNull String rootKey, @NotNull Map<String, String> state) {
+    Map<String, String> commitState = new HashMap<String, String>();
+    for (Map.Entry<String, String> e : state.entrySet()) {
+      if (ObjectId.isId(e.getValue()))
+        commitState.put(e.getKey(), e.getValue());
+    }
+    myStates.put(rootKey, commitState);
+    write();
+  }
+
+
+  private void write() {
+    File file = getFile(myRepositoryDir);
+    if (!myPersistent) {
+      FileUtil.delete(file);
+      return;
+    }
+    File dir = file.getParentFile();
+    dir.mkdirs();
+    File tmp = new File(dir, file.getName() + ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+        out.write(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        out.writeInt(myStates.size());
+        for (Map.Entry<String, Map<String, String>> root : myStates.entrySet()) {
+          out.writeUTF(root.getKey());
+          out.writeInt(root.getValue().size());
+          for (Map.Entry<String, String> ref : root.getValue().entrySet()) {
+            out.writeUTF(ref.getKey());
+            ObjectId.fromString(ref.getValue()).copyRawTo(out);
+          }
+        }
+      }
+      FileUtil.delete(file);
+      if (!tmp.renameTo(file))
+        throw new IOException("Cannot rename " + tmp.getAbsolutePath() + " to " + file.getAbsolutePath());
+    } catch (IOException e) {
+      FileUtil.delete(tmp);
+      LOG.warnAndDebugDetails("Error while writing reported commits for repository " + myRepositoryDir.getAbsolutePath(), e);
+    }
+  }
+
+
+  /**
+   * @param repositoryDir repository dir
+   * @param persistent if false, states are kept in memory only
+   */
+  @NotNull
+  static ReportedCommits read(@NotNull File repositoryDir, boolean persistent) {
+    ReportedCommits result = new ReportedCommits(repositoryDir, persistent);
+    File file = getFile(repositoryDir);
+    if (!persistent || !file.isFile())
+      return result;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC) || in.readByte() != FORMAT_VERSION)
+        throw new IOException("Unsupported reported commits format");
+      int rootsCount = in.readInt();
+      byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+      for (int i = 0; i < rootsCount; i++) {
+        String rootKey = in.readUTF();
+        int refsCount = in.readInt();
+        Map<String, String> state = new HashMap<String, String>();
+        for (int j = 0; j < refsCount; j++) {
+          String ref = in.readUTF();
+          in.readFully(id);
+          state.put(ref, ObjectId.fromRaw(id).name());
+        }
+        result.myStates.put(rootKey, state);
+      }
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Error while reading reported commits for repository " + repositoryDir.getAbsolutePath() + ", all commits will be reported", e);
+      result.myStates.clear();
+      FileUtil.delete(file);
+    }
+    return result;
+  }
+
+
+  @NotNull
+  private static File getFile(@NotNull File repositoryDir) {
+    return new File(new File(repositoryDir, "caches"), FILE_NAME);
+  }
+}
@@ -17,6 +17,7 @@
 package jetbrains.buildServer.buildTriggers.vcs.git.patch;
 
 import jetbrains.buildServer.buildTriggers.vcs.git.*;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
 import jetbrains.buildServer.vcs.BulkPatchService;
 import jetbrains.buildServer.vcs.CheckoutRules;
 import jetbrains.buildServer.vcs.VcsException;
@@ -30,18 +31,34 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
 
 /**
+ * Builds patches for several requests in one operation context.
+ *
+ * <p>Changes of the next few requests are computed in a separate thread while
+ * the patch for the current request is written, patches are written in the
+ * order of requests. Blobs loaded for patches are shared between requests,
+ * so patches of a burst of builds inflate every file once.
+ *
  * @author Eugene Petrenko (eugene.petrenko@gmail.com)
  */
 public class BulkPatchBuilderImpl implements BulkPatchService, GitServerExtension {
   private final ServerPluginConfig myConfig;
   private final GitVcsSupport myVcs;
+  private final BlobCache<ObjectId> myBlobCache;
 
   public BulkPatchBuilderImpl(@NotNull final ServerPluginConfig config, @NotNull final GitVcsSupport vcs) {
     myConfig = config;
     myVcs = vcs;
+    long blobCacheSize = config.getBulkPatchBlobCacheSize();
+    //patches built for a burst of builds usually contain the same files, inflate every blob once
+    myBlobCache = blobCacheSize > 0 ? new BlobCache<>(blobCacheSize, blobCacheSize / 16) : null;
 
     myVcs.addExtension(this);
   }
@@ -53,38 +70,33 @@ public class BulkPatchBuilderImpl implements BulkPatchService, GitServerExtensio
     final OperationContext ctx = myVcs.createContext(root, "bulk patch " + requests.size() + " commits");
     GitVcsRoot gitRoot = ctx.getGitRoot();
     myVcs.getRepositoryManager().runWithDisabledRemove(gitRoot.getRepositoryDir(), () -> {
+      //contents are loaded in several threads, every thread uses its own reader
+      Map<Thread, ObjectReader> contentsReaders = new ConcurrentHashMap<>();
+      ExecutorService executor = null;
+      Deque<Future<GitPatchBuilder>> preparing = new ArrayDeque<>();
       try {
         final Repository myRepo = ctx.getRepository();
-        final ObjectReader contentsReader = myRepo.getObjectDatabase().newReader();
-        final ObjectReader treesReader = myRepo.getObjectDatabase().newReader();
+        int depth = Math.min(myConfig.getBulkPatchPipelineDepth(), requests.size() - 1);
+        if (depth > 0)
+          executor = Executors.newSingleThreadExecutor(new NamedDaemonThreadFactory("Git bulk patch"));
 
+        Iterator<BulkPatchBuilderRequest> toPrepare = requests.iterator();
         for (BulkPatchBuilderRequest request : requests) {
-          final PatchBuilder patchBuilder = patch.startPatch(request);
+          //the context is not thread-safe: builders are created and changes are computed only in the executor thread,
+          //writing patches doesn't use the context
+          while (executor != null && preparing.size() <= depth && toPrepare.hasNext()) {
+            BulkPatchBuilderRequest next = toPrepare.next();
+            preparing.add(executor.submit(() -> prepare(createPatchBuilder(ctx, rules, next, myRepo, contentsReaders))));
+          }
 
+          final PatchBuilder patchBuilder = patch.startPatch(request);
           final String prevBase = request.getFromVersion();
           final String toBase = request.getToVersion();
-
           try {
-            new GitPatchBuilder(ctx, patchBuilder, prevBase, toBase, rules, myConfig.verboseTreeWalkLog()) {
-              @NotNull
-              @Override
-              protected ObjectReader newObjectReaderForTree() {
-                return treesReader;
-              }
-
-              @NotNull
-              @Override
-              protected ContentLoaderFactory contentLoaderFactory() {
-                return new ContentLoaderFactory() {
-                  @Nullable
-                  public ObjectLoader open(@NotNull final Repository repo, @NotNull final ObjectId id) throws IOException {
-                    assert repo == myRepo;
-                    return contentsReader.open(id);
-                  }
-                };
-              }
-            }.buildPatch();
-
+            GitPatchBuilder builder = executor != null
+                                      ? getResult(preparing.poll())
+                                      : prepare(createPatchBuilder(ctx, rules, request, myRepo, contentsReaders));
+            builder.write(patchBuilder);
           } catch (Throwable e) {
             throw new VcsException("Failed to build patch " + prevBase + " -> " + toBase + ". " + e.getMessage(), e);
           } finally {
@@ -94,8 +106,74 @@ public class BulkPatchBuilderImpl implements BulkPatchService, GitServerExtensio
       } catch (Throwable e) {
         throw new VcsException("Failed to complete bulk patch." + e.getMessage(), e);
       } finally {
+        if (executor != null) {
+          for (Future<GitPatchBuilder> f : preparing) {
+            f.cancel(true);
+          }
+          executor.shutdownNow();
+          try {
+            //don't release readers and close the context while changes are computed
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        for (ObjectReader reader : contentsReaders.values()) {
+          reader.release();
+        }
         ctx.close();
       }
     });
   }
+
+
+  @NotNull
+  private GitPatchBuilder createPatchBuilder(@NotNull OperationContext ctx,
+                                             @NotNull CheckoutRules rules,
+                                             @NotNull BulkPatchBuilderRequest request,
+                                             @NotNull Repository repo,
+                                             @NotNull Map<Thread, ObjectReader> contentsReaders) throws VcsException {
+    return new GitPatchBuilder(ctx, request.getFromVersion(), request.getToVersion(), rules, myConfig.verboseTreeWalkLog()) {
+      @NotNull
+      @Override
+      protected ContentLoaderFactory contentLoaderFactory() {
+        return new ContentLoaderFactory() {
+          @Nullable
+          public ObjectLoader open(@NotNull final Repository r, @NotNull final ObjectId id) throws IOException {
+            if (r != repo)
+              return r.open(id); //submodule repository
+            return contentsReaders.computeIfAbsent(Thread.currentThread(), t -> repo.getObjectDatabase().newReader()).open(id);
+          }
+        };
+      }
+
+      @Nullable
+      @Override
+      BlobCache<ObjectId> blobCache() {
+        return myBlobCache;
+      }
+    };
+  }
+
+
+  @NotNull
+  private static GitPatchBuilder prepare(@NotNull GitPatchBuilder builder) throws Exception {
+    builder.prepare();
+    return builder;
+  }
+
+
+  @NotNull
+  private static GitPatchBuilder getResult(@NotNull Future<GitPatchBuilder> prepared) throws Exception {
+    try {
+      return prepared.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception)
+        throw (Exception) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw e;
+    }
+  }
 }
@@ -33,7 +33,6 @@ import org.jetbrains.annotations.Nullable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Callable;
 
 public class GitPatchBuilder {
 
@@ -42,7 +41,8 @@ public class GitPatchBuilder {
   private final OperationContext myContext;
   private final GitVcsRoot myGitRoot;
   private final PatchBuilder myBuilder;
-  private final List<Callable<Void>> myActions = new ArrayList<Callable<Void>>();
+  private final List<String> myDeletedFiles = new ArrayList<String>();
+  private final List<ChangedFile> myChangedFiles = new ArrayList<ChangedFile>();
   private final String myFromRevision;
   private final String myToRevision;
   private final CheckoutRules myRules;
@@ -52,6 +52,8 @@ public class GitPatchBuilder {
   private Repository myRepository;
   private VcsChangeTreeWalk myTreeWalk;
   private final boolean myVerboseTreeWalkLog;
+  private PatchBuilder myStreamingBuilder;
+  private ParallelContentLoader myStreamingLoader;
 
   public GitPatchBuilder(@NotNull OperationContext context,
                          @NotNull PatchBuilder builder,
@@ -81,7 +83,50 @@ public class GitPatchBuilder {
     myFileAction = patchFileAction;
   }
 
+  /**
+   * Creates a builder whose patch is written using {@link #write}
+   */
+  GitPatchBuilder(@NotNull OperationContext context,
+                  @Nullable String fromRevision,
+                  @NotNull String toRevision,
+                  @NotNull CheckoutRules rules,
+                  boolean verboseTreeWalkLog) throws VcsException {
+    myContext = context;
+    myGitRoot = context.getGitRoot();
+    myBuilder = null;
+    myFromRevision = fromRevision;
+    myToRevision = toRevision;
+    myRules = rules;
+    myFullCheckout = fromRevision == null;
+    myTreeWalk = null;
+    myVerboseTreeWalkLog = verboseTreeWalkLog;
+    myFileAction = new PatchFileAction();
+  }
+
   public void buildPatch() throws Exception {
+    if (myBuilder == null)
+      throw new IllegalStateException("Patch builder is not specified");
+    //clean patch has no deletes, its files are written during the tree walk
+    myStreamingBuilder = myBuilder;
+    myStreamingLoader = createContentLoader();
+    try {
+      prepare();
+      myStreamingLoader.finish();
+      write(myBuilder);
+    } finally {
+      myStreamingLoader.close();
+      myStreamingLoader = null;
+      myStreamingBuilder = null;
+    }
+  }
+
+  /**
+   * Computes changes between revisions without writing anything to the patch
+   * (files of a clean patch built by {@link #buildPatch} are written right away).
+   * Uses the operation context, so it must not run concurrently with other
+   * operations in the same context.
+   */
+  void prepare() throws Exception {
     myLogger = new BuildPatchLogger(LOG, myGitRoot.debugInfo(), myVerboseTreeWalkLog);
     myRepository = myContext.getRepository();
     try {
@@ -91,13 +136,33 @@ public class GitPatchBuilder {
       addToCommitTree();
       addFromCommitTree();
       walkTree();
-      finish();
     } finally {
       if (myTreeWalk != null)
         myTreeWalk.release();
     }
   }
 
+  /**
+   * Writes changes computed by {@link #prepare} to the specified builder:
+   * deleted files in the order of the tree walk followed by changed files
+   */
+  void write(@NotNull PatchBuilder builder) throws Exception {
+    for (String mappedFile : myDeletedFiles) {
+      builder.deleteFile(GitUtils.toFile(mappedFile), true);
+    }
+    if (myChangedFiles.isEmpty())
+      return;
+    ParallelContentLoader loader = createContentLoader();
+    try {
+      for (ChangedFile file : myChangedFiles) {
+        loader.add(getLoadContentAction(builder, file.myRepository, file.myPath, file.myMappedPath, file.myMode, file.myId));
+      }
+      loader.finish();
+    } finally {
+      loader.close();
+    }
+  }
+
   @NotNull
   protected ObjectReader newObjectReaderForTree() {
     return myRepository.newObjectReader();
@@ -165,12 +230,12 @@ public class GitPatchBuilder {
     if (mode != null)
       myLogger.logFileModeChanged(mode, myTreeWalk.treeWalkInfo(path));
     ObjectId id = myTreeWalk.getObjectId(0);
-    LoadContentAction loadContent = getLoadContentAction(path, mappedPath, mode, id);
-    if (myFullCheckout) {
-      loadContent.call();// full checkout, we aren't going to see any deletes
-    } else {
+    if (!myFullCheckout)
       myFileAction.call("-", mappedPath);
-      myActions.add(loadContent);
+    if (myFullCheckout && myStreamingLoader != null) {
+      myStreamingLoader.add(getLoadContentAction(myStreamingBuilder, getRepositoryOfTree(), path, mappedPath, mode, id));
+    } else {
+      myChangedFiles.add(new ChangedFile(getRepositoryOfTree(), path, mappedPath, mode, id));
     }
   }
 
@@ -183,37 +248,52 @@ public class GitPatchBuilder {
 
 
   @NotNull
-  protected LoadContentAction getLoadContentAction(@NotNull final String path,
+  protected LoadContentAction getLoadContentAction(@NotNull final PatchBuilder builder,
+                                                   @NotNull final Repository repository,
+                                                   @NotNull final String path,
                                                    @NotNull final String mappedPath,
                                                    final String mode,
                                                    @NotNull final ObjectId id) {
-    final Repository repository = getRepositoryOfTree();
     return new LoadContentAction(
       contentLoaderFactory(),
       myGitRoot,
-      myBuilder,
+      builder,
       myLogger,
       myFileAction,
       repository,
       id,
       path,
       mappedPath,
-      mode);
+      mode,
+      blobCache());
   }
 
+  /**
+   * @return factory used to load file contents, contents can be loaded from several threads,
+   * so the factory must be thread-safe
+   */
   @NotNull
   protected ContentLoaderFactory contentLoaderFactory() {
     return CONTENT_LOADER_FACTORY;
   }
 
-  private void deleteFile(@NotNull String mappedFile) throws IOException {
+  /**
+   * @return cache of blobs shared with other patches or null if blobs are not shared
+   */
+  @Nullable
+  BlobCache<ObjectId> blobCache() {
+    return null;
+  }
+
+  private void deleteFile(@NotNull String mappedFile) {
     myFileAction.call("DELETE", mappedFile);
-    myBuilder.deleteFile(GitUtils.toFile(mappedFile), true);
+    myDeletedFiles.add(mappedFile);
   }
 
-  private void finish() throws Exception {
-    for (Callable<Void> action : myActions)
-      action.call();
+  @NotNull
+  private ParallelContentLoader createContentLoader() {
+    ServerPluginConfig config = myContext.getPluginConfig();
+    return new ParallelContentLoader(config.getPatchContentLoaderThreadCount(), config.getPatchContentLoaderMaxPendingBytes());
   }
 
   private Repository getRepositoryOfTree() {
@@ -227,4 +307,23 @@ public class GitPatchBuilder {
     return result;
   }
 
+  private static final class ChangedFile {
+    private final Repository myRepository;
+    private final String myPath;
+    private final String myMappedPath;
+    private final String myMode;
+    private final ObjectId myId;
+
+    private ChangedFile(@NotNull Repository repository,
+                        @NotNull String path,
+                        @NotNull String mappedPath,
+                        @Nullable String mode,
+                        @NotNull ObjectId id) {
+      myRepository = repository;
+      myPath = path;
+      myMappedPath = mappedPath;
+      myMode = mode;
+      myId = id;
+    }
+  }
 }
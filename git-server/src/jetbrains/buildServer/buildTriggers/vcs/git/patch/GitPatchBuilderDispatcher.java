@@ -26,6 +26,7 @@ import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.ssh.TeamCitySshKey;
 import jetbrains.buildServer.ssh.VcsRootSshKeyManager;
 import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
 import jetbrains.buildServer.vcs.CheckoutRules;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsUtil;
@@ -40,11 +41,17 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 
 public final class GitPatchBuilderDispatcher {
 
   private final static Logger LOG = Logger.getInstance(GitPatchBuilderDispatcher.class.getName());
+  private final static int PATCH_PIPE_BUFFER_SIZE = 1024 * 1024;
 
   private final ServerPluginConfig myConfig;
   private final VcsRootSshKeyManager mySshKeyManager;
@@ -87,6 +94,82 @@ public final class GitPatchBuilderDispatcher {
   }
 
   private void buildPatchInSeparateProcess() throws Exception {
+    if (myConfig.isStreamPatchFromSeparateProcess()) {
+      streamPatchFromSeparateProcess();
+    } else {
+      buildPatchInSeparateProcessToFile();
+    }
+  }
+
+  /**
+   * The patch process writes the patch to its stdout, the patch is applied while
+   * it is being built. Process output is passed through a bounded pipe, so a slow
+   * consumer blocks the patch process rather than the patch being buffered.
+   */
+  private void streamPatchFromSeparateProcess() throws Exception {
+    GeneralCommandLine patchCmd = createPatchCommandLine();
+    File internalProperties = getPatchPropertiesFile();
+    PatchPipe pipe = new PatchPipe(PATCH_PIPE_BUFFER_SIZE);
+    //the process output is idle while a slow consumer blocks the pipe, the idle timeout is checked by the watchdog below
+    PatchProcessEventsHandler handler = new PatchProcessEventsHandler(null);
+    ExecutorService executor = Executors.newFixedThreadPool(2, new NamedDaemonThreadFactory("Git patch process"));
+    try {
+      byte[] patchProcessInput = getInput(null, internalProperties);
+      ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+      Future<ExecResult> process = executor.submit(() -> {
+        try {
+          return SimpleCommandLineProcessRunner.runCommandSecure(patchCmd, patchCmd.getCommandLineString(), patchProcessInput,
+                                                                 handler, pipe.getOutput(), stderr);
+        } finally {
+          pipe.closeWriter();
+        }
+      });
+      int idleTimeoutSeconds = myConfig.getPatchProcessIdleTimeoutSeconds();
+      if (idleTimeoutSeconds > 0)
+        executor.submit(() -> destroyIdleProcess(process, pipe, handler, idleTimeoutSeconds));
+      try {
+        new LowLevelPatcher(pipe.getInput()).applyPatch(new NoExitLowLevelPatchTranslator(((PatchBuilderEx)myBuilder).getLowLevelBuilder()));
+      } catch (Exception e) {
+        pipe.closeReader();
+        if (handler.destroyProcess() && !handler.isIdleTimeoutExceeded()) {
+          //the process was killed, its exit code doesn't say anything
+          throw e;
+        }
+        //the patch can be broken because the process failed, report the process error if any
+        try {
+          checkPatchProcessResult(getResult(process), handler);
+        } catch (Exception processError) {
+          processError.addSuppressed(e);
+          throw processError;
+        }
+        throw e;
+      }
+      //drain the rest of the output if any
+      pipe.closeReader();
+      checkPatchProcessResult(getResult(process), handler);
+    } finally {
+      executor.shutdownNow();
+      FileUtil.delete(internalProperties);
+    }
+  }
+
+  @Nullable
+  private static Void destroyIdleProcess(@NotNull Future<ExecResult> process,
+                                         @NotNull PatchPipe pipe,
+                                         @NotNull PatchProcessEventsHandler handler,
+                                         int idleTimeoutSeconds) throws InterruptedException {
+    long timeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+    while (!process.isDone()) {
+      if (pipe.getWriterIdleNanos() > timeoutNanos) {
+        handler.destroyIdleProcess();
+        return null;
+      }
+      Thread.sleep(Math.min(1000, TimeUnit.SECONDS.toMillis(idleTimeoutSeconds)));
+    }
+    return null;
+  }
+
+  private void buildPatchInSeparateProcessToFile() throws Exception {
     GeneralCommandLine patchCmd = createPatchCommandLine();
     File patchFile = FileUtil.createTempFile("git", "patch");
     File internalProperties = getPatchPropertiesFile();
@@ -96,17 +179,8 @@ public final class GitPatchBuilderDispatcher {
       ByteArrayOutputStream stdout = new LineAwareByteArrayOutputStream(Charset.forName("UTF-8"), listener, false);
       ByteArrayOutputStream stderr = new ByteArrayOutputStream();
       ExecResult result = SimpleCommandLineProcessRunner.runCommandSecure(patchCmd, patchCmd.getCommandLineString(), patchProcessInput,
-                                                                          new PatchProcessEventsHandler(), stdout, stderr);
-      if (GitServerUtil.isCannotCreateJvmError(result)) {
-        String configuredXmx = myConfig.getExplicitFetchProcessMaxMemory();
-        Long xmxBytes = GitServerUtil.convertMemorySizeToBytes(configuredXmx);
-        Long physicalMemory = GitServerUtil.getFreePhysicalMemorySize();
-        if (xmxBytes != null && physicalMemory != null && xmxBytes > physicalMemory)
-          LOG.warn("Not enough memory for git patch, teamcity.git.fetch.process.max.memory=" + configuredXmx);
-      }
-      VcsException patchError = CommandLineUtil.getCommandLineError("build patch", result);
-      if (patchError != null)
-        throw patchError;
+                                                                          new PatchProcessEventsHandler(myConfig.getPatchProcessIdleTimeoutSeconds()), stdout, stderr);
+      checkPatchProcessResult(result, null);
       new LowLevelPatcher(new FileInputStream(patchFile)).applyPatch(new NoExitLowLevelPatchTranslator(((PatchBuilderEx)myBuilder).getLowLevelBuilder()));
     } finally {
       FileUtil.delete(patchFile);
@@ -114,6 +188,35 @@ public final class GitPatchBuilderDispatcher {
     }
   }
 
+  @NotNull
+  private static ExecResult getResult(@NotNull Future<ExecResult> process) throws Exception {
+    try {
+      return process.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception)
+        throw (Exception) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw e;
+    }
+  }
+
+  private void checkPatchProcessResult(@NotNull ExecResult result, @Nullable PatchProcessEventsHandler handler) throws VcsException {
+    if (handler != null && handler.isIdleTimeoutExceeded())
+      throw new VcsException("Git patch process produced no output for " + myConfig.getPatchProcessIdleTimeoutSeconds() + " seconds and was killed");
+    if (GitServerUtil.isCannotCreateJvmError(result)) {
+      String configuredXmx = myConfig.getExplicitFetchProcessMaxMemory();
+      Long xmxBytes = GitServerUtil.convertMemorySizeToBytes(configuredXmx);
+      Long physicalMemory = GitServerUtil.getFreePhysicalMemorySize();
+      if (xmxBytes != null && physicalMemory != null && xmxBytes > physicalMemory)
+        LOG.warn("Not enough memory for git patch, teamcity.git.fetch.process.max.memory=" + configuredXmx);
+    }
+    VcsException patchError = CommandLineUtil.getCommandLineError("build patch", result);
+    if (patchError != null)
+      throw patchError;
+  }
+
   @NotNull
   private File getPatchPropertiesFile() throws IOException {
     File internalProperties = FileUtil.createTempFile("gitPatch", "props");
@@ -121,7 +224,10 @@ public final class GitPatchBuilderDispatcher {
     return internalProperties;
   }
 
-  private byte[] getInput(@NotNull File patchFile, @NotNull File internalProperties) throws IOException {
+  /**
+   * @param patchFile file to write the patch to, if null the patch is written to stdout
+   */
+  private byte[] getInput(@Nullable File patchFile, @NotNull File internalProperties) throws IOException {
     Map<String, String> props = new HashMap<String, String>();
     props.put(Constants.FETCHER_INTERNAL_PROPERTIES_FILE, internalProperties.getCanonicalPath());
     if (myFromRevision != null)
@@ -129,7 +235,8 @@ public final class GitPatchBuilderDispatcher {
     props.put(Constants.PATCHER_TO_REVISION, myToRevision);
     props.put(Constants.PATCHER_CHECKOUT_RULES, myRules.getAsString());
     props.put(Constants.PATCHER_CACHES_DIR, myConfig.getCachesDir().getCanonicalPath());
-    props.put(Constants.PATCHER_PATCH_FILE, patchFile.getCanonicalPath());
+    if (patchFile != null)
+      props.put(Constants.PATCHER_PATCH_FILE, patchFile.getCanonicalPath());
     props.put(Constants.PATCHER_UPLOADED_KEY, getUploadedKey());
     props.put(Constants.VCS_DEBUG_ENABLED, String.valueOf(Loggers.VCS.isDebugEnabled()));
     props.putAll(myGitRoot.getProperties());
@@ -143,6 +250,8 @@ public final class GitPatchBuilderDispatcher {
     result.putAll(myConfig.getFetcherProperties());
     result.put("teamcity.git.fetch.separate.process", "false");
     result.put(PluginConfigImpl.MAP_FULL_PATH_PERSISTENT_CACHES, "false");
+    result.put(PluginConfigImpl.PATCH_CONTENT_LOADER_THREADS, String.valueOf(myConfig.getPatchContentLoaderThreadCount()));
+    result.put(PluginConfigImpl.PATCH_CONTENT_LOADER_MAX_PENDING_MB, String.valueOf(myConfig.getPatchContentLoaderMaxPendingBytes() / (1024 * 1024)));
     return result;
   }
 
@@ -176,10 +285,52 @@ public final class GitPatchBuilderDispatcher {
 
 
   private final class PatchProcessEventsHandler extends SimpleCommandLineProcessRunner.RunCommandEventsAdapter {
+    private final Integer myIdleTimeoutSeconds;
+    private volatile Process myProcess;
+    private volatile boolean myDestroyed;
+    private volatile boolean myIdleTimeoutExceeded;
+
+    /**
+     * @param idleTimeoutSeconds output idle timeout checked by the process runner, null disables the check
+     */
+    private PatchProcessEventsHandler(@Nullable Integer idleTimeoutSeconds) {
+      myIdleTimeoutSeconds = idleTimeoutSeconds;
+    }
+
     @Nullable
     @Override
     public Integer getOutputIdleSecondsTimeout() {
-      return myConfig.getPatchProcessIdleTimeoutSeconds();
+      return myIdleTimeoutSeconds;
+    }
+
+    @Override
+    public void onProcessStarted(@NotNull Process ps) {
+      myProcess = ps;
+      if (myDestroyed)
+        ps.destroy();
+    }
+
+    /**
+     * @return true if the process didn't finish by itself and was killed
+     */
+    boolean destroyProcess() {
+      myDestroyed = true;
+      Process process = myProcess;
+      if (process == null)
+        return true;
+      if (!process.isAlive())
+        return false;
+      process.destroy();
+      return true;
+    }
+
+    void destroyIdleProcess() {
+      myIdleTimeoutExceeded = true;
+      destroyProcess();
+    }
+
+    boolean isIdleTimeoutExceeded() {
+      return myIdleTimeoutExceeded;
     }
   }
 
@@ -34,9 +34,20 @@ import java.util.Map;
 
 public class GitPatchProcess {
 
+  private static final int PATCH_BUFFER_SIZE = 64 * 1024;
+
   public static void main(String... args) throws Exception {
     Map<String, String> properties = VcsUtil.stringToProperties(GitServerUtil.readInput());
     GitPatchProcessSettings settings = new GitPatchProcessSettings(properties);
+    File patchFile = settings.getPatchFile();
+    OutputStream patchOut;
+    if (patchFile != null) {
+      patchOut = new FileOutputStream(patchFile);
+    } else {
+      //stdout is used for the patch, everything else should be written to stderr
+      patchOut = new FileOutputStream(FileDescriptor.out);
+      System.setOut(System.err);
+    }
     GitServerUtil.configureInternalProperties(settings.getInternalProperties());
     GitServerUtil.configureStreamFileThreshold(Integer.MAX_VALUE);
     GitServerUtil.configureExternalProcessLogger(settings.isDebugEnabled());
@@ -51,17 +62,24 @@ public class GitPatchProcess {
     CommitLoader commitLoader = new CommitLoaderImpl(repositoryManager, fetchCommand, mapFullPath);
 
     OperationContext context = new OperationContext(commitLoader, repositoryManager, settings.getRoot(), "build patch", GitProgress.NO_OP, config);
-    OutputStream fos = new BufferedOutputStream(new FileOutputStream(settings.getPatchFile()));
+    OutputStream fos = new BufferedOutputStream(patchOut, PATCH_BUFFER_SIZE);
     try {
-      PatchBuilderImpl patchBuilder = new PatchBuilderImpl(fos);
-      new GitPatchBuilder(context,
-                          patchBuilder,
-                          settings.getFromRevision(),
-                          settings.getToRevision(),
-                          settings.getCheckoutRules(),
-                          settings.isVerboseTreeWalkLog(),
-                          new PrintFile()).buildPatch();
-      patchBuilder.close();
+      try {
+        PatchBuilderImpl patchBuilder = new PatchBuilderImpl(fos);
+        //the patch written to stdout keeps the process output from being idle,
+        //files are printed only when the patch is written to a file
+        new GitPatchBuilder(context,
+                            patchBuilder,
+                            settings.getFromRevision(),
+                            settings.getToRevision(),
+                            settings.getCheckoutRules(),
+                            settings.isVerboseTreeWalkLog(),
+                            patchFile != null ? new PrintFile() : new PatchFileAction()).buildPatch();
+        patchBuilder.close();
+      } finally {
+        //times are flushed in a batch, persist times of mirrors used by the process before it exits
+        repositoryManager.flushLastUsedTimes();
+      }
     } catch (Throwable t) {
       if (settings.isDebugEnabled() || isImportant(t)) {
         System.err.println(t.getMessage());
@@ -177,12 +195,10 @@ public class GitPatchProcess {
       return new File(result);
     }
 
-    @NotNull
+    @Nullable
     private File readPatchFile(@NotNull Map<String, String> props) {
       String result = props.remove(Constants.PATCHER_PATCH_FILE);
-      if (result == null)
-        throw new IllegalArgumentException("patch file is not specified");
-      return new File(result);
+      return result != null ? new File(result) : null;
     }
 
     private byte[] readKeyBytes(@NotNull Map<String, String> props) {
@@ -234,7 +250,10 @@ public class GitPatchProcess {
       return myGitCachesDir;
     }
 
-    @NotNull
+    /**
+     * @return file to write the patch to, null if the patch should be written to stdout
+     */
+    @Nullable
     public File getPatchFile() {
       return myPatchFile;
     }
@@ -16,10 +16,12 @@
 
 package jetbrains.buildServer.buildTriggers.vcs.git.patch;
 
+import jetbrains.buildServer.buildTriggers.vcs.git.BlobCache;
 import jetbrains.buildServer.buildTriggers.vcs.git.GitUtils;
 import jetbrains.buildServer.buildTriggers.vcs.git.GitVcsRoot;
 import jetbrains.buildServer.vcs.patches.PatchBuilder;
 import jetbrains.buildServer.vcs.patches.PatchBuilderContentInputStream;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectLoader;
 import org.eclipse.jgit.lib.Repository;
@@ -28,6 +30,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.concurrent.Callable;
@@ -46,6 +49,7 @@ public class LoadContentAction implements Callable<Void> {
   private final String myPath;
   private final String myMappedPath;
   private final String myMode;
+  @Nullable private final BlobCache<ObjectId> myBlobCache;
 
   public LoadContentAction(@NotNull final ContentLoaderFactory contentFactory,
                            final GitVcsRoot root,
@@ -57,6 +61,20 @@ public class LoadContentAction implements Callable<Void> {
                            final String path,
                            final String mappedPath,
                            final String mode) {
+    this(contentFactory, root, builder, logger, fileAction, repository, objectId, path, mappedPath, mode, null);
+  }
+
+  public LoadContentAction(@NotNull final ContentLoaderFactory contentFactory,
+                           final GitVcsRoot root,
+                           final PatchBuilder builder,
+                           final BuildPatchLogger logger,
+                           final PatchFileAction fileAction,
+                           final Repository repository,
+                           final ObjectId objectId,
+                           final String path,
+                           final String mappedPath,
+                           final String mode,
+                           @Nullable final BlobCache<ObjectId> blobCache) {
     myContentFactory = contentFactory;
     myRoot = root;
     myBuilder = builder;
@@ -67,35 +85,39 @@ public class LoadContentAction implements Callable<Void> {
     myPath = path;
     myMappedPath = mappedPath;
     myMode = mode;
+    myBlobCache = blobCache;
   }
 
   public Void call() throws Exception {
+    write(new Callable<LoadedContent>() {
+      public LoadedContent call() throws Exception {
+        return load();
+      }
+    });
+    return null;
+  }
+
+  /**
+   * Loads the content using the content loader factory. Can be called from
+   * any thread if the factory is thread-safe, the result should be passed
+   * to {@link #write}.
+   */
+  @NotNull
+  LoadedContent load() throws IOException {
+    return load(getObjectLoader());
+  }
+
+  /**
+   * Adds the content provided by the specified callable to the patch
+   */
+  void write(@NotNull Callable<LoadedContent> content) throws Exception {
     myFileAction.call("CREATE", myMappedPath);
     InputStream objectStream = null;
-    final long size;
     try {
-      final ObjectLoader loader = getObjectLoader();
-      if (myRoot.isIncludeContentHashes()) {
-        size = loader.getSize();
-        objectStream = new LazyInputStream() {
-          @NotNull
-          @Override
-          protected InputStream openStream() throws IOException {
-            return LoadContentAction.this.openContentStream(loader);
-          }
-
-          @Nullable
-          @Override
-          public String getContentHash() {
-            return myObjectId.toObjectId().name();
-          }
-        };
-      } else {
-        size = getStreamSize(myRoot, loader);
-        objectStream = getObjectStream(myRoot, loader);
-      }
-      myBuilder.changeOrCreateBinaryFile(GitUtils.toFile(myMappedPath), myMode, objectStream, size);
-      myLogger.logAddFile(myMappedPath, size);
+      LoadedContent loaded = content.call();
+      objectStream = loaded.openStream();
+      myBuilder.changeOrCreateBinaryFile(GitUtils.toFile(myMappedPath), myMode, objectStream, loaded.getSize());
+      myLogger.logAddFile(myMappedPath, loaded.getSize());
     } catch (Error e) {
       myLogger.cannotLoadFile(myPath, myObjectId);
       throw e;
@@ -106,14 +128,69 @@ public class LoadContentAction implements Callable<Void> {
       if (objectStream != null)
         objectStream.close();
     }
-    return null;
+  }
+
+  @NotNull
+  private LoadedContent load(@NotNull final ObjectLoader loader) throws IOException {
+    if (myRoot.isIncludeContentHashes()) {
+      return new LoadedContent(loader.getSize(), null) {
+        @NotNull
+        @Override
+        InputStream openStream() {
+          return new LazyInputStream() {
+            @NotNull
+            @Override
+            protected InputStream openStream() throws IOException {
+              return LoadContentAction.this.openContentStream(loader);
+            }
+
+            @Nullable
+            @Override
+            public String getContentHash() {
+              return myObjectId.toObjectId().name();
+            }
+          };
+        }
+      };
+    }
+    if (loader.isLarge()) {
+      return new LoadedContent(getStreamSize(myRoot, loader), null) {
+        @NotNull
+        @Override
+        InputStream openStream() throws IOException {
+          return getObjectStream(myRoot, loader);
+        }
+      };
+    }
+    byte[] bytes = loader.getCachedBytes();
+    if (myRoot.isAutoCrlf())
+      bytes = convertLineSeparators(bytes);
+    return new LoadedContent(bytes.length, bytes);
   }
 
   @NotNull
   protected ObjectLoader getObjectLoader() throws IOException {
-    ObjectLoader loader = myContentFactory.open(myRepository, myObjectId);
+    ObjectLoader loader = getCachedLoader();
+    if (loader != null)
+      return loader;
+    loader = myContentFactory.open(myRepository, myObjectId);
     if (loader == null)
       throw new IOException("Unable to find blob " + myObjectId.name() + (myPath == null ? "" : "(" + myPath + ")") + " in repository " + myRepository);
+    return cache(loader);
+  }
+
+  @Nullable
+  private ObjectLoader getCachedLoader() {
+    if (myBlobCache == null)
+      return null;
+    byte[] bytes = myBlobCache.get(myObjectId);
+    return bytes != null ? new ObjectLoader.SmallObject(Constants.OBJ_BLOB, bytes) : null;
+  }
+
+  @NotNull
+  private ObjectLoader cache(@NotNull ObjectLoader loader) throws IOException {
+    if (myBlobCache != null && !loader.isLarge())
+      myBlobCache.put(myObjectId, loader.getCachedBytes());
     return loader;
   }
 
@@ -126,7 +203,7 @@ public class LoadContentAction implements Callable<Void> {
       objectStream = openContentStream(loader);
       objectStream = new AutoCRLFInputStream(objectStream, true);
       int count;
-      int size = 0;
+      long size = 0;
       byte[] buf = new byte[8096];
       while ((count = objectStream.read(buf)) != -1) {
         size += count;
@@ -138,6 +215,26 @@ public class LoadContentAction implements Callable<Void> {
     }
   }
 
+  /**
+   * Converts content of a small object in memory, so it is read only once
+   * to compute both its size and the patch content
+   */
+  @NotNull
+  private static byte[] convertLineSeparators(@NotNull byte[] bytes) throws IOException {
+    InputStream objectStream = new AutoCRLFInputStream(new ByteArrayInputStream(bytes), true);
+    try {
+      ByteArrayOutputStream result = new ByteArrayOutputStream(bytes.length + bytes.length / 16);
+      int count;
+      byte[] buf = new byte[8096];
+      while ((count = objectStream.read(buf)) != -1) {
+        result.write(buf, 0, count);
+      }
+      return result.toByteArray();
+    } finally {
+      objectStream.close();
+    }
+  }
+
   @NotNull
   private InputStream getObjectStream(@NotNull final GitVcsRoot root, @NotNull final ObjectLoader loader) throws IOException {
     final InputStream stream = openContentStream(loader);
@@ -151,6 +248,36 @@ public class LoadContentAction implements Callable<Void> {
     return loader.isLarge() ? loader.openStream() : new ByteArrayInputStream(loader.getCachedBytes());
   }
 
+  /**
+   * Content of the file loaded for the patch
+   */
+  static class LoadedContent {
+    private final long mySize;
+    private final byte[] myBytes;
+
+    LoadedContent(long size, @Nullable byte[] bytes) {
+      mySize = size;
+      myBytes = bytes;
+    }
+
+    long getSize() {
+      return mySize;
+    }
+
+    /**
+     * @return number of bytes of the content kept in memory
+     */
+    long getLoadedBytes() {
+      return myBytes != null ? myBytes.length : 0;
+    }
+
+    @NotNull
+    InputStream openStream() throws IOException {
+      assert myBytes != null;
+      return new ByteArrayInputStream(myBytes);
+    }
+  }
+
   private static abstract class LazyInputStream extends InputStream implements PatchBuilderContentInputStream {
     private volatile InputStream myLazyStream;
 
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.patch;
+
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads contents of files added to the patch in several threads.
+ *
+ * <p>Blobs are loaded by the shared pool of threads using the content loader
+ * factory of every action, loaded contents are written to the patch in the
+ * thread which adds actions in the order of the actions, so the patch is the
+ * same as the one built by running actions one by one. Contents are written
+ * as soon as possible, so a patch built during the tree walk is streamed.
+ *
+ * <p>Only a few contents are loaded ahead of the one being written: no more
+ * than twice the number of threads and no new loads once the total size of
+ * loaded but not yet written contents exceeds the configured limit.
+ *
+ * <p>Not thread-safe, must be used by a single thread.
+ */
+final class ParallelContentLoader {
+
+  private static ThreadPoolExecutor ourExecutor;
+
+  private final int myThreadCount;
+  private final long myMaxPendingBytes;
+  private final AtomicLong myPendingBytes = new AtomicLong();
+  private final Deque<LoadContentAction> myWaiting = new ArrayDeque<>();
+  private final Deque<Loading> myLoading = new ArrayDeque<>();
+  private volatile boolean myClosed;
+
+  ParallelContentLoader(int threadCount, long maxPendingBytes) {
+    myThreadCount = threadCount;
+    myMaxPendingBytes = maxPendingBytes;
+  }
+
+
+  /**
+   * Adds the action, contents of already loaded actions added earlier are written to the patch
+   */
+  void add(@NotNull LoadContentAction action) throws Exception {
+    if (myThreadCount <= 1) {
+      action.call();
+      return;
+    }
+    myWaiting.add(action);
+    submitWaiting();
+    while (!myLoading.isEmpty() && (myLoading.peek().isDone() || myWaiting.size() >= getWindow())) {
+      writeNext();
+    }
+  }
+
+
+  /**
+   * Writes contents of all added actions to the patch
+   */
+  void finish() throws Exception {
+    while (!myLoading.isEmpty()) {
+      writeNext();
+    }
+  }
+
+
+  /**
+   * Cancels loading of contents which are not written yet and waits until running loads are finished
+   */
+  void close() {
+    myClosed = true;
+    myWaiting.clear();
+    for (Loading loading : myLoading) {
+      loading.await();
+    }
+    myLoading.clear();
+  }
+
+
+  private void writeNext() throws Exception {
+    Loading next = myLoading.poll();
+    try {
+      next.myAction.write(() -> getResult(next));
+    } finally {
+      myPendingBytes.addAndGet(-next.getLoadedBytes());
+    }
+    submitWaiting();
+  }
+
+
+  private void submitWaiting() {
+    while (!myWaiting.isEmpty() && myLoading.size() < getWindow() && (myLoading.isEmpty() || myPendingBytes.get() < myMaxPendingBytes)) {
+      Loading loading = new Loading(myWaiting.poll());
+      myLoading.add(loading);
+      getExecutor(myThreadCount).execute(loading);
+    }
+  }
+
+
+  @NotNull
+  private static LoadContentAction.LoadedContent getResult(@NotNull Loading loading) throws Exception {
+    try {
+      return loading.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception)
+        throw (Exception) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw e;
+    }
+  }
+
+
+  private int getWindow() {
+    return 2 * myThreadCount;
+  }
+
+
+  @NotNull
+  private static synchronized ExecutorService getExecutor(int threadCount) {
+    if (ourExecutor == null) {
+      ourExecutor = new ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS,
+                                           new LinkedBlockingQueue<>(), new NamedDaemonThreadFactory("Git patch content loader"));
+      ourExecutor.allowCoreThreadTimeOut(true);
+    } else if (threadCount > ourExecutor.getMaximumPoolSize()) {
+      ourExecutor.setMaximumPoolSize(threadCount);
+      ourExecutor.setCorePoolSize(threadCount);
+    } else if (threadCount < ourExecutor.getMaximumPoolSize()) {
+      ourExecutor.setCorePoolSize(threadCount);
+      ourExecutor.setMaximumPoolSize(threadCount);
+    }
+    return ourExecutor;
+  }
+
+
+  private final class Loading extends FutureTask<LoadContentAction.LoadedContent> {
+    private final LoadContentAction myAction;
+    private final CountDownLatch myFinished = new CountDownLatch(1);
+
+    private Loading(@NotNull LoadContentAction action) {
+      super(() -> {
+        if (myClosed)
+          return null;
+        LoadContentAction.LoadedContent content = action.load();
+        myPendingBytes.addAndGet(content.getLoadedBytes());
+        return content;
+      });
+      myAction = action;
+    }
+
+    @Override
+    protected void done() {
+      myFinished.countDown();
+    }
+
+    private long getLoadedBytes() {
+      LoadContentAction.LoadedContent content = getLoaded();
+      return content != null ? content.getLoadedBytes() : 0;
+    }
+
+    @Nullable
+    private LoadContentAction.LoadedContent getLoaded() {
+      if (!isDone())
+        return null;
+      try {
+        return get();
+      } catch (Exception e) {
+        return null;
+      }
+    }
+
+    private void await() {
+      try {
+        myFinished.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.patch;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Bounded in-memory pipe between the thread reading the output of the patch
+ * process and the thread applying the patch.
+ *
+ * <p>The writer blocks while the buffer is full, so a slow patch consumer
+ * slows down the patch process instead of the patch being buffered in memory
+ * or on disk. Unlike {@link java.io.PipedInputStream} the pipe doesn't depend
+ * on liveness of the threads using it.
+ *
+ * <p>Once the reader is closed, written data is discarded, so the process
+ * output can be drained without blocking.
+ *
+ * <p>Time the writer is blocked by the reader is not counted as idle time of
+ * the writer, see {@link #getWriterIdleNanos()}.
+ */
+final class PatchPipe {
+
+  private final byte[] myBuffer;
+  private int myReadPos;
+  private int mySize;
+  private boolean myWriterClosed;
+  private boolean myReaderClosed;
+  private boolean myWriterBlocked;
+  private long myLastWriteNanos = System.nanoTime();
+  private final Output myOutput = new Output();
+  private final Input myInput = new Input();
+
+  PatchPipe(int bufferSize) {
+    myBuffer = new byte[bufferSize];
+  }
+
+
+  /**
+   * @return stream to pass as the process stdout, its content is not retained
+   */
+  @NotNull
+  ByteArrayOutputStream getOutput() {
+    return myOutput;
+  }
+
+
+  @NotNull
+  InputStream getInput() {
+    return myInput;
+  }
+
+
+  /**
+   * @return nanoseconds since the writer wrote data, 0 while the writer waits for the reader
+   */
+  synchronized long getWriterIdleNanos() {
+    return myWriterBlocked ? 0 : System.nanoTime() - myLastWriteNanos;
+  }
+
+
+  /**
+   * Signals the end of data, the reader gets the end of stream once the buffered data is read
+   */
+  synchronized void closeWriter() {
+    myWriterClosed = true;
+    notifyAll();
+  }
+
+
+  /**
+   * Discards the buffered data and all data written afterwards, unblocks the writer
+   */
+  synchronized void closeReader() {
+    myReaderClosed = true;
+    mySize = 0;
+    notifyAll();
+  }
+
+
+  private synchronized void write(@NotNull byte[] b, int off, int len) throws InterruptedIOException {
+    myLastWriteNanos = System.nanoTime();
+    while (len > 0) {
+      if (mySize == myBuffer.length && !myReaderClosed) {
+        myWriterBlocked = true;
+        try {
+          while (mySize == myBuffer.length && !myReaderClosed) {
+            await();
+          }
+        } finally {
+          myWriterBlocked = false;
+          myLastWriteNanos = System.nanoTime();
+        }
+      }
+      if (myReaderClosed)
+        return;
+      int writePos = (myReadPos + mySize) % myBuffer.length;
+      int n = Math.min(len, Math.min(myBuffer.length - mySize, myBuffer.length - writePos));
+      System.arraycopy(b, off, myBuffer, writePos, n);
+      mySize += n;
+      off += n;
+      len -= n;
+      notifyAll();
+    }
+  }
+
+
+  private synchronized int read(@NotNull byte[] b, int off, int len) throws IOException {
+    if (len == 0)
+      return 0;
+    while (mySize == 0 && !myWriterClosed) {
+      if (myReaderClosed)
+        throw new IOException("Pipe is closed");
+      await();
+    }
+    if (myReaderClosed)
+      throw new IOException("Pipe is closed");
+    if (mySize == 0)
+      return -1;
+    int n = Math.min(len, Math.min(mySize, myBuffer.length - myReadPos));
+    System.arraycopy(myBuffer, myReadPos, b, off, n);
+    myReadPos = (myReadPos + n) % myBuffer.length;
+    mySize -= n;
+    notifyAll();
+    return n;
+  }
+
+
+  private void await() throws InterruptedIOException {
+    try {
+      wait();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the patch pipe");
+    }
+  }
+
+
+  private final class Output extends ByteArrayOutputStream {
+    private Output() {
+      super(0);
+    }
+
+    @Override
+    public void write(int b) {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(@NotNull byte[] b, int off, int len) {
+      try {
+        PatchPipe.this.write(b, off, len);
+      } catch (InterruptedIOException e) {
+        //ByteArrayOutputStream doesn't throw checked exceptions, discard the rest of data
+        closeReader();
+      }
+    }
+
+    @Override
+    public void close() {
+      closeWriter();
+    }
+  }
+
+
+  private final class Input extends InputStream {
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int n = read(b, 0, 1);
+      return n == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(@NotNull byte[] b, int off, int len) throws IOException {
+      return PatchPipe.this.read(b, off, len);
+    }
+
+    @Override
+    public void close() {
+      closeReader();
+    }
+  }
+}
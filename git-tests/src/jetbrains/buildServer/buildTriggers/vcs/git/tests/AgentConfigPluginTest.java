@@ -23,6 +23,7 @@ import jetbrains.buildServer.buildTriggers.vcs.git.agent.AgentMirrorConfig;
 import jetbrains.buildServer.buildTriggers.vcs.git.agent.GitExec;
 import jetbrains.buildServer.buildTriggers.vcs.git.agent.GitVersion;
 import jetbrains.buildServer.buildTriggers.vcs.git.agent.PluginConfigImpl;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.UpdaterImpl;
 import jetbrains.buildServer.serverSide.BasePropertiesModel;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.vcs.VcsException;
@@ -103,6 +104,24 @@ public class AgentConfigPluginTest {
   }
 
 
+  public void should_update_submodules_concurrently_by_default_only_with_git_supporting_jobs() {
+    PluginConfigImpl oldGitConfig = new PluginConfigImpl(myAgentConfig, myBuild, new GitExec("git", new GitVersion(2, 8, 0)));
+    assertEquals(1, oldGitConfig.getSubmoduleUpdateParallelism());
+    PluginConfigImpl config = new PluginConfigImpl(myAgentConfig, myBuild, new GitExec("git", UpdaterImpl.GIT_WITH_SUBMODULE_UPDATE_JOBS));
+    assertEquals(4, config.getSubmoduleUpdateParallelism());
+  }
+
+
+  public void test_change_submodule_update_parallelism() {
+    myBuildSharedConfigParameters.put(PluginConfigImpl.SUBMODULE_UPDATE_PARALLELISM, "8");
+    PluginConfigImpl oldGitConfig = new PluginConfigImpl(myAgentConfig, myBuild, new GitExec("git", new GitVersion(2, 8, 0)));
+    assertEquals(8, oldGitConfig.getSubmoduleUpdateParallelism());
+    myBuildSharedConfigParameters.put(PluginConfigImpl.SUBMODULE_UPDATE_PARALLELISM, "1");
+    PluginConfigImpl config = new PluginConfigImpl(myAgentConfig, myBuild, new GitExec("git", UpdaterImpl.GIT_WITH_SUBMODULE_UPDATE_JOBS));
+    assertEquals(1, config.getSubmoduleUpdateParallelism());
+  }
+
+
   public void should_not_use_local_mirrors_by_default() throws Exception {
     PluginConfigImpl config = new PluginConfigImpl(myAgentConfig, myBuild, new GitExec("git", GitVersion.MIN));
     GitVcsRoot root = gitVcsRoot();
@@ -76,7 +76,7 @@ class AgentSupportBuilder {
     };
     return new GitAgentVcsSupport(myFS, new MockDirectoryCleaner(),
                                   new GitAgentSSHService(myAgent, myAgentConfiguration, new MockGitPluginDescriptor(), mySshKeyProvider, buildTracker),
-                                  myPluginConfigFactory, myMirrorManager, myGitMetaFactory);
+                                  myPluginConfigFactory, myMirrorManager, new MirrorLocks(), myGitMetaFactory);
   }
 
 
@@ -38,8 +38,12 @@ import jetbrains.buildServer.vcs.CheckoutRules;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.impl.VcsRootImpl;
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
 import org.eclipse.jgit.lib.*;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.URIish;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -54,9 +58,12 @@ import java.io.FileFilter;
 import java.io.FileReader;
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 
@@ -183,6 +190,71 @@ public class AgentVcsSupportTest {
   }
 
 
+  public void should_set_last_commit_info_env_variables() throws Exception {
+    AgentRunningBuild build = createRunningBuild(false);
+    myVcsSupport.updateSources(myRoot, CheckoutRules.DEFAULT, "465ad9f630e451b9f2b782ffb09804c6a98c4bb9", myCheckoutDir, build, false);
+
+    then(build.getSharedBuildParameters().getEnvironmentVariables())
+      .containsEntry(PluginConfigImpl.ENV_AUTHOR, "Dmitry Neverov")
+      .containsEntry(PluginConfigImpl.ENV_EMAIL, "dmitry.neverov@gmail.com")
+      .containsEntry(PluginConfigImpl.ENV_TIMESTAMP, "1289483394")
+      .containsEntry(PluginConfigImpl.ENV_SUBJECT, "Merge branch 'feature-branch2'");
+  }
+
+
+  public void should_set_last_commit_info_env_variables_for_commit_with_empty_subject() throws Exception {
+    Repository remote = new RepositoryBuilder().setGitDir(myMainRepo).build();
+    RevCommit parent = new RevWalk(remote).parseCommit(ObjectId.fromString("465ad9f630e451b9f2b782ffb09804c6a98c4bb9"));
+    PersonIdent author = new PersonIdent("Some Author", "author@example.com", new Date(1500000000000L), TimeZone.getTimeZone("UTC"));
+    CommitBuilder commit = new CommitBuilder();
+    commit.setTreeId(parent.getTree());
+    commit.setParentId(parent);
+    commit.setAuthor(author);
+    commit.setCommitter(author);
+    commit.setMessage("");
+    ObjectInserter inserter = remote.newObjectInserter();
+    ObjectId commitId;
+    try {
+      commitId = inserter.insert(commit);
+      inserter.flush();
+    } finally {
+      inserter.release();
+    }
+    updateRef(myMainRepo, "refs/heads/master", commitId.name());
+
+    AgentRunningBuild build = createRunningBuild(false);
+    myVcsSupport.updateSources(myRoot, CheckoutRules.DEFAULT, commitId.name(), myCheckoutDir, build, false);
+
+    then(build.getSharedBuildParameters().getEnvironmentVariables())
+      .containsEntry(PluginConfigImpl.ENV_AUTHOR, "Some Author")
+      .containsEntry(PluginConfigImpl.ENV_EMAIL, "author@example.com")
+      .containsEntry(PluginConfigImpl.ENV_TIMESTAMP, "1500000000")
+      .containsEntry(PluginConfigImpl.ENV_SUBJECT, "");
+  }
+
+
+  public void should_read_last_commit_info_field_by_field_when_git_does_not_support_combined_format() throws Exception {
+    if (SystemInfo.isWindows)
+      throw new SkipException("Fake git script is a shell script");
+    //the script prints the combined format as is, like a git which doesn't expand %x00
+    File git = myTempFiles.createTempFile();
+    writeFileAndReportErrors(git, "#!/bin/sh\n" +
+                                  "case \"$*\" in *%x00*) echo \"$*\"; exit 0;; esac\n" +
+                                  "exec \"" + getGitPath() + "\" \"$@\"\n");
+    then(git.setExecutable(true)).isTrue();
+    VcsRootImpl root = vcsRoot().withAgentGitPath(git.getAbsolutePath()).withFetchUrl(GitUtils.toURL(myMainRepo)).build();
+
+    AgentRunningBuild build = createRunningBuild(false);
+    myVcsSupport.updateSources(root, CheckoutRules.DEFAULT, "465ad9f630e451b9f2b782ffb09804c6a98c4bb9", myCheckoutDir, build, false);
+
+    then(build.getSharedBuildParameters().getEnvironmentVariables())
+      .containsEntry(PluginConfigImpl.ENV_AUTHOR, "Dmitry Neverov")
+      .containsEntry(PluginConfigImpl.ENV_EMAIL, "dmitry.neverov@gmail.com")
+      .containsEntry(PluginConfigImpl.ENV_TIMESTAMP, "1289483394")
+      .containsEntry(PluginConfigImpl.ENV_SUBJECT, "Merge branch 'feature-branch2'");
+  }
+
+
   @TestFor(issues = "TW-46854")
   @Test(dataProvider = "mirrors")
   public void should_update_remote_tracking_branch_in_case_of_fast_forward_update(boolean useMirrors) throws Exception {
@@ -335,6 +407,67 @@ public class AgentVcsSupportTest {
   }
 
 
+  public void sub_submodules_checkout_with_parallel_update() throws Exception {
+    myRoot.addProperty(Constants.BRANCH_NAME, "sub-submodule");
+    myRoot.addProperty(Constants.SUBMODULES_CHECKOUT, SubmodulesCheckoutPolicy.CHECKOUT.name());
+    AgentRunningBuild build = createRunningBuild(map(PluginConfigImpl.SUBMODULE_UPDATE_PARALLELISM, "4"));
+
+    myVcsSupport.updateSources(myRoot, new CheckoutRules(""), GitVcsSupportTest.AFTER_FIRST_LEVEL_SUBMODULE_ADDED_VERSION,
+                               myCheckoutDir, build, false);
+
+    assertTrue(new File(myCheckoutDir, "first-level-submodule" + File.separator + "submoduleFile.txt").exists());
+    assertTrue(new File (myCheckoutDir, "first-level-submodule" + File.separator + "sub-sub" + File.separator + "file.txt").exists());
+  }
+
+
+  public void parallel_update_should_report_broken_submodule() throws Exception {
+    File repositoriesDir = myTempFiles.createTempDir();
+    String revision = createRepositoryWithBrokenSubmodule(repositoriesDir);
+    VcsRootImpl root = vcsRoot().withAgentGitPath(getGitPath())
+      .withFetchUrl(GitUtils.toURL(new File(repositoriesDir, "main")))
+      .withSubmodulePolicy(SubmodulesCheckoutPolicy.CHECKOUT)
+      .build();
+
+    try {
+      myVcsSupport.updateSources(root, CheckoutRules.DEFAULT, revision, myCheckoutDir, createRunningBuild(false), false);
+      fail("Checkout with broken submodule should fail");
+    } catch (VcsException e) {
+      then(e.getMessage()).contains("'sub-b'");
+    }
+    then(new File(myCheckoutDir, "sub-a" + File.separator + "a.txt")).exists();
+  }
+
+
+  public void parallel_update_by_old_git_should_update_every_submodule_and_report_broken_one() throws Exception {
+    if (SystemInfo.isWindows)
+      throw new SkipException("Fake git script is a shell script");
+    //git older than 2.9.0 doesn't support 'git submodule update --jobs', the agent runs a command per submodule
+    File git = myTempFiles.createTempFile();
+    writeFileAndReportErrors(git, "#!/bin/sh\n" +
+                                  "if [ \"$1\" = \"version\" ]; then echo \"git version 2.8.0\"; exit 0; fi\n" +
+                                  "exec \"" + getGitPath() + "\" \"$@\"\n");
+    then(git.setExecutable(true)).isTrue();
+    File repositoriesDir = myTempFiles.createTempDir();
+    String revision = createRepositoryWithBrokenSubmodule(repositoriesDir);
+    VcsRootImpl root = vcsRoot().withAgentGitPath(git.getAbsolutePath())
+      .withFetchUrl(GitUtils.toURL(new File(repositoriesDir, "main")))
+      .withSubmodulePolicy(SubmodulesCheckoutPolicy.CHECKOUT)
+      .build();
+    AgentRunningBuild build = createRunningBuild(map(PluginConfigImpl.SUBMODULE_UPDATE_PARALLELISM, "4"));
+
+    try {
+      myVcsSupport.updateSources(root, CheckoutRules.DEFAULT, revision, myCheckoutDir, build, false);
+      fail("Checkout with broken submodule should fail");
+    } catch (VcsException e) {
+      then(e.getMessage()).startsWith("Failed to update submodule 'sub-b' in ");
+    }
+    //a failed submodule doesn't stop update of other submodules of the same level
+    then(new File(myCheckoutDir, "sub-a" + File.separator + "a.txt")).exists();
+    then(new File(myCheckoutDir, "sub-c" + File.separator + "c.txt")).exists();
+    then(new File(myCheckoutDir, "sub-d" + File.separator + "d.txt")).exists();
+  }
+
+
   @TestFor(issues = "TW-27043")
   public void clean_files_in_submodules() throws Exception {
     //vcs root with submodules which cleans all untracked files on every build:
@@ -1200,6 +1333,52 @@ public class AgentVcsSupportTest {
   }
 
 
+  /**
+   * Creates repositories sub-a, sub-b, sub-c, sub-d and a repository main which has them
+   * as submodules, the commit of the sub-b submodule is missing in its repository
+   * @return revision of the main repository
+   */
+  @NotNull
+  private String createRepositoryWithBrokenSubmodule(@NotNull File repositoriesDir) throws Exception {
+    Git main = Git.init().setDirectory(new File(repositoriesDir, "main")).call();
+    StringBuilder gitModules = new StringBuilder();
+    Map<String, ObjectId> submoduleCommits = new LinkedHashMap<String, ObjectId>();
+    for (String name : new String[]{"a", "b", "c", "d"}) {
+      String path = "sub-" + name;
+      gitModules.append("[submodule \"").append(path).append("\"]\n")
+        .append("\tpath = ").append(path).append("\n")
+        .append("\turl = ../").append(path).append("\n");
+      Git submodule = Git.init().setDirectory(new File(repositoriesDir, path)).call();
+      ObjectId commit = commitFile(submodule, name + ".txt", name);
+      submoduleCommits.put(path, "b".equals(name) ? ObjectId.fromString("1111111111111111111111111111111111111111") : commit);
+    }
+    writeFileAndReportErrors(new File(repositoriesDir, "main" + File.separator + ".gitmodules"), gitModules.toString());
+    main.add().addFilepattern(".gitmodules").call();
+    DirCache index = main.getRepository().lockDirCache();
+    DirCacheEditor editor = index.editor();
+    for (Map.Entry<String, ObjectId> e : submoduleCommits.entrySet()) {
+      final ObjectId commit = e.getValue();
+      editor.add(new DirCacheEditor.PathEdit(e.getKey()) {
+        @Override
+        public void apply(DirCacheEntry entry) {
+          entry.setFileMode(FileMode.GITLINK);
+          entry.setObjectId(commit);
+        }
+      });
+    }
+    editor.commit();
+    return main.commit().setMessage("Add submodules").call().name();
+  }
+
+
+  @NotNull
+  private ObjectId commitFile(@NotNull Git git, @NotNull String path, @NotNull String content) throws Exception {
+    writeFileAndReportErrors(new File(git.getRepository().getWorkTree(), path), content);
+    git.add().addFilepattern(path).call();
+    return git.commit().setMessage("Add " + path).call();
+  }
+
+
   private AgentRunningBuild createRunningBuild(boolean useLocalMirrors) {
     return runningBuild().useLocalMirrors(useLocalMirrors).build();
   }
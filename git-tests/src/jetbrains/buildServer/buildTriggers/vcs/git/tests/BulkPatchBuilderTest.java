@@ -21,6 +21,7 @@ import jetbrains.buildServer.TempFiles;
 import jetbrains.buildServer.buildTriggers.vcs.git.GitFetchService;
 import jetbrains.buildServer.buildTriggers.vcs.git.GitUtils;
 import jetbrains.buildServer.buildTriggers.vcs.git.GitVcsSupport;
+import jetbrains.buildServer.buildTriggers.vcs.git.ServerPluginConfig;
 import jetbrains.buildServer.buildTriggers.vcs.git.commitInfo.GitCommitsInfoBuilder;
 import jetbrains.buildServer.buildTriggers.vcs.git.patch.BulkPatchBuilderImpl;
 import jetbrains.buildServer.serverSide.ServerPaths;
@@ -40,9 +41,11 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
@@ -64,6 +67,8 @@ public class BulkPatchBuilderTest extends BaseTestCase {
   private GitVcsSupport myGit;
   private GitCommitsInfoBuilder myCommitSupport;
   private BulkPatchBuilderImpl myBulkBuilder;
+  private PluginConfigBuilder myConfig;
+  private ServerPluginConfig myPluginConfig;
 
   @AfterMethod
   public void tearDown() {
@@ -76,10 +81,12 @@ public class BulkPatchBuilderTest extends BaseTestCase {
   public void setUp() throws Exception {
     super.setUp();
     ServerPaths myPaths = new ServerPaths(myTempFiles.createTempDir().getAbsolutePath());
-    GitSupportBuilder builder = gitSupport().withServerPaths(myPaths);
+    myConfig = new PluginConfigBuilder(myPaths);
+    GitSupportBuilder builder = gitSupport().withPluginConfig(myConfig);
     myGit = builder.build();
     myCommitSupport = new GitCommitsInfoBuilder(myGit, new GitFetchService(myGit));
-    myBulkBuilder = new BulkPatchBuilderImpl(builder.getPluginConfig(), myGit);
+    myPluginConfig = builder.getPluginConfig();
+    myBulkBuilder = new BulkPatchBuilderImpl(myPluginConfig, myGit);
 
     myRepositoryDir = myTempFiles.createTempDir();
     File masterRep = dataFile("repo.git");
@@ -102,6 +109,24 @@ public class BulkPatchBuilderTest extends BaseTestCase {
     Assert.assertTrue(log.size() > 0);
   }
 
+  @Test
+  public void pipelined_patches_should_be_the_same_as_sequential() throws Exception {
+    final VcsRoot root = vcsRoot().withFetchUrl(GitUtils.toURL(myRepositoryDir)).withBranch("master").build();
+
+    myConfig.setBulkPatchPipelineDepth(0).setBulkPatchBlobCacheSize(0);
+    final List<String> sequential = new ArrayList<String>();
+    myBulkBuilder = new BulkPatchBuilderImpl(myPluginConfig, myGit);
+    runFullPatch(root, contentPatcher(sequential));
+
+    myConfig.setBulkPatchPipelineDepth(2).setBulkPatchBlobCacheSize(1024 * 1024);
+    final List<String> pipelined = new ArrayList<String>();
+    myBulkBuilder = new BulkPatchBuilderImpl(myPluginConfig, myGit);
+    runFullPatch(root, contentPatcher(pipelined));
+
+    Assert.assertTrue(sequential.size() > 0);
+    Assert.assertEquals(sequential, pipelined);
+  }
+
   @Test(enabled = false)
   public void test_local_idea() throws Exception {
     ///does not work for real repository: Fetcher call is mostly endless
@@ -163,6 +188,50 @@ public class BulkPatchBuilderTest extends BaseTestCase {
     void log(@NotNull String message);
   }
 
+  /**
+   * Logs calls of the patch builder with contents of the files instead of streams
+   */
+  @NotNull
+  private BulkPatchBuilder contentPatcher(@NotNull final List<String> log) {
+    return (BulkPatchBuilder)Proxy.newProxyInstance(
+      getClass().getClassLoader(),
+      new Class<?>[]{BulkPatchBuilder.class, PatchBuilder.class},
+      new InvocationHandler() {
+        public Object invoke(final Object o,
+                             final Method method,
+                             final Object[] objects) throws Throwable {
+          if (method.getName().equals("toString")) return "mock!";
+
+          final StringBuilder message = new StringBuilder(method.getName());
+          if (objects != null) {
+            for (Object object : objects) {
+              message.append(' ');
+              if (object instanceof InputStream) {
+                message.append(readContent((InputStream)object));
+              } else {
+                message.append(object);
+              }
+            }
+          }
+          log.add(message.toString());
+
+          if (method.getName().equals("startPatch")) return o;
+          return null;
+        }
+      });
+  }
+
+  @NotNull
+  private static String readContent(@NotNull InputStream content) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int count;
+    while ((count = content.read(buf)) != -1) {
+      result.write(buf, 0, count);
+    }
+    return result.toString("UTF-8");
+  }
+
   @NotNull
   private BulkPatchBuilder patcher(@NotNull final PatchLogger log) {
     return (BulkPatchBuilder)Proxy.newProxyInstance(
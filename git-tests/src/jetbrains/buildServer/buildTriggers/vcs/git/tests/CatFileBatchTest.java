@@ -0,0 +1,104 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import com.intellij.openapi.util.SystemInfo;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.GitProgressLogger;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.NativeGitFacade;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.command.CatFileBatch;
+import jetbrains.buildServer.serverSide.BasePropertiesModel;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsException;
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.dataFile;
+import static org.assertj.core.api.BDDAssertions.then;
+import static org.testng.Assert.fail;
+
+@Test
+public class CatFileBatchTest {
+
+  private CatFileBatch myBatch;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    new TeamCityProperties() {{setModel(new BasePropertiesModel() {});}};
+    myBatch = new NativeGitFacade(GitVersionProvider.getGitPath(), GitProgressLogger.NO_OP, dataFile("repo.git")).catFileBatch();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myBatch.close();
+  }
+
+
+  public void should_resolve_commits() throws Exception {
+    then(myBatch.resolveCommit("b0799af24940ea316efd2985b5c5c10b47875abd")).isEqualTo("b0799af24940ea316efd2985b5c5c10b47875abd");
+    then(myBatch.resolveCommit("refs/heads/master")).isEqualTo("465ad9f630e451b9f2b782ffb09804c6a98c4bb9");
+    //annotated tag is peeled to the commit
+    then(myBatch.resolveCommit("v0.5")).isEqualTo("2c7e90053e0f7a5dd25ea2a16ef8909ba71826f6");
+  }
+
+
+  public void should_return_null_for_missing_commits() throws Exception {
+    then(myBatch.resolveCommit("0000000000000000000000000000000000000001")).isNull();
+    then(myBatch.resolveCommit("refs/heads/unknown")).isNull();
+    then(myBatch.resolveCommit("b0799af24940ea316efd2985b5c5c10b47875abd\nHEAD")).isNull();
+    //process is still usable after missing objects
+    then(myBatch.resolveCommit("b0799af24940ea316efd2985b5c5c10b47875abd")).isEqualTo("b0799af24940ea316efd2985b5c5c10b47875abd");
+  }
+
+
+  public void should_restart_process_after_close() throws Exception {
+    then(myBatch.resolveCommit("b0799af24940ea316efd2985b5c5c10b47875abd")).isNotNull();
+    myBatch.close();
+    then(myBatch.resolveCommit("b0799af24940ea316efd2985b5c5c10b47875abd")).isEqualTo("b0799af24940ea316efd2985b5c5c10b47875abd");
+  }
+
+
+  public void should_kill_process_which_does_not_answer() throws Exception {
+    if (SystemInfo.isWindows)
+      throw new SkipException("Test uses a shell script instead of git");
+    File dir = FileUtil.createTempDirectory("catFileBatch", "");
+    try {
+      File git = new File(dir, "git");
+      FileUtil.writeFileAndReportErrors(git, "#!/bin/sh\nsleep 600\n");
+      then(git.setExecutable(true)).isTrue();
+      CatFileBatch batch = new NativeGitFacade(git.getAbsolutePath(), GitProgressLogger.NO_OP, dataFile("repo.git")).catFileBatch().setTimeout(1);
+      long start = System.currentTimeMillis();
+      try {
+        batch.resolveCommit("b0799af24940ea316efd2985b5c5c10b47875abd");
+        fail("Timeout error expected");
+      } catch (VcsException e) {
+        then(e.getMessage()).contains("didn't answer in 1 seconds");
+      } finally {
+        batch.close();
+      }
+      then(System.currentTimeMillis() - start).isLessThan(TimeUnit.SECONDS.toMillis(30));
+    } finally {
+      FileUtil.delete(dir);
+    }
+  }
+}
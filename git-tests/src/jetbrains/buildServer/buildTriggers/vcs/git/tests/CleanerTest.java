@@ -26,14 +26,15 @@ import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRoot;
 import org.eclipse.jgit.internal.storage.file.FileRepository;
 import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.jetbrains.annotations.NotNull;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.io.IOException;
+import java.nio.file.Files;
 
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitSupportBuilder.gitSupport;
 import static org.assertj.core.api.BDDAssertions.then;
@@ -88,13 +89,7 @@ public class CleanerTest extends BaseTestCase {
 
     myCleanup.run();
 
-    File[] files = baseMirrorsDir.listFiles(new FileFilter() {
-      public boolean accept(File f) {
-        return f.isDirectory();
-      }
-    });
-    assertEquals(1, files.length);
-    assertEquals(repositoryDir, files[0]);
+    then(myRepositoryManager.getMirrorDirs()).containsExactly(repositoryDir);
 
     mySupport.getCurrentState(root);//check that repository is fine after git gc
   }
@@ -111,6 +106,71 @@ public class CleanerTest extends BaseTestCase {
     File repositoryDir = getRepositoryDir(root);
 
     //create more than 50 packs to trigger gc:
+    createPacks(repositoryDir);
+    then(getPackCount(repositoryDir) > 50).isTrue();
+
+    myCleanup.run();
+
+    then(getPackCount(repositoryDir)).isEqualTo(1);
+  }
+
+
+  public void nonInplaceGc_should_keep_repository_caches() throws Exception {
+    myConfigBuilder.setRunNativeGC(true);
+    myConfigBuilder.setRunInPlaceGc(false);
+    initCleanup();
+
+    VcsRoot root = new VcsRootBuilder()
+      .withFetchUrl(GitUtils.toURL(GitTestUtil.dataFile("repo.git")))
+      .withBranch("master")
+      .withSubmodulePolicy(SubmodulesCheckoutPolicy.IGNORE)
+      .build();
+    mySupport.collectChanges(root, "70dbcf426232f7a33c7e5ebdfbfb26fc8c467a46", "a894d7d58ffde625019a9ecf8267f5f1d1e5c341", CheckoutRules.DEFAULT);
+    File repositoryDir = getRepositoryDir(root);
+    File changedPaths = new File(repositoryDir, "caches/changed-paths");
+    then(changedPaths).isFile();
+    byte[] cached = Files.readAllBytes(changedPaths.toPath());
+    createPacks(repositoryDir);
+
+    myCleanup.run();
+
+    then(getPackCount(repositoryDir)).isEqualTo(1);
+    then(Files.readAllBytes(changedPaths.toPath())).isEqualTo(cached);
+    //cached paths are not reset in memory, so collecting the same changes doesn't rewrite the cache
+    mySupport.collectChanges(root, "70dbcf426232f7a33c7e5ebdfbfb26fc8c467a46", "a894d7d58ffde625019a9ecf8267f5f1d1e5c341", CheckoutRules.DEFAULT);
+    then(Files.readAllBytes(changedPaths.toPath())).isEqualTo(cached);
+  }
+
+
+  public void concurrent_nonInplaceGc() throws Exception {
+    myConfigBuilder.setRunNativeGC(true);
+    myConfigBuilder.setRunInPlaceGc(false);
+    myConfigBuilder.setGcThreadCount(2);
+    initCleanup();
+
+    File remote2 = ourTempFiles.createTempDir();
+    GitTestUtil.copyRepository(GitTestUtil.dataFile("repo.git"), remote2);
+    VcsRoot root1 = GitTestUtil.getVcsRoot();
+    VcsRoot root2 = GitTestUtil.getVcsRoot(remote2);
+    mySupport.collectChanges(root1, "70dbcf426232f7a33c7e5ebdfbfb26fc8c467a46", "a894d7d58ffde625019a9ecf8267f5f1d1e5c341", CheckoutRules.DEFAULT);
+    mySupport.collectChanges(root2, "70dbcf426232f7a33c7e5ebdfbfb26fc8c467a46", "a894d7d58ffde625019a9ecf8267f5f1d1e5c341", CheckoutRules.DEFAULT);
+    File repositoryDir1 = getRepositoryDir(root1);
+    File repositoryDir2 = getRepositoryDir(root2);
+    createPacks(repositoryDir1);
+    createPacks(repositoryDir2);
+
+    myCleanup.run();
+
+    then(getPackCount(repositoryDir1)).isEqualTo(1);
+    then(getPackCount(repositoryDir2)).isEqualTo(1);
+    //ranking state is kept for the next cleanup
+    then(new File(myRepositoryManager.getBaseMirrorsDir(), "gc-state")).isFile();
+    mySupport.getCurrentState(root1);
+    mySupport.getCurrentState(root2);
+  }
+
+
+  private void createPacks(@NotNull File repositoryDir) throws IOException {
     File packDir = new File(repositoryDir, "objects/pack");
     File pack = new File(packDir, "pack-3763fffad1c368b0a79f9a196ee098e303fc0c29.pack");
     File idx = new File(packDir, "pack-3763fffad1c368b0a79f9a196ee098e303fc0c29.idx");
@@ -118,13 +178,16 @@ public class CleanerTest extends BaseTestCase {
       FileUtil.copy(pack, new File(packDir, "pack-" + i + "63fffad1c368b0a79f9a196ee098e303fc0c29.pack"));
       FileUtil.copy(idx, new File(packDir, "pack-" + i + "63fffad1c368b0a79f9a196ee098e303fc0c29.idx"));
     }
-    FileRepository db = (FileRepository) new RepositoryBuilder().setGitDir(repositoryDir).build();
-    then(db.getObjectDatabase().getPacks().size() > 50).isTrue();
+  }
 
-    myCleanup.run();
 
-    db = (FileRepository) new RepositoryBuilder().setGitDir(repositoryDir).build();
-    then(db.getObjectDatabase().getPacks().size()).isEqualTo(1);
+  private int getPackCount(@NotNull File repositoryDir) throws IOException {
+    FileRepository db = (FileRepository) new RepositoryBuilder().setGitDir(repositoryDir).build();
+    try {
+      return db.getObjectDatabase().getPacks().size();
+    } finally {
+      db.close();
+    }
   }
 
 
@@ -45,6 +45,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
 
 import static java.util.Arrays.asList;
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitSupportBuilder.gitSupport;
@@ -692,6 +693,110 @@ public class CollectChangesTest extends BaseRemoteRepositoryTest {
   }
 
 
+  public void parallel_collect_should_report_same_changes_as_sequential() throws Exception {
+    VcsRoot root = vcsRoot().withFetchUrl(myRepo)
+      .withBranch("master")
+      .withBranchSpec("+:refs/heads/*")
+      .withSubmodulePolicy(SubmodulesCheckoutPolicy.IGNORE)
+      .build();
+    RepositoryStateData toState = git().getCurrentState(root);
+    RepositoryStateData fromState = createVersionState("refs/heads/master", map("refs/heads/master", "2276eaf76a658f96b5cf3eb25f3e1fda90f6b653"));
+
+    myConfig.setChangedPathsCacheSize(0);
+    myConfig.setCollectChangesThreadCount(1);
+    List<ModificationData> sequential = git().getCollectChangesPolicy().collectChanges(root, fromState, toState, CheckoutRules.DEFAULT);
+    myConfig.setCollectChangesThreadCount(4);
+    List<ModificationData> parallel = git().getCollectChangesPolicy().collectChanges(root, fromState, toState, CheckoutRules.DEFAULT);
+
+    then(sequential.size()).isGreaterThan(16);
+    then(describe(parallel)).containsExactlyElementsOf(describe(sequential));
+  }
+
+
+  @Test
+  public void should_reuse_changed_paths_of_commits_collected_for_another_root() throws Exception {
+    VcsRoot root1 = vcsRoot().withFetchUrl(myRepo)
+      .withBranch("master")
+      .withBranchSpec("+:refs/heads/*")
+      .withSubmodulePolicy(SubmodulesCheckoutPolicy.IGNORE)
+      .build();
+    VcsRoot root2 = vcsRoot().withFetchUrl(myRepo)
+      .withBranch("master")
+      .withBranchSpec("+:refs/heads/*")
+      .withSubmodulePolicy(SubmodulesCheckoutPolicy.IGNORE)
+      .build();
+    RepositoryStateData toState = git().getCurrentState(root1);
+    RepositoryStateData fromState = createVersionState("refs/heads/master", map("refs/heads/master", "2276eaf76a658f96b5cf3eb25f3e1fda90f6b653"));
+    myConfig.setReportPerParentChangedFiles(true);
+
+    myConfig.setChangedPathsCacheSize(0);
+    List<ModificationData> expected = git().getCollectChangesPolicy().collectChanges(root1, fromState, toState, CheckoutRules.DEFAULT);
+
+    myConfig.setChangedPathsCacheSize(1000);
+    GitVcsSupport vcs = git();
+    List<ModificationData> collected = vcs.getCollectChangesPolicy().collectChanges(root1, fromState, toState, CheckoutRules.DEFAULT);
+    List<ModificationData> cached = vcs.getCollectChangesPolicy().collectChanges(root2, fromState, toState, CheckoutRules.DEFAULT);
+    //new instance reads the persisted cache
+    List<ModificationData> persisted = git().getCollectChangesPolicy().collectChanges(root2, fromState, toState, CheckoutRules.DEFAULT);
+
+    then(expected).isNotEmpty();
+    then(describe(collected)).containsExactlyElementsOf(describe(expected));
+    then(describe(cached)).containsExactlyElementsOf(describe(expected));
+    then(describe(persisted)).containsExactlyElementsOf(describe(expected));
+
+    File repositoryDir = new GitVcsRoot(vcs.getRepositoryManager(), root1).getRepositoryDir();
+    ChangedPathsCache cache = ChangedPathsCache.read(myConfig.build(), repositoryDir, 1000);
+    for (ModificationData m : expected) {
+      then(cache.get(ObjectId.fromString(m.getVersion()))).isNotNull();
+    }
+  }
+
+
+  @Test
+  public void should_forget_changed_paths_of_removed_repository() throws Exception {
+    VcsRoot root = vcsRoot().withFetchUrl(myRepo)
+      .withBranch("master")
+      .withBranchSpec("+:refs/heads/*")
+      .withSubmodulePolicy(SubmodulesCheckoutPolicy.IGNORE)
+      .build();
+    RepositoryStateData fromState = createVersionState("refs/heads/master", map("refs/heads/master", "2276eaf76a658f96b5cf3eb25f3e1fda90f6b653"));
+    myConfig.setReportPerParentChangedFiles(true);
+    myConfig.setChangedPathsCacheSize(1000);
+    GitVcsSupport vcs = git();
+    RepositoryStateData toState = vcs.getCurrentState(root);
+    List<ModificationData> collected = vcs.getCollectChangesPolicy().collectChanges(root, fromState, toState, CheckoutRules.DEFAULT);
+    File repositoryDir = new GitVcsRoot(vcs.getRepositoryManager(), root).getRepositoryDir();
+    then(ChangedPathsCache.read(myConfig.build(), repositoryDir, 1000).get(ObjectId.fromString(collected.get(0).getVersion()))).isNotNull();
+
+    //cleanup and reset of caches acquire the write rm lock before removing a repository
+    Lock rmLock = vcs.getRepositoryManager().getRmLock(repositoryDir).writeLock();
+    rmLock.lock();
+    rmLock.unlock();
+    then(ChangedPathsCache.read(myConfig.build(), repositoryDir, 1000).get(ObjectId.fromString(collected.get(0).getVersion()))).isNull();
+
+    List<ModificationData> collectedAgain = vcs.getCollectChangesPolicy().collectChanges(root, fromState, toState, CheckoutRules.DEFAULT);
+    then(describe(collectedAgain)).containsExactlyElementsOf(describe(collected));
+    then(ChangedPathsCache.read(myConfig.build(), repositoryDir, 1000).get(ObjectId.fromString(collected.get(0).getVersion()))).isNotNull();
+  }
+
+
+  @NotNull
+  private static List<String> describe(@NotNull List<ModificationData> changes) {
+    List<String> result = new ArrayList<>();
+    for (ModificationData m : changes) {
+      StringBuilder sb = new StringBuilder();
+      sb.append(m.getVersion()).append(" ").append(m.getUserName()).append(" ").append(m.getVcsDate().getTime())
+        .append(" ").append(m.getDescription()).append(" ").append(m.getParentRevisions()).append(" ").append(m.getAttributes());
+      for (VcsChange c : m.getChanges()) {
+        sb.append("\n").append(c.getType()).append(" ").append(c.getFileName()).append(" ").append(c.getRelativeFileName())
+          .append(" ").append(c.getBeforeChangeRevisionNumber()).append(" ").append(c.getAfterChangeRevisionNumber());
+      }
+      result.add(sb.toString());
+    }
+    return result;
+  }
+
+
   private GitVcsSupport git() {
     return gitSupport().withPluginConfig(myConfig).build();
   }
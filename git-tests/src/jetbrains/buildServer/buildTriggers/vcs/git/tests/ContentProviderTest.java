@@ -17,6 +17,7 @@
 package jetbrains.buildServer.buildTriggers.vcs.git.tests;
 
 import jetbrains.buildServer.buildTriggers.vcs.git.GitVcsSupport;
+import jetbrains.buildServer.buildTriggers.vcs.git.OperationContext;
 import jetbrains.buildServer.buildTriggers.vcs.git.SubmodulesCheckoutPolicy;
 import jetbrains.buildServer.serverSide.ServerPaths;
 import jetbrains.buildServer.util.FileUtil;
@@ -25,10 +26,13 @@ import org.jetbrains.annotations.NotNull;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.File;
+
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitSupportBuilder.gitSupport;
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.dataFile;
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.VcsRootBuilder.vcsRoot;
 import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
 import static org.testng.AssertJUnit.assertTrue;
 import static org.testng.AssertJUnit.fail;
 
@@ -76,6 +80,26 @@ public class ContentProviderTest extends BaseRemoteRepositoryTest {
   }
 
 
+  public void should_return_cached_content_without_accessing_repository() throws Exception {
+    GitVcsSupport git = createGit();
+    VcsRoot root = vcsRoot()
+      .withFetchUrl(getRemoteRepositoryUrl("repo.git"))
+      .withBranch("version-test")
+      .build();
+    String version = getDefaultBranchRevision(git, root);
+    byte[] expected = FileUtil.loadFileBytes(dataFile("content", "readme.txt"));
+    assertEquals(expected, git.getContentProvider().getContent("readme.txt", root, version));
+
+    OperationContext context = git.createContext(root, "get mirror dir");
+    File mirrorDir = context.getGitRoot().getRepositoryDir();
+    context.close();
+    FileUtil.delete(mirrorDir);
+
+    assertEquals(expected, git.getContentProvider().getContent("readme.txt", root, version));
+    assertFalse(mirrorDir.exists());
+  }
+
+
   @Test(dataProvider = "doFetchInSeparateProcess", dataProviderClass = FetchOptionsDataProvider.class)
   public void get_content_in_submodules(boolean fetchInSeparateProcess) throws Exception {
     myConfigBuilder.setSeparateProcessForFetch(fetchInSeparateProcess);
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import com.intellij.openapi.util.SystemInfo;
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.agent.*;
+import jetbrains.buildServer.buildTriggers.vcs.git.Constants;
+import jetbrains.buildServer.buildTriggers.vcs.git.MirrorManager;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.GCIdleTask;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import org.eclipse.jgit.lib.*;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class GCIdleTaskTest {
+
+  private TempFiles myTempFiles;
+  private Mockery myContext;
+  private EventDispatcher<AgentLifeCycleListener> myEvents;
+  private Map<String, String> myConfigParams;
+  private Map<String, String> myEnv;
+  private List<File> myMirrors;
+  private GCIdleTask myTask;
+
+  @BeforeMethod
+  public void setUp() {
+    myTempFiles = new TempFiles();
+    myContext = new Mockery();
+    myEvents = EventDispatcher.create(AgentLifeCycleListener.class);
+    myConfigParams = new HashMap<String, String>();
+    myEnv = new HashMap<String, String>();
+    myMirrors = new ArrayList<File>();
+    final AgentIdleTasks idleTasks = myContext.mock(AgentIdleTasks.class);
+    final BuildAgentConfiguration agentConfig = myContext.mock(BuildAgentConfiguration.class);
+    final BuildParametersMap buildParams = myContext.mock(BuildParametersMap.class);
+    final MirrorManager mirrorManager = myContext.mock(MirrorManager.class);
+    myContext.checking(new Expectations() {{
+      allowing(idleTasks).addRecurringTask(with(any(AgentIdleTasks.Task.class)));
+      allowing(agentConfig).getConfigurationParameters(); will(returnValue(myConfigParams));
+      allowing(agentConfig).getBuildParameters(); will(returnValue(buildParams));
+      allowing(buildParams).getEnvironmentVariables(); will(returnValue(myEnv));
+      allowing(mirrorManager).getMirrorDirs(); will(returnValue(myMirrors));
+      allowing(mirrorManager).getLastUsedTime(with(any(File.class))); will(returnValue(System.currentTimeMillis()));
+    }});
+    myTask = new GCIdleTask(myEvents, idleTasks, agentConfig, mirrorManager);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+
+  public void should_kill_running_gcs_when_build_starts() throws Exception {
+    if (SystemInfo.isWindows)
+      throw new SkipException("Test uses a shell script instead of git");
+    final File startedGcs = new File(myTempFiles.createTempDir(), "started");
+    File git = new File(myTempFiles.createTempDir(), "git");
+    FileUtil.writeFileAndReportErrors(git, "#!/bin/sh\necho started >> \"" + startedGcs.getAbsolutePath() + "\"\nexec sleep 600\n");
+    then(git.setExecutable(true)).isTrue();
+    myEnv.put(Constants.TEAMCITY_AGENT_GIT_PATH, git.getAbsolutePath());
+    myConfigParams.put("teamcity.git.idleGcEnabled", "true");
+    myConfigParams.put("teamcity.git.idleGcDelayMinutes", "0");
+    myConfigParams.put("teamcity.git.idleGcMaxParallelGc", "2");
+    for (int i = 0; i < 3; i++) {
+      myMirrors.add(createMirror(3));
+    }
+    myEvents.getMulticaster().agentStarted(myContext.mock(BuildAgent.class));
+
+    final AgentRunningBuild build = myContext.mock(AgentRunningBuild.class);
+    Thread buildStart = new Thread(new Runnable() {
+      public void run() {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (countStartedGcs(startedGcs) < 2 && System.currentTimeMillis() < deadline) {
+          try {
+            Thread.sleep(100);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        myEvents.getMulticaster().buildStarted(build);
+      }
+    });
+    buildStart.start();
+    long start = System.currentTimeMillis();
+    myTask.execute(() -> false);
+    long duration = System.currentTimeMillis() - start;
+    buildStart.join();
+
+    then(duration).isLessThan(TimeUnit.SECONDS.toMillis(60));
+    //gc in the third mirror is not started after the build start
+    then(countStartedGcs(startedGcs)).isEqualTo(2);
+  }
+
+
+  public void should_kill_child_processes_of_gc_when_build_starts() throws Exception {
+    if (SystemInfo.isWindows)
+      throw new SkipException("Test uses ps to find running git processes");
+    myEnv.put(Constants.TEAMCITY_AGENT_GIT_PATH, GitVersionProvider.getGitPath());
+    myConfigParams.put("teamcity.git.idleGcEnabled", "true");
+    myConfigParams.put("teamcity.git.idleGcDelayMinutes", "0");
+    myConfigParams.put("teamcity.git.idleGcMaxCpus", "1");
+    myMirrors.add(createMirrorWithSlowRepack());
+    myEvents.getMulticaster().agentStarted(myContext.mock(BuildAgent.class));
+
+    final AgentRunningBuild build = myContext.mock(AgentRunningBuild.class);
+    final AtomicBoolean repackStarted = new AtomicBoolean();
+    Thread buildStart = new Thread(new Runnable() {
+      public void run() {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(60);
+        while (!repackStarted.get() && System.currentTimeMillis() < deadline) {
+          try {
+            repackStarted.set(!getRunningRepacks().isEmpty());
+            Thread.sleep(100);
+          } catch (Exception e) {
+            return;
+          }
+        }
+        myEvents.getMulticaster().buildStarted(build);
+      }
+    });
+    buildStart.start();
+    myTask.execute(() -> false);
+    buildStart.join();
+
+    then(repackStarted.get()).isTrue();
+    //git gc runs repack and pack-objects in child processes, they should be killed too
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+    while (!getRunningRepacks().isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(100);
+    }
+    then(getRunningRepacks()).isEmpty();
+  }
+
+
+  @NotNull
+  private static List<String> getRunningRepacks() throws Exception {
+    Process ps = new ProcessBuilder("ps", "-A", "-o", "pid=", "-o", "args=").redirectErrorStream(true).start();
+    List<String> result = new ArrayList<String>();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(ps.getInputStream()))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.contains("pack-objects") || line.contains(" repack "))
+          result.add(line.trim());
+      }
+    }
+    ps.waitFor();
+    return result;
+  }
+
+
+  private static int countStartedGcs(File startedGcs) {
+    if (!startedGcs.isFile())
+      return 0;
+    try {
+      return Files.readAllLines(startedGcs.toPath()).size();
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+
+  private File createMirror(int packsCount) throws IOException {
+    File dir = myTempFiles.createTempDir();
+    Repository r = new RepositoryBuilder().setBare().setGitDir(dir).build();
+    r.create(true);
+    r.close();
+    for (int i = 0; i < packsCount; i++) {
+      then(new File(dir, "objects/pack/pack-" + i + ".pack").createNewFile()).isTrue();
+    }
+    return dir;
+  }
+
+
+  /**
+   * Creates a mirror with incompressible loose objects and a large delta window,
+   * so 'git gc' spends a long time in pack-objects
+   */
+  private File createMirrorWithSlowRepack() throws IOException {
+    File dir = myTempFiles.createTempDir();
+    Repository r = new RepositoryBuilder().setBare().setGitDir(dir).build();
+    r.create(true);
+    StoredConfig config = r.getConfig();
+    config.setInt("pack", null, "window", 250);
+    config.save();
+    Random random = new Random(0);
+    TreeFormatter tree = new TreeFormatter();
+    ObjectInserter inserter = r.newObjectInserter();
+    try {
+      //gc candidates are selected by the number of loose objects in objects/17
+      for (int i = 0; i < 200 || !new File(dir, "objects/17").isDirectory(); i++) {
+        byte[] content = new byte[256 * 1024];
+        random.nextBytes(content);
+        tree.append(String.format("file%05d", i), FileMode.REGULAR_FILE, inserter.insert(org.eclipse.jgit.lib.Constants.OBJ_BLOB, content));
+      }
+      PersonIdent author = new PersonIdent("user", "user@example.com");
+      CommitBuilder commit = new CommitBuilder();
+      commit.setTreeId(inserter.insert(tree));
+      commit.setAuthor(author);
+      commit.setCommitter(author);
+      commit.setMessage("Add files");
+      ObjectId commitId = inserter.insert(commit);
+      inserter.flush();
+      RefUpdate update = r.updateRef("refs/heads/master");
+      update.setNewObjectId(commitId);
+      update.update();
+    } finally {
+      inserter.release();
+      r.close();
+    }
+    return dir;
+  }
+}
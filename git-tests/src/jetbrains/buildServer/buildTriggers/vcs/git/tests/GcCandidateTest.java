@@ -0,0 +1,77 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.GcCandidate;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class GcCandidateTest {
+
+  public void mirror_with_single_pack_does_not_need_gc() {
+    then(candidate("r", 1, 0, 1L, 1).getPriority()).isEqualTo(0.0);
+    then(candidate("r", 0, 0, null, 0).getPriority()).isEqualTo(0.0);
+  }
+
+
+  public void more_packs_and_loose_objects_increase_priority() {
+    then(candidate("r", 3, 0, 1L, 1).getPriority()).isGreaterThan(candidate("r", 2, 0, 1L, 1).getPriority());
+    then(candidate("r", 2, 512, 1L, 1).getPriority()).isGreaterThan(candidate("r", 2, 0, 1L, 1).getPriority());
+    then(candidate("r", 1, 256, 1L, 1).getPriority()).isGreaterThan(0.0);
+  }
+
+
+  public void recently_used_mirror_has_higher_priority() {
+    then(candidate("r", 3, 0, 1L, 1).getPriority()).isGreaterThan(candidate("r", 3, 0, 1L, 48).getPriority());
+  }
+
+
+  public void mirror_not_gced_for_long_time_has_higher_priority() {
+    then(candidate("r", 3, 0, 100L, 1).getPriority()).isGreaterThan(candidate("r", 3, 0, 1L, 1).getPriority());
+    //the age bonus is limited by a week
+    then(candidate("r", 3, 0, 1000L, 1).getPriority()).isEqualTo(candidate("r", 3, 0, 7 * 24L, 1).getPriority());
+  }
+
+
+  public void mirror_with_unknown_gc_time_is_treated_as_not_gced_for_long_time() {
+    then(candidate("r", 3, 0, null, 1).getPriority()).isEqualTo(candidate("r", 3, 0, 7 * 24L, 1).getPriority());
+  }
+
+
+  public void candidates_are_ordered_by_descending_priority() {
+    GcCandidate unused = candidate("unused", 5, 0, 1L, 24 * 30);
+    GcCandidate manyPacks = candidate("manyPacks", 10, 0, 1L, 1);
+    GcCandidate fewPacks = candidate("fewPacks", 2, 0, 1L, 1);
+    GcCandidate neverGced = candidate("neverGced", 2, 0, null, 1);
+    List<GcCandidate> candidates = new ArrayList<GcCandidate>(asList(fewPacks, unused, neverGced, manyPacks));
+    Collections.sort(candidates, GcCandidate.PRIORITY_ORDER);
+    then(candidates).containsExactly(manyPacks, neverGced, fewPacks, unused);
+  }
+
+
+  private static GcCandidate candidate(String mirror, int packsCount, int looseObjectsCount, Long hoursSinceGc, long hoursSinceUse) {
+    return new GcCandidate(new File(mirror), packsCount, looseObjectsCount, hoursSinceGc, hoursSinceUse);
+  }
+}
@@ -18,10 +18,14 @@ package jetbrains.buildServer.buildTriggers.vcs.git.tests;
 
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.GcErrors;
 import jetbrains.buildServer.buildTriggers.vcs.git.GitFetchService;
+import jetbrains.buildServer.buildTriggers.vcs.git.GitResetCacheHandler;
 import jetbrains.buildServer.buildTriggers.vcs.git.GitUtils;
+import jetbrains.buildServer.buildTriggers.vcs.git.GitVcsRoot;
 import jetbrains.buildServer.buildTriggers.vcs.git.GitVcsSupport;
 import jetbrains.buildServer.buildTriggers.vcs.git.OperationContext;
+import jetbrains.buildServer.buildTriggers.vcs.git.RepositoryManager;
 import jetbrains.buildServer.buildTriggers.vcs.git.commitInfo.GitCommitsInfoBuilder;
 import jetbrains.buildServer.serverSide.ServerPaths;
 import jetbrains.buildServer.util.FileUtil;
@@ -38,6 +42,7 @@ import org.testng.annotations.Test;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
 
 import static java.util.Arrays.asList;
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitSupportBuilder.gitSupport;
@@ -287,4 +292,64 @@ public class GitCommitsInfoBuilderTest extends BaseTestCase {
     ));
     Assert.assertTrue(submodules.containsAll(expectedSubmodules));
   }
+
+
+  public void should_report_only_new_commits() throws Exception {
+    VcsRootImpl root = vcsRoot().withId(1).withFetchUrl(GitUtils.toURL(myRepositoryDir)).withBranch("master").build();
+    GitVcsSupport vcs = gitSupport().withServerPaths(myServerPaths).build();
+
+    List<String> commits = collectCommits(new GitCommitsInfoBuilder(vcs, new GitFetchService(vcs)), root);
+    assertTrue(commits.contains("2276eaf76a658f96b5cf3eb25f3e1fda90f6b653"));
+
+    GitCommitsInfoBuilder builder = new GitCommitsInfoBuilder(vcs, new GitFetchService(vcs));
+    assertTrue("reported commits should be persisted", collectCommits(builder, root).isEmpty());
+    assertTrue(collectCommits(builder, root).isEmpty());
+
+    VcsRootImpl otherRoot = vcsRoot().withId(2).withFetchUrl(GitUtils.toURL(myRepositoryDir)).withBranch("master").build();
+    assertEquals(new HashSet<String>(commits), new HashSet<String>(collectCommits(builder, otherRoot)));
+  }
+
+
+  public void should_report_all_commits_after_caches_reset() throws Exception {
+    VcsRootImpl root = vcsRoot().withId(1).withFetchUrl(GitUtils.toURL(myRepositoryDir)).withBranch("master").build();
+    GitVcsSupport vcs = gitSupport().withServerPaths(myServerPaths).build();
+    GitCommitsInfoBuilder builder = new GitCommitsInfoBuilder(vcs, new GitFetchService(vcs));
+
+    List<String> commits = collectCommits(builder, root);
+    assertFalse(commits.isEmpty());
+    assertTrue(collectCommits(builder, root).isEmpty());
+
+    new GitResetCacheHandler(vcs.getRepositoryManager(), new GcErrors()).resetCache("git");
+
+    assertEquals(new HashSet<String>(commits), new HashSet<String>(collectCommits(builder, root)));
+  }
+
+
+  public void should_keep_reported_commits_when_rm_lock_is_acquired() throws Exception {
+    VcsRootImpl root = vcsRoot().withId(1).withFetchUrl(GitUtils.toURL(myRepositoryDir)).withBranch("master").build();
+    GitVcsSupport vcs = gitSupport().withServerPaths(myServerPaths).build();
+    GitCommitsInfoBuilder builder = new GitCommitsInfoBuilder(vcs, new GitFetchService(vcs));
+
+    assertFalse(collectCommits(builder, root).isEmpty());
+
+    //gc takes the rm write lock to swap the repository with its compacted copy
+    RepositoryManager repositoryManager = vcs.getRepositoryManager();
+    Lock rmLock = repositoryManager.getRmLock(new GitVcsRoot(repositoryManager, root).getRepositoryDir()).writeLock();
+    rmLock.lock();
+    rmLock.unlock();
+
+    assertTrue(collectCommits(builder, root).isEmpty());
+  }
+
+
+  @NotNull
+  private List<String> collectCommits(@NotNull GitCommitsInfoBuilder builder, @NotNull VcsRoot root) throws VcsException {
+    final List<String> commits = new ArrayList<String>();
+    builder.collectCommits(root, CheckoutRules.DEFAULT, new CommitsInfoBuilder.CommitsConsumer() {
+      public void consumeCommit(@NotNull CommitInfo commit) {
+        commits.add(commit.getVersion());
+      }
+    });
+    return commits;
+  }
 }
@@ -25,6 +25,7 @@ import java.io.*;
 import java.net.InetSocketAddress;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class GitHttpServer {
   private final String myGitPath;
@@ -33,6 +34,7 @@ class GitHttpServer {
   private String myUser;
   private String myPassword;
   private int myPort = 8888;
+  private final AtomicInteger myRefsRequestCount = new AtomicInteger();
 
   GitHttpServer(@NotNull String gitPath, @NotNull File repo) {
     myGitPath = gitPath;
@@ -52,6 +54,14 @@ class GitHttpServer {
   }
 
 
+  /**
+   * @return number of requests listing refs of the repository
+   */
+  int getRefsRequestCount() {
+    return myRefsRequestCount.get();
+  }
+
+
   void start() throws IOException {
     myServer = HttpServer.create(new InetSocketAddress(myPort), 0);
     HttpContext context = myServer.createContext("/" + myRepo.getName(), new HttpHandler() {
@@ -84,6 +94,8 @@ class GitHttpServer {
 
 
   private void handleRequest(final HttpExchange httpExchange) throws IOException {
+    if (httpExchange.getRequestURI().getPath().endsWith("/info/refs"))
+      myRefsRequestCount.incrementAndGet();
     ProcessBuilder processBuilder = new ProcessBuilder(myGitPath, "http-backend");
     configureEnv(httpExchange, processBuilder);
     Process process = processBuilder.start();
@@ -52,6 +52,8 @@ import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitSupportBuilde
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.copyRepository;
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.dataFile;
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.VcsRootBuilder.vcsRoot;
+import static org.assertj.core.api.BDDAssertions.then;
+import static org.testng.AssertJUnit.fail;
 
 @Test
 public class GitPatchTest extends PatchTestCase {
@@ -118,6 +120,40 @@ public class GitPatchTest extends PatchTestCase {
   }
 
 
+  @DataProvider(name = "streamPatch")
+  public static Object[][] streamPatch() {
+    return new Object[][] {
+      new Object[] { Boolean.TRUE },
+      new Object[] { Boolean.FALSE }
+    };
+  }
+
+
+  @Test(dataProvider = "streamPatch")
+  public void build_patch_in_separate_process(boolean streamPatch) throws Exception {
+    myConfigBuilder.setSeparateProcessForPatch(true)
+      .setStreamPatchFromSeparateProcess(streamPatch);
+    checkPatch("cleanPatch1", null, GitUtils.makeVersion("a894d7d58ffde625019a9ecf8267f5f1d1e5c341", 1237391915000L));
+    checkPatch("patch1",
+               GitUtils.makeVersion("70dbcf426232f7a33c7e5ebdfbfb26fc8c467a46", 1238420977000L),
+               GitUtils.makeVersion("0dd03338d20d2e8068fbac9f24899d45d443df38", 1238421020000L));
+  }
+
+
+  @Test(dataProvider = "streamPatch")
+  public void should_report_error_of_patch_process(boolean streamPatch) throws Exception {
+    myConfigBuilder.setSeparateProcessForPatch(true)
+      .setStreamPatchFromSeparateProcess(streamPatch)
+      .setPatchBuilderClassName("jetbrains.buildServer.NoSuchPatchBuilder");
+    try {
+      checkPatch("cleanPatch1", null, "a894d7d58ffde625019a9ecf8267f5f1d1e5c341");
+      fail("Patch process error is not reported");
+    } catch (VcsException e) {
+      then(e.getMessage()).contains("'build patch' command failed");
+    }
+  }
+
+
   @TestFor(issues = "TW-40897")
   public void should_pass_proxy_settings_to_patch_in_separate_process() throws Exception {
     String classpath = myConfigBuilder.build().getPatchClasspath() + File.pathSeparator +
@@ -189,6 +225,24 @@ public class GitPatchTest extends PatchTestCase {
   }
 
 
+  @Test(dataProvider = "patchInSeparateProcess")
+  public void content_loaded_in_parallel_should_produce_same_patch(boolean patchInSeparateProcess) throws Exception {
+    myConfigBuilder.setSeparateProcessForPatch(patchInSeparateProcess);
+    for (int threadCount : new int[]{1, 3, 8}) {
+      myConfigBuilder.setPatchContentLoaderThreadCount(threadCount);
+      checkPatch("cleanPatch1", null, "a894d7d58ffde625019a9ecf8267f5f1d1e5c341");
+      checkPatch("patch3", null, "1837cf38309496165054af8bf7d62a9fe8997202");
+      checkPatch("patch4", "1837cf38309496165054af8bf7d62a9fe8997202", "592c5bcee6d906482177a62a6a44efa0cff9bbc7");
+      checkPatch("submodule-added", "patch-tests", "592c5bcee6d906482177a62a6a44efa0cff9bbc7", "b5d65401a4e8a09b80b8d73ca4392f1913e99ff5", true);
+    }
+
+    //every loaded content exceeds the limit, contents are loaded one by one
+    myConfigBuilder.setPatchContentLoaderThreadCount(8).setPatchContentLoaderMaxPendingBytes(0);
+    checkPatch("cleanPatch1", null, "a894d7d58ffde625019a9ecf8267f5f1d1e5c341");
+    checkPatch("patch4", "1837cf38309496165054af8bf7d62a9fe8997202", "592c5bcee6d906482177a62a6a44efa0cff9bbc7");
+  }
+
+
   @Test(dataProvider = "patchInSeparateProcess")
   public void build_patch_from_later_revision_to_earlier(boolean patchInSeparateProcess) throws Exception {
     myConfigBuilder.setSeparateProcessForPatch(patchInSeparateProcess);
@@ -679,6 +679,34 @@ public class GitVcsSupportTest extends PatchTestCase {
   }
 
 
+  @Test
+  public void should_fetch_in_reused_process() throws Exception {
+    setInternalProperty(Constants.CUSTOM_CLONE_PATH_ENABLED, "true");
+    myConfigBuilder.setSeparateProcessForFetch(true).setFetchProcessMaxFetches(10);
+    ServerPluginConfig config = myConfigBuilder.build();
+    FetchCommandImpl fetchCommand = new FetchCommandImpl(config, new TransportFactoryImpl(config, new EmptyVcsRootSshKeyManager()),
+                                                         new FetcherProperties(config), new EmptyVcsRootSshKeyManager());
+    GitVcsSupport support = gitSupport().withPluginConfig(config)
+      .withResetCacheManager(myResetCacheManager)
+      .withFetchCommand(fetchCommand)
+      .build();
+
+    VcsRootImpl root1 = (VcsRootImpl) getRoot("version-test");
+    VcsRootImpl root2 = (VcsRootImpl) getRoot("version-test");
+    root2.addProperty(Constants.PATH, new File(myTmpDir, "custom-dir").getAbsolutePath());
+    List<ModificationData> changes1 = support.collectChanges(root1, "2276eaf76a658f96b5cf3eb25f3e1fda90f6b653", "f3f826ce85d6dad25156b2d7550cedeb1a422f4c", CheckoutRules.DEFAULT);
+    List<ModificationData> changes2 = support.collectChanges(root2, "2276eaf76a658f96b5cf3eb25f3e1fda90f6b653", "f3f826ce85d6dad25156b2d7550cedeb1a422f4c", CheckoutRules.DEFAULT);
+    then(changes1).isNotEmpty();
+    then(changes2).hasSameSizeAs(changes1);
+    //both repositories are fetched by the same process
+    then(fetchCommand.getStartedFetchProcessCount()).isEqualTo(1);
+
+    //errors are reported the same way as in a process started for a single fetch
+    String error = getFetchExceptionMessage(support);
+    then(error).doesNotContain("at jetbrains.buildServer.buildTriggers.vcs.git.Fetcher").doesNotEndWith("\n");
+  }
+
+
   /*
    * Repository cloned by hand could have no teamcity.remote config, we should create it otherwise we can see 'null' as remote url in error messages
    * (see log in the issue for details).
@@ -1080,12 +1108,16 @@ public class GitVcsSupportTest extends PatchTestCase {
 
 
   private String getFetchExceptionMessage() {
+    return getFetchExceptionMessage(getSupport());
+  }
+
+  private String getFetchExceptionMessage(@NotNull GitVcsSupport support) {
     String result = null;
     File notExisting = new File(myTmpDir, "not-existing");
     VcsRootImpl root = new VcsRootImpl(1, Constants.VCS_NAME);
     root.addProperty(Constants.FETCH_URL, GitUtils.toURL(notExisting));
     try {
-      getSupport().collectChanges(root, MERGE_VERSION, AFTER_FIRST_LEVEL_SUBMODULE_ADDED_VERSION, CheckoutRules.DEFAULT);
+      support.collectChanges(root, MERGE_VERSION, AFTER_FIRST_LEVEL_SUBMODULE_ADDED_VERSION, CheckoutRules.DEFAULT);
       fail("Should throw an exception for not-existing repository");
     } catch (VcsException e) {
       result = e.getMessage();
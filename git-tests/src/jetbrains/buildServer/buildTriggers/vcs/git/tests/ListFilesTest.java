@@ -38,7 +38,9 @@ import static jetbrains.buildServer.buildTriggers.vcs.git.tests.ListFilesTest.Vc
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.VcsRootBuilder.vcsRoot;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.collection.IsCollectionContaining.hasItems;
+import static org.testng.AssertJUnit.assertFalse;
 import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
 
 /**
  * @author dmitry.neverov
@@ -47,15 +49,16 @@ import static org.testng.AssertJUnit.assertTrue;
 public class ListFilesTest {
   private TempFiles myTempFiles;
   private GitVcsSupport myGit;
+  private File myRemoteRepositoryDir;
   private VcsRoot myRoot;
 
   @BeforeMethod
   public void setUp() throws Exception {
     myTempFiles = new TempFiles();
     myGit = gitSupport().withServerPaths(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath())).build();
-    File remoteRepositoryDir = new File(myTempFiles.createTempDir(), "repo.git");
-    FileUtil.copyDir(dataFile("repo.git"), remoteRepositoryDir);
-    myRoot = vcsRoot().withFetchUrl(remoteRepositoryDir.getAbsolutePath()).withBranch("patch-tests").build();
+    myRemoteRepositoryDir = new File(myTempFiles.createTempDir(), "repo.git");
+    FileUtil.copyDir(dataFile("repo.git"), myRemoteRepositoryDir);
+    myRoot = vcsRoot().withFetchUrl(myRemoteRepositoryDir.getAbsolutePath()).withBranch("patch-tests").build();
   }
 
   @AfterMethod
@@ -102,6 +105,41 @@ public class ListFilesTest {
   }
 
 
+  public void list_files_in_dir_which_is_not_in_root() throws Exception {
+    ListDirectChildrenPolicy policy = getListFilesPolicy();
+    try {
+      policy.listFiles(myRoot, "submodule/dir");
+      fail("Path inside a submodule should not be found");
+    } catch (VcsFileNotFoundException e) {
+      //expected
+    }
+    try {
+      policy.listFiles(myRoot, "dir1/file1.txt/dir");
+      fail("Path inside a file should not be found");
+    } catch (VcsFileNotFoundException e) {
+      //expected
+    }
+  }
+
+
+  @Test(expectedExceptions = VcsException.class)
+  public void list_files_in_file() throws VcsException {
+    ListDirectChildrenPolicy policy = getListFilesPolicy();
+    policy.listFiles(myRoot, "dir1/file1.txt");
+  }
+
+
+  public void list_files_of_roots_sharing_repository() throws Exception {
+    VcsRoot root2 = vcsRoot().withFetchUrl(myRemoteRepositoryDir.getAbsolutePath()).withBranch("master").build();
+    Collection<VcsFileData> files = getListFilesPolicy().listFiles(myRoot, "dir1/");
+    assertThat(files, hasItems(vcsDir("subdir"), vcsFile("file1.txt"), vcsFile("file3.txt")));
+    files = getListFilesPolicy().listFiles(root2, "");
+    assertFalse(files.isEmpty());
+    files = getListFilesPolicy().listFiles(myRoot, "dir1");
+    assertThat(files, hasItems(vcsDir("subdir"), vcsFile("file1.txt"), vcsFile("file3.txt")));
+  }
+
+
   @NotNull
   private ListDirectChildrenPolicy getListFilesPolicy() {
     ListDirectChildrenPolicy policy = (ListDirectChildrenPolicy) myGit.getListFilesPolicy();
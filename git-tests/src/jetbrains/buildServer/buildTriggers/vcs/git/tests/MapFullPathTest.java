@@ -17,10 +17,7 @@
 package jetbrains.buildServer.buildTriggers.vcs.git.tests;
 
 import jetbrains.buildServer.TempFiles;
-import jetbrains.buildServer.buildTriggers.vcs.git.CommitLoader;
-import jetbrains.buildServer.buildTriggers.vcs.git.GitMapFullPath;
-import jetbrains.buildServer.buildTriggers.vcs.git.GitVcsSupport;
-import jetbrains.buildServer.buildTriggers.vcs.git.OperationContext;
+import jetbrains.buildServer.buildTriggers.vcs.git.*;
 import jetbrains.buildServer.log.LogInitializer;
 import jetbrains.buildServer.serverSide.BasePropertiesModel;
 import jetbrains.buildServer.serverSide.ServerPaths;
@@ -32,8 +29,11 @@ import jetbrains.buildServer.vcs.RepositoryStateData;
 import jetbrains.buildServer.vcs.VcsRoot;
 import jetbrains.buildServer.vcs.VcsRootEntry;
 import jetbrains.buildServer.vcs.patches.PatchBuilderImpl;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.URIish;
 import org.hamcrest.Description;
 import org.hamcrest.TypeSafeMatcher;
 import org.jetbrains.annotations.NotNull;
@@ -45,8 +45,12 @@ import org.testng.annotations.*;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.util.Arrays.asList;
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitSupportBuilder.gitSupport;
@@ -90,7 +94,7 @@ public class MapFullPathTest {
     copyRepository(dataFile("repo.git"), myRemoteRepositoryDir2);
 
     ServerPaths paths = new ServerPaths(myTempFiles.createTempDir().getAbsolutePath());
-    GitSupportBuilder gitBuilder = gitSupport().withServerPaths(paths);
+    GitSupportBuilder gitBuilder = gitSupport().withPluginConfig(new PluginConfigBuilder(paths));
     myGit = gitBuilder.build();
     myMapFullPath = gitBuilder.getMapFullPath();
     myRoot = vcsRoot().withId(1).withFetchUrl(myRemoteRepositoryDir.getAbsolutePath()).build();
@@ -222,6 +226,86 @@ public class MapFullPathTest {
   }
 
 
+  public void bulk_should_check_every_clone_dir_once() throws Exception {
+    final String commit1 = "a7274ca8e024d98c7d59874f19f21d26ee31d41d";
+    final String remoteUrl1 = myRemoteRepositoryDir.getAbsolutePath();
+    final String remoteUrl2 = myRemoteRepositoryDir2.getAbsolutePath();
+    //clone dirs are checked concurrently, count lookups without a mock
+    final Map<String, AtomicInteger> lookups = new ConcurrentHashMap<>();//remote url -> number of commit lookups
+    myMapFullPath.setCommitLoader(new CommitLoader() {
+      @NotNull
+      public RevCommit loadCommit(@NotNull OperationContext context, @NotNull GitVcsRoot root, @NotNull String revision) {
+        throw new UnsupportedOperationException();
+      }
+
+      public void fetch(@NotNull Repository db, @NotNull URIish fetchURI, @NotNull Collection<RefSpec> refspecs, @NotNull FetchSettings settings) {
+        throw new UnsupportedOperationException();
+      }
+
+      @NotNull
+      public RevCommit getCommit(@NotNull Repository repository, @NotNull ObjectId commitId) {
+        throw new UnsupportedOperationException();
+      }
+
+      public RevCommit findCommit(@NotNull Repository r, @NotNull String sha) {
+        String url = r.getConfig().getString("teamcity", null, "remote");
+        lookups.computeIfAbsent(url, u -> new AtomicInteger()).incrementAndGet();
+        return remoteUrl1.equals(url) ? new RevCommit(ObjectId.fromString(sha)) {} : null;
+      }
+    });
+
+    List<VcsRootEntry> entries = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      VcsRoot root = vcsRoot().withId(10 + i).withFetchUrl(i % 2 == 0 ? remoteUrl1 : remoteUrl2).withBranch("refs/heads/branch" + i).build();
+      entries.add(new VcsRootEntry(root, CheckoutRules.DEFAULT));
+    }
+
+    List<Boolean> result = myGit.checkSuitable(entries, asList(commit1 + "||."));
+
+    then(result).containsExactly(true, false, true, false, true, false, true, false, true, false);
+    then(lookups.get(remoteUrl1).get()).isEqualTo(1);
+    then(lookups.get(remoteUrl2).get()).isEqualTo(1);
+  }
+
+
+  public void bulk_should_check_other_roots_of_clone_dir_when_first_root_fails() throws Exception {
+    final String commit1 = "a7274ca8e024d98c7d59874f19f21d26ee31d41d";
+    final AtomicInteger lookups = new AtomicInteger();
+    myMapFullPath.setCommitLoader(new CommitLoader() {
+      @NotNull
+      public RevCommit loadCommit(@NotNull OperationContext context, @NotNull GitVcsRoot root, @NotNull String revision) {
+        throw new UnsupportedOperationException();
+      }
+
+      public void fetch(@NotNull Repository db, @NotNull URIish fetchURI, @NotNull Collection<RefSpec> refspecs, @NotNull FetchSettings settings) {
+        throw new UnsupportedOperationException();
+      }
+
+      @NotNull
+      public RevCommit getCommit(@NotNull Repository repository, @NotNull ObjectId commitId) {
+        throw new UnsupportedOperationException();
+      }
+
+      public RevCommit findCommit(@NotNull Repository r, @NotNull String sha) {
+        //the check for the first root of the clone dir fails
+        if (lookups.incrementAndGet() == 1)
+          throw new RuntimeException("Simulated error");
+        return new RevCommit(ObjectId.fromString(sha)) {};
+      }
+    });
+
+    VcsRoot root1 = vcsRoot().withId(10).withFetchUrl(myRemoteRepositoryDir.getAbsolutePath()).withBranch("refs/heads/branch1").build();
+    VcsRoot root2 = vcsRoot().withId(11).withFetchUrl(myRemoteRepositoryDir.getAbsolutePath()).withBranch("refs/heads/branch2").build();
+
+    List<Boolean> result = myGit.checkSuitable(asList(new VcsRootEntry(root1, CheckoutRules.DEFAULT), new VcsRootEntry(root2, CheckoutRules.DEFAULT)),
+                                               asList(commit1 + "||."));
+
+    //roots are checked in unspecified order, the failed one is not suitable, the other is checked on its own
+    then(result).containsOnly(true, false);
+    then(lookups.get()).isEqualTo(2);
+  }
+
+
   @DataProvider
   public Object[][] fetchAction() {
     return new Object[][]{
@@ -19,6 +19,7 @@ package jetbrains.buildServer.buildTriggers.vcs.git.tests;
 import jetbrains.buildServer.TempFiles;
 import jetbrains.buildServer.buildTriggers.vcs.git.*;
 import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.util.FileUtil;
 import org.eclipse.jgit.transport.URIish;
 import org.jetbrains.annotations.NotNull;
 import org.testng.annotations.AfterMethod;
@@ -117,6 +118,73 @@ public class MirrorManagerTest {
   }
 
 
+  public void should_read_mappings_from_journal_after_restart() throws Exception {
+    File baseMirrorsDir = myConfig.getCachesDir();
+    baseMirrorsDir.mkdirs();
+    FileUtil.writeFile(new File(baseMirrorsDir, "map"), "git://some.org/repository1.git = git-11111111.git\n");
+    MirrorManager mirrorManager = new MirrorManagerImpl(myConfig, new HashCalculatorImpl());
+    File dir1 = mirrorManager.getMirrorDir("git://some.org/repository1.git");
+    File dir2 = mirrorManager.getMirrorDir("git://some.org/repository2.git");
+    assertEquals(new File(baseMirrorsDir, "git-11111111.git"), dir1);
+    assertTrue(new File(baseMirrorsDir, "map.journal").isFile());
+
+    mirrorManager = new MirrorManagerImpl(myConfig, new HashCalculatorImpl()); //restart
+    assertEquals(dir1, mirrorManager.getMirrorDir("git://some.org/repository1.git"));
+    assertEquals(dir2, mirrorManager.getMirrorDir("git://some.org/repository2.git"));
+    assertEquals("git://some.org/repository2.git", mirrorManager.getUrl(dir2.getName()));
+
+    mirrorManager.invalidate(dir2);
+    assertNull(mirrorManager.getUrl(dir2.getName()));
+    mirrorManager = new MirrorManagerImpl(myConfig, new HashCalculatorImpl()); //restart
+    assertNull(mirrorManager.getUrl(dir2.getName()));
+    assertFalse(dir2.equals(mirrorManager.getMirrorDir("git://some.org/repository2.git")));
+  }
+
+
+  public void should_place_new_mirrors_in_shards() {
+    File baseMirrorsDir = myConfig.getCachesDir();
+    MirrorManager mirrorManager = new MirrorManagerImpl(myConfig, new HashCalculatorImpl());
+    String url = "git://some.org/repository.git";
+    File dir = mirrorManager.getMirrorDir(url);
+    File shard = dir.getParentFile();
+    assertEquals(baseMirrorsDir, shard.getParentFile());
+    assertTrue(shard.getName().matches("[0-9A-F]{2}"));
+    assertTrue(dir.getName().matches("git-" + shard.getName() + "[0-9A-F]{14}\\.git"));
+    assertEquals(url, mirrorManager.getUrl(dir.getName()));
+    assertEquals(url, mirrorManager.getUrl(shard.getName() + File.separator + dir.getName()));
+
+    assertTrue(dir.mkdirs());
+    assertEquals(Arrays.asList(dir), mirrorManager.getMirrorDirs());
+  }
+
+
+  public void should_move_existing_mirrors_to_shards() throws Exception {
+    File baseMirrorsDir = myConfig.getCachesDir();
+    String url = "git://some.org/repository1.git";
+    createRepositories(baseMirrorsDir, new HashMap<String, String>() {{
+      put(url, "git-11111111.git");
+    }});
+    MirrorManager mirrorManager = new MirrorManagerImpl(myConfig, new HashCalculatorImpl());
+    File oldDir = new File(baseMirrorsDir, "git-11111111.git");
+    assertEquals(oldDir, mirrorManager.getMirrorDir(url));
+    assertEquals(Arrays.asList(oldDir), mirrorManager.getMirrorDirs());
+
+    File newDir = mirrorManager.moveToShard(oldDir);
+    assertEquals(new File(new File(baseMirrorsDir, "11"), "git-11111111.git"), newDir);
+    assertFalse(oldDir.exists());
+    assertTrue(new File(newDir, "config").isFile());
+    assertEquals(newDir, mirrorManager.getMirrorDir(url));
+    assertEquals(url, mirrorManager.getUrl(newDir.getName()));
+    assertEquals(url, mirrorManager.getUrl("11" + File.separator + newDir.getName()));
+    assertEquals(url, mirrorManager.getUrl("11/" + newDir.getName()));
+    assertEquals(Arrays.asList(newDir), mirrorManager.getMirrorDirs());
+    assertNull(mirrorManager.moveToShard(newDir));
+
+    mirrorManager = new MirrorManagerImpl(myConfig, new HashCalculatorImpl()); //restart
+    assertEquals(newDir, mirrorManager.getMirrorDir(url));
+  }
+
+
   private void createRepositories(File baseDir, Map<String, String> url2dir) throws Exception {
     for (Map.Entry<String, String> entry : url2dir.entrySet()) {
       String url = entry.getKey();
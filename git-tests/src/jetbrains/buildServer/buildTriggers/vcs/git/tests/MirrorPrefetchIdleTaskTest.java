@@ -0,0 +1,327 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import com.intellij.openapi.util.SystemInfo;
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.agent.*;
+import jetbrains.buildServer.buildTriggers.vcs.git.Constants;
+import jetbrains.buildServer.buildTriggers.vcs.git.GitUtils;
+import jetbrains.buildServer.buildTriggers.vcs.git.HashCalculatorImpl;
+import jetbrains.buildServer.buildTriggers.vcs.git.MirrorManagerImpl;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.*;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsRoot;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.VcsRootBuilder.vcsRoot;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.builders.AgentRunningBuildBuilder.runningBuild;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.builders.BuildAgentConfigurationBuilder.agentConfiguration;
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class MirrorPrefetchIdleTaskTest {
+
+  private TempFiles myTempFiles;
+  private EventDispatcher<AgentLifeCycleListener> myEvents;
+  private Map<String, String> myConfigParams;
+  private MirrorManagerImpl myMirrorManager;
+  private MirrorLocks myMirrorLocks;
+  private File myFetches;
+  private File myGit;
+  private MirrorPrefetchIdleTask myTask;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    if (SystemInfo.isWindows)
+      throw new SkipException("Test uses a shell script instead of git");
+    myTempFiles = new TempFiles();
+    myEvents = EventDispatcher.create(AgentLifeCycleListener.class);
+    myConfigParams = new HashMap<String, String>();
+    myConfigParams.put("teamcity.git.idlePrefetchEnabled", "true");
+    myConfigParams.put("teamcity.git.idlePrefetchDelayMinutes", "0");
+    BuildAgentConfiguration agentConfig = agentConfiguration(myTempFiles.createTempDir(), myTempFiles.createTempDir())
+      .withConfigurationParameters(myConfigParams)
+      .build();
+    myMirrorManager = new MirrorManagerImpl(new AgentMirrorConfig(agentConfig), new HashCalculatorImpl());
+    myMirrorLocks = new MirrorLocks();
+    myFetches = new File(myTempFiles.createTempDir(), "fetches");
+    myGit = new File(myTempFiles.createTempDir(), "git");
+    writeGit("");
+
+    Mockery context = new Mockery();
+    final AgentIdleTasks idleTasks = context.mock(AgentIdleTasks.class);
+    context.checking(new Expectations() {{
+      allowing(idleTasks).addRecurringTask(with(any(AgentIdleTasks.Task.class)));
+    }});
+    CurrentBuildTracker buildTracker = new CurrentBuildTracker() {
+      @NotNull
+      @Override
+      public AgentRunningBuild getCurrentBuild() throws NoRunningBuildException {
+        throw new NoRunningBuildException();
+      }
+
+      @Override
+      public boolean isRunningBuild() {
+        return false;
+      }
+    };
+    GitAgentSSHService sshService = new GitAgentSSHService(new MockBuildAgent(), agentConfig, new MockGitPluginDescriptor(),
+                                                           new MockVcsRootSshKeyManagerProvider(), buildTracker);
+    PluginConfigFactory configFactory = new PluginConfigFactoryImpl(agentConfig, new GitDetectorImpl(new MockGitPathResolver()));
+    myTask = new MirrorPrefetchIdleTask(myEvents, idleTasks, agentConfig, myMirrorManager, myMirrorLocks, configFactory,
+                                        sshService, new GitMetaFactoryImpl());
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    if (myTempFiles != null)
+      myTempFiles.cleanup();
+  }
+
+
+  public void should_fetch_heads_and_branches_of_finished_builds() throws Exception {
+    VcsRoot root = createRoot("http://some.org/repo.git");
+    finishBuild(root, "refs/pull/1/head");
+    finishBuild(root, "refs/heads/topic");
+    finishBuild(root, "refs/pull/2/head");
+
+    myTask.execute(() -> false);
+
+    then(getFetchedRefspecs()).containsExactly("+refs/heads/*:refs/heads/*",
+                                               "+refs/pull/1/head:refs/pull/1/head",
+                                               "+refs/pull/2/head:refs/pull/2/head");
+  }
+
+
+  public void should_forget_least_recently_used_branches() throws Exception {
+    VcsRoot root = createRoot("http://some.org/repo.git");
+    for (int i = 0; i < 12; i++) {
+      finishBuild(root, "refs/pull/" + i + "/head");
+    }
+    //used again, becomes the most recently used branch
+    finishBuild(root, "refs/pull/2/head");
+
+    myTask.execute(() -> false);
+
+    List<String> expected = new ArrayList<String>();
+    expected.add("+refs/heads/*:refs/heads/*");
+    for (int i = 3; i < 12; i++) {
+      expected.add("+refs/pull/" + i + "/head:refs/pull/" + i + "/head");
+    }
+    expected.add("+refs/pull/2/head:refs/pull/2/head");
+    then(getFetchedRefspecs()).isEqualTo(expected);
+  }
+
+
+  public void should_forget_least_recently_used_repositories() throws Exception {
+    myConfigParams.put("teamcity.git.idlePrefetchMaxMirrors", "2");
+    VcsRoot root1 = createRoot("http://some.org/repo1.git");
+    VcsRoot root2 = createRoot("http://some.org/repo2.git");
+    VcsRoot root3 = createRoot("http://some.org/repo3.git");
+    finishBuild(root1, "refs/heads/master");
+    Thread.sleep(10);
+    finishBuild(root2, "refs/heads/master");
+    Thread.sleep(10);
+    finishBuild(root3, "refs/heads/master");
+
+    myTask.execute(() -> false);
+
+    then(getFetchedMirrors()).containsExactly(getMirror(root3).getCanonicalFile(), getMirror(root2).getCanonicalFile());
+  }
+
+
+  public void should_not_remember_roots_without_mirrors() throws Exception {
+    VcsRoot root = createRoot("http://some.org/repo.git");
+    myEvents.getMulticaster().buildFinished(runningBuild()
+                                              .sharedEnvVariable(Constants.TEAMCITY_AGENT_GIT_PATH, myGit.getAbsolutePath())
+                                              .addRoot(root)
+                                              .build(), BuildFinishedStatus.FINISHED_SUCCESS);
+
+    myTask.execute(() -> false);
+
+    then(getFetchedRefspecs()).isEmpty();
+  }
+
+
+  public void should_not_prefetch_until_delay_since_last_build_passes() throws Exception {
+    myConfigParams.put("teamcity.git.idlePrefetchDelayMinutes", "5");
+    VcsRoot root = createRoot("http://some.org/repo.git");
+    finishBuild(root, "refs/heads/master");
+
+    myTask.execute(() -> false);
+    then(getFetchedRefspecs()).isEmpty();
+
+    myConfigParams.put("teamcity.git.idlePrefetchDelayMinutes", "0");
+    myTask.execute(() -> false);
+    then(getFetchedRefspecs()).containsExactly("+refs/heads/*:refs/heads/*");
+  }
+
+
+  public void should_not_prefetch_mirror_more_often_than_rate() throws Exception {
+    VcsRoot root = createRoot("http://some.org/repo.git");
+    finishBuild(root, "refs/heads/master");
+
+    myTask.execute(() -> false);
+    myTask.execute(() -> false);
+    then(getFetchedRefspecs()).hasSize(1);
+
+    myConfigParams.put("teamcity.git.idlePrefetchRateMinutes", "0");
+    myTask.execute(() -> false);
+    then(getFetchedRefspecs()).hasSize(2);
+  }
+
+
+  public void should_skip_mirror_locked_by_build() throws Exception {
+    VcsRoot root = createRoot("http://some.org/repo.git");
+    finishBuild(root, "refs/heads/master");
+
+    Lock lock = myMirrorLocks.getLock(getMirror(root));
+    lock.lock();
+    try {
+      myTask.execute(() -> false);
+    } finally {
+      lock.unlock();
+    }
+
+    then(getFetchedRefspecs()).isEmpty();
+  }
+
+
+  public void should_kill_fetch_when_build_starts() throws Exception {
+    writeGit("exec sleep 600\n");
+    VcsRoot root1 = createRoot("http://some.org/repo1.git");
+    VcsRoot root2 = createRoot("http://some.org/repo2.git");
+    finishBuild(root1, "refs/heads/master");
+    finishBuild(root2, "refs/heads/master");
+
+    final AgentRunningBuild build = runningBuild().build();
+    Thread buildStart = new Thread(new Runnable() {
+      public void run() {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (getFetchedRefspecs().isEmpty() && System.currentTimeMillis() < deadline) {
+          try {
+            Thread.sleep(100);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        myEvents.getMulticaster().buildStarted(build);
+      }
+    });
+    buildStart.start();
+    long start = System.currentTimeMillis();
+    myTask.execute(() -> false);
+    long duration = System.currentTimeMillis() - start;
+    buildStart.join();
+
+    then(duration).isLessThan(TimeUnit.SECONDS.toMillis(60));
+    //the second mirror is not fetched after the build start
+    then(getFetchedRefspecs()).hasSize(1);
+  }
+
+
+  @NotNull
+  private VcsRoot createRoot(@NotNull String url) throws IOException {
+    VcsRoot root = vcsRoot().withFetchUrl(url).withBranch("refs/heads/master").build();
+    File mirror = getMirror(root);
+    Repository r = new RepositoryBuilder().setBare().setGitDir(mirror).build();
+    r.create(true);
+    r.close();
+    return root;
+  }
+
+
+  @NotNull
+  private File getMirror(@NotNull VcsRoot root) {
+    return myMirrorManager.getMirrorDir(root.getProperty(Constants.FETCH_URL));
+  }
+
+
+  private void finishBuild(@NotNull VcsRoot root, @NotNull String branch) {
+    AgentRunningBuild build = runningBuild()
+      .useLocalMirrors(true)
+      .sharedEnvVariable(Constants.TEAMCITY_AGENT_GIT_PATH, myGit.getAbsolutePath())
+      .sharedConfigParams(GitUtils.getGitRootBranchParamName(root), branch)
+      .addRoot(root)
+      .build();
+    myEvents.getMulticaster().buildFinished(build, BuildFinishedStatus.FINISHED_SUCCESS);
+  }
+
+
+  /**
+   * Creates a script which answers 'git version' and logs the working dir and arguments of other commands
+   */
+  private void writeGit(@NotNull String fetchCommand) throws IOException {
+    FileUtil.writeFileAndReportErrors(myGit, "#!/bin/sh\n" +
+                                             "if [ \"$1\" = \"version\" ]; then echo \"git version 2.20.0\"; exit 0; fi\n" +
+                                             "echo \"$PWD $@\" >> \"" + myFetches.getAbsolutePath() + "\"\n" +
+                                             fetchCommand);
+    then(myGit.setExecutable(true)).isTrue();
+  }
+
+
+  @NotNull
+  private List<String> getFetchedRefspecs() {
+    List<String> result = new ArrayList<String>();
+    for (String fetch : readFetches()) {
+      result.add(fetch.substring(fetch.lastIndexOf(' ') + 1));
+    }
+    return result;
+  }
+
+
+  @NotNull
+  private List<File> getFetchedMirrors() throws IOException {
+    List<File> result = new ArrayList<File>();
+    for (String fetch : readFetches()) {
+      result.add(new File(fetch.substring(0, fetch.indexOf(' '))).getCanonicalFile());
+    }
+    return result;
+  }
+
+
+  @NotNull
+  private List<String> readFetches() {
+    if (!myFetches.isFile())
+      return new ArrayList<String>();
+    try {
+      return Files.readAllLines(myFetches.toPath());
+    } catch (IOException e) {
+      return new ArrayList<String>();
+    }
+  }
+}
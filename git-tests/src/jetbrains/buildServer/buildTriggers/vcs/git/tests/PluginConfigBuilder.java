@@ -72,6 +72,17 @@ public class PluginConfigBuilder {
   private Integer myMergeRetryAttempts;
   private Boolean myRunInPlaceGc;
   private Boolean myReportPerParentChangedFiles;
+  private Integer myRepositoryPoolSize;
+  private int myRemoteRefsCacheTtlSeconds = 0;
+  private int myFetchProcessMaxFetches = 1;
+  private Integer myPatchContentLoaderThreadCount;
+  private Long myPatchContentLoaderMaxPendingBytes;
+  private Integer myGcThreadCount;
+  private Integer myCollectChangesThreadCount;
+  private Integer myChangedPathsCacheSize;
+  private Boolean myStreamPatchFromSeparateProcess;
+  private Integer myBulkPatchPipelineDepth;
+  private Long myBulkPatchBlobCacheSize;
 
   public static PluginConfigBuilder pluginConfig() {
     return new PluginConfigBuilder();
@@ -379,6 +390,111 @@ public class PluginConfigBuilder {
       public boolean shouldSetSubmoduleUserInAbsoluteUrls() {
         return myDelegate.shouldSetSubmoduleUserInAbsoluteUrls();
       }
+
+      @Override
+      public int getCheckSuitableThreadCount() {
+        return myDelegate.getCheckSuitableThreadCount();
+      }
+
+      @Override
+      public int getRepositoryPoolSize() {
+        return myRepositoryPoolSize != null ? myRepositoryPoolSize : myDelegate.getRepositoryPoolSize();
+      }
+
+      @Override
+      public int getRepositoryPoolIdleTimeoutSeconds() {
+        return myDelegate.getRepositoryPoolIdleTimeoutSeconds();
+      }
+
+      @Override
+      public int getRemoteRefsCacheTtlSeconds() {
+        return myRemoteRefsCacheTtlSeconds;
+      }
+
+      @Override
+      public int getFetchProcessMaxFetches() {
+        return myFetchProcessMaxFetches;
+      }
+
+      @Override
+      public int getFetchProcessMaxIdle() {
+        return myDelegate.getFetchProcessMaxIdle();
+      }
+
+      @Override
+      public int getFetchProcessIdleTimeoutSeconds() {
+        return myDelegate.getFetchProcessIdleTimeoutSeconds();
+      }
+
+      @Override
+      public int getPatchContentLoaderThreadCount() {
+        return myPatchContentLoaderThreadCount != null ? myPatchContentLoaderThreadCount : myDelegate.getPatchContentLoaderThreadCount();
+      }
+
+      @Override
+      public long getPatchContentLoaderMaxPendingBytes() {
+        return myPatchContentLoaderMaxPendingBytes != null ? myPatchContentLoaderMaxPendingBytes : myDelegate.getPatchContentLoaderMaxPendingBytes();
+      }
+
+      @Override
+      public boolean isIncrementalCommitsInfo() {
+        return myDelegate.isIncrementalCommitsInfo();
+      }
+
+      @Override
+      public int getGcThreadCount() {
+        return myGcThreadCount != null ? myGcThreadCount : myDelegate.getGcThreadCount();
+      }
+
+      @Override
+      public long getGcConcurrentPackBytesLimit() {
+        return myDelegate.getGcConcurrentPackBytesLimit();
+      }
+
+      @Override
+      public long getSlowRepositoryLockThresholdMillis() {
+        return myDelegate.getSlowRepositoryLockThresholdMillis();
+      }
+
+      @Override
+      public int getCollectChangesThreadCount() {
+        return myCollectChangesThreadCount != null ? myCollectChangesThreadCount : myDelegate.getCollectChangesThreadCount();
+      }
+
+      @Override
+      public int getChangedPathsCacheSize() {
+        return myChangedPathsCacheSize != null ? myChangedPathsCacheSize : myDelegate.getChangedPathsCacheSize();
+      }
+
+      @Override
+      public boolean isStreamPatchFromSeparateProcess() {
+        return myStreamPatchFromSeparateProcess != null ? myStreamPatchFromSeparateProcess : myDelegate.isStreamPatchFromSeparateProcess();
+      }
+
+      @Override
+      public int getBulkPatchPipelineDepth() {
+        return myBulkPatchPipelineDepth != null ? myBulkPatchPipelineDepth : myDelegate.getBulkPatchPipelineDepth();
+      }
+
+      @Override
+      public long getBulkPatchBlobCacheSize() {
+        return myBulkPatchBlobCacheSize != null ? myBulkPatchBlobCacheSize : myDelegate.getBulkPatchBlobCacheSize();
+      }
+
+      @Override
+      public long getFileContentCacheSize() {
+        return myDelegate.getFileContentCacheSize();
+      }
+
+      @Override
+      public long getFileContentCacheMaxBlobSize() {
+        return myDelegate.getFileContentCacheMaxBlobSize();
+      }
+
+      @Override
+      public int getListFilesTreeCacheSize() {
+        return myDelegate.getListFilesTreeCacheSize();
+      }
     };
   }
 
@@ -566,4 +682,59 @@ public class PluginConfigBuilder {
     myReportPerParentChangedFiles = report;
     return this;
   }
+
+  PluginConfigBuilder setRepositoryPoolSize(int size) {
+    myRepositoryPoolSize = size;
+    return this;
+  }
+
+  PluginConfigBuilder setRemoteRefsCacheTtlSeconds(int ttlSeconds) {
+    myRemoteRefsCacheTtlSeconds = ttlSeconds;
+    return this;
+  }
+
+  PluginConfigBuilder setFetchProcessMaxFetches(int maxFetches) {
+    myFetchProcessMaxFetches = maxFetches;
+    return this;
+  }
+
+  PluginConfigBuilder setPatchContentLoaderThreadCount(int threadCount) {
+    myPatchContentLoaderThreadCount = threadCount;
+    return this;
+  }
+
+  PluginConfigBuilder setPatchContentLoaderMaxPendingBytes(long maxPendingBytes) {
+    myPatchContentLoaderMaxPendingBytes = maxPendingBytes;
+    return this;
+  }
+
+  PluginConfigBuilder setGcThreadCount(int threadCount) {
+    myGcThreadCount = threadCount;
+    return this;
+  }
+
+  PluginConfigBuilder setCollectChangesThreadCount(int threadCount) {
+    myCollectChangesThreadCount = threadCount;
+    return this;
+  }
+
+  PluginConfigBuilder setChangedPathsCacheSize(int cacheSize) {
+    myChangedPathsCacheSize = cacheSize;
+    return this;
+  }
+
+  PluginConfigBuilder setStreamPatchFromSeparateProcess(boolean stream) {
+    myStreamPatchFromSeparateProcess = stream;
+    return this;
+  }
+
+  PluginConfigBuilder setBulkPatchPipelineDepth(int depth) {
+    myBulkPatchPipelineDepth = depth;
+    return this;
+  }
+
+  PluginConfigBuilder setBulkPatchBlobCacheSize(long size) {
+    myBulkPatchBlobCacheSize = size;
+    return this;
+  }
 }
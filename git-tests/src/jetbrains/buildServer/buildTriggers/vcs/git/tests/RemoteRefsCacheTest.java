@@ -0,0 +1,211 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.buildTriggers.vcs.git.*;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.GitExec;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.RepositoryStateData;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRoot;
+import org.eclipse.jgit.errors.NotSupportedException;
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitSupportBuilder.gitSupport;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.copyRepository;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.dataFile;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.VcsRootBuilder.vcsRoot;
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test(dataProviderClass = GitVersionProvider.class, dataProvider = "version")
+public class RemoteRefsCacheTest extends BaseRemoteRepositoryTest {
+
+  private PluginConfigBuilder myConfig;
+  private File myRemoteRepo;
+  private GitHttpServer myServer;
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myConfig = new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath()));
+    myRemoteRepo = copyRepository(myTempFiles, dataFile("repo_for_fetch.1"), "repo.git");
+  }
+
+
+  @Override
+  @AfterMethod
+  public void tearDown() {
+    super.tearDown();
+    if (myServer != null)
+      myServer.stop();
+  }
+
+
+  public void roots_with_same_url_should_share_remote_refs(@NotNull GitExec git) throws Exception {
+    startServer(git);
+    myConfig.setRemoteRefsCacheTtlSeconds(60);
+    GitVcsSupport vcs = gitSupport().withPluginConfig(myConfig).build();
+
+    RepositoryStateData state1 = vcs.getCurrentState(createRoot(1));
+    RepositoryStateData state2 = vcs.getCurrentState(createRoot(2));
+    RepositoryStateData state3 = vcs.getCurrentState(createRoot(3));
+
+    then(myServer.getRefsRequestCount()).isEqualTo(1);
+    then(state2.getBranchRevisions()).isEqualTo(state1.getBranchRevisions());
+    then(state3.getBranchRevisions()).isEqualTo(state1.getBranchRevisions());
+  }
+
+
+  public void should_list_remote_refs_again_when_cached_refs_expire(@NotNull GitExec git) throws Exception {
+    startServer(git);
+    myConfig.setRemoteRefsCacheTtlSeconds(0);
+    GitVcsSupport vcs = gitSupport().withPluginConfig(myConfig).build();
+    VcsRoot root = createRoot(1);
+
+    RepositoryStateData state1 = vcs.getCurrentState(root);
+    FileUtil.delete(myRemoteRepo);
+    copyRepository(dataFile("repo_for_fetch.2"), myRemoteRepo);
+    RepositoryStateData state2 = vcs.getCurrentState(root);
+
+    then(myServer.getRefsRequestCount()).isEqualTo(2);
+    then(state2.getBranchRevisions()).isNotEqualTo(state1.getBranchRevisions());
+  }
+
+
+  public void concurrent_requests_should_share_running_ls_remote(@NotNull GitExec git) throws Exception {
+    startServer(git);
+    myConfig.setRemoteRefsCacheTtlSeconds(60);
+    CountDownLatch lsRemoteStarted = new CountDownLatch(1);
+    CountDownLatch finishLsRemote = new CountDownLatch(1);
+    GitVcsSupport vcs = gitSupport().withPluginConfig(myConfig).withTransportFactory(blockingTransportFactory(lsRemoteStarted, finishLsRemote)).build();
+
+    List<RepositoryStateData> states = new CopyOnWriteArrayList<>();
+    List<Throwable> errors = new CopyOnWriteArrayList<>();
+    CountDownLatch requestsStarted = new CountDownLatch(3);
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 1; i <= 3; i++) {
+      VcsRoot root = createRoot(i);
+      Thread t = new Thread(() -> {
+        requestsStarted.countDown();
+        try {
+          states.add(vcs.getCurrentState(root));
+        } catch (Throwable e) {
+          errors.add(e);
+        }
+      });
+      threads.add(t);
+      t.start();
+      if (i == 1)
+        then(lsRemoteStarted.await(10, TimeUnit.SECONDS)).isTrue();
+    }
+    //requests arriving within the ttl either join the running ls-remote or get its result
+    then(requestsStarted.await(10, TimeUnit.SECONDS)).isTrue();
+    finishLsRemote.countDown();
+    for (Thread t : threads) {
+      t.join(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    then(errors).isEmpty();
+    then(states).hasSize(3);
+    then(myServer.getRefsRequestCount()).isEqualTo(1);
+  }
+
+
+  public void with_zero_ttl_request_should_not_join_ls_remote_started_before_it(@NotNull GitExec git) throws Exception {
+    startServer(git);
+    myConfig.setRemoteRefsCacheTtlSeconds(0);
+    CountDownLatch lsRemoteStarted = new CountDownLatch(1);
+    CountDownLatch finishLsRemote = new CountDownLatch(1);
+    GitVcsSupport vcs = gitSupport().withPluginConfig(myConfig).withTransportFactory(blockingTransportFactory(lsRemoteStarted, finishLsRemote)).build();
+
+    List<Throwable> errors = new CopyOnWriteArrayList<>();
+    Thread t = new Thread(() -> {
+      try {
+        vcs.getCurrentState(createRoot(1));
+      } catch (Throwable e) {
+        errors.add(e);
+      }
+    });
+    t.start();
+    then(lsRemoteStarted.await(10, TimeUnit.SECONDS)).isTrue();
+
+    //the remote repository changes while the first ls-remote is running, e.g. after a push
+    FileUtil.delete(myRemoteRepo);
+    copyRepository(dataFile("repo_for_fetch.2"), myRemoteRepo);
+    RepositoryStateData state = vcs.getCurrentState(createRoot(2));
+    finishLsRemote.countDown();
+    t.join(TimeUnit.SECONDS.toMillis(10));
+
+    then(errors).isEmpty();
+    then(myServer.getRefsRequestCount()).isEqualTo(2);
+    then(state.getBranchRevisions().get("refs/heads/master")).isEqualTo("d47dda159b27b9a8c4cee4ce98e4435eb5b17168");
+  }
+
+
+  /**
+   * Creates a transport factory which blocks the first ls-remote until finishLsRemote is released
+   */
+  @NotNull
+  private TransportFactory blockingTransportFactory(@NotNull CountDownLatch lsRemoteStarted, @NotNull CountDownLatch finishLsRemote) {
+    AtomicBoolean blocked = new AtomicBoolean();
+    ServerPluginConfig config = myConfig.build();
+    return new TransportFactoryImpl(config, new EmptyVcsRootSshKeyManager()) {
+      @Override
+      public Transport createTransport(@NotNull Repository r, @NotNull URIish url, @NotNull AuthSettings authSettings, int timeoutSeconds)
+        throws NotSupportedException, VcsException, TransportException {
+        if (blocked.compareAndSet(false, true)) {
+          lsRemoteStarted.countDown();
+          try {
+            finishLsRemote.await();
+          } catch (InterruptedException e) {
+            throw new VcsException(e);
+          }
+        }
+        return super.createTransport(r, url, authSettings, timeoutSeconds);
+      }
+    };
+  }
+
+
+  private void startServer(@NotNull GitExec git) throws Exception {
+    myServer = new GitHttpServer(git.getPath(), myRemoteRepo);
+    myServer.start();
+  }
+
+
+  @NotNull
+  private VcsRoot createRoot(int id) {
+    return vcsRoot().withId(id).withFetchUrl(myServer.getRepoUrl()).withBranch("master").build();
+  }
+}
@@ -31,7 +31,9 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 
 import static org.assertj.core.api.BDDAssertions.then;
@@ -81,6 +83,16 @@ public class RepositoryManagerTest {
   }
 
 
+  public void mirror_dir_and_its_canonical_path_should_have_same_lock() throws Exception {
+    RepositoryManager repositoryManager = getRepositoryManager();
+    File mirrorDir = repositoryManager.getMirrorDir("ssh://some.org/repository.git");
+    ReadWriteLock rmLock = repositoryManager.getRmLock(mirrorDir);
+    assertSame(rmLock, repositoryManager.getRmLock(mirrorDir.getCanonicalFile()));
+    Lock writeLock = repositoryManager.getWriteLock(mirrorDir);
+    assertSame(writeLock, repositoryManager.getWriteLock(mirrorDir.getCanonicalFile()));
+  }
+
+
   public void expired_dirs_should_not_include_map_file() throws Exception {
     myPluginConfig.setMirrorExpirationTimeoutMillis(100);
     RepositoryManager repositoryManager = getRepositoryManager();
@@ -95,6 +107,74 @@ public class RepositoryManagerTest {
   }
 
 
+  public void should_keep_last_used_times_in_single_file() throws Exception {
+    myPluginConfig.setMirrorExpirationTimeoutMillis(100);
+    RepositoryManager repositoryManager = getRepositoryManager();
+    Repository r1 = repositoryManager.openRepository(new URIish("ssh://some.org/repository.1.git"));
+    Repository r2 = repositoryManager.openRepository(new URIish("ssh://some.org/repository.2.git"));
+    File dir1 = r1.getDirectory();
+    File dir2 = r2.getDirectory();
+    assertFalse(new File(dir1, "timestamp").exists());
+    assertFalse(new File(dir2, "timestamp").exists());
+    Thread.sleep(200);
+    repositoryManager.openRepository(new URIish("ssh://some.org/repository.1.git"));
+    then(repositoryManager.getExpiredDirs()).containsOnly(dir2);
+    then(new File(repositoryManager.getBaseMirrorsDir(), "last-used")).isFile();
+
+    long lastUsed1 = repositoryManager.getLastUsedTime(dir1);
+    long lastUsed2 = repositoryManager.getLastUsedTime(dir2);
+    repositoryManager = getRepositoryManager(); //restart
+    assertEquals(lastUsed1, repositoryManager.getLastUsedTime(dir1));
+    assertEquals(lastUsed2, repositoryManager.getLastUsedTime(dir2));
+    then(repositoryManager.getExpiredDirs()).containsOnly(dir2);
+  }
+
+
+  public void should_persist_first_used_time_right_away() throws Exception {
+    RepositoryManager repositoryManager = getRepositoryManager();
+    File dir = repositoryManager.openRepository(new URIish("ssh://some.org/repository.1.git")).getDirectory();
+    long lastUsed = repositoryManager.getLastUsedTime(dir);
+
+    repositoryManager = getRepositoryManager(); //restart without flush
+    assertEquals(lastUsed, repositoryManager.getLastUsedTime(dir));
+  }
+
+
+  public void should_merge_last_used_times_of_different_processes() throws Exception {
+    RepositoryManager serverManager = getRepositoryManager();
+    RepositoryManager patchManager = getRepositoryManager();
+    File dir1 = serverManager.openRepository(new URIish("ssh://some.org/repository.1.git")).getDirectory();
+    File dir2 = patchManager.openRepository(new URIish("ssh://some.org/repository.2.git")).getDirectory();
+    Thread.sleep(10);
+    serverManager.openRepository(new URIish("ssh://some.org/repository.1.git"));
+    serverManager.flushLastUsedTimes();
+    patchManager.openRepository(new URIish("ssh://some.org/repository.2.git"));
+    patchManager.flushLastUsedTimes();
+
+    RepositoryManager repositoryManager = getRepositoryManager(); //restart
+    assertEquals(serverManager.getLastUsedTime(dir1), repositoryManager.getLastUsedTime(dir1));
+    assertEquals(patchManager.getLastUsedTime(dir2), repositoryManager.getLastUsedTime(dir2));
+    then(repositoryManager.getBaseMirrorsDir().list((dir, name) -> name.endsWith(".tmp"))).isEmpty();
+  }
+
+
+  public void should_not_expire_mirrors_when_last_used_times_cannot_be_read() throws Exception {
+    myPluginConfig.setMirrorExpirationTimeoutMillis(100);
+    RepositoryManager repositoryManager = getRepositoryManager();
+    File dir = repositoryManager.openRepository(new URIish("ssh://some.org/repository.1.git")).getDirectory();
+    Thread.sleep(200);
+    File lastUsed = new File(repositoryManager.getBaseMirrorsDir(), "last-used");
+    FileUtil.writeFileAndReportErrors(lastUsed, "corrupted");
+
+    repositoryManager = getRepositoryManager(); //restart
+    then(repositoryManager.getExpiredDirs()).isEmpty();
+    then(lastUsed).isFile();
+    Thread.sleep(200);
+    repositoryManager = getRepositoryManager(); //restart
+    then(repositoryManager.getExpiredDirs()).containsOnly(dir);
+  }
+
+
   public void should_throw_exception_when_repository_configured_for_different_url() throws Exception {
     RepositoryManager repositoryManager = getRepositoryManager();
     File dir = repositoryManager.getMirrorDir("git://some.org/repo.git");
@@ -188,6 +268,72 @@ public class RepositoryManagerTest {
   }
 
 
+  public void should_keep_released_repository_in_pool() throws Exception {
+    myPluginConfig.setRepositoryPoolSize(10);
+    RepositoryManager repositoryManager = getRepositoryManager();
+    Repository r1 = repositoryManager.openRepository(new URIish("git://some.org/repo.git"));
+    repositoryManager.closeRepository(r1);
+    Repository r2 = repositoryManager.openRepository(new URIish("git://some.org/repo.git"));
+    assertSame(r1, r2);
+  }
+
+
+  public void should_evict_least_recently_used_repositories() throws Exception {
+    myPluginConfig.setRepositoryPoolSize(2);
+    RepositoryManager repositoryManager = getRepositoryManager();
+    Repository r1 = repositoryManager.openRepository(new URIish("git://some.org/repo1.git"));
+    Repository r2 = repositoryManager.openRepository(new URIish("git://some.org/repo2.git"));
+    Repository r3 = repositoryManager.openRepository(new URIish("git://some.org/repo3.git"));
+    repositoryManager.closeRepository(r1);
+    repositoryManager.closeRepository(r2);
+    repositoryManager.closeRepository(r3);
+
+    assertNotSame(r1, repositoryManager.openRepository(new URIish("git://some.org/repo1.git")));
+    assertSame(r3, repositoryManager.openRepository(new URIish("git://some.org/repo3.git")));
+  }
+
+
+  public void should_close_pooled_repository_when_rm_lock_is_acquired() throws Exception {
+    myPluginConfig.setRepositoryPoolSize(10);
+    RepositoryManager repositoryManager = getRepositoryManager();
+    Repository r1 = repositoryManager.openRepository(new URIish("git://some.org/repo.git"));
+    Repository r2 = repositoryManager.openRepository(new URIish("git://some.org/repo.git"));
+    repositoryManager.closeRepository(r1);
+
+    Lock rmLock = repositoryManager.getRmLock(r1.getDirectory()).writeLock();
+    rmLock.lock();
+    rmLock.unlock();
+
+    //repository is still used, it will be closed after release
+    repositoryManager.closeRepository(r2);
+    Repository r3 = repositoryManager.openRepository(new URIish("git://some.org/repo.git"));
+    assertNotSame(r1, r3);
+  }
+
+
+  public void should_notify_remove_listeners_only_when_repository_is_removed() throws Exception {
+    RepositoryManager repositoryManager = getRepositoryManager();
+    List<File> removed = new ArrayList<>();
+    repositoryManager.addRemoveListener(removed::add);
+    File mirrorDir = repositoryManager.getMirrorDir("git://some.org/repo.git");
+
+    //rm write lock is also acquired to swap the repository with its compacted copy
+    ReadWriteLock rmLock = repositoryManager.getRmLock(mirrorDir);
+    rmLock.writeLock().lock();
+    rmLock.writeLock().unlock();
+    then(removed).isEmpty();
+
+    rmLock.writeLock().lock();
+    try {
+      repositoryManager.repositoryRemoved(mirrorDir);
+    } finally {
+      rmLock.writeLock().unlock();
+    }
+    then(removed).containsExactly(mirrorDir.getCanonicalFile());
+    then(repositoryManager.getRepositoryKey(mirrorDir)).isEqualTo(mirrorDir.getCanonicalFile());
+  }
+
+
   public void get_repository_in_dir_with_existing_config_without_teamcity_remote() throws Exception {
     File customDir = myTempFiles.createTempDir();
     Repository r = new RepositoryBuilder().setGitDir(customDir).setBare().build();
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.RepositoryPool;
+import jetbrains.buildServer.serverSide.BasePropertiesModel;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.util.FS;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class RepositoryPoolTest {
+
+  private TempFiles myTempFiles;
+  private PluginConfigBuilder myPluginConfig;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    new TeamCityProperties() {{ setModel(new BasePropertiesModel() {});}};
+    myTempFiles = new TempFiles();
+    myPluginConfig = new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath()));
+  }
+
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+
+  public void should_reuse_released_repository() throws Exception {
+    myPluginConfig.setRepositoryPoolSize(10);
+    RepositoryPool pool = new RepositoryPool(myPluginConfig.build());
+    TrackedRepository r = createRepository();
+
+    then(pool.add(r.getKey(), r)).isSameAs(r);
+    pool.release(r);
+
+    then(r.isClosed()).isFalse();
+    then(pool.get(r.getKey())).isSameAs(r);
+    then(pool.getHits()).isEqualTo(1);
+  }
+
+
+  public void should_close_released_repository_when_pool_is_disabled() throws Exception {
+    myPluginConfig.setRepositoryPoolSize(0);
+    RepositoryPool pool = new RepositoryPool(myPluginConfig.build());
+    TrackedRepository r = createRepository();
+
+    pool.add(r.getKey(), r);
+    pool.release(r);
+
+    then(r.isClosed()).isTrue();
+    then(pool.get(r.getKey())).isNull();
+  }
+
+
+  public void should_return_existing_repository_and_close_the_added_one() throws Exception {
+    myPluginConfig.setRepositoryPoolSize(10);
+    RepositoryPool pool = new RepositoryPool(myPluginConfig.build());
+    TrackedRepository r1 = createRepository();
+    TrackedRepository r2 = new TrackedRepository(r1.getDirectory());
+
+    pool.add(r1.getKey(), r1);
+    then(pool.add(r2.getKey(), r2)).isSameAs(r1);
+    then(r2.isClosed()).isTrue();
+    then(pool.getSize()).isEqualTo(1);
+  }
+
+
+  public void should_evict_least_recently_released_repositories() throws Exception {
+    myPluginConfig.setRepositoryPoolSize(2);
+    RepositoryPool pool = new RepositoryPool(myPluginConfig.build());
+    TrackedRepository r1 = createRepository();
+    TrackedRepository r2 = createRepository();
+    TrackedRepository r3 = createRepository();
+    pool.add(r1.getKey(), r1);
+    pool.add(r2.getKey(), r2);
+    pool.add(r3.getKey(), r3);
+
+    pool.release(r1);
+    pool.release(r2);
+    pool.release(r3);
+
+    then(r1.isClosed()).isTrue();
+    then(r2.isClosed()).isFalse();
+    then(r3.isClosed()).isFalse();
+    then(pool.getSize()).isEqualTo(2);
+    then(pool.getEvictions()).isEqualTo(1);
+    then(pool.get(r1.getKey())).isNull();
+  }
+
+
+  public void should_not_evict_repositories_in_use() throws Exception {
+    myPluginConfig.setRepositoryPoolSize(1);
+    RepositoryPool pool = new RepositoryPool(myPluginConfig.build());
+    TrackedRepository r1 = createRepository();
+    TrackedRepository r2 = createRepository();
+    pool.add(r1.getKey(), r1);
+    pool.add(r2.getKey(), r2);
+
+    pool.release(r2);
+
+    //only idle repositories are evicted, even if the pool size is exceeded
+    then(r1.isClosed()).isFalse();
+    then(r2.isClosed()).isTrue();
+    then(pool.getSize()).isEqualTo(1);
+    then(pool.get(r1.getKey())).isSameAs(r1);
+  }
+
+
+  public void should_close_evicted_repository_when_last_usage_is_released() throws Exception {
+    myPluginConfig.setRepositoryPoolSize(10);
+    RepositoryPool pool = new RepositoryPool(myPluginConfig.build());
+    TrackedRepository r = createRepository();
+    pool.add(r.getKey(), r);
+    then(pool.get(r.getKey())).isSameAs(r);
+
+    pool.evict(r.getDirectory());
+    then(r.isClosed()).isFalse();
+    then(pool.get(r.getKey())).isNull();
+
+    pool.release(r);
+    then(r.isClosed()).isFalse();
+    pool.release(r);
+    then(r.isClosed()).isTrue();
+  }
+
+
+  public void should_close_idle_repository_on_evict() throws Exception {
+    myPluginConfig.setRepositoryPoolSize(10);
+    RepositoryPool pool = new RepositoryPool(myPluginConfig.build());
+    TrackedRepository r = createRepository();
+    pool.add(r.getKey(), r);
+    pool.release(r);
+
+    pool.evict(r.getDirectory());
+
+    then(r.isClosed()).isTrue();
+    then(pool.getSize()).isEqualTo(0);
+  }
+
+
+  @NotNull
+  private TrackedRepository createRepository() throws IOException {
+    File dir = myTempFiles.createTempDir();
+    TrackedRepository r = new TrackedRepository(dir);
+    r.create(true);
+    return r;
+  }
+
+
+  private static class TrackedRepository extends FileRepository {
+    private volatile boolean myClosed;
+
+    TrackedRepository(@NotNull File gitDir) throws IOException {
+      super(gitDir);
+    }
+
+    @NotNull
+    RepositoryCache.FileKey getKey() {
+      return RepositoryCache.FileKey.exact(getDirectory(), FS.DETECTED);
+    }
+
+    boolean isClosed() {
+      return myClosed;
+    }
+
+    @Override
+    public void close() {
+      myClosed = true;
+      super.close();
+    }
+  }
+}
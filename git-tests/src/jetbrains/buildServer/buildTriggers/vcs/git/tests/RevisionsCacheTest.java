@@ -29,6 +29,7 @@ import org.testng.annotations.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Semaphore;
@@ -421,6 +422,76 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
   }
 
 
+  public void should_migrate_text_cache() throws Exception {
+    File repo = repository("1");
+    File cacheFile = RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE);
+    String commit = "2276eaf76a658f96b5cc2f2a1a0c5c4b4d7f9e1e";
+    FileUtil.writeFile(cacheFile, "+" + commit + "\n-v2\n");
+
+    RepositoryRevisionCache repoCache = new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
+    then(repoCache.hasRevision(commit)).isTrue();
+    then(repoCache.hasRevision("v2")).isFalse();
+    then(FileUtil.readFile(cacheFile)).doesNotContain("+" + commit);
+    then(repoCache).isEqualTo(new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE));
+  }
+
+
+  public void should_append_fixed_width_records_for_commits() throws Exception {
+    File repo = repository("1");
+    File cacheFile = RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE);
+    RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
+    repoCache.saveRevision("2276eaf76a658f96b5cc2f2a1a0c5c4b4d7f9e1e", true, repoCache.getResetCounter());
+    long length = cacheFile.length();
+
+    repoCache.saveRevision("a2c8a9b5e4f3d2c1b0a9f8e7d6c5b4a3f2e1d0c9", false, repoCache.getResetCounter());
+    then(cacheFile.length() - length).isEqualTo(21);
+
+    repoCache.saveRevision("ffffffffffffffffffffffffffffffffffffffff", true, repoCache.getResetCounter());
+    then(cacheFile.length() - length).isEqualTo(42);
+    then(repoCache).isEqualTo(new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE));
+  }
+
+
+  public void should_compact_journal() throws Exception {
+    int cacheSize = 10;
+    myConfigBuilder.setMapFullPathRevisionCacheSize(cacheSize);
+    ServerPluginConfig config = myConfigBuilder.build();
+    myCache = new RevisionsCache(config);
+
+    File repo = repository("1");
+    File cacheFile = RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE);
+    RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
+    for (int i = 0; i < 1000; i++) {
+      repoCache.saveRevision(String.format("%040x", i), i % 2 == 0, repoCache.getResetCounter());
+    }
+
+    then(cacheFile.length()).isLessThan(100 * 21);
+    then(repoCache).isEqualTo(new RevisionsCache(config).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE));
+  }
+
+
+  public void should_ignore_incomplete_last_record() throws Exception {
+    File repo = repository("1");
+    File cacheFile = RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE);
+    RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
+    repoCache.saveRevision("2276eaf76a658f96b5cc2f2a1a0c5c4b4d7f9e1e", true, repoCache.getResetCounter());
+    long length = cacheFile.length();
+    repoCache.saveRevision("a2c8a9b5e4f3d2c1b0a9f8e7d6c5b4a3f2e1d0c9", false, repoCache.getResetCounter());
+
+    try (RandomAccessFile file = new RandomAccessFile(cacheFile, "rw")) {
+      file.setLength(length + 10);
+    }
+
+    RevisionsCache cache = new RevisionsCache(myConfig);
+    RepositoryRevisionCache restored = cache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
+    then(restored.hasRevision("2276eaf76a658f96b5cc2f2a1a0c5c4b4d7f9e1e")).isTrue();
+    then(restored.hasRevision("a2c8a9b5e4f3d2c1b0a9f8e7d6c5b4a3f2e1d0c9")).isNull();
+
+    restored.saveRevision("v3", true, restored.getResetCounter());
+    then(restored).isEqualTo(new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE));
+  }
+
+
   @NotNull
   private File repository(@NotNull String name) {
     File result = new File(myConfig.getCachesDir(), name);
@@ -184,7 +184,7 @@ public class AgentRunningBuildBuilder {
       }
 
       public void addSharedEnvironmentVariable(final String key, final String value) {
-        throw new UnsupportedOperationException();
+        mySharedBuildParameters.put("env." + key, value);
       }
 
       @NotNull
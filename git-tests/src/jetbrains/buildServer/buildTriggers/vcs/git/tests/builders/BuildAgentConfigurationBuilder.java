@@ -31,6 +31,7 @@ public class BuildAgentConfigurationBuilder {
 
   private final File myAgentTempDir;
   private final File myAgentCacheDir;
+  private Map<String, String> myConfigurationParameters = new HashMap<String, String>();
 
   public BuildAgentConfigurationBuilder(@NotNull File agentTempDir, @NotNull File agentCacheDir) {
     myAgentTempDir = agentTempDir;
@@ -41,6 +42,14 @@ public class BuildAgentConfigurationBuilder {
     return new BuildAgentConfigurationBuilder(agentTempDir, agentCacheDir);
   }
 
+  /**
+   * @param params parameters returned by the configuration, later changes in the map are visible in the configuration
+   */
+  public BuildAgentConfigurationBuilder withConfigurationParameters(@NotNull Map<String, String> params) {
+    myConfigurationParameters = params;
+    return this;
+  }
+
   @NotNull
   public BuildAgentConfiguration build() {
     return new BuildAgentConfiguration() {
@@ -65,7 +74,7 @@ public class BuildAgentConfigurationBuilder {
 
       @NotNull
       public Map<String, String> getConfigurationParameters() {
-        return new HashMap<String, String>();
+        return myConfigurationParameters;
       }
 
       public String getName() {